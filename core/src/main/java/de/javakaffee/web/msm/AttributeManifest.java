@@ -0,0 +1,250 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.TranscoderService.decodeNum;
+import static de.javakaffee.web.msm.TranscoderService.encodeNum;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * This class defines the format of the manifest that is stored instead of the serialized
+ * session attributes if session attributes are stored separately (see
+ * {@link MemcachedSessionService#setStoreAttributesSeparately(boolean)}): each session
+ * attribute is stored in its own memcached item and the manifest references these items.
+ * <p>
+ * Each write of an attribute goes to a new key (the key contains an id that's incremented
+ * for each write), so that the manifest always references consistent attribute items: the
+ * manifest is written after the attribute items and replaced items are deleted afterwards.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+class AttributeManifest {
+
+    private static final short CURRENT_VERSION = 1;
+
+    private final String _sessionId;
+    private final long _nextKeyId;
+    private final Map<String, Entry> _entries;
+
+    /**
+     * @param sessionId the session id that was used to create the attribute keys.
+     * @param nextKeyId the key id that's used for the next attribute write.
+     * @param entries the manifest entries by attribute name.
+     */
+    AttributeManifest( @Nonnull final String sessionId, final long nextKeyId, @Nonnull final Map<String, Entry> entries ) {
+        _sessionId = sessionId;
+        _nextKeyId = nextKeyId;
+        _entries = entries;
+    }
+
+    /**
+     * Creates the name/key that is used for the memcached item of a single session attribute.
+     * The key ends with the session id so that the item is stored on the same memcached node as the session.
+     */
+    @Nonnull
+    static String createAttributeKey( @Nonnull final String sessionId, final long keyId ) {
+        if ( sessionId == null ) {
+            throw new IllegalArgumentException( "The sessionId must not be null." );
+        }
+        return "attr:" + keyId + ":" + sessionId;
+    }
+
+    /**
+     * The session id that was used to create the attribute keys.
+     */
+    @Nonnull
+    String getSessionId() {
+        return _sessionId;
+    }
+
+    long getNextKeyId() {
+        return _nextKeyId;
+    }
+
+    @CheckForNull
+    Entry getEntry( @Nonnull final String attributeName ) {
+        return _entries.get( attributeName );
+    }
+
+    @Nonnull
+    Map<String, Entry> getEntries() {
+        return Collections.unmodifiableMap( _entries );
+    }
+
+    /**
+     * The memcached key of the attribute stored for the given entry.
+     */
+    @Nonnull
+    String getKey( @Nonnull final Entry entry ) {
+        return createAttributeKey( _sessionId, entry.getKeyId() );
+    }
+
+    /**
+     * The memcached keys of all attributes, in the order of the attribute names.
+     */
+    @Nonnull
+    List<String> getKeys() {
+        final List<String> result = new ArrayList<String>( _entries.size() );
+        for ( final Entry entry : _entries.values() ) {
+            result.add( getKey( entry ) );
+        }
+        return result;
+    }
+
+    /**
+     * Encode this manifest to a byte[], that can be decoded later via {@link #decode(byte[])}.
+     */
+    @Nonnull
+    byte[] encode() {
+        final byte[] sessionIdData = toBytes( _sessionId );
+        final List<byte[]> namesData = new ArrayList<byte[]>( _entries.size() );
+        int length = 2 // version
+                + 2 + sessionIdData.length
+                + 8 // nextKeyId
+                + 4; // number of entries
+        for ( final String name : _entries.keySet() ) {
+            final byte[] nameData = toBytes( name );
+            namesData.add( nameData );
+            length += 2 + nameData.length
+                    + 8 // keyId
+                    + 8 // hash
+                    + 8; // expiresAt
+        }
+
+        final byte[] data = new byte[length];
+        int idx = encodeNum( CURRENT_VERSION, data, 0, 2 );
+        idx = encodeNum( sessionIdData.length, data, idx, 2 );
+        idx = TranscoderService.copy( sessionIdData, data, idx );
+        idx = encodeNum( _nextKeyId, data, idx, 8 );
+        idx = encodeNum( _entries.size(), data, idx, 4 );
+        int i = 0;
+        for ( final Entry entry : _entries.values() ) {
+            final byte[] nameData = namesData.get( i++ );
+            idx = encodeNum( nameData.length, data, idx, 2 );
+            idx = TranscoderService.copy( nameData, data, idx );
+            idx = encodeNum( entry.getKeyId(), data, idx, 8 );
+            idx = encodeNum( entry.getHash(), data, idx, 8 );
+            idx = encodeNum( entry.getExpiresAt(), data, idx, 8 );
+        }
+        return data;
+    }
+
+    /**
+     * Decode the given byte[] that previously was created via {@link #encode()}.
+     */
+    @Nonnull
+    static AttributeManifest decode( @Nonnull final byte[] data ) {
+        return decode( data, 0 );
+    }
+
+    /**
+     * Decode the manifest stored in the given byte[] starting at the given index.
+     */
+    @Nonnull
+    static AttributeManifest decode( @Nonnull final byte[] data, final int offset ) {
+        final short version = (short) decodeNum( data, offset, 2 );
+        if ( version != CURRENT_VERSION ) {
+            throw new IllegalArgumentException( "The attribute manifest version " + version +
+                    " does not match the current version " + CURRENT_VERSION );
+        }
+        int idx = offset + 2;
+        final int sessionIdLength = (int) decodeNum( data, idx, 2 );
+        final String sessionId = toString( data, idx += 2, sessionIdLength );
+        final long nextKeyId = decodeNum( data, idx += sessionIdLength, 8 );
+        final int size = (int) decodeNum( data, idx += 8, 4 );
+        idx += 4;
+        final Map<String, Entry> entries = new LinkedHashMap<String, Entry>( size );
+        for ( int i = 0; i < size; i++ ) {
+            final int nameLength = (int) decodeNum( data, idx, 2 );
+            final String name = toString( data, idx += 2, nameLength );
+            final long keyId = decodeNum( data, idx += nameLength, 8 );
+            final long hash = decodeNum( data, idx += 8, 8 );
+            final long expiresAt = decodeNum( data, idx += 8, 8 );
+            idx += 8;
+            entries.put( name, new Entry( keyId, hash, expiresAt ) );
+        }
+        return new AttributeManifest( sessionId, nextKeyId, entries );
+    }
+
+    private static byte[] toBytes( final String value ) {
+        try {
+            return value.getBytes( "UTF-8" );
+        } catch ( final UnsupportedEncodingException e ) {
+            throw new RuntimeException( e );
+        }
+    }
+
+    private static String toString( final byte[] data, final int beginIndex, final int length ) {
+        try {
+            return new String( data, beginIndex, length, "UTF-8" );
+        } catch ( final UnsupportedEncodingException e ) {
+            throw new RuntimeException( e );
+        }
+    }
+
+    /**
+     * Describes the memcached item of a single session attribute.
+     */
+    static final class Entry {
+
+        private final long _keyId;
+        private final long _hash;
+        private final long _expiresAt;
+
+        /**
+         * @param keyId the id used to create the key of the memcached item.
+         * @param hash the hash of the serialized attribute (see {@link HashingOutputStream}).
+         * @param expiresAt the time in millis when the memcached item expires, <code>0</code> if it never expires.
+         */
+        Entry( final long keyId, final long hash, final long expiresAt ) {
+            _keyId = keyId;
+            _hash = hash;
+            _expiresAt = expiresAt;
+        }
+
+        long getKeyId() {
+            return _keyId;
+        }
+
+        long getHash() {
+            return _hash;
+        }
+
+        long getExpiresAt() {
+            return _expiresAt;
+        }
+
+        /**
+         * Determines if the memcached item expires before the given time (<code>0</code> means never).
+         */
+        boolean expiresBefore( final long time ) {
+            return _expiresAt != 0 && ( time == 0 || _expiresAt < time );
+        }
+
+    }
+
+}
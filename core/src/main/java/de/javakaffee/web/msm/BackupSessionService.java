@@ -17,21 +17,22 @@
 package de.javakaffee.web.msm;
 
 import static de.javakaffee.web.msm.Statistics.StatsType.EFFECTIVE_BACKUP;
-import static de.javakaffee.web.msm.Statistics.StatsType.RELEASE_LOCK;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.AbstractExecutorService;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import net.spy.memcached.MemcachedClient;
 
@@ -40,6 +41,8 @@ import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
 import de.javakaffee.web.msm.BackupSessionTask.BackupResult;
+import de.javakaffee.web.msm.BoundedBackupExecutor.OverflowPolicy;
+import de.javakaffee.web.msm.CoalescingBackupQueue.BackupTaskFactory;
 
 /**
  * This service is responsible for storing sessions memcached. This includes
@@ -55,39 +58,70 @@ public class BackupSessionService {
     private final TranscoderService _transcoderService;
     private final boolean _sessionBackupAsync;
     private final int _sessionBackupTimeout;
+    private final boolean _storeAttributesSeparately;
+    private final boolean _cacheSerializedAttributes;
     private final MemcachedClient _memcached;
     private final MemcachedNodesManager _memcachedNodesManager;
     private final Statistics _statistics;
+    private final LocalLockTable _localLocks;
 
     private final ExecutorService _executorService;
+    private final CoalescingBackupQueue _backupQueue;
 
 
     /**
      * @param sessionBackupAsync
      * @param sessionBackupTimeout
      * @param backupThreadCount TODO
+     * @param backupQueueCapacity the maximum number of backups waiting for execution if session backup is async.
+     * @param backupQueueOverflowPolicy what to do with a backup if the backup queue is full.
+     * @param storeAttributesSeparately specifies if each session attribute is stored in its own memcached item.
+     * @param cacheSerializedAttributes specifies if the serialized form of session attributes is cached by the session.
      * @param memcached
      * @param memcachedNodesManager
      * @param failoverNodeIds
+     * @param localLocks the local session locks, a lock is released via this table so that it can be handed over.
      */
     public BackupSessionService( final TranscoderService transcoderService,
             final boolean sessionBackupAsync,
             final int sessionBackupTimeout,
             final int backupThreadCount,
+            final int backupQueueCapacity,
+            @Nonnull final OverflowPolicy backupQueueOverflowPolicy,
+            final boolean storeAttributesSeparately,
+            final boolean cacheSerializedAttributes,
             final MemcachedClient memcached,
             final MemcachedNodesManager memcachedNodesManager,
-            final Statistics statistics ) {
+            final Statistics statistics,
+            @Nonnull final LocalLockTable localLocks ) {
         _transcoderService = transcoderService;
         _sessionBackupAsync = sessionBackupAsync;
         _sessionBackupTimeout = sessionBackupTimeout;
+        _storeAttributesSeparately = storeAttributesSeparately;
+        _cacheSerializedAttributes = cacheSerializedAttributes;
         _memcached = memcached;
         _memcachedNodesManager = memcachedNodesManager;
         _statistics = statistics;
+        _localLocks = localLocks;
 
         _executorService = sessionBackupAsync
-            ? Executors.newFixedThreadPool( backupThreadCount )
+            ? new BoundedBackupExecutor( backupThreadCount, backupQueueCapacity, backupQueueOverflowPolicy, statistics )
             : new SynchronousExecutorService();
 
+        _backupQueue = sessionBackupAsync
+            ? new CoalescingBackupQueue( _executorService, new BackupTaskFactory() {
+                    @Override
+                    public Callable<BackupResult> createBackupTask( final MemcachedBackupSession session, final boolean force ) {
+                        return createBackupSessionTask( session, force );
+                    }
+                    @Override
+                    public BackupResult backupDiscarded( final MemcachedBackupSession session ) {
+                        releaseLock( session );
+                        return BackupResult.FAILURE;
+                    }
+                }, statistics )
+            : null;
+
     }
 
     /**
@@ -104,10 +138,15 @@ public class BackupSessionService {
      * seconds in memcached (whereas timeIdle is calculated as
      * <em>System.currentTimeMillis - session.thisAccessedTime</em>).
      * <p>
-     * <strong>IMPLEMENTATION NOTE</strong>: right now this performs a new backup of the session
-     * in memcached. Once the touch command is available in memcached
-     * (see <a href="http://code.google.com/p/memcached/issues/detail?id=110">issue #110</a> in memcached),
-     * we can consider to use this.
+     * If the serialized attributes are cached and no attribute was accessed since the last backup,
+     * the data stored by the last backup is stored again with the new expiration, so that the session
+     * is neither serialized nor compressed again (only the stored last backup time is not updated).
+     * Otherwise a new backup of the session is performed.
+     * </p>
+     * <p>
+     * <strong>IMPLEMENTATION NOTE</strong>: the touch command of memcached
+     * (see <a href="http://code.google.com/p/memcached/issues/detail?id=110">issue #110</a> in memcached)
+     * would not need to send the session data again, but it's not supported by the memcached client.
      * </p>
      *
      * @param session the session for that the expiration shall be updated in memcached.
@@ -116,23 +155,65 @@ public class BackupSessionService {
      * @see MemcachedBackupSession#getThisAccessedTimeInternal()
      */
     public void updateExpiration( final MemcachedBackupSession session ) {
-        if ( _log.isDebugEnabled() ) {
-            _log.debug( "Updating expiration time for session " + session.getId() );
-        }
+        updateExpiration( Collections.singletonList( session ) );
+    }
 
-        if ( !_memcachedNodesManager.getSessionIdFormat().isValid( session.getId() ) ) {
-            return;
+    /**
+     * Update the expiration of the given sessions in memcached, like {@link #updateExpiration(MemcachedBackupSession)}.
+     *
+     * @param sessions the sessions for that the expiration shall be updated in memcached.
+     */
+    public void updateExpiration( final List<MemcachedBackupSession> sessions ) {
+        final List<MemcachedBackupSession> validSessions = new ArrayList<MemcachedBackupSession>( sessions.size() );
+        for ( final MemcachedBackupSession session : sessions ) {
+            if ( _log.isDebugEnabled() ) {
+                _log.debug( "Updating expiration time for session " + session.getId() );
+            }
+            if ( _memcachedNodesManager.getSessionIdFormat().isValid( session.getId() ) ) {
+                session.setExpirationUpdateRunning( true );
+                session.setLastBackupTime( System.currentTimeMillis() );
+                validSessions.add( session );
+            }
+            else {
+                session.setExpirationUpdateRunning( false );
+            }
         }
 
-        session.setExpirationUpdateRunning( true );
-        session.setLastBackupTime( System.currentTimeMillis() );
         try {
-            final Map<String, Object> attributes = session.getAttributesFiltered();
-            final byte[] attributesData = _transcoderService.serializeAttributes( session, attributes );
-            final byte[] data = _transcoderService.serialize( session, attributesData );
-            createBackupSessionTask( session, true ).doBackupSession( session, data, attributesData );
+            for ( final MemcachedBackupSession session : validSessions ) {
+                storeForExpirationUpdate( session );
+            }
         } finally {
-            session.setExpirationUpdateRunning( false );
+            for ( final MemcachedBackupSession session : validSessions ) {
+                session.setExpirationUpdateRunning( false );
+            }
+        }
+    }
+
+    private void storeForExpirationUpdate( final MemcachedBackupSession session ) {
+        final Map<String, Object> attributes = session.getAttributesFiltered();
+        if ( _storeAttributesSeparately ) {
+            /* only the manifest and attributes that would expire before the session are written
+             */
+            createBackupSessionTask( session, true ).backupAttributesSeparately( attributes );
+        }
+        else {
+            final byte[] backupData = _cacheSerializedAttributes ? session.getBackupData() : null;
+            if ( backupData != null && !session.authenticationChanged() ) {
+                createBackupSessionTask( session, true ).storeBackupData( session, backupData );
+                return;
+            }
+            final byte[] data;
+            if ( _cacheSerializedAttributes && _transcoderService.isExtendedSessionFormat() ) {
+                final HashingOutputStream attributesOut = new HashingOutputStream();
+                _transcoderService.serializeAttributeFragments( session, attributes, attributesOut );
+                data = _transcoderService.serializeWithAttributeFragments( session, attributesOut );
+            }
+            else {
+                final byte[] attributesData = _transcoderService.serializeAttributes( session, attributes );
+                data = _transcoderService.serialize( session, attributesData );
+            }
+            createBackupSessionTask( session, true ).doBackupSession( session, data );
         }
     }
 
@@ -144,6 +225,11 @@ public class BackupSessionService {
      * <em>sessionBackupAsynch</em> flag (in the constructor).
      * </p>
      * <p>
+     * For asynchronous session backup there's at most one backup running and one pending per
+     * session: if there's already a pending backup for this session, this backup is merged
+     * into the pending one (see {@link CoalescingBackupQueue}).
+     * </p>
+     * <p>
      * Before a new {@link BackupSessionTask} is created for session backup the following
      * checks are done:
      * <ul>
@@ -164,6 +250,23 @@ public class BackupSessionService {
      * @see BackupSessionTask#call()
      */
     public Future<BackupResult> backupSession( final MemcachedBackupSession session, final boolean force ) {
+        return backupSession( session, force, null );
+    }
+
+    /**
+     * Store the provided session in memcached like {@link #backupSession(MemcachedBackupSession, boolean)}, for
+     * synchronous session backup the memcached writes are added to the given writes of the request and
+     * awaited under their deadline.
+     *
+     * @param session
+     *            the session to save
+     * @param force
+     *            specifies, if session backup shall be forced.
+     * @param writes the writes of the current request, can be <code>null</code>.
+     * @return a {@link Future} providing the result of the backup task.
+     */
+    public Future<BackupResult> backupSession( final MemcachedBackupSession session, final boolean force,
+            @Nullable final WriteFanOut writes ) {
         if ( _log.isDebugEnabled() ) {
             _log.debug( "Starting for session id " + session.getId() );
         }
@@ -201,8 +304,9 @@ public class BackupSessionService {
                 return new SimpleFuture<BackupResult>( BackupResult.SKIPPED );
             }
 
-            final BackupSessionTask task = createBackupSessionTask( session, force );
-            final Future<BackupResult> result = _executorService.submit( task );
+            final Future<BackupResult> result = _sessionBackupAsync
+                ? _backupQueue.submit( session, force )
+                : _executorService.submit( createBackupSessionTask( session, force, writes ) );
 
             if ( !_sessionBackupAsync ) {
                 try {
@@ -223,30 +327,27 @@ public class BackupSessionService {
     }
 
     private BackupSessionTask createBackupSessionTask( final MemcachedBackupSession session, final boolean force ) {
+        return createBackupSessionTask( session, force, null );
+    }
+
+    private BackupSessionTask createBackupSessionTask( final MemcachedBackupSession session, final boolean force,
+            @Nullable final WriteFanOut writes ) {
         return new BackupSessionTask( session,
                 force,
                 _transcoderService,
                 _sessionBackupAsync,
                 _sessionBackupTimeout,
+                _storeAttributesSeparately,
+                _cacheSerializedAttributes,
                 _memcached,
                 _memcachedNodesManager,
-                _statistics );
+                _statistics,
+                _localLocks,
+                writes );
     }
 
     private void releaseLock( @Nonnull final MemcachedBackupSession session ) {
-        if ( session.isLocked()  ) {
-            try {
-                if ( _log.isDebugEnabled() ) {
-                    _log.debug( "Releasing lock for session " + session.getIdInternal() );
-                }
-                final long start = System.currentTimeMillis();
-                _memcached.delete( _memcachedNodesManager.getSessionIdFormat().createLockName( session.getIdInternal() ) );
-                _statistics.registerSince( RELEASE_LOCK, start );
-                session.releaseLock();
-            } catch( final Exception e ) {
-                _log.warn( "Caught exception when trying to release lock for session " + session.getIdInternal() );
-            }
-        }
+        LockingStrategy.releaseLock( session, _localLocks, _memcached, _memcachedNodesManager.getSessionIdFormat(), _statistics );
     }
 
     /**
@@ -20,13 +20,13 @@ package de.javakaffee.web.msm;
 import static de.javakaffee.web.msm.Statistics.StatsType.ATTRIBUTES_SERIALIZATION;
 import static de.javakaffee.web.msm.Statistics.StatsType.BACKUP;
 import static de.javakaffee.web.msm.Statistics.StatsType.MEMCACHED_UPDATE;
-import static de.javakaffee.web.msm.Statistics.StatsType.RELEASE_LOCK;
 
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
@@ -50,6 +50,19 @@ public class BackupSessionTask implements Callable<BackupResult> {
 
     private static final Log _log = LogFactory.getLog( BackupSessionTask.class );
 
+    /**
+     * Memcached interprets expiration times above 30 days as absolute unix time.
+     */
+    private static final int MAX_RELATIVE_EXPIRATION = 60 * 60 * 24 * 30;
+
+    /**
+     * Buffers that are reused for serializing session attributes, so that the buffer
+     * does not have to grow again for each backup. Buffers that grew larger than
+     * {@link #MAX_POOLED_BUFFER_SIZE} are not pooled to not hold much memory for rare large sessions.
+     */
+    private static final BlockingQueue<HashingOutputStream> BUFFER_POOL = new ArrayBlockingQueue<HashingOutputStream>( 8 );
+    private static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+
     private final SessionIdFormat _sessionIdFormat = new SessionIdFormat();
 
     private final MemcachedBackupSession _session;
@@ -57,15 +70,21 @@ public class BackupSessionTask implements Callable<BackupResult> {
     private final TranscoderService _transcoderService;
     private final boolean _sessionBackupAsync;
     private final int _sessionBackupTimeout;
+    private final boolean _storeAttributesSeparately;
+    private final boolean _cacheSerializedAttributes;
     private final MemcachedClient _memcached;
     private final MemcachedNodesManager _memcachedNodesManager;
     private final Statistics _statistics;
+    private final LocalLockTable _localLocks;
+    private final WriteFanOut _writes;
 
     /**
      * @param session
      *            the session to save
      * @param sessionBackupAsync
      * @param sessionBackupTimeout
+     * @param storeAttributesSeparately specifies if each session attribute is stored in its own memcached item.
+     * @param cacheSerializedAttributes specifies if the serialized form of session attributes is cached by the session.
      * @param memcached
      * @param force
      *            specifies, if the session needs to be saved by all means, e.g.
@@ -73,23 +92,34 @@ public class BackupSessionTask implements Callable<BackupResult> {
      *            node (the session id had been changed before in this case).
      * @param memcachedNodesManager
      * @param failoverNodeIds
+     * @param localLocks the local session locks, the lock of the session is released via this table.
+     * @param writes the writes of the current request, for synchronous backup the memcached writes are added to it
+     *  and awaited under its deadline, can be <code>null</code> (then each write is awaited with the sessionBackupTimeout).
      */
     public BackupSessionTask( final MemcachedBackupSession session,
             final boolean sessionIdChanged,
             final TranscoderService transcoderService,
             final boolean sessionBackupAsync,
             final int sessionBackupTimeout,
+            final boolean storeAttributesSeparately,
+            final boolean cacheSerializedAttributes,
             final MemcachedClient memcached,
             final MemcachedNodesManager memcachedNodesManager,
-            final Statistics statistics ) {
+            final Statistics statistics,
+            @Nonnull final LocalLockTable localLocks,
+            @Nullable final WriteFanOut writes ) {
         _session = session;
         _force = sessionIdChanged;
         _transcoderService = transcoderService;
         _sessionBackupAsync = sessionBackupAsync;
         _sessionBackupTimeout = sessionBackupTimeout;
+        _storeAttributesSeparately = storeAttributesSeparately;
+        _cacheSerializedAttributes = cacheSerializedAttributes;
         _memcached = memcached;
         _memcachedNodesManager = memcachedNodesManager;
         _statistics = statistics;
+        _localLocks = localLocks;
+        _writes = writes;
     }
 
     /**
@@ -107,22 +137,41 @@ public class BackupSessionTask implements Callable<BackupResult> {
             final long startBackup = System.currentTimeMillis();
 
             final Map<String, Object> attributes = _session.getAttributesFiltered();
-            final byte[] attributesData = serializeAttributes( _session, attributes );
-            final int hashCode = Arrays.hashCode( attributesData );
             final BackupResult result;
-            if ( _session.getDataHashCode() != hashCode
-                    || _force
-                    || _session.authenticationChanged() ) {
-
-                _session.setLastBackupTime( System.currentTimeMillis() );
-                final byte[] data = _transcoderService.serialize( _session, attributesData );
+            if ( _storeAttributesSeparately ) {
+                result = backupAttributesSeparately( attributes );
+            }
+            else {
+                /* attribute fragments can only be read by newer versions, so they're written only
+                 * if the extended session format is enabled
+                 */
+                final boolean fragments = _cacheSerializedAttributes && _transcoderService.isExtendedSessionFormat();
+                final HashingOutputStream attributesOut = serializeAttributes( _session, attributes, fragments );
+                final long hash = attributesOut.getHash();
+                if ( _session.getDataHash() != hash
+                        || _force
+                        || _session.authenticationChanged() ) {
+
+                    _session.setLastBackupTime( System.currentTimeMillis() );
+                    /* the serialized attributes are copied directly into the session data
+                     */
+                    final byte[] data;
+                    try {
+                        data = fragments
+                            ? _transcoderService.serializeWithAttributeFragments( _session, attributesOut )
+                            : _transcoderService.serialize( _session, attributesOut );
+                    } finally {
+                        releaseBuffer( attributesOut );
+                    }
 
-                result = doBackupSession( _session, data, attributesData );
-                if ( result.isSuccess() ) {
-                    _session.setDataHashCode( hashCode );
+                    result = doBackupSession( _session, data );
+                    if ( result.isSuccess() ) {
+                        _session.setDataHash( hash );
+                    }
+                } else {
+                    releaseBuffer( attributesOut );
+                    result = new BackupResult( BackupResultStatus.SKIPPED );
                 }
-            } else {
-                result = new BackupResult( BackupResultStatus.SKIPPED );
             }
 
             switch ( result.getStatus() ) {
@@ -156,46 +205,239 @@ public class BackupSessionTask implements Callable<BackupResult> {
     }
 
     private void releaseLock() {
-        if ( _session.isLocked()  ) {
-            try {
-                if ( _log.isDebugEnabled() ) {
-                    _log.debug( "Releasing lock for session " + _session.getIdInternal() );
-                }
-                final long start = System.currentTimeMillis();
-                _memcached.delete( _sessionIdFormat.createLockName( _session.getIdInternal() ) );
-                _statistics.registerSince( RELEASE_LOCK, start );
-                _session.releaseLock();
-            } catch( final Exception e ) {
-                _log.warn( "Caught exception when trying to release lock for session " + _session.getIdInternal() );
+        LockingStrategy.releaseLock( _session, _localLocks, _memcached, _sessionIdFormat, _statistics );
+    }
+
+    /**
+     * Serializes the given attributes, the returned stream provides both the serialized
+     * attributes and their hash. The stream is taken from the buffer pool and must be
+     * handed back via {@link #releaseBuffer(HashingOutputStream)}.
+     *
+     * @param fragments specifies if the attributes are serialized as named fragments
+     *  (see {@link TranscoderService#serializeAttributeFragments(MemcachedBackupSession, Map, HashingOutputStream)}).
+     */
+    private HashingOutputStream serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes,
+            final boolean fragments ) {
+        final long start = System.currentTimeMillis();
+        final HashingOutputStream attributesOut = acquireBuffer();
+        try {
+            if ( fragments ) {
+                _transcoderService.serializeAttributeFragments( session, attributes, attributesOut );
             }
+            else {
+                _transcoderService.serializeAttributes( session, attributes, attributesOut );
+            }
+        } catch ( final RuntimeException e ) {
+            releaseBuffer( attributesOut );
+            throw e;
         }
+        _statistics.registerSince( ATTRIBUTES_SERIALIZATION, start );
+        return attributesOut;
     }
 
-    private byte[] serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes ) {
+    @Nonnull
+    static HashingOutputStream acquireBuffer() {
+        final HashingOutputStream result = BUFFER_POOL.poll();
+        return result != null ? result : new HashingOutputStream( 1024 );
+    }
+
+    static void releaseBuffer( @Nonnull final HashingOutputStream buffer ) {
+        if ( buffer.getCapacity() <= MAX_POOLED_BUFFER_SIZE ) {
+            buffer.reset();
+            BUFFER_POOL.offer( buffer );
+        }
+    }
+
+    /**
+     * Stores each of the given attributes in its own memcached item, the session fields are stored
+     * together with an {@link AttributeManifest} that references the attribute items. Only attributes
+     * whose serialized form changed are written, and attributes whose memcached item would expire
+     * before the session. Attribute items are stored with a longer expiration than the session
+     * (if possible the expiration of the session + maxInactiveInterval), so that unchanged attributes
+     * don't have to be rewritten with every backup.
+     * <p>
+     * If the session id changed (e.g. due to a memcached failover) all attributes are written.
+     * If nothing changed and the backup is not forced, the backup is skipped.
+     * </p>
+     *
+     * @param attributes the attributes to store.
+     * @return the result of the backup, the data of a successful result is the stored manifest item.
+     */
+    BackupResult backupAttributesSeparately( final Map<String, Object> attributes ) {
+        final String sessionId = _session.getIdInternal();
+        final AttributeManifest previous = _session.getAttributeManifest();
+        final boolean rewrite = previous == null || !sessionId.equals( previous.getSessionId() );
+
         final long start = System.currentTimeMillis();
-        final byte[] attributesData = _transcoderService.serializeAttributes( session, attributes );
+        final Map<String, SerializedAttribute> attributesData = new LinkedHashMap<String, SerializedAttribute>( attributes.size() );
+        for ( final Map.Entry<String, Object> attribute : attributes.entrySet() ) {
+            attributesData.put( attribute.getKey(), serializeAttribute( attribute.getKey(), attribute.getValue() ) );
+        }
         _statistics.registerSince( ATTRIBUTES_SERIALIZATION, start );
-        return attributesData;
+
+        final int expiration = _session.getMemcachedExpirationTimeToSet();
+        final int attributeExpiration = getAttributeExpiration( expiration, _session.getMaxInactiveInterval() );
+        final long now = System.currentTimeMillis();
+        final long sessionExpiresAt = expiration > 0 ? now + expiration * 1000L : 0;
+        final long attributeExpiresAt = attributeExpiration > 0 ? now + attributeExpiration * 1000L : 0;
+
+        long nextKeyId = previous != null ? previous.getNextKeyId() : 0;
+        boolean modified = rewrite || previous.getEntries().size() != attributes.size();
+        final Map<String, AttributeManifest.Entry> entries = new LinkedHashMap<String, AttributeManifest.Entry>( attributes.size() );
+        final Map<String, byte[]> itemsToStore = new LinkedHashMap<String, byte[]>();
+        for ( final Map.Entry<String, SerializedAttribute> attribute : attributesData.entrySet() ) {
+            final long hash = attribute.getValue().getHash();
+            final AttributeManifest.Entry entry = rewrite ? null : previous.getEntry( attribute.getKey() );
+            if ( entry == null || entry.getHash() != hash ) {
+                modified = true;
+                final AttributeManifest.Entry newEntry = new AttributeManifest.Entry( nextKeyId++, hash, attributeExpiresAt );
+                entries.put( attribute.getKey(), newEntry );
+                itemsToStore.put( AttributeManifest.createAttributeKey( sessionId, newEntry.getKeyId() ), attribute.getValue().getData() );
+            }
+            else if ( entry.expiresBefore( sessionExpiresAt ) ) {
+                // same item, just with a new expiration
+                entries.put( attribute.getKey(), new AttributeManifest.Entry( entry.getKeyId(), hash, attributeExpiresAt ) );
+                itemsToStore.put( previous.getKey( entry ), attribute.getValue().getData() );
+            }
+            else {
+                entries.put( attribute.getKey(), entry );
+            }
+        }
+
+        if ( !modified && !_force && !_session.authenticationChanged() ) {
+            return new BackupResult( BackupResultStatus.SKIPPED );
+        }
+
+        final AttributeManifest manifest = new AttributeManifest( sessionId, nextKeyId, entries );
+        _session.setLastBackupTime( System.currentTimeMillis() );
+        final byte[] data = _transcoderService.serialize( _session, manifest );
+
+        if ( _log.isDebugEnabled() ) {
+            _log.debug( "Storing " + itemsToStore.size() + " of " + attributes.size() + " attributes of session " + sessionId );
+        }
+
+        /* The attribute items are stored before the manifest, as the operations for
+         * this session are sent to the same memcached node they're processed in this order.
+         */
+        try {
+            storeAttributesInMemcached( itemsToStore, attributeExpiration );
+        } catch ( final NodeFailureException e ) {
+            if ( _log.isInfoEnabled() ) {
+                _log.info( "Could not store attributes of session " + sessionId +
+                        " in memcached due to unavailable node " + e.getNodeId() + "." );
+            }
+            return new BackupResult( BackupResultStatus.FAILURE, data );
+        }
+
+        final BackupResult result = doBackupSession( _session, data );
+        if ( result.isSuccess() ) {
+            _session.setAttributeManifest( manifest );
+            if ( previous != null ) {
+                deleteReplacedAttributes( previous, manifest );
+            }
+        }
+        return result;
+    }
+
+    private SerializedAttribute serializeAttribute( final String name, final Object value ) {
+        if ( _cacheSerializedAttributes ) {
+            return _transcoderService.serializeAttribute( _session, name, value );
+        }
+        final HashingOutputStream attributeOut = new HashingOutputStream();
+        _transcoderService.serializeAttributes( _session, Collections.singletonMap( name, value ), attributeOut );
+        return new SerializedAttribute( value, attributeOut.toByteArray(), attributeOut.getHash() );
+    }
+
+    /**
+     * Determines the expiration of attribute items for the given session expiration: attribute items
+     * live up to maxInactiveInterval longer than the session, as long as the expiration is still
+     * interpreted as relative by memcached.
+     */
+    static int getAttributeExpiration( final int sessionExpiration, final int maxInactiveInterval ) {
+        if ( sessionExpiration <= 0 ) {
+            return sessionExpiration;
+        }
+        final long result = (long) sessionExpiration + maxInactiveInterval;
+        return result <= MAX_RELATIVE_EXPIRATION ? (int) result : sessionExpiration;
+    }
+
+    private void storeAttributesInMemcached( final Map<String, byte[]> items, final int expiration ) throws NodeFailureException {
+        final long start = System.currentTimeMillis();
+        try {
+            if ( _sessionBackupAsync ) {
+                for ( final Map.Entry<String, byte[]> item : items.entrySet() ) {
+                    _memcached.set( item.getKey(), expiration, item.getValue() );
+                }
+                return;
+            }
+            /* all items are written at once and awaited under a single deadline
+             */
+            final WriteFanOut writes = getWrites();
+            for ( final Map.Entry<String, byte[]> item : items.entrySet() ) {
+                writes.set( _memcached, item.getKey(), expiration, item.getValue() );
+            }
+            for ( final String key : items.keySet() ) {
+                if ( writes.await( key ).isNodeFailure() ) {
+                    final String nodeId = _sessionIdFormat.extractMemcachedId( _session.getId() );
+                    _memcachedNodesManager.recordFailure( _session.getId() );
+                    throw new NodeFailureException( "Could not store session attributes in memcached.", nodeId );
+                }
+            }
+        } finally {
+            _statistics.registerSince( MEMCACHED_UPDATE, start );
+        }
+    }
+
+    /**
+     * Deletes the items of attributes that were replaced or removed.
+     */
+    private void deleteReplacedAttributes( final AttributeManifest previous, final AttributeManifest current ) {
+        final boolean sameSessionId = previous.getSessionId().equals( current.getSessionId() );
+        for ( final Map.Entry<String, AttributeManifest.Entry> entry : previous.getEntries().entrySet() ) {
+            final AttributeManifest.Entry currentEntry = current.getEntry( entry.getKey() );
+            if ( !sameSessionId || currentEntry == null || currentEntry.getKeyId() != entry.getValue().getKeyId() ) {
+                try {
+                    _memcached.delete( previous.getKey( entry.getValue() ) );
+                } catch ( final Exception e ) {
+                    _log.info( "Could not delete replaced attribute " + entry.getKey() + " of session " + current.getSessionId(), e );
+                }
+            }
+        }
     }
 
     /**
      * Store the provided session in memcached.
      * @param session the session to backup
-     * @param data the serialized session data (session fields and session attributes).
-     * @param attributesData just the serialized session attributes.
+     * @param sessionData the serialized session data (session fields and session attributes), it's
+     *  compressed (see {@link TranscoderService#compress(byte[])}) before it's stored.
      *
-     * @return the {@link SessionTrackerValve.SessionBackupService.BackupResultStatus}
+     * @return the {@link SessionTrackerValve.SessionBackupService.BackupResultStatus}, the data of the
+     *  result is the data stored in memcached.
      */
-    BackupResult doBackupSession( final MemcachedBackupSession session, final byte[] data, final byte[] attributesData ) {
+    BackupResult doBackupSession( final MemcachedBackupSession session, final byte[] sessionData ) {
         if ( _log.isDebugEnabled() ) {
             _log.debug( "Trying to store session in memcached: " + session.getId() );
         }
 
+        final byte[] data = _transcoderService.compress( sessionData );
+        final BackupResult result = storeBackupData( session, data );
+        if ( _cacheSerializedAttributes && result.isSuccess() ) {
+            session.setBackupData( data );
+        }
+        return result;
+    }
+
+    /**
+     * Stores the given (already compressed) session data in memcached with the current expiration
+     * of the session, e.g. the data of the last backup to update the expiration (see
+     * {@link MemcachedBackupSession#getBackupData()}).
+     */
+    BackupResult storeBackupData( final MemcachedBackupSession session, final byte[] data ) {
         try {
 
             storeSessionInMemcached( session, data );
 
-            return new BackupResult( BackupResultStatus.SUCCESS, data, attributesData );
+            return new BackupResult( BackupResultStatus.SUCCESS, data );
         } catch ( final NodeFailureException e ) {
             if ( _log.isInfoEnabled() ) {
                 String msg = "Could not store session " + session.getId() +
@@ -206,7 +448,7 @@ public class BackupSessionTask implements Callable<BackupResult> {
                 _log.info( msg );
             }
 
-            return new BackupResult( BackupResultStatus.FAILURE, data, null );
+            return new BackupResult( BackupResultStatus.FAILURE, data );
         }
     }
 
@@ -220,22 +462,26 @@ public class BackupSessionTask implements Callable<BackupResult> {
         final int expirationTime = session.getMemcachedExpirationTimeToSet();
         final long start = System.currentTimeMillis();
         try {
-            final Future<Boolean> future = _memcached.set( session.getId(), expirationTime, data );
             if ( !_sessionBackupAsync ) {
-                try {
-                    future.get( _sessionBackupTimeout, TimeUnit.MILLISECONDS );
+                final WriteFanOut writes = getWrites();
+                writes.set( _memcached, session.getId(), expirationTime, data );
+                final WriteFanOut.Outcome outcome = writes.await( session.getId() );
+                if ( !outcome.isNodeFailure() ) {
                     session.setLastMemcachedExpirationTime( expirationTime );
                     session.setLastBackupTime( System.currentTimeMillis() );
-                } catch ( final Exception e ) {
+                    _memcachedNodesManager.recordSuccess( session.getId(), System.currentTimeMillis() - start );
+                }
+                else {
                     if ( _log.isInfoEnabled() ) {
-                        _log.info( "Could not store session " + session.getId() + " in memcached." );
+                        _log.info( "Could not store session " + session.getId() + " in memcached (" + outcome + ")." );
                     }
                     final String nodeId = _sessionIdFormat.extractMemcachedId( session.getId() );
-                    _memcachedNodesManager.setNodeAvailable( nodeId, false );
+                    _memcachedNodesManager.recordFailure( session.getId() );
                     throw new NodeFailureException( "Could not store session in memcached.", nodeId );
                 }
             }
             else {
+                _memcached.set( session.getId(), expirationTime, data );
                 /* in async mode, we asume the session was stored successfully
                  */
                 session.setLastMemcachedExpirationTime( expirationTime );
@@ -246,6 +492,14 @@ public class BackupSessionTask implements Callable<BackupResult> {
         }
     }
 
+    /**
+     * The writes of the current request, or a new instance if there are none (so that each
+     * backup gets the full sessionBackupTimeout then).
+     */
+    private WriteFanOut getWrites() {
+        return _writes != null ? _writes : new WriteFanOut( _sessionBackupTimeout );
+    }
+
     static final class BackupResult {
 
         public static final BackupResult SKIPPED = new BackupResult( BackupResultStatus.SKIPPED );
@@ -253,14 +507,12 @@ public class BackupSessionTask implements Callable<BackupResult> {
 
         private final BackupResultStatus _status;
         private final byte[] _data;
-        private final byte[] _attributesData;
         public BackupResult( @Nonnull final BackupResultStatus status ) {
-            this( status, null, null );
+            this( status, null );
         }
-        public BackupResult( @Nonnull final BackupResultStatus status, @Nullable final byte[] data, @Nullable final byte[] attributesData ) {
+        public BackupResult( @Nonnull final BackupResultStatus status, @Nullable final byte[] data ) {
             _status = status;
             _data = data;
-            _attributesData = attributesData;
         }
         /**
          * The status/result of the backup operation.
@@ -280,17 +532,6 @@ public class BackupSessionTask implements Callable<BackupResult> {
         byte[] getData() {
             return _data;
         }
-        /**
-         * The serialized attributes that were actually stored in memcached with the
-         * full serialized session data. This can be <code>null</code>, e.g. if
-         * {@link #getStatus()} is {@link BackupResultStatus#FAILURE} or {@link BackupResultStatus#SKIPPED}.
-         *
-         * @return the attributesData
-         */
-        @CheckForNull
-        byte[] getAttributesData() {
-            return _attributesData;
-        }
         /**
          * Specifies if the backup was performed successfully.
          *
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.Statistics.StatsType.BACKUP_QUEUE_SIZE;
+import static de.javakaffee.web.msm.Statistics.StatsType.BACKUP_QUEUE_WAIT;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * The executor used for asynchronous session backup. In contrast to
+ * {@link java.util.concurrent.Executors#newFixedThreadPool(int)} the number of
+ * queued backups is limited: if memcached becomes slow, backups (and the sessions
+ * they reference) must not pile up on the heap.
+ * <p>
+ * Queued {@link BackupCommand}s that are {@link BackupCommand#isPriority() prioritized}
+ * (e.g. for new sessions or a changed session id) are executed before other backups,
+ * backups with the same priority are executed in the order they were submitted.
+ * What happens if the queue is full is determined by the {@link OverflowPolicy}.
+ * Prioritized backups are never discarded or skipped, they're run in the caller thread
+ * instead.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+class BoundedBackupExecutor extends ThreadPoolExecutor {
+
+    private static final Log _log = LogFactory.getLog( BoundedBackupExecutor.class );
+
+    /**
+     * Determines what happens with a backup if the backup queue is full.
+     */
+    static enum OverflowPolicy {
+        /**
+         * The oldest queued (not prioritized) backup is discarded to make room
+         * for the new one. As the backup queue holds at most one backup per session
+         * the discarded backup always belongs to another session than the new one.
+         */
+        DISCARD_OLDEST,
+        /** The new backup is executed in the thread that submitted it, which slows down the request thread. */
+        CALLER_RUNS,
+        /** The new backup is skipped (and counted). */
+        SKIP;
+
+        /**
+         * Returns the {@link OverflowPolicy} for the given configuration value, like
+         * <code>discardOldest</code>, <code>callerRuns</code> or <code>skip</code>.
+         *
+         * @return the matching policy or <code>null</code>.
+         */
+        @CheckForNull
+        static OverflowPolicy fromConfigValue( @Nonnull final String value ) {
+            for ( final OverflowPolicy policy : values() ) {
+                if ( policy.name().replace( "_", "" ).equalsIgnoreCase( value ) ) {
+                    return policy;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * The configuration value of this policy, e.g. <code>discardOldest</code>.
+         */
+        @Nonnull
+        String toConfigValue() {
+            final StringBuilder sb = new StringBuilder();
+            for ( final String part : name().toLowerCase().split( "_" ) ) {
+                sb.append( sb.length() == 0 ? part : Character.toUpperCase( part.charAt( 0 ) ) + part.substring( 1 ) );
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * A backup that can be prioritized and that must be informed if it's discarded
+     * due to an overflow of the backup queue.
+     */
+    static interface BackupCommand extends Runnable {
+
+        /**
+         * Specifies if this backup shall be executed before backups that are not prioritized.
+         */
+        boolean isPriority();
+
+        /**
+         * Invoked if the backup is not executed due to a backup queue overflow.
+         */
+        void discard();
+
+    }
+
+    private final int _capacity;
+    private final OverflowPolicy _overflowPolicy;
+    private final Statistics _statistics;
+    private final AtomicLong _sequence = new AtomicLong();
+
+    /**
+     * @param threads the number of backup threads.
+     * @param capacity the maximum number of backups waiting for execution.
+     * @param overflowPolicy determines what happens if there are already <code>capacity</code> backups waiting.
+     * @param statistics used to register queue size and wait time.
+     */
+    BoundedBackupExecutor( final int threads, final int capacity, @Nonnull final OverflowPolicy overflowPolicy,
+            @Nonnull final Statistics statistics ) {
+        super( threads, threads, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>() );
+        if ( capacity < 1 ) {
+            throw new IllegalArgumentException( "The capacity must be positive, but was " + capacity );
+        }
+        _capacity = capacity;
+        _overflowPolicy = overflowPolicy;
+        _statistics = statistics;
+    }
+
+    /**
+     * Queues the given command for execution, if the queue is full the configured
+     * {@link OverflowPolicy} is applied. Commands that are no {@link BackupCommand}s
+     * are treated as not prioritized backups that cannot be discarded.
+     */
+    @Override
+    public void execute( final Runnable command ) {
+        if ( isShutdown() ) {
+            throw new RejectedExecutionException( "The backup executor is already shut down." );
+        }
+        final QueuedBackup queuedBackup = new QueuedBackup( command, _sequence.incrementAndGet() );
+        final QueuedBackup discarded;
+        /* discarding / running the backup is done outside of the queue lock,
+         * as backup commands may synchronize on their own state.
+         */
+        synchronized ( getQueue() ) {
+            final int size = getQueue().size();
+            _statistics.register( BACKUP_QUEUE_SIZE, size );
+            if ( size < _capacity ) {
+                super.execute( queuedBackup );
+                return;
+            }
+            discarded = handleOverflow( queuedBackup );
+        }
+        if ( discarded != null ) {
+            if ( _log.isDebugEnabled() ) {
+                _log.debug( "Backup queue is full (" + _capacity + "), discarding " +
+                        ( discarded == queuedBackup ? "new" : "oldest" ) + " backup." );
+            }
+            discard( (BackupCommand) discarded._command );
+        }
+        else {
+            _statistics.backupInCallerThread();
+            command.run();
+        }
+    }
+
+    /**
+     * Applies the {@link OverflowPolicy}, must be invoked while holding the lock of the queue.
+     * @return the backup that must be discarded, or <code>null</code> if the new backup
+     * must be run in the caller thread.
+     */
+    @CheckForNull
+    private QueuedBackup handleOverflow( final QueuedBackup newBackup ) {
+        if ( newBackup.isPriority() || _overflowPolicy == OverflowPolicy.CALLER_RUNS
+                || !( newBackup._command instanceof BackupCommand ) ) {
+            return null;
+        }
+        if ( _overflowPolicy == OverflowPolicy.DISCARD_OLDEST ) {
+            final QueuedBackup oldest = findOldestDiscardable();
+            if ( oldest != null && getQueue().remove( oldest ) ) {
+                super.execute( newBackup );
+                return oldest;
+            }
+        }
+        return newBackup;
+    }
+
+    @CheckForNull
+    private QueuedBackup findOldestDiscardable() {
+        QueuedBackup result = null;
+        for ( final Runnable runnable : getQueue() ) {
+            final QueuedBackup item = (QueuedBackup) runnable;
+            if ( !item.isPriority() && item._command instanceof BackupCommand
+                    && ( result == null || item._sequence < result._sequence ) ) {
+                result = item;
+            }
+        }
+        return result;
+    }
+
+    private void discard( final BackupCommand command ) {
+        _statistics.backupDiscarded();
+        try {
+            command.discard();
+        } catch ( final RuntimeException e ) {
+            _log.warn( "Could not discard backup.", e );
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void beforeExecute( final Thread t, final Runnable r ) {
+        _statistics.registerSince( BACKUP_QUEUE_WAIT, ( (QueuedBackup) r )._queuedAt );
+    }
+
+    /**
+     * Wraps the submitted command, so that it can be ordered in the queue
+     * and the wait time can be measured.
+     */
+    private static final class QueuedBackup implements Runnable, Comparable<QueuedBackup> {
+
+        private final Runnable _command;
+        private final boolean _priority;
+        private final long _sequence;
+        private final long _queuedAt;
+
+        private QueuedBackup( final Runnable command, final long sequence ) {
+            _command = command;
+            _priority = command instanceof BackupCommand && ( (BackupCommand) command ).isPriority();
+            _sequence = sequence;
+            _queuedAt = System.currentTimeMillis();
+        }
+
+        boolean isPriority() {
+            return _priority;
+        }
+
+        @Override
+        public void run() {
+            _command.run();
+        }
+
+        @Override
+        public int compareTo( final QueuedBackup o ) {
+            if ( _priority != o._priority ) {
+                return _priority ? -1 : 1;
+            }
+            return _sequence < o._sequence ? -1 : ( _sequence == o._sequence ? 0 : 1 );
+        }
+
+    }
+
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.Nonnull;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import de.javakaffee.web.msm.BackupSessionTask.BackupResult;
+import de.javakaffee.web.msm.BoundedBackupExecutor.BackupCommand;
+import de.javakaffee.web.msm.SessionTrackerValve.SessionBackupService.BackupResultStatus;
+
+/**
+ * Coalesces session backups per session id before they are handed over to the
+ * backup {@link ExecutorService}: for each session there's at most one backup running.
+ * If a backup is requested while another one for the same session is still pending,
+ * the pending one is updated with the new session (snapshot) and the caller gets the
+ * {@link Future} of the pending backup.
+ * <p>
+ * In non-sticky mode each request has its own session instance, and the lock of a session is released
+ * only when its backup is done. A newer instance replaces the pending one, the replaced instances are
+ * kept: as a backup stores the complete session, storing the newest instance has the same result as
+ * storing all instances in order. Only if the backup of the newest instance is not successful (e.g. it
+ * was skipped because the instance was not modified, so that it might miss changes of the replaced
+ * instances) the replaced instances are stored, newest first. The locks of the replaced instances
+ * are released when the backup is done.
+ * </p>
+ * <p>
+ * As the session is serialized when the backup is actually executed, the pending
+ * backup always stores the latest state of the session. This reduces the number of
+ * serializations and memcached updates if several (e.g. AJAX) requests for the same
+ * session finish shortly after each other.
+ * </p>
+ * <p>
+ * If the executor is a {@link BoundedBackupExecutor} the session backups are submitted as
+ * {@link BackupCommand}s, so that they can be prioritized or discarded on queue overflow.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+class CoalescingBackupQueue {
+
+    private static final Log _log = LogFactory.getLog( CoalescingBackupQueue.class );
+
+    private final ExecutorService _executor;
+    private final BackupTaskFactory _taskFactory;
+    private final Statistics _statistics;
+    private final ConcurrentMap<String, SessionSlot> _slots = new ConcurrentHashMap<String, SessionSlot>();
+
+    /**
+     * @param executor the executor that runs the actual backups.
+     * @param taskFactory creates the backup tasks for a session.
+     * @param statistics used to count coalesced backups.
+     */
+    CoalescingBackupQueue( @Nonnull final ExecutorService executor,
+            @Nonnull final BackupTaskFactory taskFactory,
+            @Nonnull final Statistics statistics ) {
+        _executor = executor;
+        _taskFactory = taskFactory;
+        _statistics = statistics;
+    }
+
+    /**
+     * Schedules the backup of the given session, or merges it into an already pending
+     * backup of this session.
+     *
+     * @param session the session to backup
+     * @param force specifies, if the backup must be performed by all means (see {@link BackupSessionTask}).
+     * @return the {@link Future} of the (possibly shared) backup.
+     */
+    @Nonnull
+    Future<BackupResult> submit( @Nonnull final MemcachedBackupSession session, final boolean force ) {
+        final String sessionId = session.getIdInternal();
+        while ( true ) {
+            SessionSlot slot = _slots.get( sessionId );
+            if ( slot == null ) {
+                final SessionSlot newSlot = new SessionSlot( sessionId );
+                slot = _slots.putIfAbsent( sessionId, newSlot );
+                if ( slot == null ) {
+                    slot = newSlot;
+                }
+            }
+            final Future<BackupResult> result = slot.enqueue( session, force );
+            if ( result != null ) {
+                return result;
+            }
+            // the slot was retired in the meantime, so we just need a new one
+        }
+    }
+
+    /**
+     * The number of sessions that currently have a backup running or pending.
+     */
+    int getSize() {
+        return _slots.size();
+    }
+
+    /**
+     * Creates the {@link Callable} that performs the backup of a session.
+     */
+    static interface BackupTaskFactory {
+
+        @Nonnull
+        Callable<BackupResult> createBackupTask( @Nonnull MemcachedBackupSession session, boolean force );
+
+        /**
+         * Invoked instead of the backup task if the backup of the given session was discarded
+         * by the executor (see {@link BoundedBackupExecutor.OverflowPolicy}), e.g. to release the session lock.
+         *
+         * @return the result of the discarded backup.
+         */
+        @Nonnull
+        BackupResult backupDiscarded( @Nonnull MemcachedBackupSession session );
+
+    }
+
+    /**
+     * Tracks the running and the pending backup for a single session id. The executor
+     * is never invoked while holding the lock of a slot, as the executor might run
+     * or discard slots in the calling thread.
+     */
+    private final class SessionSlot implements BackupCommand {
+
+        private final String _sessionId;
+        private final LinkedList<PendingBackup> _pending = new LinkedList<PendingBackup>();
+        private boolean _running;
+        private boolean _retired;
+
+        private SessionSlot( final String sessionId ) {
+            _sessionId = sessionId;
+        }
+
+        /**
+         * Enqueues the session backup, returns <code>null</code> if this slot was already retired.
+         */
+        Future<BackupResult> enqueue( final MemcachedBackupSession session, final boolean force ) {
+            final Future<BackupResult> result;
+            synchronized ( this ) {
+                if ( _retired ) {
+                    return null;
+                }
+                final PendingBackup last = _pending.peekLast();
+                if ( last != null ) {
+                    if ( _log.isDebugEnabled() ) {
+                        _log.debug( "Coalescing backup of session " + _sessionId + " with already pending backup." );
+                    }
+                    last.merge( session, force );
+                    _statistics.requestWithCoalescedBackup();
+                    return last._future;
+                }
+                final PendingBackup backup = new PendingBackup( session, force );
+                _pending.add( backup );
+                result = backup._future;
+                if ( _running ) {
+                    return result;
+                }
+                _running = true;
+            }
+            schedule();
+            return result;
+        }
+
+        @Override
+        public synchronized boolean isPriority() {
+            return !_pending.isEmpty() && _pending.getFirst().isPriority();
+        }
+
+        /**
+         * Runs the first pending backup, following backups are scheduled again.
+         */
+        @Override
+        public void run() {
+            final PendingBackup backup;
+            synchronized ( this ) {
+                backup = _pending.poll();
+            }
+            if ( backup != null ) {
+                backup._future.run();
+            }
+            synchronized ( this ) {
+                if ( _pending.isEmpty() ) {
+                    retire();
+                    return;
+                }
+            }
+            schedule();
+        }
+
+        @Override
+        public void discard() {
+            final PendingBackup[] backups;
+            synchronized ( this ) {
+                backups = removePending();
+                retire();
+            }
+            for ( final PendingBackup backup : backups ) {
+                backup.discard();
+            }
+        }
+
+        private void schedule() {
+            try {
+                _executor.execute( this );
+            } catch ( final RejectedExecutionException e ) {
+                final PendingBackup[] backups;
+                synchronized ( this ) {
+                    backups = removePending();
+                    retire();
+                }
+                for ( final PendingBackup backup : backups ) {
+                    backup._future.cancel( false );
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Must be invoked while holding the lock of this slot.
+         */
+        private PendingBackup[] removePending() {
+            final PendingBackup[] result = _pending.toArray( new PendingBackup[_pending.size()] );
+            _pending.clear();
+            return result;
+        }
+
+        /**
+         * Must be invoked while holding the lock of this slot.
+         */
+        private void retire() {
+            _running = false;
+            _retired = true;
+            _slots.remove( _sessionId, this );
+        }
+
+    }
+
+    /**
+     * A backup that's not yet started and therefore can still take a newer session.
+     */
+    private final class PendingBackup implements Callable<BackupResult> {
+
+        private final FutureTask<BackupResult> _future;
+        private MemcachedBackupSession _session;
+        /*
+         * The session instances replaced by newer ones (non-sticky), the newest first.
+         */
+        private final LinkedList<MemcachedBackupSession> _replaced = new LinkedList<MemcachedBackupSession>();
+        private boolean _force;
+        private boolean _discarded;
+
+        private PendingBackup( final MemcachedBackupSession session, final boolean force ) {
+            _session = session;
+            _force = force;
+            _future = new FutureTask<BackupResult>( this );
+        }
+
+        /**
+         * Must be invoked while holding the lock of the owning {@link SessionSlot}.
+         */
+        private void merge( final MemcachedBackupSession session, final boolean force ) {
+            if ( session != _session ) {
+                _replaced.addFirst( _session );
+                _session = session;
+            }
+            _force |= force;
+        }
+
+        /**
+         * Forced backups, backups of new sessions and of sessions with changed authentication
+         * are prioritized. Must be invoked while holding the lock of the owning {@link SessionSlot}.
+         */
+        private boolean isPriority() {
+            return _force || _session.isNewInternal() || _session.authenticationChanged();
+        }
+
+        private void discard() {
+            _discarded = true;
+            _future.run();
+        }
+
+        /**
+         * Stores the newest session, the replaced sessions are only stored if this was not successful.
+         * Once the slot polled this backup it's no longer merged, so the sessions are not modified concurrently.
+         */
+        @Override
+        public BackupResult call() throws Exception {
+            final Iterator<MemcachedBackupSession> replaced = _replaced.iterator();
+            try {
+                if ( _discarded ) {
+                    return _taskFactory.backupDiscarded( _session );
+                }
+                BackupResult result = _taskFactory.createBackupTask( _session, _force ).call();
+                while ( result.getStatus() != BackupResultStatus.SUCCESS && replaced.hasNext() ) {
+                    result = _taskFactory.createBackupTask( replaced.next(), _force ).call();
+                }
+                return result;
+            } finally {
+                // releases the locks of the sessions that were not stored
+                while ( replaced.hasNext() ) {
+                    _taskFactory.backupDiscarded( replaced.next() );
+                }
+            }
+        }
+
+    }
+
+}
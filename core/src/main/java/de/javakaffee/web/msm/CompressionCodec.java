@@ -0,0 +1,194 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * The codecs that can be used to compress the serialized session data (see
+ * {@link TranscoderService#compress(byte[])}). The id of the codec is stored with the
+ * compressed data, so that sessions can be decompressed regardless of the configured codec.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public enum CompressionCodec {
+
+    /**
+     * No compression.
+     */
+    NONE( 0 ) {
+        @Override
+        int maxCompressedLength( final int length ) {
+            return length;
+        }
+        @Override
+        int compress( final byte[] src, final int srcOffset, final int srcLength, final byte[] dest, final int destOffset ) {
+            System.arraycopy( src, srcOffset, dest, destOffset, srcLength );
+            return srcLength;
+        }
+        @Override
+        void decompress( final byte[] src, final int srcOffset, final int srcLength, final byte[] dest, final int destOffset, final int destLength ) {
+            if ( srcLength != destLength ) {
+                throw new IllegalArgumentException( "Expected " + destLength + " bytes, got " + srcLength );
+            }
+            System.arraycopy( src, srcOffset, dest, destOffset, srcLength );
+        }
+    },
+
+    /**
+     * Raw deflate (without zlib header), better compression ratio but slower than {@link #LZ4}.
+     */
+    DEFLATE( 1 ) {
+        @Override
+        int maxCompressedLength( final int length ) {
+            // if the compressed data is not smaller the data is stored uncompressed anyway
+            return length;
+        }
+        @Override
+        int compress( final byte[] src, final int srcOffset, final int srcLength, final byte[] dest, final int destOffset ) {
+            final Deflater deflater = new Deflater( Deflater.BEST_SPEED, true );
+            try {
+                deflater.setInput( src, srcOffset, srcLength );
+                deflater.finish();
+                final int maxLength = maxCompressedLength( srcLength );
+                int length = 0;
+                while ( !deflater.finished() && length < maxLength ) {
+                    length += deflater.deflate( dest, destOffset + length, maxLength - length );
+                }
+                return deflater.finished() ? length : -1;
+            } finally {
+                deflater.end();
+            }
+        }
+        @Override
+        void decompress( final byte[] src, final int srcOffset, final int srcLength, final byte[] dest, final int destOffset, final int destLength ) {
+            final Inflater inflater = new Inflater( true );
+            try {
+                inflater.setInput( src, srcOffset, srcLength );
+                int length = 0;
+                while ( !inflater.finished() && length < destLength ) {
+                    final int read = inflater.inflate( dest, destOffset + length, destLength - length );
+                    if ( read == 0 && ( inflater.needsInput() || inflater.needsDictionary() ) ) {
+                        break;
+                    }
+                    length += read;
+                }
+                if ( length != destLength ) {
+                    throw new IllegalArgumentException( "Expected " + destLength + " bytes, got " + length );
+                }
+            } catch ( final DataFormatException e ) {
+                throw new IllegalArgumentException( "Malformed deflate data", e );
+            } finally {
+                inflater.end();
+            }
+        }
+    },
+
+    /**
+     * LZ4 (block format), very fast compression and decompression with a moderate compression ratio.
+     */
+    LZ4( 2 ) {
+        @Override
+        int maxCompressedLength( final int length ) {
+            return LZ4Block.maxCompressedLength( length );
+        }
+        @Override
+        int compress( final byte[] src, final int srcOffset, final int srcLength, final byte[] dest, final int destOffset ) {
+            return LZ4Block.compress( src, srcOffset, srcLength, dest, destOffset );
+        }
+        @Override
+        void decompress( final byte[] src, final int srcOffset, final int srcLength, final byte[] dest, final int destOffset, final int destLength ) {
+            LZ4Block.decompress( src, srcOffset, srcLength, dest, destOffset, destLength );
+        }
+    };
+
+    private final int _id;
+
+    private CompressionCodec( final int id ) {
+        _id = id;
+    }
+
+    /**
+     * The id of this codec that is stored with the compressed data.
+     */
+    int getId() {
+        return _id;
+    }
+
+    /**
+     * The number of bytes the destination array must provide for {@link #compress(byte[], int, int, byte[], int)}.
+     */
+    abstract int maxCompressedLength( final int length );
+
+    /**
+     * Compresses the given range of <code>src</code> to <code>dest</code>, which must have room
+     * for {@link #maxCompressedLength(int)} bytes starting at <code>destOffset</code>.
+     *
+     * @return the number of bytes written to <code>dest</code>, or <code>-1</code> if the compressed
+     *  data would exceed {@link #maxCompressedLength(int)}.
+     */
+    abstract int compress( final byte[] src, final int srcOffset, final int srcLength, final byte[] dest, final int destOffset );
+
+    /**
+     * Decompresses the given range of <code>src</code> to <code>dest</code>, the uncompressed data
+     * must have exactly <code>destLength</code> bytes.
+     *
+     * @throws IllegalArgumentException if the data is malformed.
+     */
+    abstract void decompress( final byte[] src, final int srcOffset, final int srcLength, final byte[] dest, final int destOffset, final int destLength );
+
+    /**
+     * Returns the codec with the given id, or <code>null</code> if there's no such codec.
+     */
+    @CheckForNull
+    static CompressionCodec valueOfId( final int id ) {
+        for ( final CompressionCodec codec : values() ) {
+            if ( codec._id == id ) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the codec for the given configuration value (e.g. <code>lz4</code>), or <code>null</code>
+     * if there's no such codec.
+     */
+    @CheckForNull
+    static CompressionCodec fromConfigValue( @Nonnull final String value ) {
+        for ( final CompressionCodec codec : values() ) {
+            if ( codec.name().equalsIgnoreCase( value.trim() ) ) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The configuration value of this codec, e.g. <code>lz4</code>.
+     */
+    @Nonnull
+    String toConfigValue() {
+        return name().toLowerCase();
+    }
+
+}
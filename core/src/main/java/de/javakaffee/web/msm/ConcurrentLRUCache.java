@@ -0,0 +1,370 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A cache with the same semantics as the {@link LRUCache} (a maximum number of entries, a
+ * time to live measured from insertion time to access time), that can be used by many
+ * threads concurrently: the cache is split into segments by the hash of the key, reads
+ * don't take a lock at all, writes only lock the segment of the key.
+ * <p>
+ * The access order that's used to evict the least recently used entries is recorded only
+ * if the lock of the segment is free when an entry is read, and at most once per millisecond
+ * for an entry, so under contention the eviction order is an approximation of the LRU order. Also the maximum number of entries is enforced per segment, so that the
+ * cache may evict entries before it's completely filled. Small caches consist of a single
+ * segment and behave like the {@link LRUCache}.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ * @param <K>
+ *            the type of the key
+ * @param <V>
+ *            the type of the value
+ */
+public class ConcurrentLRUCache<K, V> {
+
+    static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+    /**
+     * The minimum number of entries per segment, so that the LRU order is not
+     * too much fragmented.
+     */
+    private static final int MIN_SEGMENT_SIZE = 16;
+
+    private final long _ttl;
+    private final Segment<K, V>[] _segments;
+    private final int _segmentMask;
+
+    /**
+     * Creates a new instance with the given maximum size.
+     *
+     * @param size
+     *            the number of items to keep at max
+     */
+    public ConcurrentLRUCache( final int size ) {
+        this( size, -1 );
+    }
+
+    /**
+     * Create a new cache with a maximum number of cache entries and a
+     * specified time to live for cache entries. The TTL is measured from
+     * insertion time to access time.
+     *
+     * @param size
+     *            the maximum number of cached items
+     * @param ttlInMillis
+     *            the time to live in milli seconds. Specify -1 for no limit
+     */
+    public ConcurrentLRUCache( final int size, final long ttlInMillis ) {
+        this( size, ttlInMillis, DEFAULT_CONCURRENCY_LEVEL );
+    }
+
+    /**
+     * Create a new cache with a maximum number of cache entries, a specified time to
+     * live for cache entries and the maximum number of segments.
+     *
+     * @param size
+     *            the maximum number of cached items
+     * @param ttlInMillis
+     *            the time to live in milli seconds. Specify -1 for no limit
+     * @param concurrencyLevel
+     *            the maximum number of segments, it's used only if the cache is big enough
+     */
+    @SuppressWarnings( "unchecked" )
+    public ConcurrentLRUCache( final int size, final long ttlInMillis, final int concurrencyLevel ) {
+        _ttl = ttlInMillis;
+        int numSegments = 1;
+        while ( numSegments < concurrencyLevel && numSegments * 2 * MIN_SEGMENT_SIZE <= size ) {
+            numSegments <<= 1;
+        }
+        _segments = new Segment[numSegments];
+        final int segmentSize = Math.max( 1, size / numSegments );
+        for ( int i = 0; i < numSegments; i++ ) {
+            _segments[i] = new Segment<K, V>( segmentSize );
+        }
+        _segmentMask = numSegments - 1;
+    }
+
+    /**
+     * Put the key and value.
+     *
+     * @param key
+     *            the key
+     * @param value
+     *            the value
+     * @return the previously associated value or <code>null</code>.
+     */
+    public V put( final K key, final V value ) {
+        final Segment<K, V> segment = segmentFor( key );
+        segment._lock.lock();
+        try {
+            return segment.put( key, value );
+        } finally {
+            segment._lock.unlock();
+        }
+    }
+
+    /**
+     * If the specified key is not already associated with a value or if it's
+     * associated with a different value, associate it with the given value.
+     * The action is performed atomically.
+     *
+     * @param key
+     *            the key to associate the value with.
+     * @param value
+     *            the value to associate with the provided key.
+     * @return the previous value associated with the specified key, or null if
+     *         there was no mapping for the key
+     * @see LRUCache#putIfDifferent(Object, Object)
+     */
+    public V putIfDifferent( final K key, final V value ) {
+        final Segment<K, V> segment = segmentFor( key );
+        segment._lock.lock();
+        try {
+            final Node<V> node = segment._map.get( key );
+            if ( node == null || node._value == null || !node._value.equals( value ) ) {
+                return segment.put( key, value );
+            } else {
+                return node._value;
+            }
+        } finally {
+            segment._lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the mapping for the specified key from this map if present.
+     *
+     * @param  key key whose mapping is to be removed from the map
+     * @return the previous value associated with <tt>key</tt>, or
+     *         <tt>null</tt> if there was no mapping for <tt>key</tt>.
+     */
+    public V remove( final K key ) {
+        final Segment<K, V> segment = segmentFor( key );
+        segment._lock.lock();
+        try {
+            final Node<V> removed = segment._map.remove( key );
+            segment._order.remove( key );
+            return removed != null ? removed._value : null;
+        } finally {
+            segment._lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the value that was stored to the given key.
+     *
+     * @param key
+     *            the key
+     * @return the stored value or <code>null</code>
+     */
+    public V get( final K key ) {
+        final Segment<K, V> segment = segmentFor( key );
+        final Node<V> node = segment._map.get( key );
+        if ( node == null ) {
+            return null;
+        }
+        final long now = System.currentTimeMillis();
+        if ( _ttl > -1 && now - node._insertionTime > _ttl ) {
+            segment._lock.lock();
+            try {
+                if ( segment._map.remove( key, node ) ) {
+                    segment._order.remove( key );
+                }
+            } finally {
+                segment._lock.unlock();
+            }
+            return null;
+        }
+        /* the access order is only updated if this doesn't block, and only once per
+         * millisecond for frequently accessed keys
+         */
+        if ( node._accessTime != now && segment._lock.tryLock() ) {
+            node._accessTime = now;
+            try {
+                segment._order.get( key );
+            } finally {
+                segment._lock.unlock();
+            }
+        }
+        return node._value;
+    }
+
+    /**
+     * Determines if the given key is cached without "touching" this key.
+     *
+     * @param key
+     *            the key
+     * @return <code>true</code> if the given key is present in the underlying map, otherwise <code>false</code>.
+     */
+    public boolean containsKey( final K key ) {
+        return segmentFor( key )._map.containsKey( key );
+    }
+
+    /**
+     * The list of all keys, whose order is the order in which its entries were last accessed,
+     * from least-recently accessed to most-recently.
+     *
+     * @return a new list.
+     */
+    public List<K> getKeys() {
+        final List<Entry<K, V>> entries = getEntries();
+        Collections.sort( entries, new Comparator<Entry<K, V>>() {
+            @Override
+            public int compare( final Entry<K, V> o1, final Entry<K, V> o2 ) {
+                final long t1 = o1._accessTime;
+                final long t2 = o2._accessTime;
+                return t1 < t2 ? -1 : ( t1 == t2 ? 0 : 1 );
+            }
+        } );
+        return toKeys( entries );
+    }
+
+    /**
+     * The keys sorted by the given value comparator.
+     *
+     * @return a new list.
+     */
+    public List<K> getKeysSortedByValue( final Comparator<V> comparator ) {
+        final List<Entry<K, V>> entries = getEntries();
+        Collections.sort( entries, new Comparator<Entry<K, V>>() {
+            @Override
+            public int compare( final Entry<K, V> o1, final Entry<K, V> o2 ) {
+                return comparator.compare( o1._value, o2._value );
+            }
+        } );
+        return toKeys( entries );
+    }
+
+    /**
+     * The number of segments this cache consists of.
+     */
+    int getNumSegments() {
+        return _segments.length;
+    }
+
+    /**
+     * Collects the entries of all segments, the entries of each segment are collected in access order.
+     */
+    private List<Entry<K, V>> getEntries() {
+        final List<Entry<K, V>> result = new ArrayList<Entry<K, V>>();
+        for ( final Segment<K, V> segment : _segments ) {
+            segment._lock.lock();
+            try {
+                for ( final K key : segment._order.keySet() ) {
+                    final Node<V> node = segment._map.get( key );
+                    if ( node != null ) {
+                        result.add( new Entry<K, V>( key, node._value, node._accessTime ) );
+                    }
+                }
+            } finally {
+                segment._lock.unlock();
+            }
+        }
+        return result;
+    }
+
+    private static <K, V> List<K> toKeys( final List<Entry<K, V>> entries ) {
+        final List<K> result = new ArrayList<K>( entries.size() );
+        for ( final Entry<K, V> entry : entries ) {
+            result.add( entry._key );
+        }
+        return result;
+    }
+
+    private Segment<K, V> segmentFor( final K key ) {
+        // spread the hash like the ConcurrentHashMap, so that keys with similar hashes are distributed
+        int h = key.hashCode();
+        h ^= ( h >>> 20 ) ^ ( h >>> 12 );
+        h ^= ( h >>> 7 ) ^ ( h >>> 4 );
+        return _segments[h & _segmentMask];
+    }
+
+    /**
+     * A part of the cache, all fields are guarded by the lock apart from the map,
+     * that can be read without holding the lock.
+     */
+    private static final class Segment<K, V> {
+
+        private final int _size;
+        private final ReentrantLock _lock = new ReentrantLock();
+        private final ConcurrentMap<K, Node<V>> _map = new ConcurrentHashMap<K, Node<V>>();
+        private final LinkedHashMap<K, Boolean> _order = new LinkedHashMap<K, Boolean>( 16, 0.75f, true );
+
+        private Segment( final int size ) {
+            _size = size;
+        }
+
+        /**
+         * Must be invoked with the lock held.
+         */
+        private V put( final K key, final V value ) {
+            final long now = System.currentTimeMillis();
+            final Node<V> previous = _map.put( key, new Node<V>( value, now ) );
+            _order.put( key, Boolean.TRUE );
+            final Iterator<K> iter = _order.keySet().iterator();
+            while ( _order.size() > _size && iter.hasNext() ) {
+                _map.remove( iter.next() );
+                iter.remove();
+            }
+            return previous != null ? previous._value : null;
+        }
+
+    }
+
+    /**
+     * Stores a value with the timestamp this value was added to the cache
+     * and the time it was last accessed.
+     */
+    private static final class Node<V> {
+        private final V _value;
+        private final long _insertionTime;
+        private volatile long _accessTime;
+
+        private Node( final V value, final long insertionTime ) {
+            _value = value;
+            _insertionTime = insertionTime;
+            _accessTime = insertionTime;
+        }
+    }
+
+    /**
+     * A snapshot of a cache entry.
+     */
+    private static final class Entry<K, V> {
+        private final K _key;
+        private final V _value;
+        private final long _accessTime;
+
+        private Entry( final K key, final V value, final long accessTime ) {
+            _key = key;
+            _value = value;
+            _accessTime = accessTime;
+        }
+    }
+
+}
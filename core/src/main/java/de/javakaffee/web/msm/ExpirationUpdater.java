@@ -0,0 +1,196 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.Statistics.StatsType.EXPIRATION_UPDATE;
+import static de.javakaffee.web.msm.Statistics.StatsType.EXPIRATION_UPDATE_SESSIONS;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Updates the expiration of sessions in memcached (see {@link BackupSessionService#updateExpiration(List)})
+ * off the container background thread. The sessions of a sweep are grouped by memcached node and split into
+ * batches. The batches are spread over the given time window,
+ * so that the memcached nodes don't get all updates at once, and at most <code>maxConcurrentBatches</code>
+ * batches are processed at the same time.
+ * <p>
+ * There's at most one sweep running, a new sweep is skipped if the previous one is not finished yet.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+class ExpirationUpdater {
+
+    private static final Log _log = LogFactory.getLog( ExpirationUpdater.class );
+
+    private final SessionIdFormat _sessionIdFormat = new SessionIdFormat();
+
+    private final int _batchSize;
+    private final Statistics _statistics;
+    private final ScheduledThreadPoolExecutor _executor;
+    private final AtomicBoolean _sweepRunning = new AtomicBoolean();
+
+    /**
+     * @param maxConcurrentBatches the maximum number of batches processed at the same time.
+     * @param batchSize the maximum number of sessions per batch.
+     * @param statistics used to register duration and size of sweeps.
+     */
+    ExpirationUpdater( final int maxConcurrentBatches, final int batchSize, @Nonnull final Statistics statistics ) {
+        _batchSize = batchSize;
+        _statistics = statistics;
+        _executor = new ScheduledThreadPoolExecutor( maxConcurrentBatches,
+                new NamedDaemonThreadFactory( "msm-expiration-updater" ) );
+        // don't keep threads if sessions are not updated (e.g. non-sticky mode)
+        _executor.setKeepAliveTime( 60, TimeUnit.SECONDS );
+        _executor.allowCoreThreadTimeOut( true );
+    }
+
+    /**
+     * Updates the expiration of the given sessions in memcached.
+     *
+     * @param sessions the sessions whose expiration shall be updated.
+     * @param backupSessionService the service that performs the update.
+     * @param windowMillis the time in millis the batches are spread over.
+     * @param async specifies if the update shall be done in the background, otherwise the update
+     *  is done in the calling thread and this method returns when the update is finished.
+     * @return <code>false</code> if the sweep was skipped because the previous sweep is still running.
+     */
+    boolean sweep( @Nonnull final Collection<MemcachedBackupSession> sessions, @Nonnull final BackupSessionService backupSessionService,
+            final long windowMillis, final boolean async ) {
+        if ( !_sweepRunning.compareAndSet( false, true ) ) {
+            _log.info( "The previous expiration update is still running, skipping expiration update of " + sessions.size() + " sessions." );
+            return false;
+        }
+
+        final long start = System.currentTimeMillis();
+        final List<List<MemcachedBackupSession>> batches = createBatches( sessions );
+        if ( batches.isEmpty() ) {
+            sweepFinished( start, 0 );
+            return true;
+        }
+
+        if ( !async ) {
+            for ( final List<MemcachedBackupSession> batch : batches ) {
+                updateExpiration( batch, backupSessionService );
+            }
+            sweepFinished( start, sessions.size() );
+            return true;
+        }
+
+        final AtomicInteger remaining = new AtomicInteger( batches.size() );
+        for ( int i = 0; i < batches.size(); i++ ) {
+            final List<MemcachedBackupSession> batch = batches.get( i );
+            for ( final MemcachedBackupSession session : batch ) {
+                session.setExpirationUpdateRunning( true );
+            }
+            final Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        updateExpiration( batch, backupSessionService );
+                    } finally {
+                        if ( remaining.decrementAndGet() == 0 ) {
+                            sweepFinished( start, sessions.size() );
+                        }
+                    }
+                }
+            };
+            try {
+                _executor.schedule( task, i * windowMillis / batches.size(), TimeUnit.MILLISECONDS );
+            } catch ( final RejectedExecutionException e ) {
+                // we're shut down
+                for ( final MemcachedBackupSession session : batch ) {
+                    session.setExpirationUpdateRunning( false );
+                }
+                if ( remaining.decrementAndGet() == 0 ) {
+                    sweepFinished( start, sessions.size() );
+                }
+            }
+        }
+        return true;
+    }
+
+    void shutdown() {
+        _executor.shutdownNow();
+    }
+
+    /**
+     * Groups the sessions by memcached node and splits them into batches, batches of different
+     * nodes are interleaved so that the nodes are updated evenly.
+     */
+    List<List<MemcachedBackupSession>> createBatches( final Collection<MemcachedBackupSession> sessions ) {
+        final Map<String, List<List<MemcachedBackupSession>>> batchesByNode = new LinkedHashMap<String, List<List<MemcachedBackupSession>>>();
+        int count = 0;
+        for ( final MemcachedBackupSession session : sessions ) {
+            final String nodeId = _sessionIdFormat.extractMemcachedId( session.getIdInternal() );
+            List<List<MemcachedBackupSession>> nodeBatches = batchesByNode.get( nodeId );
+            if ( nodeBatches == null ) {
+                nodeBatches = new ArrayList<List<MemcachedBackupSession>>();
+                batchesByNode.put( nodeId, nodeBatches );
+            }
+            List<MemcachedBackupSession> batch = nodeBatches.isEmpty() ? null : nodeBatches.get( nodeBatches.size() - 1 );
+            if ( batch == null || batch.size() >= _batchSize ) {
+                batch = new ArrayList<MemcachedBackupSession>( _batchSize );
+                nodeBatches.add( batch );
+                count++;
+            }
+            batch.add( session );
+        }
+
+        final List<List<MemcachedBackupSession>> result = new ArrayList<List<MemcachedBackupSession>>( count );
+        for ( int i = 0; result.size() < count; i++ ) {
+            for ( final List<List<MemcachedBackupSession>> nodeBatches : batchesByNode.values() ) {
+                if ( i < nodeBatches.size() ) {
+                    result.add( nodeBatches.get( i ) );
+                }
+            }
+        }
+        return result;
+    }
+
+    private void updateExpiration( final List<MemcachedBackupSession> batch, final BackupSessionService backupSessionService ) {
+        try {
+            backupSessionService.updateExpiration( batch );
+        } catch ( final Throwable e ) {
+            _log.info( "Could not update expiration in memcached for " + batch.size() + " sessions", e );
+            for ( final MemcachedBackupSession session : batch ) {
+                session.setExpirationUpdateRunning( false );
+            }
+        }
+    }
+
+    private void sweepFinished( final long start, final int numSessions ) {
+        _statistics.registerSince( EXPIRATION_UPDATE, start );
+        _statistics.register( EXPIRATION_UPDATE_SESSIONS, numSessions );
+        _sweepRunning.set( false );
+    }
+
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * A compact table of counters keyed by the 64 bit hash of a request id (see {@link #hash(String, String)}),
+ * that's used instead of a map of request id strings for the request ids tracked by the
+ * {@link ReadOnlyRequestsCache}. Per entry only the hash, a counter and the insertion/last access
+ * time (in seconds) are stored in primitive arrays (open addressing with linear probing), so that
+ * lookups don't allocate any objects and an entry needs ~40 bytes.
+ * <p>
+ * The table supports a maximum number of entries and a time to live for them, measured from insertion
+ * time to access time. If the table is full, the least recently accessed of some sampled entries
+ * is evicted. The table is split into segments that are locked separately.
+ * </p>
+ * <p>
+ * Optionally the counts decay exponentially with a given half life, so that a count is a
+ * weighted number of increments where recent increments weigh more than old ones.
+ * </p>
+ * <p>
+ * Different request ids with the same hash share their entry, with 64 bit hashes this is very
+ * unlikely for the number of request ids tracked.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+class HashedRequestCounters {
+
+    private static final int MAX_SEGMENTS = 16;
+    private static final int MIN_SEGMENT_SIZE = 64;
+
+    /**
+     * The number of entries that are compared to find the entry to evict.
+     */
+    private static final int EVICTION_SAMPLES = 8;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long _ttlInMillis;
+    private final int _halfLifeInSeconds;
+    private final long _baseTime;
+    private final Segment[] _segments;
+
+    /**
+     * @param maxEntries the maximum number of entries.
+     * @param ttlInMillis the time to live in milli seconds, specify -1 for no limit.
+     */
+    HashedRequestCounters( final int maxEntries, final long ttlInMillis ) {
+        this( maxEntries, ttlInMillis, -1 );
+    }
+
+    /**
+     * @param maxEntries the maximum number of entries.
+     * @param ttlInMillis the time to live in milli seconds, specify -1 for no limit.
+     * @param halfLifeInMillis the half life of counts in milli seconds (with a resolution of seconds),
+     *  specify -1 so that counts don't decay.
+     */
+    HashedRequestCounters( final int maxEntries, final long ttlInMillis, final long halfLifeInMillis ) {
+        _ttlInMillis = ttlInMillis;
+        _halfLifeInSeconds = halfLifeInMillis > 0 ? (int) Math.max( 1, halfLifeInMillis / 1000 ) : -1;
+        _baseTime = System.currentTimeMillis();
+        int numSegments = 1;
+        while ( numSegments < MAX_SEGMENTS && numSegments * 2 * MIN_SEGMENT_SIZE <= maxEntries ) {
+            numSegments <<= 1;
+        }
+        _segments = new Segment[numSegments];
+        for ( int i = 0; i < numSegments; i++ ) {
+            _segments[i] = new Segment( Math.max( 1, maxEntries / numSegments ) );
+        }
+    }
+
+    /**
+     * Computes the hash of the given request id string, that's used as key for this table.
+     */
+    static long hash( @Nonnull final CharSequence requestId ) {
+        return finish( update( FNV_OFFSET, requestId ) );
+    }
+
+    /**
+     * Computes the hash of the request id consisting of the given uri and query string, without
+     * creating the request id string. The result is the same as <code>hash( uri + "?" + queryString )</code>,
+     * or <code>hash( uri )</code> if the query string is <code>null</code>.
+     */
+    static long hash( @Nonnull final String uri, @CheckForNull final String queryString ) {
+        long h = update( FNV_OFFSET, uri );
+        if ( queryString != null ) {
+            h = update( h, '?' );
+            h = update( h, queryString );
+        }
+        return finish( h );
+    }
+
+    private static long update( long h, final CharSequence s ) {
+        for ( int i = 0; i < s.length(); i++ ) {
+            h = update( h, s.charAt( i ) );
+        }
+        return h;
+    }
+
+    private static long update( final long h, final char c ) {
+        return ( h ^ c ) * FNV_PRIME;
+    }
+
+    /**
+     * Mixes the bits of the FNV-1a hash (as the murmur3 finalizer), so that both
+     * the low bits (slot) and high bits (segment) are well distributed. <code>0</code>
+     * marks empty slots, so it's not returned as hash.
+     */
+    private static long finish( long h ) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h != 0 ? h : 1;
+    }
+
+    /**
+     * Increments the counter of the given key, if there's no (unexpired) entry for the key it's
+     * created with a count of <code>1</code>.
+     *
+     * @return the new (decayed) count.
+     */
+    float increment( final long key ) {
+        return segmentFor( key ).increment( key, now() );
+    }
+
+    /**
+     * Determines if there's an (unexpired) entry for the given key, the last access time
+     * of the entry is not changed.
+     */
+    boolean contains( final long key ) {
+        return segmentFor( key ).getCount( key, now() ) > 0;
+    }
+
+    /**
+     * The (decayed) count of the given key, <code>0</code> if there's no (unexpired) entry for the key.
+     */
+    float getCount( final long key ) {
+        return segmentFor( key ).getCount( key, now() );
+    }
+
+    /**
+     * The time of the last access of the given key in millis, <code>-1</code> if there's no
+     * (unexpired) entry for the key. The time has a resolution of one second.
+     */
+    long getLastAccessTime( final long key ) {
+        final int seconds = segmentFor( key ).getLastAccess( key, now() );
+        return seconds < 0 ? -1 : _baseTime + seconds * 1000L;
+    }
+
+    /**
+     * Removes the entry of the given key.
+     *
+     * @return <code>true</code> if there was an entry for the key.
+     */
+    boolean remove( final long key ) {
+        return segmentFor( key ).remove( key );
+    }
+
+    /**
+     * The number of entries, including expired entries that were not yet removed.
+     */
+    int size() {
+        int result = 0;
+        for ( final Segment segment : _segments ) {
+            result += segment.size();
+        }
+        return result;
+    }
+
+    private int now() {
+        return (int) ( ( System.currentTimeMillis() - _baseTime ) / 1000 );
+    }
+
+    private Segment segmentFor( final long key ) {
+        // the high bits select the segment, the low bits the slot within the segment
+        return _segments[(int) ( key >>> 59 ) & ( _segments.length - 1 )];
+    }
+
+    /**
+     * A part of the table, the arrays are accessed only with the lock of the segment held.
+     */
+    private final class Segment {
+
+        private final int _maxEntries;
+        private final long[] _keys;
+        /**
+         * The insertion time (high 32 bits) and last access time (low 32 bits) in
+         * seconds since {@link HashedRequestCounters#_baseTime}.
+         */
+        private final long[] _times;
+        private final float[] _counts;
+        private final int _mask;
+        private int _size;
+        private int _evictionCursor;
+
+        private Segment( final int maxEntries ) {
+            _maxEntries = maxEntries;
+            // a load factor of at most 0.5 keeps the probe sequences short
+            final int capacity = Integer.highestOneBit( Math.max( 2, maxEntries ) * 2 - 1 ) << 1;
+            _keys = new long[capacity];
+            _times = new long[capacity];
+            _counts = new float[capacity];
+            _mask = capacity - 1;
+        }
+
+        synchronized float increment( final long key, final int now ) {
+            int idx = indexOf( key, now );
+            if ( idx >= 0 ) {
+                _counts[idx] = decayedCount( idx, now ) + 1;
+                _times[idx] = ( _times[idx] & 0xFFFFFFFF00000000L ) | ( now & 0xFFFFFFFFL );
+                return _counts[idx];
+            }
+            if ( _size >= _maxEntries ) {
+                evict( now );
+            }
+            idx = (int) key & _mask;
+            while ( _keys[idx] != 0 ) {
+                idx = ( idx + 1 ) & _mask;
+            }
+            _keys[idx] = key;
+            _times[idx] = ( (long) now << 32 ) | ( now & 0xFFFFFFFFL );
+            _counts[idx] = 1;
+            _size++;
+            return 1;
+        }
+
+        synchronized float getCount( final long key, final int now ) {
+            final int idx = indexOf( key, now );
+            return idx >= 0 ? decayedCount( idx, now ) : 0;
+        }
+
+        synchronized int getLastAccess( final long key, final int now ) {
+            final int idx = indexOf( key, now );
+            return idx >= 0 ? (int) _times[idx] : -1;
+        }
+
+        synchronized boolean remove( final long key ) {
+            final int idx = indexOf( key, -1 );
+            if ( idx >= 0 ) {
+                delete( idx );
+                return true;
+            }
+            return false;
+        }
+
+        synchronized int size() {
+            return _size;
+        }
+
+        /**
+         * The slot of the given key, or <code>-1</code>. An expired entry is removed, to skip the
+         * expiration check <code>now</code> must be <code>-1</code>.
+         */
+        private int indexOf( final long key, final int now ) {
+            int idx = (int) key & _mask;
+            while ( _keys[idx] != 0 ) {
+                if ( _keys[idx] == key ) {
+                    if ( now >= 0 && isExpired( idx, now ) ) {
+                        delete( idx );
+                        return -1;
+                    }
+                    return idx;
+                }
+                idx = ( idx + 1 ) & _mask;
+            }
+            return -1;
+        }
+
+        /**
+         * The count of the given slot, decayed since its last access.
+         */
+        private float decayedCount( final int idx, final int now ) {
+            final int age = now - (int) _times[idx];
+            if ( _halfLifeInSeconds < 0 || age <= 0 ) {
+                return _counts[idx];
+            }
+            return (float) ( _counts[idx] * Math.pow( 0.5, (double) age / _halfLifeInSeconds ) );
+        }
+
+        private boolean isExpired( final int idx, final int now ) {
+            return _ttlInMillis > -1 && ( now - (int) ( _times[idx] >>> 32 ) ) * 1000L > _ttlInMillis;
+        }
+
+        /**
+         * Removes an expired entry or the least recently accessed of the next
+         * {@link #EVICTION_SAMPLES} entries.
+         */
+        private void evict( final int now ) {
+            int victim = -1;
+            int samples = 0;
+            int idx = _evictionCursor;
+            for ( int i = 0; i <= _mask && samples < EVICTION_SAMPLES; i++ ) {
+                idx = ( idx + 1 ) & _mask;
+                if ( _keys[idx] != 0 ) {
+                    if ( isExpired( idx, now ) ) {
+                        victim = idx;
+                        break;
+                    }
+                    if ( victim < 0 || (int) _times[idx] < (int) _times[victim] ) {
+                        victim = idx;
+                    }
+                    samples++;
+                }
+            }
+            _evictionCursor = idx;
+            if ( victim >= 0 ) {
+                delete( victim );
+            }
+        }
+
+        /**
+         * Deletes the entry at the given slot and moves following entries of the probe
+         * sequence back, so that no tombstones are needed.
+         */
+        private void delete( int idx ) {
+            int next = idx;
+            while ( true ) {
+                next = ( next + 1 ) & _mask;
+                if ( _keys[next] == 0 ) {
+                    break;
+                }
+                final int home = (int) _keys[next] & _mask;
+                // the entry at next can be moved to idx if its home slot is not within (idx, next]
+                final boolean inRange = idx <= next
+                    ? idx < home && home <= next
+                    : idx < home || home <= next;
+                if ( !inRange ) {
+                    _keys[idx] = _keys[next];
+                    _times[idx] = _times[next];
+                    _counts[idx] = _counts[next];
+                    idx = next;
+                }
+            }
+            _keys[idx] = 0;
+            _times[idx] = 0;
+            _counts[idx] = 0;
+            _size--;
+        }
+
+    }
+
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A {@link ByteArrayOutputStream} that computes a 64 bit hash (xxHash64) of the written
+ * data while it's written. This is used to determine if the serialized session attributes
+ * changed, without another pass over the serialized data.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ * @see StreamingSessionAttributesTranscoder
+ */
+public class HashingOutputStream extends ByteArrayOutputStream {
+
+    private final XXHash64 _hash = new XXHash64();
+
+    public HashingOutputStream() {
+        super();
+    }
+
+    /**
+     * @param size the initial size of the buffer.
+     */
+    public HashingOutputStream( final int size ) {
+        super( size );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void write( final int b ) {
+        super.write( b );
+        _hash.update( b );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void write( final byte[] b, final int off, final int len ) {
+        super.write( b, off, len );
+        _hash.update( b, off, len );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void reset() {
+        super.reset();
+        _hash.reset();
+    }
+
+    /**
+     * Copies the bytes written so far to the given array, in contrast to {@link #toByteArray()}
+     * no new array is created.
+     *
+     * @param dest the array to copy to, must have room for {@link #size()} bytes starting at <code>offset</code>.
+     * @param offset the index in <code>dest</code> of the first copied byte.
+     */
+    public synchronized void copyTo( final byte[] dest, final int offset ) {
+        System.arraycopy( buf, 0, dest, offset, count );
+    }
+
+    /**
+     * The size of the internal buffer, which grows if needed.
+     */
+    synchronized int getCapacity() {
+        return buf.length;
+    }
+
+    /**
+     * The hash of all bytes written so far (since the last {@link #reset()}).
+     */
+    public synchronized long getHash() {
+        return _hash.getValue();
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Keeps track of the sessions that are currently loaded from memcached, so that concurrent requests
+ * for a session that's not available locally don't load the session each on their own: the first
+ * request loads the session (in its own thread), requests that arrive while the session is loaded
+ * wait for this load and get the same result.
+ * <p>
+ * This is only used for sticky sessions, where concurrent requests share the session instance
+ * held by the manager anyway. Non-sticky requests must not join a load, as each of them
+ * acquires the lock it needs and gets its own session instance.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+class InFlightSessionLoads {
+
+    private static final Log _log = LogFactory.getLog( InFlightSessionLoads.class );
+
+    private final ConcurrentMap<String, FutureTask<MemcachedBackupSession>> _loads =
+        new ConcurrentHashMap<String, FutureTask<MemcachedBackupSession>>();
+    private final Statistics _statistics;
+
+    InFlightSessionLoads( @Nonnull final Statistics statistics ) {
+        _statistics = statistics;
+    }
+
+    /**
+     * Runs the given loader in the current thread, or, if the session with the given id is already
+     * loaded by another thread, waits until this load is finished.
+     *
+     * @param sessionId the id of the session to load.
+     * @param loader loads the session, it's invoked only if the session is not already loaded.
+     * @return the session returned by the loader (that was invoked either by this or another thread).
+     */
+    @CheckForNull
+    MemcachedBackupSession load( @Nonnull final String sessionId, @Nonnull final Callable<MemcachedBackupSession> loader ) {
+        final FutureTask<MemcachedBackupSession> task = new FutureTask<MemcachedBackupSession>( loader );
+        final FutureTask<MemcachedBackupSession> inFlight = _loads.putIfAbsent( sessionId, task );
+        if ( inFlight == null ) {
+            try {
+                task.run();
+            } finally {
+                _loads.remove( sessionId, task );
+            }
+            return getResult( sessionId, task );
+        }
+        if ( _log.isDebugEnabled() ) {
+            _log.debug( "Waiting for session " + sessionId + " being loaded by another request." );
+        }
+        _statistics.requestWithJoinedSessionLoad();
+        return getResult( sessionId, inFlight );
+    }
+
+    private MemcachedBackupSession getResult( final String sessionId, final FutureTask<MemcachedBackupSession> task ) {
+        try {
+            return task.get();
+        } catch ( final InterruptedException e ) {
+            _log.info( "Interrupted while waiting for session " + sessionId + " being loaded." );
+            Thread.currentThread().interrupt();
+            return null;
+        } catch ( final ExecutionException e ) {
+            final Throwable cause = e.getCause();
+            if ( cause instanceof RuntimeException ) {
+                throw (RuntimeException) cause;
+            }
+            if ( cause instanceof Error ) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException( "Could not load session " + sessionId, cause );
+        }
+    }
+
+}
@@ -48,7 +48,7 @@ import de.javakaffee.web.msm.MemcachedSessionService.SessionManager;
  * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
  * @version $Id$
  */
-public class JavaSerializationTranscoder implements SessionAttributesTranscoder {
+public class JavaSerializationTranscoder implements StreamingSessionAttributesTranscoder {
 
     private static final Log LOG = LogFactory.getLog( JavaSerializationTranscoder.class );
 
@@ -87,24 +87,28 @@ public class JavaSerializationTranscoder implements SessionAttributesTranscoder
      */
     @Override
     public byte[] serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes ) {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializeAttributes( session, attributes, bos );
+        return bos.toByteArray();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes,
+            final OutputStream out ) {
         if ( attributes == null ) {
             throw new NullPointerException( "Can't serialize null" );
         }
 
-        ByteArrayOutputStream bos = null;
-        ObjectOutputStream oos = null;
         try {
-            bos = new ByteArrayOutputStream();
-            oos = new ObjectOutputStream( bos );
-
+            // the stream is not closed, as this would close the provided output stream
+            final ObjectOutputStream oos = new ObjectOutputStream( out );
             writeAttributes( session, attributes, oos );
-
-            return bos.toByteArray();
+            oos.flush();
         } catch ( final IOException e ) {
             throw new IllegalArgumentException( "Non-serializable object", e );
-        } finally {
-            closeSilently( bos );
-            closeSilently( oos );
         }
 
     }
@@ -160,10 +164,18 @@ public class JavaSerializationTranscoder implements SessionAttributesTranscoder
      */
     @Override
     public Map<String, Object> deserializeAttributes( final byte[] in ) {
+        return deserializeAttributes( in, 0, in.length );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Object> deserializeAttributes( final byte[] in, final int offset, final int length ) {
         ByteArrayInputStream bis = null;
         ObjectInputStream ois = null;
         try {
-            bis = new ByteArrayInputStream( in );
+            bis = new ByteArrayInputStream( in, offset, length );
             ois = createObjectInputStream( bis );
 
             final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
@@ -211,16 +223,6 @@ public class JavaSerializationTranscoder implements SessionAttributesTranscoder
         return ois;
     }
 
-    private void closeSilently( final OutputStream os ) {
-        if ( os != null ) {
-            try {
-                os.close();
-            } catch ( final IOException f ) {
-                // fail silently
-            }
-        }
-    }
-
     private void closeSilently( final InputStream is ) {
         if ( is != null ) {
             try {
@@ -19,6 +19,7 @@ package de.javakaffee.web.msm;
 import java.util.AbstractList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -185,6 +186,23 @@ public class LRUCache<K, V> {
         }
     }
 
+    /**
+     * The number of entries that are not expired, expired entries are removed.
+     */
+    public int size() {
+        synchronized ( _map ) {
+            if ( _ttl > -1 ) {
+                final long now = System.currentTimeMillis();
+                for ( final Iterator<ManagedItem<V>> iter = _map.values().iterator(); iter.hasNext(); ) {
+                    if ( now - iter.next()._insertionTime > _ttl ) {
+                        iter.remove();
+                    }
+                }
+            }
+            return _map.size();
+        }
+    }
+
     /**
      * The keys sorted by the given value comparator.
      *
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.Arrays;
+
+/**
+ * A pure java implementation of the LZ4 block format (without frame), used for
+ * {@link CompressionCodec#LZ4}. The compressor is a simple greedy one (like the
+ * "fast" mode of the reference implementation), it prefers speed over compression ratio.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class LZ4Block {
+
+    private static final int MIN_MATCH = 4;
+    /**
+     * The last match must start at least 12 bytes before the end of the block.
+     */
+    private static final int MF_LIMIT = 12;
+    /**
+     * The last 5 bytes of a block are always literals.
+     */
+    private static final int LAST_LITERALS = 5;
+    private static final int MIN_LENGTH = MF_LIMIT + 1;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_LOG = 12;
+    private static final int SKIP_STRENGTH = 6;
+
+    private LZ4Block() {
+    }
+
+    /**
+     * The maximum number of bytes the compressed form of <code>length</code> bytes can have.
+     */
+    static int maxCompressedLength( final int length ) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * Compresses the given range of <code>src</code> to <code>dest</code>, which must have
+     * room for {@link #maxCompressedLength(int)} bytes starting at <code>destOffset</code>.
+     *
+     * @return the number of bytes written to <code>dest</code>.
+     */
+    static int compress( final byte[] src, final int srcOffset, final int srcLength, final byte[] dest, final int destOffset ) {
+        final int srcEnd = srcOffset + srcLength;
+        final int mfLimit = srcEnd - MF_LIMIT;
+        final int matchLimit = srcEnd - LAST_LITERALS;
+
+        int dp = destOffset;
+        int anchor = srcOffset;
+
+        if ( srcLength >= MIN_LENGTH ) {
+            final int[] table = new int[1 << HASH_LOG];
+            Arrays.fill( table, srcOffset );
+
+            int sp = srcOffset + 1;
+            int searchMatchCount = 1 << SKIP_STRENGTH;
+            while ( sp < mfLimit ) {
+                final int h = hash( readInt( src, sp ) );
+                final int ref = table[h];
+                table[h] = sp;
+                if ( ref >= sp || sp - ref > MAX_OFFSET || readInt( src, ref ) != readInt( src, sp ) ) {
+                    // skip faster over incompressible data
+                    sp += searchMatchCount++ >>> SKIP_STRENGTH;
+                    continue;
+                }
+                searchMatchCount = 1 << SKIP_STRENGTH;
+
+                int matchStart = sp;
+                int matchRef = ref;
+                while ( matchStart > anchor && matchRef > srcOffset && src[matchStart - 1] == src[matchRef - 1] ) {
+                    matchStart--;
+                    matchRef--;
+                }
+                int matchLength = sp - matchStart + MIN_MATCH;
+                while ( matchStart + matchLength < matchLimit && src[matchStart + matchLength] == src[matchRef + matchLength] ) {
+                    matchLength++;
+                }
+
+                dp = writeSequence( src, anchor, matchStart - anchor, matchStart - matchRef, matchLength, dest, dp );
+                sp = matchStart + matchLength;
+                anchor = sp;
+                if ( sp < mfLimit ) {
+                    table[hash( readInt( src, sp - 2 ) )] = sp - 2;
+                }
+            }
+        }
+
+        return writeLastLiterals( src, anchor, srcEnd - anchor, dest, dp ) - destOffset;
+    }
+
+    /**
+     * Decompresses the given range of <code>src</code> to <code>dest</code>, the uncompressed
+     * data must have exactly <code>destLength</code> bytes.
+     *
+     * @throws IllegalArgumentException if the data is malformed.
+     */
+    static void decompress( final byte[] src, final int srcOffset, final int srcLength,
+            final byte[] dest, final int destOffset, final int destLength ) {
+        final int srcEnd = srcOffset + srcLength;
+        final int destEnd = destOffset + destLength;
+        int sp = srcOffset;
+        int dp = destOffset;
+        while ( true ) {
+            if ( sp >= srcEnd ) {
+                throw malformed( sp );
+            }
+            final int token = src[sp++] & 0xFF;
+
+            int literalLength = token >>> 4;
+            if ( literalLength == 0x0F ) {
+                int b;
+                do {
+                    if ( sp >= srcEnd ) {
+                        throw malformed( sp );
+                    }
+                    b = src[sp++] & 0xFF;
+                    literalLength += b;
+                } while ( b == 0xFF );
+            }
+            if ( literalLength > srcEnd - sp || literalLength > destEnd - dp ) {
+                throw malformed( sp );
+            }
+            System.arraycopy( src, sp, dest, dp, literalLength );
+            sp += literalLength;
+            dp += literalLength;
+
+            if ( sp == srcEnd ) {
+                // the last sequence has no match
+                if ( dp != destEnd ) {
+                    throw malformed( sp );
+                }
+                return;
+            }
+
+            if ( srcEnd - sp < 2 ) {
+                throw malformed( sp );
+            }
+            final int offset = ( src[sp] & 0xFF ) | ( src[sp + 1] & 0xFF ) << 8;
+            sp += 2;
+
+            int matchLength = token & 0x0F;
+            if ( matchLength == 0x0F ) {
+                int b;
+                do {
+                    if ( sp >= srcEnd ) {
+                        throw malformed( sp );
+                    }
+                    b = src[sp++] & 0xFF;
+                    matchLength += b;
+                } while ( b == 0xFF );
+            }
+            matchLength += MIN_MATCH;
+
+            final int ref = dp - offset;
+            if ( offset == 0 || ref < destOffset || matchLength > destEnd - dp ) {
+                throw malformed( sp );
+            }
+            if ( offset >= matchLength ) {
+                System.arraycopy( dest, ref, dest, dp, matchLength );
+            }
+            else {
+                // overlapping match, e.g. a run of the same byte
+                for ( int i = 0; i < matchLength; i++ ) {
+                    dest[dp + i] = dest[ref + i];
+                }
+            }
+            dp += matchLength;
+        }
+    }
+
+    private static int writeSequence( final byte[] src, final int literalOffset, final int literalLength,
+            final int matchOffset, final int matchLength, final byte[] dest, int dp ) {
+        final int tokenIdx = dp++;
+        int token;
+        if ( literalLength >= 0x0F ) {
+            token = 0x0F << 4;
+            dp = writeLength( literalLength - 0x0F, dest, dp );
+        }
+        else {
+            token = literalLength << 4;
+        }
+        System.arraycopy( src, literalOffset, dest, dp, literalLength );
+        dp += literalLength;
+
+        dest[dp++] = (byte) matchOffset;
+        dest[dp++] = (byte) ( matchOffset >>> 8 );
+
+        final int length = matchLength - MIN_MATCH;
+        if ( length >= 0x0F ) {
+            token |= 0x0F;
+            dp = writeLength( length - 0x0F, dest, dp );
+        }
+        else {
+            token |= length;
+        }
+        dest[tokenIdx] = (byte) token;
+        return dp;
+    }
+
+    private static int writeLastLiterals( final byte[] src, final int literalOffset, final int literalLength,
+            final byte[] dest, int dp ) {
+        if ( literalLength >= 0x0F ) {
+            dest[dp++] = (byte) ( 0x0F << 4 );
+            dp = writeLength( literalLength - 0x0F, dest, dp );
+        }
+        else {
+            dest[dp++] = (byte) ( literalLength << 4 );
+        }
+        System.arraycopy( src, literalOffset, dest, dp, literalLength );
+        return dp + literalLength;
+    }
+
+    private static int writeLength( int length, final byte[] dest, int dp ) {
+        while ( length >= 0xFF ) {
+            dest[dp++] = (byte) 0xFF;
+            length -= 0xFF;
+        }
+        dest[dp++] = (byte) length;
+        return dp;
+    }
+
+    private static int hash( final int value ) {
+        return ( value * -1640531535 ) >>> ( 32 - HASH_LOG );
+    }
+
+    private static int readInt( final byte[] data, final int off ) {
+        return ( data[off] & 0xFF )
+                | ( data[off + 1] & 0xFF ) << 8
+                | ( data[off + 2] & 0xFF ) << 16
+                | ( data[off + 3] & 0xFF ) << 24;
+    }
+
+    private static IllegalArgumentException malformed( final int idx ) {
+        return new IllegalArgumentException( "Malformed LZ4 data at index " + idx );
+    }
+
+}
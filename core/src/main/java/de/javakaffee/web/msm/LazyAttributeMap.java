@@ -0,0 +1,264 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.AbstractMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.servlet.http.HttpSessionActivationListener;
+import javax.servlet.http.HttpSessionEvent;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * The attributes map of a session loaded from memcached, that holds the serialized form of each
+ * attribute until the attribute is read for the first time: an attribute is deserialized on the
+ * first {@link #get(Object)}, attributes that are not accessed stay serialized and can be written
+ * back unchanged with the next backup of the session (see {@link #getSerialized(String)}).
+ * <p>
+ * Operations that need all values (e.g. {@link #entrySet()} or {@link #values()}) deserialize
+ * all attributes. {@link #keySet()} returns a snapshot of the attribute names and does not
+ * deserialize any attribute. {@link #put(String, Object)} and {@link #remove(Object)} don't deserialize
+ * the replaced/removed attribute either, so they return <code>null</code> if it was not deserialized before.
+ * </p>
+ * <p>
+ * An attribute that cannot be deserialized is logged and kept in its serialized form (so that it's
+ * written back unchanged with the next backup). It's still contained in the map, with the value
+ * <code>null</code>: {@link #get(Object)} returns <code>null</code> for it, and it's counted by
+ * {@link #size()} and contained in {@link #keySet()}, {@link #entrySet()} and {@link #values()}.
+ * </p>
+ * <p>
+ * When the session is activated (see {@link #activate(HttpSessionEvent)}) only the deserialized attributes
+ * are notified, attributes that are still serialized are notified when they're deserialized.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+class LazyAttributeMap extends AbstractMap<String, Object> {
+
+    private static final Log LOG = LogFactory.getLog( LazyAttributeMap.class );
+
+    private final TranscoderService _transcoderService;
+    private final ConcurrentMap<String, Object> _values = new ConcurrentHashMap<String, Object>();
+    private final ConcurrentMap<String, byte[]> _serialized = new ConcurrentHashMap<String, byte[]>();
+    private volatile HttpSessionEvent _activationEvent;
+
+    /**
+     * @param transcoderService used to deserialize attributes, each serialized attribute must
+     *  be a map with the single attribute (see {@link TranscoderService#serializeAttribute(MemcachedBackupSession, String, Object)}).
+     */
+    LazyAttributeMap( @Nonnull final TranscoderService transcoderService ) {
+        _transcoderService = transcoderService;
+    }
+
+    /**
+     * Adds the serialized form of the given attribute, it's deserialized on first access.
+     */
+    void putSerialized( @Nonnull final String name, @Nonnull final byte[] data ) {
+        _values.remove( name );
+        _serialized.put( name, data );
+    }
+
+    /**
+     * The serialized form of the given attribute, if it was not yet deserialized.
+     *
+     * @return the serialized attribute or <code>null</code> if there's no such attribute or
+     *  if it was already deserialized.
+     */
+    @CheckForNull
+    byte[] getSerialized( @Nonnull final String name ) {
+        return _serialized.get( name );
+    }
+
+    /**
+     * Returns a new map with the attributes whose name matches the given pattern, without
+     * deserializing any attribute.
+     */
+    @Nonnull
+    LazyAttributeMap filter( @Nonnull final Pattern pattern ) {
+        final LazyAttributeMap result = new LazyAttributeMap( _transcoderService );
+        for ( final Map.Entry<String, byte[]> entry : _serialized.entrySet() ) {
+            if ( pattern.matcher( entry.getKey() ).matches() ) {
+                result._serialized.put( entry.getKey(), entry.getValue() );
+            }
+        }
+        for ( final Map.Entry<String, Object> entry : _values.entrySet() ) {
+            if ( pattern.matcher( entry.getKey() ).matches() ) {
+                result._values.put( entry.getKey(), entry.getValue() );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object get( final Object name ) {
+        final Object value = _values.get( name );
+        if ( value != null ) {
+            return value;
+        }
+        final byte[] data = _serialized.get( name );
+        if ( data == null ) {
+            return _values.get( name );
+        }
+        final Object deserialized = deserialize( (String) name, data );
+        if ( deserialized == null ) {
+            return null;
+        }
+        final Object result = putDeserialized( (String) name, deserialized );
+        _serialized.remove( name, data );
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean containsKey( final Object name ) {
+        return _values.containsKey( name ) || _serialized.containsKey( name );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object put( final String name, final Object value ) {
+        final Object result = _values.put( name, value );
+        _serialized.remove( name );
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object remove( final Object name ) {
+        _serialized.remove( name );
+        return _values.remove( name );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear() {
+        _serialized.clear();
+        _values.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return _values.size() + _serialized.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEmpty() {
+        return _values.isEmpty() && _serialized.isEmpty();
+    }
+
+    /**
+     * Returns a snapshot of the attribute names, without deserializing any attribute.
+     */
+    @Override
+    public Set<String> keySet() {
+        final Set<String> result = new HashSet<String>( _values.keySet() );
+        result.addAll( _serialized.keySet() );
+        return result;
+    }
+
+    /**
+     * Deserializes all attributes and returns a snapshot of the entries. Attributes that
+     * cannot be deserialized are contained with the value <code>null</code>.
+     */
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        for ( final String name : _serialized.keySet() ) {
+            get( name );
+        }
+        final Set<Map.Entry<String, Object>> result = new HashSet<Map.Entry<String, Object>>();
+        for ( final Map.Entry<String, Object> entry : _values.entrySet() ) {
+            result.add( new SimpleImmutableEntry<String, Object>( entry ) );
+        }
+        for ( final String name : _serialized.keySet() ) {
+            if ( !_values.containsKey( name ) ) {
+                result.add( new SimpleImmutableEntry<String, Object>( name, null ) );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Notifies the deserialized attributes that are {@link HttpSessionActivationListener}s that the session
+     * was activated, without deserializing the other attributes. Attributes that are deserialized later
+     * are notified on deserialization.
+     */
+    void activate( @Nonnull final HttpSessionEvent event ) {
+        _activationEvent = event;
+        for ( final Object value : _values.values() ) {
+            notifyActivated( value, event );
+        }
+    }
+
+    private Object putDeserialized( final String name, final Object value ) {
+        final Object existing = _values.putIfAbsent( name, value );
+        if ( existing != null ) {
+            return existing;
+        }
+        final HttpSessionEvent activationEvent = _activationEvent;
+        if ( activationEvent != null ) {
+            notifyActivated( value, activationEvent );
+        }
+        return value;
+    }
+
+    private static void notifyActivated( final Object value, final HttpSessionEvent event ) {
+        if ( value instanceof HttpSessionActivationListener ) {
+            try {
+                ( (HttpSessionActivationListener) value ).sessionDidActivate( event );
+            } catch ( final RuntimeException e ) {
+                LOG.error( "Session activation listener threw an exception", e );
+            }
+        }
+    }
+
+    @CheckForNull
+    private Object deserialize( final String name, final byte[] data ) {
+        try {
+            return _transcoderService.deserializeAttributes( data ).get( name );
+        } catch ( final RuntimeException e ) {
+            LOG.warn( "Could not deserialize session attribute " + name + ", keeping it serialized.", e );
+            return null;
+        }
+    }
+
+}
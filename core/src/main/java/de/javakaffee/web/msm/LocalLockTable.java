@@ -0,0 +1,585 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.MemcachedClient;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Coordinates the requests of this tomcat that want to lock the same session, so that only one
+ * of them tries to get the lock in memcached: the first request that wants to lock a session gets the
+ * local lock and must acquire the lock in memcached, other requests wait on the local lock.
+ * When the lock is released and there are waiting requests, the lock in memcached is not deleted
+ * but handed over to the next waiting request, without any round trip to memcached.
+ * <p>
+ * Each acquisition of the local lock is represented by a {@link Holder}, which must be passed to release
+ * the lock: only the current holder of the local lock can release it.
+ * </p>
+ * <p>
+ * The lock in memcached is a lease: its value is a token that identifies the owner, it expires after the
+ * lease time and is renewed in the background while the lock is held (with gets/cas, so that only a lease that's
+ * still owned is renewed). When the lock is released, it's only deleted from memcached if it's still owned.
+ * As spymemcached doesn't support a delete with cas, this is checked with a gets before the delete: as
+ * leases are renewed when half of the lease time has passed, the remaining lease time is long enough that
+ * the lease won't expire between the check and the delete.
+ * </p>
+ * <p>
+ * A local lock that's not released within the max hold time is regarded as stale (e.g. if the lock was
+ * not released because of an error), then its lease is no longer renewed and a waiting request takes over
+ * the local lock and acquires the lock in memcached on its own. The stale holder is invalidated, so that
+ * its release neither releases the local lock nor deletes the lock in memcached of the new holder.
+ * </p>
+ * <p>
+ * The reader counts of shared locks (see {@link LockingStrategy#lockShared(String)}) held by requests of this
+ * tomcat are registered as well (see {@link #addReader(String, MemcachedClient, boolean)}), as a reader count
+ * expires after the lease time its expiration is renewed with the leases while there are readers.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+class LocalLockTable {
+
+    private static final Log _log = LogFactory.getLog( LocalLockTable.class );
+
+    private static final int MAX_READERS_RENEWAL_ATTEMPTS = 3;
+
+    private final ConcurrentMap<String, Entry> _entries = new ConcurrentHashMap<String, Entry>();
+    /*
+     * The number of local readers per reader count key, guarded by the monitor of this map.
+     */
+    private final Map<String, Readers> _readers = new HashMap<String, Readers>();
+    private final int _leaseTimeInSeconds;
+    private final long _staleAfterMillis;
+    private final long _operationTimeout;
+    private final String _ownerId = Long.toHexString( new Random().nextLong() );
+    private final AtomicLong _tokenCounter = new AtomicLong();
+    private final ScheduledThreadPoolExecutor _renewalExecutor = new ScheduledThreadPoolExecutor( 1,
+            new NamedDaemonThreadFactory( "msm-lock-renewal" ) );
+    private final AtomicBoolean _renewalScheduled = new AtomicBoolean();
+
+    /**
+     * @param leaseTimeInSeconds the expiration time of locks in memcached, locks are renewed when half of this time has passed.
+     * @param staleAfterMillis the time after which a local lock is regarded as stale and its lease is no longer renewed.
+     * @param operationTimeout the time in millis to wait for the lock in memcached to be added.
+     */
+    LocalLockTable( final int leaseTimeInSeconds, final long staleAfterMillis, final long operationTimeout ) {
+        _leaseTimeInSeconds = leaseTimeInSeconds;
+        _staleAfterMillis = staleAfterMillis;
+        _operationTimeout = operationTimeout;
+    }
+
+    /**
+     * Tries to acquire the lock in memcached for the session of the given holder of the local lock
+     * (see {@link #acquire(String, long)}). If the lock is acquired, its lease is renewed until the lock is released.
+     *
+     * @param holder the holder of the local lock.
+     * @param lockName the key of the lock in memcached.
+     * @param memcached the client used to acquire, renew and release the lock.
+     * @return <code>true</code> if the lock was acquired, <code>false</code> if it's held by somebody else or
+     *  if memcached did not respond within the operation timeout.
+     */
+    boolean tryAcquireRemote( @Nonnull final Holder holder, @Nonnull final String lockName,
+            @Nonnull final MemcachedClient memcached ) throws InterruptedException, ExecutionException {
+        final String token = _ownerId + ":" + _tokenCounter.incrementAndGet();
+        final Future<Boolean> added = memcached.add( lockName, _leaseTimeInSeconds, token );
+        try {
+            if ( !added.get( _operationTimeout, TimeUnit.MILLISECONDS ).booleanValue() ) {
+                return false;
+            }
+        } catch ( final TimeoutException e ) {
+            /* if the lock was added nevertheless, nobody renews or deletes it,
+             * so it's blocking other requests only until the lease time is over
+             */
+            added.cancel( false );
+            _log.info( "Timeout when trying to add lock " + lockName + " in memcached, the lock is regarded as not acquired." );
+            return false;
+        }
+        final Entry entry = _entries.get( holder._sessionId );
+        if ( entry != null ) {
+            synchronized ( entry ) {
+                if ( entry.isHeldBy( holder ) ) {
+                    entry._lease = new Lease( lockName, token, memcached );
+                    entry._leaseLost = false;
+                }
+            }
+            scheduleRenewal();
+        }
+        return true;
+    }
+
+    /**
+     * Acquires the local lock for the given session, waits if the lock is held by another request.
+     *
+     * @param sessionId the id of the session to lock.
+     * @param deadline the time in millis until the local lock must be acquired.
+     * @return the holder of the local lock. If the lock in memcached was not handed over by the previous local
+     *  holder (see {@link Holder#isRemoteLockHandedOver()}) it must be acquired by the caller, then the caller must
+     *  {@link #release(Holder, boolean)} the local lock also if it could not acquire the lock in memcached.
+     * @throws TimeoutException if the local lock could not be acquired until the deadline.
+     */
+    @Nonnull
+    Holder acquire( @Nonnull final String sessionId, final long deadline ) throws InterruptedException, TimeoutException {
+        while ( true ) {
+            final Entry entry = getOrCreateEntry( sessionId );
+            synchronized ( entry ) {
+                if ( entry._removed ) {
+                    continue;
+                }
+                if ( entry._holder == null ) {
+                    entry._holder = new Holder( sessionId, false );
+                    entry._heldSince = System.currentTimeMillis();
+                    return entry._holder;
+                }
+                entry._waiters++;
+                try {
+                    return awaitHandover( sessionId, entry, deadline );
+                } finally {
+                    entry._waiters--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Must be invoked with the lock of the entry held.
+     */
+    private Holder awaitHandover( final String sessionId, final Entry entry, final long deadline )
+            throws InterruptedException, TimeoutException {
+        while ( true ) {
+            final long now = System.currentTimeMillis();
+            if ( entry._handedOver ) {
+                entry._handedOver = false;
+                entry._heldSince = now;
+                entry._holder = new Holder( sessionId, entry._remoteLockHandedOver );
+                return entry._holder;
+            }
+            if ( now - entry._heldSince >= _staleAfterMillis ) {
+                _log.warn( "Local lock of session " + sessionId + " was not released within " + _staleAfterMillis
+                        + " millis, taking it over." );
+                entry._holder._valid = false;
+                entry._heldSince = now;
+                entry._lease = null;
+                entry._leaseLost = false;
+                entry._holder = new Holder( sessionId, false );
+                return entry._holder;
+            }
+            if ( now >= deadline ) {
+                throw new TimeoutException( "Reached timeout when waiting for local lock of session " + sessionId );
+            }
+            entry.wait( Math.min( deadline, entry._heldSince + _staleAfterMillis ) - now );
+        }
+    }
+
+    /**
+     * Releases the local lock of the given holder, if there's a request waiting for the lock
+     * it's handed over to this request.
+     *
+     * @param holder the holder of the local lock.
+     * @param remoteLockHeld specifies if the lock in memcached is held, so that it can be handed over. If its
+     *  lease could not be renewed the lock is not handed over.
+     * @return <code>true</code> if the lock in memcached must not be deleted, because it was handed over to a
+     *  waiting request or because the given holder is no longer the holder of the local lock (as its lock
+     *  was regarded as stale and taken over).
+     */
+    boolean release( @Nonnull final Holder holder, final boolean remoteLockHeld ) {
+        final Entry entry = getHeldEntry( holder );
+        if ( entry == null ) {
+            return true;
+        }
+        synchronized ( entry ) {
+            if ( !entry.isHeldBy( holder ) ) {
+                logNotHeld( holder );
+                return true;
+            }
+            return release( entry, holder._sessionId, remoteLockHeld );
+        }
+    }
+
+    /**
+     * Releases the local lock and the lock in memcached of the given holder, if the local lock is handed over
+     * to another request the lock in memcached is kept (and its lease is still renewed). The lock is only deleted
+     * from memcached if it's still owned by this table, and if the given holder still holds the local lock.
+     *
+     * @param holder the holder of the local lock, or <code>null</code> if the lock was not acquired via this table.
+     * @param lockName the key of the lock in memcached.
+     * @param memcached the client used to delete the lock if it's not known by this table.
+     */
+    void releaseWithRemoteLock( @Nullable final Holder holder, @Nonnull final String lockName,
+            @Nonnull final MemcachedClient memcached ) {
+        if ( holder == null ) {
+            // the lock was not acquired via this table, so we don't know its token
+            memcached.delete( lockName );
+            return;
+        }
+        final Entry entry = getHeldEntry( holder );
+        if ( entry == null ) {
+            return;
+        }
+        final Lease lease;
+        synchronized ( entry ) {
+            if ( !entry.isHeldBy( holder ) ) {
+                logNotHeld( holder );
+                return;
+            }
+            lease = entry._lease;
+            if ( release( entry, holder._sessionId, true ) ) {
+                return;
+            }
+        }
+        if ( lease == null ) {
+            // the lock in memcached was not acquired via this table, so we don't know its token
+            memcached.delete( lockName );
+            return;
+        }
+        final CASValue<Object> value = lease._memcached.gets( lease._lockName );
+        if ( value != null && lease._token.equals( value.getValue() ) ) {
+            lease._memcached.delete( lease._lockName );
+        }
+        else {
+            _log.warn( "Lock of session " + holder._sessionId + " was lost (its lease expired), it's not deleted." );
+        }
+    }
+
+    /**
+     * Must be invoked with the lock of the entry held, by the holder of the local lock.
+     *
+     * @return <code>true</code> if the lock was handed over to a waiting request.
+     */
+    private boolean release( final Entry entry, final String sessionId, final boolean remoteLockHeld ) {
+        entry._holder._valid = false;
+        if ( entry._waiters > 0 ) {
+            entry._handedOver = true;
+            entry._remoteLockHandedOver = remoteLockHeld && !entry._leaseLost;
+            if ( !entry._remoteLockHandedOver ) {
+                entry._lease = null;
+                entry._leaseLost = false;
+            }
+            entry.notifyAll();
+            return entry._remoteLockHandedOver;
+        }
+        entry._holder = null;
+        entry._lease = null;
+        entry._removed = true;
+        _entries.remove( sessionId, entry );
+        return false;
+    }
+
+    @CheckForNull
+    private Entry getHeldEntry( final Holder holder ) {
+        final Entry entry = _entries.get( holder._sessionId );
+        if ( entry == null ) {
+            logNotHeld( holder );
+        }
+        return entry;
+    }
+
+    private static void logNotHeld( final Holder holder ) {
+        _log.warn( "Local lock of session " + holder._sessionId + " is not released, as it's no longer held"
+                + " (it was already released or was taken over as it was not released in time)." );
+    }
+
+    /**
+     * Registers a reader of a shared lock (that incremented the given reader count), so that the expiration of
+     * the reader count is renewed while there are readers of this tomcat.
+     *
+     * @param readersKey the key of the reader count in memcached.
+     * @param memcached the client used to renew the reader count.
+     * @param renewNow specifies if the reader count shall be renewed now, e.g. if it was not just created
+     *  and might expire before it's renewed in the background.
+     */
+    void addReader( @Nonnull final String readersKey, @Nonnull final MemcachedClient memcached, final boolean renewNow ) {
+        synchronized ( _readers ) {
+            final Readers readers = _readers.get( readersKey );
+            if ( readers != null ) {
+                readers._count++;
+                readers._lastAdded = System.currentTimeMillis();
+            }
+            else {
+                _readers.put( readersKey, new Readers( memcached ) );
+            }
+        }
+        scheduleRenewal();
+        if ( renewNow ) {
+            renewReaders( readersKey, memcached );
+        }
+    }
+
+    /**
+     * Unregisters a reader of a shared lock, see {@link #addReader(String, MemcachedClient, boolean)}.
+     */
+    void removeReader( @Nonnull final String readersKey ) {
+        synchronized ( _readers ) {
+            final Readers readers = _readers.get( readersKey );
+            if ( readers != null && --readers._count <= 0 ) {
+                _readers.remove( readersKey );
+            }
+        }
+    }
+
+    /**
+     * Stops the renewal of leases.
+     */
+    void shutdown() {
+        _renewalExecutor.shutdown();
+    }
+
+    /**
+     * Renews the leases of all locks that are held and not stale, a lease that's no longer
+     * owned is marked as lost and no longer renewed. The reader counts of shared locks with
+     * readers of this tomcat are renewed as well.
+     */
+    void renewLeases() {
+        final long now = System.currentTimeMillis();
+        final List<Lease> leases = new ArrayList<Lease>();
+        for ( final Entry entry : _entries.values() ) {
+            synchronized ( entry ) {
+                if ( entry._holder != null && entry._lease != null && !entry._leaseLost
+                        && now - entry._heldSince < _staleAfterMillis ) {
+                    leases.add( entry._lease );
+                }
+            }
+        }
+        for ( final Lease lease : leases ) {
+            if ( !renew( lease ) ) {
+                _log.warn( "Could not renew lease of lock " + lease._lockName + ", it's no longer owned." );
+                markLost( lease );
+            }
+        }
+        final Map<String, MemcachedClient> readers = new HashMap<String, MemcachedClient>();
+        synchronized ( _readers ) {
+            for ( final Map.Entry<String, Readers> entry : _readers.entrySet() ) {
+                // like stale locks, readers that didn't release the shared lock for too long are not renewed
+                if ( now - entry.getValue()._lastAdded < _staleAfterMillis ) {
+                    readers.put( entry.getKey(), entry.getValue()._memcached );
+                }
+            }
+        }
+        for ( final Map.Entry<String, MemcachedClient> entry : readers.entrySet() ) {
+            renewReaders( entry.getKey(), entry.getValue() );
+        }
+    }
+
+    /**
+     * Sets the expiration of the given reader count to the lease time again. Incrementing or decrementing
+     * the count doesn't change its expiration, so the count is stored again with gets/cas, which is retried
+     * if the count was changed in between.
+     */
+    private void renewReaders( final String readersKey, final MemcachedClient memcached ) {
+        try {
+            for ( int i = 0; i < MAX_READERS_RENEWAL_ATTEMPTS; i++ ) {
+                final CASValue<Object> value = memcached.gets( readersKey );
+                if ( value == null ) {
+                    _log.info( "Could not renew reader count " + readersKey + ", it does not exist (any more)." );
+                    return;
+                }
+                if ( memcached.cas( readersKey, value.getCas(), _leaseTimeInSeconds, value.getValue(),
+                        memcached.getTranscoder() ) != CASResponse.EXISTS ) {
+                    return;
+                }
+            }
+            _log.info( "Could not renew reader count " + readersKey + ", it was changed concurrently." );
+        } catch ( final RuntimeException e ) {
+            // e.g. a timeout, we'll try again with the next renewal
+            _log.info( "Could not renew reader count " + readersKey + ": " + e );
+        }
+    }
+
+    private boolean renew( final Lease lease ) {
+        try {
+            final CASValue<Object> value = lease._memcached.gets( lease._lockName );
+            if ( value == null || !lease._token.equals( value.getValue() ) ) {
+                return false;
+            }
+            return lease._memcached.cas( lease._lockName, value.getCas(), _leaseTimeInSeconds, lease._token,
+                    lease._memcached.getTranscoder() ) == CASResponse.OK;
+        } catch ( final RuntimeException e ) {
+            // e.g. a timeout, we'll try again with the next renewal
+            _log.info( "Could not renew lease of lock " + lease._lockName + ": " + e );
+            return true;
+        }
+    }
+
+    private void markLost( final Lease lease ) {
+        for ( final Entry entry : _entries.values() ) {
+            synchronized ( entry ) {
+                if ( entry._lease == lease ) {
+                    entry._leaseLost = true;
+                }
+            }
+        }
+    }
+
+    private void scheduleRenewal() {
+        if ( _renewalScheduled.compareAndSet( false, true ) ) {
+            final long interval = Math.max( 1, TimeUnit.SECONDS.toMillis( _leaseTimeInSeconds ) / 2 );
+            _renewalExecutor.scheduleWithFixedDelay( new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        renewLeases();
+                    } catch ( final Throwable e ) {
+                        _log.warn( "Could not renew lock leases.", e );
+                    }
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS );
+        }
+    }
+
+    /**
+     * Determines if the local lock of the given session is held by a request.
+     */
+    boolean isLocked( @Nonnull final String sessionId ) {
+        final Entry entry = _entries.get( sessionId );
+        if ( entry == null ) {
+            return false;
+        }
+        synchronized ( entry ) {
+            return entry._holder != null;
+        }
+    }
+
+    private Entry getOrCreateEntry( final String sessionId ) {
+        final Entry entry = _entries.get( sessionId );
+        if ( entry != null ) {
+            return entry;
+        }
+        final Entry newEntry = new Entry();
+        final Entry existing = _entries.putIfAbsent( sessionId, newEntry );
+        return existing != null ? existing : newEntry;
+    }
+
+    /**
+     * The local lock of a session, all fields are guarded by the monitor of the entry.
+     */
+    private static final class Entry {
+        /**
+         * The current holder of the local lock, <code>null</code> if the lock is not held.
+         */
+        private Holder _holder;
+        private long _heldSince;
+        private int _waiters;
+        private boolean _handedOver;
+        private boolean _remoteLockHandedOver;
+        /**
+         * Set when the entry was removed from the table, then it must not be used any more.
+         */
+        private boolean _removed;
+        /**
+         * The lease of the lock in memcached, if it was acquired via {@link LocalLockTable#tryAcquireRemote(String, String, MemcachedClient)}.
+         */
+        private Lease _lease;
+        /**
+         * Set when the lease could not be renewed because it's no longer owned.
+         */
+        private boolean _leaseLost;
+
+        /**
+         * Determines if the given holder holds the local lock, which is not the case any more
+         * once the lock is handed over.
+         */
+        private boolean isHeldBy( final Holder holder ) {
+            return _holder == holder && holder._valid && !_handedOver;
+        }
+    }
+
+    /**
+     * An acquisition of the local lock of a session (see {@link LocalLockTable#acquire(String, long)}),
+     * that's needed to release the lock.
+     */
+    static final class Holder {
+        private final String _sessionId;
+        private final boolean _remoteLockHandedOver;
+        /**
+         * Reset when the lock is released, or when it's taken over because it's stale. Guarded by the
+         * monitor of the entry.
+         */
+        private boolean _valid = true;
+
+        private Holder( final String sessionId, final boolean remoteLockHandedOver ) {
+            _sessionId = sessionId;
+            _remoteLockHandedOver = remoteLockHandedOver;
+        }
+
+        /**
+         * The id of the locked session.
+         */
+        @Nonnull
+        String getSessionId() {
+            return _sessionId;
+        }
+
+        /**
+         * Specifies if the lock in memcached was handed over by the previous holder of the local lock,
+         * otherwise it must be acquired by the new holder.
+         */
+        boolean isRemoteLockHandedOver() {
+            return _remoteLockHandedOver;
+        }
+    }
+
+    /**
+     * The readers of this tomcat holding a shared lock, guarded by the monitor of the readers map.
+     */
+    private static final class Readers {
+        private final MemcachedClient _memcached;
+        private int _count = 1;
+        private long _lastAdded = System.currentTimeMillis();
+
+        private Readers( final MemcachedClient memcached ) {
+            _memcached = memcached;
+        }
+    }
+
+    /**
+     * A lock in memcached owned by this table.
+     */
+    private static final class Lease {
+        private final String _lockName;
+        private final String _token;
+        private final MemcachedClient _memcached;
+
+        private Lease( final String lockName, final String token, final MemcachedClient memcached ) {
+            _lockName = lockName;
+            _token = token;
+            _memcached = memcached;
+        }
+    }
+
+}
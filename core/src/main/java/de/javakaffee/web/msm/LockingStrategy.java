@@ -23,6 +23,8 @@ import static de.javakaffee.web.msm.Statistics.StatsType.*;
 import static java.lang.Math.min;
 import static java.lang.Thread.sleep;
 
+import java.util.Map;
+import java.util.Random;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -36,6 +38,7 @@ import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
+import net.spy.memcached.DefaultConnectionFactory;
 import net.spy.memcached.MemcachedClient;
 
 import org.apache.catalina.connector.Request;
@@ -60,31 +63,52 @@ public abstract class LockingStrategy {
         ALL,
         /** Readonly requests are tracked and for requests that modify the session the session is locked. */
         AUTO,
-        /** The application explicitely manages locks */
+        /** The application explicitely manages locks, see {@link LockingStrategyApp} */
         APP,
         /** The session is locked for configured request patterns **/
-        URI_PATTERN
+        URI_PATTERN,
+        /** Readonly requests take a shared lock, other requests an exclusive lock. */
+        READ_WRITE
     }
 
-    protected static final String LOCK_VALUE = "locked";
+    /**
+     * The default expiration time (lease time) of locks in memcached in seconds.
+     */
+    protected static final int LOCK_EXPIRATION = 5;
+    /**
+     * The time in millis after which a lock is regarded as stale, then it's no longer renewed.
+     */
+    protected static final long LOCK_MAX_HOLD_TIME = 60000;
+    /**
+     * The time in millis a lock operation in memcached is awaited, this is the operation timeout
+     * of the memcached client.
+     */
+    protected static final long LOCK_OPERATION_TIMEOUT = DefaultConnectionFactory.DEFAULT_OPERATION_TIMEOUT;
     protected static final int LOCK_RETRY_INTERVAL = 10;
     protected static final int LOCK_MAX_RETRY_INTERVAL = 500;
     protected static final int LOCK_TIMEOUT = 2000;
 
     protected final Log _log = LogFactory.getLog( getClass() );
+    private static final Log _releaseLog = LogFactory.getLog( LockingStrategy.class );
 
     protected MemcachedSessionService _manager;
     protected final MemcachedClient _memcached;
-    protected LRUCache<String, Boolean> _missingSessionsCache;
+    protected ConcurrentLRUCache<String, Boolean> _missingSessionsCache;
     protected final SessionIdFormat _sessionIdFormat;
     protected final InheritableThreadLocal<Request> _requestsThreadLocal;
     private final ExecutorService _executor;
     private final boolean _storeSecondaryBackup;
     protected final Statistics _stats;
+    private final LocalLockTable _localLocks;
+    /*
+     * The local lock acquired by the current request via lock(String), until it's handed to the loaded session.
+     */
+    private final ThreadLocal<LocalLockTable.Holder> _acquiredLocalLock = new ThreadLocal<LocalLockTable.Holder>();
+    private final Random _random = new Random();
 
     protected LockingStrategy( @Nonnull final MemcachedSessionService manager,
             @Nonnull final MemcachedClient memcached,
-            @Nonnull final LRUCache<String, Boolean> missingSessionsCache, final boolean storeSecondaryBackup,
+            @Nonnull final ConcurrentLRUCache<String, Boolean> missingSessionsCache, final boolean storeSecondaryBackup,
             @Nonnull final Statistics stats ) {
         _manager = manager;
         _memcached = memcached;
@@ -93,6 +117,7 @@ public abstract class LockingStrategy {
         _requestsThreadLocal = new InheritableThreadLocal<Request>();
         _storeSecondaryBackup = storeSecondaryBackup;
         _stats = stats;
+        _localLocks = manager.getLocalLockTable();
         _executor = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
     }
 
@@ -102,7 +127,7 @@ public abstract class LockingStrategy {
     @CheckForNull
     public static LockingStrategy create( @Nullable final LockingMode lockingMode, @Nullable final Pattern uriPattern,
             @Nonnull final MemcachedClient memcached, @Nonnull final MemcachedSessionService manager,
-            @Nonnull final LRUCache<String, Boolean> missingSessionsCache, final boolean storeSecondaryBackup,
+            @Nonnull final ConcurrentLRUCache<String, Boolean> missingSessionsCache, final boolean storeSecondaryBackup,
             @Nonnull final Statistics stats ) {
         if ( lockingMode == null ) {
             return null;
@@ -112,9 +137,14 @@ public abstract class LockingStrategy {
             return new LockingStrategyAll( manager, memcached, missingSessionsCache, storeSecondaryBackup, stats );
         case AUTO:
             return new LockingStrategyAuto( manager, memcached, missingSessionsCache, storeSecondaryBackup, stats );
+        case APP:
+            return new LockingStrategyApp( manager, memcached, missingSessionsCache, storeSecondaryBackup, stats );
         case URI_PATTERN:
             return new LockingStrategyUriPattern( manager, uriPattern, memcached, missingSessionsCache, storeSecondaryBackup,
                     stats );
+        case READ_WRITE:
+            return new LockingStrategyReadWrite( manager, uriPattern, memcached, missingSessionsCache, storeSecondaryBackup,
+                    stats );
         case NONE:
             return new LockingStrategyNone( manager, memcached, missingSessionsCache, storeSecondaryBackup, stats );
         default:
@@ -139,8 +169,37 @@ public abstract class LockingStrategy {
         }
         final long start = System.currentTimeMillis();
         try {
-            acquireLock( sessionId, LOCK_RETRY_INTERVAL, LOCK_MAX_RETRY_INTERVAL, timeUnit.toMillis( timeout ),
-                    System.currentTimeMillis() );
+            /* only one request of this tomcat tries to get the lock from memcached, others
+             * wait until the lock is handed over to them
+             */
+            final LocalLockTable.Holder localLock = _localLocks.acquire( sessionId, start + timeUnit.toMillis( timeout ) );
+            if ( localLock.isRemoteLockHandedOver() ) {
+                _acquiredLocalLock.set( localLock );
+                _stats.lockHandedOver();
+                _stats.registerSince( ACQUIRE_LOCK, start );
+                if ( _log.isDebugEnabled() ) {
+                    _log.debug( "Locked session " + sessionId + " (handed over by local request)" );
+                }
+                return LockStatus.LOCKED;
+            }
+            boolean remoteLocked = false;
+            boolean locked = false;
+            try {
+                acquireLock( localLock, LOCK_RETRY_INTERVAL, LOCK_MAX_RETRY_INTERVAL, timeUnit.toMillis( timeout ),
+                        start );
+                remoteLocked = true;
+                onLockAcquired( sessionId, timeUnit.toMillis( timeout ), start );
+                locked = true;
+                _acquiredLocalLock.set( localLock );
+            } finally {
+                if ( !locked ) {
+                    // the lock in memcached is not handed over, a waiting request must check the lock again
+                    _localLocks.release( localLock, false );
+                    if ( remoteLocked ) {
+                        _memcached.delete( _sessionIdFormat.createLockName( sessionId ) );
+                    }
+                }
+            }
             _stats.registerSince( ACQUIRE_LOCK, start );
             if ( _log.isDebugEnabled() ) {
                 _log.debug( "Locked session " + sessionId );
@@ -161,10 +220,94 @@ public abstract class LockingStrategy {
         }
     }
 
-    protected void acquireLock( @Nonnull final String sessionId, final long retryInterval, final long maxRetryInterval,
+    /**
+     * Is invoked when the lock of the given session was acquired in memcached by {@link #lock(String, long, TimeUnit)}
+     * (not if it was handed over by another request of this tomcat), before the lock status is returned.
+     *
+     * @param timeout the timeout of the lock acquisition in millis.
+     * @param start the time in millis when the lock acquisition was started.
+     * @throws TimeoutException if the timeout is reached, then the lock is released again and the session
+     *  is used without lock.
+     */
+    protected void onLockAcquired( @Nonnull final String sessionId, final long timeout, final long start )
+            throws InterruptedException, TimeoutException {
+        // nothing to do by default
+    }
+
+    /**
+     * Acquires a shared lock of the given session: if the session is not locked exclusively the number of readers
+     * of the session is incremented in memcached. A request that acquired the exclusive lock waits until there are
+     * no readers (see {@link #awaitReaders(String, long, long)}), so that readers back off if the exclusive
+     * lock was acquired meanwhile. The reader count expires after the lock lease time, so that readers that are
+     * gone don't block writers forever. While a request of this tomcat holds the shared lock the expiration of the
+     * reader count is renewed (see {@link LocalLockTable#addReader(String, MemcachedClient, boolean)}).
+     */
+    protected LockStatus lockShared( @Nonnull final String sessionId ) {
+        if ( _log.isDebugEnabled() ) {
+            _log.debug( "Locking session " + sessionId + " (shared)" );
+        }
+        final long start = System.currentTimeMillis();
+        final String lockName = _sessionIdFormat.createLockName( sessionId );
+        final String readersKey = _sessionIdFormat.createReadersKeyName( sessionId );
+        try {
+            long retryInterval = LOCK_RETRY_INTERVAL;
+            while ( true ) {
+                if ( _memcached.get( lockName ) == null ) {
+                    final long readers = _memcached.incr( readersKey, 1, 1, _manager.getLockLeaseTime() );
+                    if ( _memcached.get( lockName ) == null ) {
+                        /* incr doesn't change the expiration of an existing reader count, so if other
+                         * readers created it, it's renewed now to not expire while we're reading
+                         */
+                        _localLocks.addReader( readersKey, _memcached, readers > 1 );
+                        _stats.sharedLockAcquired();
+                        _stats.registerSince( ACQUIRE_LOCK, start );
+                        if ( _log.isDebugEnabled() ) {
+                            _log.debug( "Locked session " + sessionId + " (shared)" );
+                        }
+                        return LockStatus.LOCKED_SHARED;
+                    }
+                    // a writer got the lock in between, it waits for the readers
+                    _memcached.decr( readersKey, 1 );
+                }
+                checkTimeoutAndWait( sessionId, retryInterval, LOCK_MAX_RETRY_INTERVAL, LOCK_TIMEOUT, start );
+                retryInterval *= 2;
+            }
+        } catch ( final TimeoutException e ) {
+            _log.warn( "Reached timeout when trying to aquire shared lock for session " + sessionId
+                    + ". Will use this session without this lock." );
+            _stats.registerSince( ACQUIRE_LOCK_FAILURE, start );
+            return LockStatus.COULD_NOT_AQUIRE_LOCK;
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( "Got interrupted while trying to lock session.", e );
+        } catch ( final RuntimeException e ) {
+            _log.warn( "An exception occurred when trying to aquire shared lock for session " + sessionId, e );
+            _stats.registerSince( ACQUIRE_LOCK_FAILURE, start );
+            return LockStatus.COULD_NOT_AQUIRE_LOCK;
+        }
+    }
+
+    /**
+     * Waits until there are no readers holding a shared lock of the given session (see {@link #lockShared(String)}),
+     * must be invoked with the exclusive lock held.
+     *
+     * @throws TimeoutException if there are still readers when the timeout is reached, so that the lock
+     *  acquisition fails.
+     */
+    protected void awaitReaders( @Nonnull final String sessionId, final long timeout, final long start )
+            throws InterruptedException, TimeoutException {
+        final String readersKey = _sessionIdFormat.createReadersKeyName( sessionId );
+        long retryInterval = LOCK_RETRY_INTERVAL;
+        while ( _memcached.incr( readersKey, 0 ) > 0 ) {
+            checkTimeoutAndWait( sessionId, retryInterval, LOCK_MAX_RETRY_INTERVAL, timeout, start );
+            retryInterval *= 2;
+        }
+    }
+
+    protected void acquireLock( @Nonnull final LocalLockTable.Holder localLock, final long retryInterval, final long maxRetryInterval,
             final long timeout, final long start ) throws InterruptedException, ExecutionException, TimeoutException {
-        final Future<Boolean> result = _memcached.add( _sessionIdFormat.createLockName( sessionId ), 5, LOCK_VALUE );
-        if ( result.get().booleanValue() ) {
+        final String sessionId = localLock.getSessionId();
+        if ( _localLocks.tryAcquireRemote( localLock, _sessionIdFormat.createLockName( sessionId ), _memcached ) ) {
             if ( _log.isDebugEnabled() ) {
                 _log.debug( "Locked session " + sessionId );
             }
@@ -172,7 +315,7 @@ public abstract class LockingStrategy {
         }
         else {
             checkTimeoutAndWait( sessionId, retryInterval, maxRetryInterval, timeout, start );
-            acquireLock( sessionId, retryInterval * 2, maxRetryInterval, timeout, start );
+            acquireLock( localLock, retryInterval * 2, maxRetryInterval, timeout, start );
         }
     }
 
@@ -182,23 +325,91 @@ public abstract class LockingStrategy {
         if ( System.currentTimeMillis() >= start + timeout ) {
             throw new TimeoutException( "Reached timeout when trying to aquire lock for session " + sessionId );
         }
-        final long timeToWait = min( retryInterval, maxRetryInterval );
+        // the jitter prevents that requests of different tomcats waiting for the same lock retry in lockstep
+        final long interval = min( retryInterval, maxRetryInterval );
+        final long timeToWait = interval / 2 + ( interval > 1 ? _random.nextInt( (int) ( interval / 2 ) ) : 0 );
         if ( _log.isDebugEnabled() ) {
             _log.debug( "Could not aquire lock for session " + sessionId + ", waiting " + timeToWait + " millis now..." );
         }
         sleep( timeToWait );
     }
 
+    /**
+     * Releases the lock of the given session that was acquired by the current request via {@link #lock(String)},
+     * before the session was loaded.
+     */
     protected void releaseLock( @Nonnull final String sessionId ) {
+        releaseExclusiveLock( sessionId, takeAcquiredLocalLock( sessionId ), _localLocks, _memcached, _sessionIdFormat, _stats );
+    }
+
+    /**
+     * Returns the local lock of the given session acquired by the current request, so that it can be released.
+     */
+    @CheckForNull
+    private LocalLockTable.Holder takeAcquiredLocalLock( @Nonnull final String sessionId ) {
+        final LocalLockTable.Holder result = _acquiredLocalLock.get();
+        _acquiredLocalLock.remove();
+        return result != null && result.getSessionId().equals( sessionId ) ? result : null;
+    }
+
+    /**
+     * Releases the shared lock of the given session, see {@link #lockShared(String)}.
+     */
+    protected void releaseSharedLock( @Nonnull final String sessionId ) {
+        releaseSharedLock( sessionId, _localLocks, _memcached, _sessionIdFormat );
+    }
+
+    /**
+     * Releases the (exclusive or shared) lock held by the given session, if it's locked. This is used when the
+     * lock was handed to the loaded session, so that it's released when the session backup is done. It does not
+     * depend on the locking strategy instance, as the locking mode of the manager might be changed meanwhile.
+     */
+    static void releaseLock( @Nonnull final MemcachedBackupSession session, @Nonnull final LocalLockTable localLocks,
+            @Nonnull final MemcachedClient memcached, @Nonnull final SessionIdFormat sessionIdFormat,
+            @Nonnull final Statistics stats ) {
+        if ( session.isLocked() ) {
+            if ( releaseExclusiveLock( session.getIdInternal(), session.getLocalLock(), localLocks, memcached,
+                    sessionIdFormat, stats ) ) {
+                session.releaseLock();
+            }
+        }
+        else if ( session.isLockedShared() ) {
+            if ( releaseSharedLock( session.getIdInternal(), localLocks, memcached, sessionIdFormat ) ) {
+                session.releaseLock();
+            }
+        }
+    }
+
+    private static boolean releaseExclusiveLock( @Nonnull final String sessionId, @Nullable final LocalLockTable.Holder localLock,
+            @Nonnull final LocalLockTable localLocks, @Nonnull final MemcachedClient memcached,
+            @Nonnull final SessionIdFormat sessionIdFormat, @Nonnull final Statistics stats ) {
         try {
-            if ( _log.isDebugEnabled() ) {
-                _log.debug( "Releasing lock for session " + sessionId );
+            if ( _releaseLog.isDebugEnabled() ) {
+                _releaseLog.debug( "Releasing lock for session " + sessionId );
             }
             final long start = System.currentTimeMillis();
-            _memcached.delete( _sessionIdFormat.createLockName( sessionId ) );
-            _stats.registerSince( RELEASE_LOCK, start );
+            localLocks.releaseWithRemoteLock( localLock, sessionIdFormat.createLockName( sessionId ), memcached );
+            stats.registerSince( RELEASE_LOCK, start );
+            return true;
+        } catch ( final Exception e ) {
+            _releaseLog.warn( "Caught exception when trying to release lock for session " + sessionId );
+            return false;
+        }
+    }
+
+    private static boolean releaseSharedLock( @Nonnull final String sessionId, @Nonnull final LocalLockTable localLocks,
+            @Nonnull final MemcachedClient memcached, @Nonnull final SessionIdFormat sessionIdFormat ) {
+        try {
+            if ( _releaseLog.isDebugEnabled() ) {
+                _releaseLog.debug( "Releasing shared lock for session " + sessionId );
+            }
+            final String readersKey = sessionIdFormat.createReadersKeyName( sessionId );
+            localLocks.removeReader( readersKey );
+            memcached.decr( readersKey, 1 );
+            return true;
         } catch ( final Exception e ) {
-            _log.warn( "Caught exception when trying to release lock for session " + sessionId );
+            _releaseLog.warn( "Caught exception when trying to release shared lock for session " + sessionId );
+            return false;
         }
     }
 
@@ -254,13 +465,45 @@ public abstract class LockingStrategy {
 
     }
 
+    /**
+     * Is invoked before the backup of the session is initiated, stores the validity info of the session.
+     * For synchronous session backup the validity info is added to the given writes of the request, so
+     * that it's written together with the session and both are awaited under the same deadline
+     * (in {@link #onAfterBackupSession(MemcachedBackupSession, boolean, Future, String, BackupSessionService, WriteFanOut)}).
+     *
+     * @param writes the writes of the current request, <code>null</code> for asynchronous session backup.
+     */
+    protected void onBeforeBackupSession( @Nonnull final MemcachedBackupSession session, @Nullable final WriteFanOut writes ) {
+
+        if ( !_sessionIdFormat.isValid( session.getIdInternal() ) ) {
+            return;
+        }
+
+        try {
+            final String validityKey = createValidityInfoKeyName( session.getIdInternal() );
+            final byte[] validityData = encodeValidityInfo( session );
+            // fix for #88, along with the change in session.getMemcachedExpirationTimeToSet
+            final int expiration = session.getMaxInactiveInterval() <= 0 ? 0 : session.getMaxInactiveInterval();
+            if ( writes != null ) {
+                writes.set( _memcached, validityKey, expiration, validityData );
+            }
+            else {
+                _memcached.set( validityKey, expiration, validityData );
+            }
+        } catch( final Throwable e ) {
+            _log.warn( "An error occurred during onBeforeBackupSession.", e );
+        }
+
+    }
+
     /**
      * Is invoked after the backup of the session is initiated, it's represented by the provided backupResult. The
-     * requestId is identifying the request.
+     * requestId is identifying the request. For synchronous session backup the given writes of the request
+     * are awaited.
      */
     protected void onAfterBackupSession( @Nonnull final MemcachedBackupSession session, final boolean backupWasForced,
             @Nonnull final Future<BackupResult> result, @Nonnull final String requestId,
-            @Nonnull final BackupSessionService backupSessionService ) {
+            @Nonnull final BackupSessionService backupSessionService, @Nullable final WriteFanOut writes ) {
 
         if ( !_sessionIdFormat.isValid( session.getIdInternal() ) ) {
             return;
@@ -270,20 +513,10 @@ public abstract class LockingStrategy {
 
             final long start = System.currentTimeMillis();
 
-            final int maxInactiveInterval = session.getMaxInactiveInterval();
-            final byte[] validityData = encode( maxInactiveInterval, session.getLastAccessedTimeInternal(),
-                    session.getThisAccessedTimeInternal() );
+            final byte[] validityData = encodeValidityInfo( session );
             final String validityKey = createValidityInfoKeyName( session.getIdInternal() );
-            // fix for #88, along with the change in session.getMemcachedExpirationTimeToSet
-            final int expiration = maxInactiveInterval <= 0 ? 0 : maxInactiveInterval;
-            final Future<Boolean> validityResult = _memcached.set( validityKey, expiration, validityData );
-            if ( !_manager.isSessionBackupAsync() ) {
-                // TODO: together with session backup wait not longer than sessionBackupTimeout.
-                // Details: Now/here we're waiting the whole session backup timeout, even if (perhaps) some time
-                // was spent before when waiting for session backup result.
-                // For sync session backup it would be better to set both the session data and
-                // validity info and afterwards wait for both results (but in sum no longer than sessionBackupTimeout)
-                validityResult.get( _manager.getSessionBackupTimeout(), TimeUnit.MILLISECONDS );
+            if ( writes != null ) {
+                awaitWrites( writes );
             }
             if ( _log.isDebugEnabled() ) {
                 _log.debug( "Stored session validity info for session " + session.getIdInternal() );
@@ -312,6 +545,27 @@ public abstract class LockingStrategy {
 
     }
 
+    /**
+     * Encodes the validity info that's stored in memcached for the given session.
+     */
+    static byte[] encodeValidityInfo( final MemcachedBackupSession session ) {
+        return encode( session.getMaxInactiveInterval(), session.getLastAccessedTimeInternal(),
+                session.getThisAccessedTimeInternal() );
+    }
+
+    /**
+     * Awaits the writes of the request, failed writes are logged with the memcached node of the key. A failed
+     * session write was already handled by the {@link BackupSessionTask} (which marks the node as unavailable).
+     */
+    private void awaitWrites( @Nonnull final WriteFanOut writes ) {
+        for ( final Map.Entry<String, WriteFanOut.Outcome> entry : writes.awaitAll().entrySet() ) {
+            if ( entry.getValue().isNodeFailure() && _log.isInfoEnabled() ) {
+                _log.info( "Could not store " + entry.getKey() + " in memcached node " +
+                        _sessionIdFormat.extractMemcachedId( entry.getKey() ) + " (" + entry.getValue() + ")." );
+            }
+        }
+    }
+
     /**
      * Is used to determine if this thread / the current request already hit the application or if this method
      * invocation comes from the container.
@@ -347,25 +601,29 @@ public abstract class LockingStrategy {
 
     /**
      * Invoked after a non-sticky session is loaded from memcached, can be used to update some session fields based on
-     * separately stored information (e.g. session validity info).
+     * separately stored information (e.g. session validity info). The validity info is loaded together with the
+     * session, so that it doesn't need another round trip to memcached.
      *
      * @param lockStatus
      *            the {@link LockStatus} that was returned from {@link #onBeforeLoadFromMemcached(String)}.
+     * @param validityData
+     *            the encoded validity info loaded with the session, <code>null</code> if it was not found.
      */
     protected void onAfterLoadFromMemcached( @Nonnull final MemcachedBackupSession session,
-            @Nullable final LockStatus lockStatus ) {
+            @Nullable final LockStatus lockStatus, @Nullable final Object validityData ) {
+        final long start = System.currentTimeMillis();
         session.setLockStatus( lockStatus );
+        session.setLocalLock( lockStatus == LockStatus.LOCKED ? takeAcquiredLocalLock( session.getIdInternal() ) : null );
 
-        final long start = System.currentTimeMillis();
-        final SessionValidityInfo info = loadSessionValidityInfo( session.getIdInternal() );
+        final SessionValidityInfo info = validityData instanceof byte[] ? decode( (byte[]) validityData ) : null;
         if ( info != null ) {
-            _stats.registerSince( NON_STICKY_AFTER_LOAD_FROM_MEMCACHED, start );
             session.setLastAccessedTimeInternal( info.getLastAccessedTime() );
             session.setThisAccessedTimeInternal( info.getThisAccessedTime() );
         }
         else {
             _log.warn( "No validity info available for session " + session.getIdInternal() );
         }
+        _stats.registerSince( NON_STICKY_AFTER_LOAD_FROM_MEMCACHED, start );
     }
 
     /**
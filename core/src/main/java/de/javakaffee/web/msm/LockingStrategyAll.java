@@ -32,7 +32,7 @@ public class LockingStrategyAll extends LockingStrategy {
 
     public LockingStrategyAll( @Nonnull final MemcachedSessionService manager,
             @Nonnull final MemcachedClient memcached,
-            @Nonnull final LRUCache<String, Boolean> missingSessionsCache,
+            @Nonnull final ConcurrentLRUCache<String, Boolean> missingSessionsCache,
             final boolean storeSecondaryBackup,
             @Nonnull final Statistics stats ) {
         super( manager, memcached, missingSessionsCache, storeSecondaryBackup, stats );
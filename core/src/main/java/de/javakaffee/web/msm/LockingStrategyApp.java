@@ -0,0 +1,92 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Nonnull;
+import javax.servlet.ServletRequest;
+
+import net.spy.memcached.MemcachedClient;
+
+import org.apache.catalina.connector.Request;
+
+import de.javakaffee.web.msm.MemcachedSessionService.LockStatus;
+
+/**
+ * This locking strategy locks the session only for requests for which the application asked for the lock,
+ * all other requests don't lock the session. The application asks for the lock by setting the request
+ * attribute {@value #LOCK_SESSION_ATTRIBUTE} to <code>true</code> (see {@link #lockSession(ServletRequest)}), e.g.
+ * in a servlet filter for the handlers that modify the session. This must be done before the session is accessed
+ * for the first time in the request, as the lock is acquired when the session is loaded from memcached.
+ * The lock is released after the session backup, like in the other locking modes.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class LockingStrategyApp extends LockingStrategy {
+
+    /**
+     * The name of the request attribute that specifies if the session shall be locked for the request.
+     */
+    public static final String LOCK_SESSION_ATTRIBUTE = "de.javakaffee.web.msm.lockSession";
+
+    public LockingStrategyApp( @Nonnull final MemcachedSessionService manager,
+            @Nonnull final MemcachedClient memcached,
+            @Nonnull final ConcurrentLRUCache<String, Boolean> missingSessionsCache,
+            final boolean storeSecondaryBackup,
+            @Nonnull final Statistics stats ) {
+        super( manager, memcached, missingSessionsCache, storeSecondaryBackup, stats );
+    }
+
+    /**
+     * Asks for the session lock for the given request, this must be invoked before the session is
+     * accessed in the request. This is the same as setting the request attribute {@value #LOCK_SESSION_ATTRIBUTE}
+     * to <code>true</code>, which can be used if the application shall not depend on this class.
+     */
+    public static void lockSession( @Nonnull final ServletRequest request ) {
+        request.setAttribute( LOCK_SESSION_ATTRIBUTE, Boolean.TRUE );
+    }
+
+    @Override
+    protected LockStatus onBeforeLoadFromMemcached( @Nonnull final String sessionId ) throws InterruptedException,
+            ExecutionException {
+
+        final Request request = _requestsThreadLocal.get();
+
+        if ( request == null ) {
+            throw new RuntimeException( "There's no request set, this indicates that this findSession" +
+                    "was triggered by the container which should already be handled in findSession." );
+        }
+
+        if ( isLockRequested( request ) ) {
+            if ( _log.isDebugEnabled() ) {
+                _log.debug( "Lock requested by application for request " + SessionTrackerValve.getURIWithQueryString( request ) );
+            }
+            return lock( sessionId );
+        }
+
+        _stats.nonStickySessionsReadOnlyRequest();
+        return LockStatus.LOCK_NOT_REQUIRED;
+
+    }
+
+    private static boolean isLockRequested( @Nonnull final Request request ) {
+        final Object value = request.getAttribute( LOCK_SESSION_ATTRIBUTE );
+        return Boolean.TRUE.equals( value ) || "true".equals( value );
+    }
+
+}
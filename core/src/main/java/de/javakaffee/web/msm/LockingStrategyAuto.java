@@ -21,6 +21,7 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nonnull;
 
@@ -35,7 +36,9 @@ import de.javakaffee.web.msm.SessionTrackerValve.SessionBackupService.BackupResu
 
 /**
  * This locking strategy locks all requests except those that are registed (via autodetection)
- * to access the session only readonly.
+ * to access the session only readonly. Requests are identified by the normalized request uri and
+ * query string (see {@link RequestIdNormalizer}), when a request is regarded as readonly is determined
+ * by the {@link ReadOnlyRequestsCache}.
  *
  * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
  */
@@ -43,15 +46,20 @@ public class LockingStrategyAuto extends LockingStrategy {
 
     private final ExecutorService _requestPatternDetectionExecutor;
     private final ReadOnlyRequestsCache _readOnlyRequestCache;
+    private final RequestIdNormalizer _requestIdNormalizer;
 
     public LockingStrategyAuto( @Nonnull final MemcachedSessionService manager,
             @Nonnull final MemcachedClient memcached,
-            @Nonnull final LRUCache<String, Boolean> missingSessionsCache,
+            @Nonnull final ConcurrentLRUCache<String, Boolean> missingSessionsCache,
             final boolean storeSecondaryBackup,
             @Nonnull final Statistics stats ) {
         super( manager, memcached, missingSessionsCache, storeSecondaryBackup, stats );
         _requestPatternDetectionExecutor = Executors.newSingleThreadExecutor();
-        _readOnlyRequestCache = new ReadOnlyRequestsCache();
+        _readOnlyRequestCache = new ReadOnlyRequestsCache( manager.getAutoLockingMinReadOnlyObservations(),
+                manager.getAutoLockingReadOnlyConfidence(),
+                manager.getAutoLockingDecayHalfLife() > 0 ? TimeUnit.SECONDS.toMillis( manager.getAutoLockingDecayHalfLife() ) : -1 );
+        _requestIdNormalizer = new RequestIdNormalizer( manager.isAutoLockingNormalizeIds(),
+                manager.getAutoLockingIgnoredParameters() );
     }
 
     @Override
@@ -64,33 +72,35 @@ public class LockingStrategyAuto extends LockingStrategy {
 
         super.onBackupWithoutLoadedSession( sessionId, requestId, backupSessionService );
 
-        _readOnlyRequestCache.readOnlyRequest( requestId );
+        _readOnlyRequestCache.readOnlyRequest( _requestIdNormalizer.normalize( requestId ) );
     }
 
     @Override
     protected void onAfterBackupSession( final MemcachedBackupSession session, final boolean backupWasForced,
             final Future<BackupResult> result,
             final String requestId,
-            final BackupSessionService backupSessionService ) {
+            final BackupSessionService backupSessionService,
+            final WriteFanOut writes ) {
 
         if ( !_sessionIdFormat.isValid( session.getIdInternal() ) ) {
             return;
         }
 
-        super.onAfterBackupSession( session, backupWasForced, result, requestId, backupSessionService );
+        super.onAfterBackupSession( session, backupWasForced, result, requestId, backupSessionService, writes );
 
         final Callable<Void> task = new Callable<Void>() {
 
             @Override
             public Void call() {
+                final String normalizedRequestId = _requestIdNormalizer.normalize( requestId );
                 try {
                     if ( result.get().getStatus() == BackupResultStatus.SKIPPED ) {
-                        _readOnlyRequestCache.readOnlyRequest( requestId );
+                        _readOnlyRequestCache.readOnlyRequest( normalizedRequestId );
                     } else {
-                        _readOnlyRequestCache.modifyingRequest( requestId );
+                        _readOnlyRequestCache.modifyingRequest( normalizedRequestId );
                     }
                 } catch ( final Exception e ) {
-                    _readOnlyRequestCache.modifyingRequest( requestId );
+                    _readOnlyRequestCache.modifyingRequest( normalizedRequestId );
                 }
                 return null;
             }
@@ -121,7 +131,7 @@ public class LockingStrategyAuto extends LockingStrategy {
 
         /* lets see if we can skip the locking as we consider this beeing a readonly request
          */
-        if ( _readOnlyRequestCache.isReadOnlyRequest( SessionTrackerValve.getURIWithQueryString( request ) ) ) {
+        if ( isReadOnlyRequest( request ) ) {
             if ( _log.isDebugEnabled() ) {
                 _log.debug( "Not getting lock for readonly request " + SessionTrackerValve.getURIWithQueryString( request ) );
             }
@@ -133,4 +143,11 @@ public class LockingStrategyAuto extends LockingStrategy {
 
     }
 
+    /**
+     * Determines if the given request was detected to access the session only readonly.
+     */
+    protected boolean isReadOnlyRequest( @Nonnull final Request request ) {
+        return _readOnlyRequestCache.isReadOnlyRequest( SessionTrackerValve.getURIWithQueryStringHash( request, _requestIdNormalizer ) );
+    }
+
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import net.spy.memcached.MemcachedClient;
+
+import org.apache.catalina.connector.Request;
+
+import de.javakaffee.web.msm.MemcachedSessionService.LockStatus;
+
+/**
+ * This locking strategy takes a shared lock for readonly requests and an exclusive lock for all
+ * other requests, so that parallel readonly requests for the same session don't block each other
+ * while requests that modify the session still run exclusively. Readonly requests are the requests
+ * matching the configured uri pattern, or if there's no pattern the requests that were detected to access
+ * the session only readonly (like for the {@link LockingStrategyAuto}).
+ * <p>
+ * A request that acquired the exclusive lock waits until the readers holding a shared lock are finished,
+ * new readers wait while the exclusive lock is held (see {@link #lockShared(String)}).
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class LockingStrategyReadWrite extends LockingStrategyAuto {
+
+    private final Pattern _readOnlyUriPattern;
+
+    public LockingStrategyReadWrite( @Nonnull final MemcachedSessionService manager,
+            @Nullable final Pattern readOnlyUriPattern,
+            @Nonnull final MemcachedClient memcached,
+            @Nonnull final ConcurrentLRUCache<String, Boolean> missingSessionsCache,
+            final boolean storeSecondaryBackup,
+            @Nonnull final Statistics stats ) {
+        super( manager, memcached, missingSessionsCache, storeSecondaryBackup, stats );
+        _readOnlyUriPattern = readOnlyUriPattern;
+    }
+
+    @Override
+    protected LockStatus onBeforeLoadFromMemcached( final String sessionId ) throws InterruptedException,
+            ExecutionException {
+
+        final Request request = _requestsThreadLocal.get();
+
+        if ( request == null ) {
+            throw new RuntimeException( "There's no request set, this indicates that this findSession" +
+                    "was triggered by the container which should already be handled in findSession." );
+        }
+
+        if ( isReadOnlyRequest( request ) ) {
+            if ( _log.isDebugEnabled() ) {
+                _log.debug( "Getting shared lock for readonly request " + SessionTrackerValve.getURIWithQueryString( request ) );
+            }
+            _stats.nonStickySessionsReadOnlyRequest();
+            return lockShared( sessionId );
+        }
+
+        return lock( sessionId );
+
+    }
+
+    @Override
+    protected boolean isReadOnlyRequest( @Nonnull final Request request ) {
+        if ( _readOnlyUriPattern != null ) {
+            return _readOnlyUriPattern.matcher( SessionTrackerValve.getURIWithQueryString( request ) ).matches();
+        }
+        return super.isReadOnlyRequest( request );
+    }
+
+    @Override
+    protected void onLockAcquired( final String sessionId, final long timeout, final long start )
+            throws InterruptedException, TimeoutException {
+        awaitReaders( sessionId, timeout, start );
+    }
+
+}
@@ -39,7 +39,7 @@ public class LockingStrategyUriPattern extends LockingStrategy {
     public LockingStrategyUriPattern( @Nonnull final MemcachedSessionService manager,
             @Nonnull final Pattern uriPattern,
             @Nonnull final MemcachedClient memcached,
-            @Nonnull final LRUCache<String, Boolean> missingSessionsCache,
+            @Nonnull final ConcurrentLRUCache<String, Boolean> missingSessionsCache,
             final boolean storeSecondaryBackup,
             @Nonnull final Statistics stats ) {
         super( manager, memcached, missingSessionsCache, storeSecondaryBackup, stats );
@@ -21,9 +21,16 @@ import java.util.ArrayList;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
+import javax.annotation.CheckForNull;
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpSessionEvent;
+
 import org.apache.catalina.Manager;
+import org.apache.catalina.Session;
 import org.apache.catalina.SessionListener;
 import org.apache.catalina.session.StandardSession;
 
@@ -50,10 +57,29 @@ public class MemcachedBackupSession extends StandardSession {
     private static final long serialVersionUID = 1L;
 
     /*
-     * The hash code of the serialized byte[] of this session that is
+     * The 64 bit hash of the serialized byte[] of this session that is
      * used to determine, if the session was modified.
      */
-    private transient int _dataHashCode;
+    private transient long _dataHash;
+
+    /*
+     * The manifest of the separately stored attributes, if session attributes
+     * are stored separately in memcached.
+     */
+    private transient volatile AttributeManifest _attributeManifest;
+
+    /*
+     * The cached serialized form of single attributes by attribute name, if the
+     * serialized attributes are cached (created on demand). An attribute is removed
+     * when it's accessed, as its value might be modified then.
+     */
+    private transient volatile ConcurrentMap<String, SerializedAttribute> _serializedAttributes;
+
+    /*
+     * The (compressed) data stored in memcached by the last backup, if the serialized attributes are
+     * cached. It's dropped when an attribute is accessed.
+     */
+    private transient volatile byte[] _backupData;
 
     /*
      * Used to determine, if the session was #accessed since it was
@@ -96,6 +122,10 @@ public class MemcachedBackupSession extends StandardSession {
     private transient boolean _sessionIdChanged;
     protected transient boolean _sticky;
     private transient volatile LockStatus _lockStatus;
+    /*
+     * The holder of the local lock, if the lock was acquired via the LocalLockTable.
+     */
+    private transient volatile LocalLockTable.Holder _localLock;
 
     /**
      * Creates a new instance without a given manager. This has to be
@@ -124,6 +154,7 @@ public class MemcachedBackupSession extends StandardSession {
     public Object getAttribute( final String name ) {
         if (filterAttribute(name)) {
             _attributesAccessed = true;
+            invalidateSerializedAttribute( name );
         }
         return super.getAttribute( name );
     }
@@ -135,6 +166,7 @@ public class MemcachedBackupSession extends StandardSession {
     public void setAttribute( final String name, final Object value ) {
         if (filterAttribute(name)) {
             _attributesAccessed = true;
+            invalidateSerializedAttribute( name );
         }
         super.setAttribute( name, value );
     }
@@ -146,6 +178,7 @@ public class MemcachedBackupSession extends StandardSession {
     public void setAttribute( final String name, final Object value, final boolean notify ) {
         if (filterAttribute(name)) {
             _attributesAccessed = true;
+            invalidateSerializedAttribute( name );
         }
         super.setAttribute( name, value, notify );
     }
@@ -154,17 +187,50 @@ public class MemcachedBackupSession extends StandardSession {
     public void removeAttribute(final String name) {
         if (filterAttribute(name)) {
             _attributesAccessed = true;
+            invalidateSerializedAttribute( name );
         }
         super.removeAttribute(name);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Attributes of a session loaded with lazily deserialized attributes (see {@link LazyAttributeMap})
+     * are not deserialized for the activation, they're notified when they're deserialized.
+     * </p>
+     */
+    @Override
+    public void activate() {
+        if ( !( this.attributes instanceof LazyAttributeMap ) ) {
+            super.activate();
+            return;
+        }
+        if ( ACTIVITY_CHECK ) {
+            accessCount = new AtomicInteger();
+        }
+        fireSessionEvent( Session.SESSION_ACTIVATED_EVENT, null );
+        ( (LazyAttributeMap) this.attributes ).activate( new HttpSessionEvent( getSession() ) );
+    }
+
+    private void invalidateSerializedAttribute( final String name ) {
+        _backupData = null;
+        final Map<String, SerializedAttribute> serializedAttributes = _serializedAttributes;
+        if ( serializedAttributes != null && name != null ) {
+            serializedAttributes.remove( name );
+        }
+    }
+
     @Override
     public void recycle() {
         super.recycle();
-        _dataHashCode = 0;
+        _dataHash = 0;
+        _attributeManifest = null;
+        _serializedAttributes = null;
+        _backupData = null;
         _expirationUpdateRunning = false;
         _backupRunning = false;
         _lockStatus = null;
+        _localLock = null;
     }
 
     /**
@@ -367,11 +433,12 @@ public class MemcachedBackupSession extends StandardSession {
     }
 
     /**
-     * Store, if the sessions is just being backuped.
+     * Store, if the sessions is just being backuped. This is synchronized, so that a backup
+     * is not started while the session is relocated (see {@link MemcachedSessionService#relocateFromDrainingNode(MemcachedBackupSession)}).
      *
      * @param backupRunning the backupRunning to set
      */
-    void setBackupRunning( final boolean backupRunning ) {
+    synchronized void setBackupRunning( final boolean backupRunning ) {
         _backupRunning = backupRunning;
     }
 
@@ -421,21 +488,76 @@ public class MemcachedBackupSession extends StandardSession {
     }
 
     /**
-     * The hash code of the serialized byte[] of this sessions attributes that is
+     * The hash (xxHash64) of the serialized byte[] of this sessions attributes that is
      * used to determine, if the session was modified.
-     * @return the hashCode
+     * @return the hash
+     */
+    long getDataHash() {
+        return _dataHash;
+    }
+
+    /**
+     * Set the hash of the serialized session attributes.
+     *
+     * @param attributesDataHash the hash of the serialized byte[] (see {@link HashingOutputStream}).
+     */
+    void setDataHash( final long attributesDataHash ) {
+        _dataHash = attributesDataHash;
+    }
+
+    /**
+     * The data stored in memcached by the last backup, if the serialized attributes are cached
+     * and no attribute was accessed since then. It can be stored again to update the expiration
+     * of the session in memcached (see {@link BackupSessionService#updateExpiration(MemcachedBackupSession)}).
+     * @return the stored data or <code>null</code>.
+     */
+    @CheckForNull
+    byte[] getBackupData() {
+        return _backupData;
+    }
+
+    /**
+     * Set the data stored in memcached by the last backup, see {@link #getBackupData()}.
+     */
+    void setBackupData( @Nullable final byte[] backupData ) {
+        _backupData = backupData;
+    }
+
+    /**
+     * The manifest of the separately stored session attributes, that was
+     * stored in / loaded from memcached.
+     * @return the manifest or <code>null</code> if the attributes were not stored separately.
      */
-    int getDataHashCode() {
-        return _dataHashCode;
+    AttributeManifest getAttributeManifest() {
+        return _attributeManifest;
     }
 
     /**
-     * Set the hash code of the serialized session attributes.
+     * Set the manifest of the separately stored session attributes.
      *
-     * @param attributesDataHashCode the hashCode of the serialized byte[].
+     * @param attributeManifest the manifest that was stored in / loaded from memcached.
      */
-    void setDataHashCode( final int attributesDataHashCode ) {
-        _dataHashCode = attributesDataHashCode;
+    void setAttributeManifest( final AttributeManifest attributeManifest ) {
+        _attributeManifest = attributeManifest;
+    }
+
+    /**
+     * The cached serialized form of this sessions attributes by attribute name, the map is
+     * created on first access. Attributes accessed via {@link #getAttribute(String)},
+     * {@link #setAttribute(String, Object)} or {@link #removeAttribute(String)} are removed
+     * from this cache.
+     */
+    ConcurrentMap<String, SerializedAttribute> getSerializedAttributes() {
+        ConcurrentMap<String, SerializedAttribute> result = _serializedAttributes;
+        if ( result == null ) {
+            synchronized ( this ) {
+                result = _serializedAttributes;
+                if ( result == null ) {
+                    result = _serializedAttributes = new ConcurrentHashMap<String, SerializedAttribute>();
+                }
+            }
+        }
+        return result;
     }
 
     public long getCreationTimeInternal() {
@@ -508,6 +630,10 @@ public class MemcachedBackupSession extends StandardSession {
         if ( pattern == null ) {
             return this.attributes;
         }
+        if ( this.attributes instanceof LazyAttributeMap ) {
+            // attributes that were not accessed must not be deserialized just for filtering
+            return ( (LazyAttributeMap) this.attributes ).filter( pattern );
+        }
         final Map<String, Object> result = new ConcurrentHashMap<String, Object>( this.attributes.size() );
         for ( final Map.Entry<String, Object> entry: (Set<Map.Entry<String, Object>>)this.attributes.entrySet() ) {
             if ( pattern.matcher(entry.getKey()).matches() ) {
@@ -656,11 +782,34 @@ public class MemcachedBackupSession extends StandardSession {
         return _lockStatus == LockStatus.LOCKED;
     }
 
+    /**
+     * Returns if there was a shared lock created in memcached.
+     */
+    public synchronized boolean isLockedShared() {
+        return _lockStatus == LockStatus.LOCKED_SHARED;
+    }
+
+    /**
+     * The holder of the local lock of this session, if the lock was acquired via the {@link LocalLockTable}.
+     */
+    @CheckForNull
+    LocalLockTable.Holder getLocalLock() {
+        return _localLock;
+    }
+
+    /**
+     * Stores the holder of the local lock of this session, that's needed to release the lock.
+     */
+    void setLocalLock( @Nullable final LocalLockTable.Holder localLock ) {
+        _localLock = localLock;
+    }
+
     /**
      * Resets the lock status.
      */
     public void releaseLock() {
         _lockStatus = null;
+        _localLock = null;
     }
 
 }
@@ -18,6 +18,8 @@ package de.javakaffee.web.msm;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -53,7 +55,7 @@ public class MemcachedNodesManager {
 	
 	private static final Log LOG = LogFactory.getLog(MemcachedNodesManager.class);
 
-    private static final String NODE_REGEX = "([\\w]+):([^:]+):([\\d]+)";
+    private static final String NODE_REGEX = "([\\w]+):([^:]+):([\\d]+)(?::([\\d]+))?";
     private static final Pattern NODE_PATTERN = Pattern.compile( NODE_REGEX );
 
     private static final String NODES_REGEX = NODE_REGEX + "(?:(?:\\s+|,)" + NODE_REGEX + ")*";
@@ -69,6 +71,8 @@ public class MemcachedNodesManager {
     private final LinkedHashMap<InetSocketAddress, String> _address2Ids;
     @Nullable
 	private NodeIdService _nodeIdService;
+    @Nullable
+    private NodeAvailabilityCache<String> _nodeAvailabilityCache;
 	private SessionIdFormat _sessionIdFormat;
 	
     /**
@@ -82,6 +86,22 @@ public class MemcachedNodesManager {
 	public MemcachedNodesManager(@Nonnull final NodeIdList primaryNodeIds, @Nonnull final List<String> failoverNodeIds,
 			@Nonnull final LinkedHashMap<InetSocketAddress, String> address2Ids,
 			@Nullable final MemcachedClientCallback memcachedClientCallback) {
+		this(primaryNodeIds, failoverNodeIds, address2Ids, Collections.<String, Integer>emptyMap(), memcachedClientCallback);
+	}
+
+    /**
+     * 
+     * @param primaryNodeIds the list of primary node ids (memcachedNodes without failoverNodes).
+     * @param failoverNodeIds the configured failover node ids.
+     * @param address2Ids a mapping of inet addresses from the memcachedNodes configuration to their node ids.
+     * @param nodeWeights the configured weights of node ids, used for the selection of the node for new sessions.
+     * @param memcachedClientCallback a callback to memcached, can only be null if the memcachedNodes config
+     * 		contains a single node without node id.
+     */
+	public MemcachedNodesManager(@Nonnull final NodeIdList primaryNodeIds, @Nonnull final List<String> failoverNodeIds,
+			@Nonnull final LinkedHashMap<InetSocketAddress, String> address2Ids,
+			@Nonnull final Map<String, Integer> nodeWeights,
+			@Nullable final MemcachedClientCallback memcachedClientCallback) {
 		_primaryNodeIds = primaryNodeIds;
 		_failoverNodeIds = failoverNodeIds;
 		_address2Ids = address2Ids;
@@ -91,8 +111,8 @@ public class MemcachedNodesManager {
 				throw new IllegalArgumentException("The MemcachedClientCallback must not be null.");
 			}
 			_sessionIdFormat = new SessionIdFormat();
-	        _nodeIdService = new NodeIdService( createNodeAvailabilityCache( getCountNodes(), NODE_AVAILABILITY_CACHE_TTL, memcachedClientCallback ),
-	        				primaryNodeIds, failoverNodeIds );
+	        _nodeAvailabilityCache = createNodeAvailabilityCache( getCountNodes(), NODE_AVAILABILITY_CACHE_TTL, memcachedClientCallback );
+	        _nodeIdService = new NodeIdService( _nodeAvailabilityCache, primaryNodeIds, failoverNodeIds, nodeWeights );
 		}
 		else {
 			_sessionIdFormat = new SessionIdFormat() {
@@ -121,6 +141,39 @@ public class MemcachedNodesManager {
 		}
 	}
 
+    /**
+     * Starts checking the availability of all memcached nodes in the background, so that request
+     * threads only read the last known availability of a node and never wait for a node to respond.
+     * The interval is independent of the ttl of the node availability cache, as the availability
+     * of a health checked node doesn't expire.
+     *
+     * @param intervalInMillis the delay between two probes of a node in millis.
+     */
+    public void startHealthChecks( final long intervalInMillis ) {
+        if ( _nodeAvailabilityCache != null ) {
+            final List<String> nodeIds = new ArrayList<String>( _primaryNodeIds );
+            nodeIds.addAll( _failoverNodeIds );
+            _nodeAvailabilityCache.startHealthChecks( nodeIds, intervalInMillis );
+        }
+    }
+
+    /**
+     * Stops the background health checks of the memcached nodes.
+     */
+    public void shutdown() {
+        if ( _nodeAvailabilityCache != null ) {
+            _nodeAvailabilityCache.shutdown();
+        }
+    }
+
+    /**
+     * The time in millis of the last availability check of the given node, or <code>-1</code>
+     * if it's unknown.
+     */
+    public long getProbeLatency( @Nonnull final String nodeId ) {
+        return _nodeAvailabilityCache != null ? _nodeAvailabilityCache.getProbeLatency( nodeId ) : -1;
+    }
+
     protected NodeAvailabilityCache<String> createNodeAvailabilityCache( final int size, final long ttlInMillis,
             @Nonnull final MemcachedClientCallback memcachedClientCallback ) {
         return new NodeAvailabilityCache<String>( size, ttlInMillis, new CacheLoader<String>() {
@@ -151,6 +204,8 @@ public class MemcachedNodesManager {
 	 *  </ul>
 	 * </li>
 	 * </ul>
+	 * A node with node id can have a weight appended (<code>:&lt;weight&gt;</code>, e.g. <code>n1:localhost:11211:2</code>),
+	 * new sessions are then assigned to the nodes in proportion to their weight. The default weight is 1.
 	 * @param memcachedNodes
 	 * @param failoverNodes TODO
 	 * @param memcachedClientCallback TODO
@@ -172,6 +227,7 @@ public class MemcachedNodesManager {
 
         // we have a linked hashmap to have insertion order for addresses
         final LinkedHashMap<InetSocketAddress, String> address2Ids = new LinkedHashMap<InetSocketAddress, String>(1);
+        final Map<String, Integer> nodeWeights = new HashMap<String, Integer>();
 
         /**
          * If mutliple nodes are configured
@@ -183,6 +239,13 @@ public class MemcachedNodesManager {
             while (matcher.find()) {
                 final Pair<String, InetSocketAddress> nodeInfo = getRegularNodeDefinition(matcher);
                 address2Ids.put(nodeInfo.getSecond(), nodeInfo.getFirst());
+                if ( matcher.group( 4 ) != null ) {
+                    final int weight = Integer.parseInt( matcher.group( 4 ) );
+                    if ( weight < 1 ) {
+                        throw new IllegalArgumentException( "Invalid weight " + weight + " of node " + nodeInfo.getFirst() + ", must be at least 1." );
+                    }
+                    nodeWeights.put( nodeInfo.getFirst(), weight );
+                }
             }
             if (address2Ids.isEmpty()) {
                 throw new IllegalArgumentException("All nodes are also configured as failover nodes,"
@@ -205,7 +268,7 @@ public class MemcachedNodesManager {
 	        }
         }
 		
-		return new MemcachedNodesManager(primaryNodeIds, failoverNodeIds, address2Ids, memcachedClientCallback);
+		return new MemcachedNodesManager(primaryNodeIds, failoverNodeIds, address2Ids, nodeWeights, memcachedClientCallback);
 	}
 
     private static InetSocketAddress getSingleShortNodeDefinition(final Matcher singleNodeMatcher) {
@@ -381,24 +444,111 @@ public class MemcachedNodesManager {
 		return true;
 	}
 
-	public void onLoadFromMemcachedSuccess(final String sessionId) {
-		setNodeAvailableForSessionId(sessionId, true);
+	public void onLoadFromMemcachedSuccess(final String sessionId, final long durationInMillis) {
+		final String nodeId = getNodeIdForSessionId(sessionId);
+		if ( nodeId != null ) {
+			_nodeIdService.setNodeAvailable(nodeId, true);
+			_nodeIdService.recordSuccess(nodeId, durationInMillis);
+		}
 	}
 
 	public void onLoadFromMemcachedFailure(final String sessionId) {
-		setNodeAvailableForSessionId(sessionId, false);
+		recordFailure(sessionId);
 	}
 
-	private void setNodeAvailableForSessionId(final String sessionId, final boolean available) {
+    /**
+     * Records a successful operation on the memcached node of the given session id for the
+     * circuit breaker of the node.
+     * @param sessionId the session id that identifies the memcached node.
+     * @param durationInMillis the duration of the operation.
+     */
+    public void recordSuccess( @Nonnull final String sessionId, final long durationInMillis ) {
+        final String nodeId = getNodeIdForSessionId( sessionId );
+        if ( nodeId != null ) {
+            _nodeIdService.recordSuccess( nodeId, durationInMillis );
+        }
+    }
+
+    /**
+     * Records a failed operation on the memcached node of the given session id for the
+     * circuit breaker of the node. If the failure rate of the node is too high, the node is
+     * not used until its circuit breaker is closed again.
+     * @param sessionId the session id that identifies the memcached node.
+     */
+    public void recordFailure( @Nonnull final String sessionId ) {
+        final String nodeId = getNodeIdForSessionId( sessionId );
+        if ( nodeId != null ) {
+            _nodeIdService.recordFailure( nodeId );
+        }
+    }
+
+    /**
+     * Sets the memcached nodes that are drained, unknown node ids are ignored.
+     * @see NodeIdService#setDrainingNodeIds(Collection)
+     */
+    public void setDrainingNodeIds( @Nonnull final Collection<String> drainingNodeIds ) {
+        if ( _nodeIdService == null ) {
+            return;
+        }
+        final List<String> nodeIds = new ArrayList<String>();
+        for ( final String nodeId : drainingNodeIds ) {
+            if ( _primaryNodeIds.contains( nodeId ) || _failoverNodeIds.contains( nodeId ) ) {
+                nodeIds.add( nodeId );
+            }
+            else {
+                LOG.info( "Ignoring unknown draining node " + nodeId + "." );
+            }
+        }
+        _nodeIdService.setDrainingNodeIds( nodeIds );
+    }
+
+    /**
+     * Determines if the given node is drained.
+     */
+    public boolean isNodeDraining( @Nonnull final String nodeId ) {
+        return _nodeIdService != null && _nodeIdService.isNodeDraining( nodeId );
+    }
+
+    /**
+     * Determines if the memcached node of the given session id is drained.
+     */
+    public boolean isSessionOnDrainingNode( @Nonnull final String sessionId ) {
+        if ( _nodeIdService == null || !isEncodeNodeIdInSessionId() ) {
+            return false;
+        }
+        final String nodeId = _sessionIdFormat.extractMemcachedId( sessionId );
+        return nodeId != null && _nodeIdService.isNodeDraining( nodeId );
+    }
+
+    /**
+     * Specifies if the selection of the memcached node for a new session shall take the latency
+     * of the nodes into account.
+     * @see NodeIdService#setLatencyAware(boolean)
+     */
+    public void setLatencyAwareNodeSelection( final boolean latencyAwareNodeSelection ) {
+        if ( _nodeIdService != null ) {
+            _nodeIdService.setLatencyAware( latencyAwareNodeSelection );
+        }
+    }
+
+    /**
+     * The state of the circuit breakers of all memcached nodes, one entry per node.
+     */
+    @Nonnull
+    public String[] getCircuitBreakerInfo() {
+        return _nodeIdService != null ? _nodeIdService.getCircuitBreakerInfo() : new String[0];
+    }
+
+	@CheckForNull
+	private String getNodeIdForSessionId(final String sessionId) {
 		if ( _nodeIdService != null && isEncodeNodeIdInSessionId() ) {
 			final String nodeId = _sessionIdFormat.extractMemcachedId(sessionId);
-			if ( nodeId != null ) {
-				_nodeIdService.setNodeAvailable(nodeId, available);
-			}
-			else {
+			if ( nodeId == null ) {
 				LOG.warn("Got sessionId without nodeId: " + sessionId);
 			}
+			return nodeId;
 		}
+		return null;
 	}
 
     /**
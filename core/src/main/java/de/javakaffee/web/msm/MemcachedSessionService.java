@@ -17,16 +17,25 @@
 package de.javakaffee.web.msm;
 
 
+import static de.javakaffee.web.msm.SessionValidityInfo.createValidityInfoKeyName;
 import static de.javakaffee.web.msm.Statistics.StatsType.DELETE_FROM_MEMCACHED;
 import static de.javakaffee.web.msm.Statistics.StatsType.LOAD_FROM_MEMCACHED;
+import static de.javakaffee.web.msm.Statistics.StatsType.LOAD_FROM_NEAR_CACHE;
 import static de.javakaffee.web.msm.Statistics.StatsType.SESSION_DESERIALIZATION;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.security.Principal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
@@ -53,9 +62,11 @@ import org.apache.juli.logging.LogFactory;
 
 import de.javakaffee.web.msm.BackupSessionService.SimpleFuture;
 import de.javakaffee.web.msm.BackupSessionTask.BackupResult;
+import de.javakaffee.web.msm.BoundedBackupExecutor.OverflowPolicy;
 import de.javakaffee.web.msm.LockingStrategy.LockingMode;
 import de.javakaffee.web.msm.MemcachedNodesManager.MemcachedClientCallback;
 import de.javakaffee.web.msm.SessionTrackerValve.SessionBackupService;
+import de.javakaffee.web.msm.SessionTrackerValve.SessionBackupService.BackupResultStatus;
 
 /**
  * This is the core of memcached session manager, managing sessions in memcached.
@@ -77,6 +88,11 @@ public class MemcachedSessionService implements SessionBackupService {
          */
         LOCK_NOT_REQUIRED,
         LOCKED,
+        /**
+         * A shared lock for a readonly request (lockingMode <code>readWrite</code>), other readonly
+         * requests may hold the shared lock at the same time.
+         */
+        LOCKED_SHARED,
         COULD_NOT_AQUIRE_LOCK
     }
 
@@ -85,6 +101,38 @@ public class MemcachedSessionService implements SessionBackupService {
 
     protected static final String NODE_FAILURE = "node.failure";
 
+    /**
+     * The number of batches of sessions whose expiration is updated concurrently.
+     */
+    private static final int EXPIRATION_UPDATE_CONCURRENT_BATCHES = 2;
+
+    /**
+     * The maximum number of sessions whose expiration is updated in one batch.
+     */
+    private static final int EXPIRATION_UPDATE_BATCH_SIZE = 100;
+
+    /**
+     * The default maximum number of sessions relocated per second from draining memcached nodes.
+     */
+    private static final int DEFAULT_DRAIN_RATE = 50;
+
+    /**
+     * The time in millis a session must not have been accessed, so that it's relocated from a draining
+     * memcached node in the background. Sessions accessed more recently are relocated by their next request.
+     */
+    private static final long DRAIN_MIN_IDLE_TIME = 5000;
+
+    /**
+     * The maximum number of former session ids of drained sessions that are mapped to the new session ids,
+     * if it's reached sessions are not drained until mappings expired.
+     */
+    private static final int DRAINED_SESSION_IDS_SIZE = 10000;
+
+    /**
+     * The default interval in millis of the background health checks of the memcached nodes.
+     */
+    private static final long DEFAULT_NODE_HEALTH_CHECK_INTERVAL = 1000;
+
     protected final Log _log = LogFactory.getLog( getClass() );
 
     // -------------------- configuration properties --------------------
@@ -103,6 +151,19 @@ public class MemcachedSessionService implements SessionBackupService {
      */
     private String _failoverNodes;
 
+    /**
+     * Specifies if the memcached node of a new session is selected based on the latency of the nodes.
+     */
+    private boolean _latencyAwareNodeSelection;
+
+    /**
+     * The ids of memcached nodes that are drained separated by space or comma, e.g.
+     * <code>n1 n2</code>
+     */
+    private String _drainingNodes;
+
+    private int _drainRate = DEFAULT_DRAIN_RATE;
+
     /**
      * The pattern used for excluding requests from a session-backup, e.g.
      * <code>.*\.(png|gif|jpg|css|js)$</code>. Is matched against
@@ -180,6 +241,53 @@ public class MemcachedSessionService implements SessionBackupService {
 
     private int _backupThreadCount = Runtime.getRuntime().availableProcessors();
 
+    /**
+     * The maximum number of session backups waiting for execution if session backup
+     * is done asynchronously, default is <code>1000</code>.
+     */
+    private int _backupQueueCapacity = 1000;
+
+    /**
+     * Determines what happens with a session backup if the backup queue is full,
+     * one of <code>callerRuns</code> (default), <code>discardOldest</code> or <code>skip</code>.
+     */
+    private OverflowPolicy _backupQueueOverflowPolicy = OverflowPolicy.CALLER_RUNS;
+
+    /**
+     * Specifies if each session attribute is stored in its own memcached item, so that
+     * only modified attributes need to be written. Only supported for sticky sessions,
+     * default is <code>false</code>.
+     */
+    private boolean _storeAttributesSeparately = false;
+
+    /**
+     * Specifies if the serialized form of each session attribute is cached by the session,
+     * so that only accessed attributes need to be serialized for a backup. Default is <code>false</code>.
+     */
+    private boolean _cacheSerializedAttributes = false;
+
+    /**
+     * The codec used to compress session data, default is <code>none</code>.
+     */
+    private CompressionCodec _compression = CompressionCodec.NONE;
+
+    /**
+     * The minimum size (in bytes) of session data that's compressed.
+     */
+    private int _compressionMinSize = 1024;
+
+    /**
+     * Specifies if session data may be written in formats that older versions of
+     * memcached-session-manager cannot read, default is <code>false</code>.
+     */
+    private boolean _extendedSessionFormat = false;
+
+    /**
+     * The maximum number of sessions in the near cache of non-sticky sessions,
+     * <code>0</code> disables the near cache.
+     */
+    private int _nearCacheMaxSize = 0;
+
     private String _memcachedProtocol = PROTOCOL_TEXT;
 
     private final AtomicBoolean _enabled = new AtomicBoolean( true );
@@ -198,10 +306,10 @@ public class MemcachedSessionService implements SessionBackupService {
      * that we don't have locally stored each findSession invocation would
      * trigger a memcached request - this would open the door for DOS attacks...
      *
-     * this solution: use a LRUCache with a timeout to store, which session had
+     * this solution: use a ConcurrentLRUCache with a timeout to store, which session had
      * been requested in the last <n> millis.
      */
-    private LRUCache<String, Boolean> _missingSessionsCache;
+    private ConcurrentLRUCache<String, Boolean> _missingSessionsCache;
 
 	private MemcachedNodesManager _memcachedNodesManager;
 
@@ -213,10 +321,43 @@ public class MemcachedSessionService implements SessionBackupService {
 
     private BackupSessionService _backupSessionService;
 
+    private ExpirationUpdater _expirationUpdater;
+
+    private SessionDrainer _sessionDrainer;
+
+    /*
+     * The former session ids of sessions relocated by the SessionDrainer mapped to their new session ids.
+     */
+    private LRUCache<String, String> _drainedSessionIds;
+
+    /*
+     * Relocated sessions that are deleted from the draining node when their backup finished.
+     */
+    private final Queue<RelocatedSession> _relocatedSessions = new ConcurrentLinkedQueue<RelocatedSession>();
+
+    private SessionNearCache _nearCache;
+
+    private InFlightSessionLoads _inFlightLoads;
+
+    private int _lockLeaseTime = LockingStrategy.LOCK_EXPIRATION;
+
+    private long _nodeHealthCheckInterval = DEFAULT_NODE_HEALTH_CHECK_INTERVAL;
+    private LocalLockTable _localLocks = new LocalLockTable( _lockLeaseTime, LockingStrategy.LOCK_MAX_HOLD_TIME,
+            LockingStrategy.LOCK_OPERATION_TIMEOUT );
+
     private boolean _sticky = true;
     private String _lockingMode;
     private LockingStrategy _lockingStrategy;
 
+    /*
+     * Settings for the lockingMode "auto", see the setters for details.
+     */
+    private boolean _autoLockingNormalizeIds;
+    private String _autoLockingIgnoredParameters;
+    private int _autoLockingMinReadOnlyObservations = 1;
+    private int _autoLockingReadOnlyConfidence = 100;
+    private int _autoLockingDecayHalfLife = -1;
+
     private SessionTrackerValve _sessionTrackerValve;
 
     private final SessionManager _manager;
@@ -337,9 +478,19 @@ public class MemcachedSessionService implements SessionBackupService {
     public void shutdown() {
         _log.info( "Stopping services." );
         _backupSessionService.shutdown();
+        if ( _expirationUpdater != null ) {
+            _expirationUpdater.shutdown();
+        }
+        if ( _sessionDrainer != null ) {
+            _sessionDrainer.shutdown();
+        }
         if ( _lockingStrategy != null ) {
             _lockingStrategy.shutdown();
         }
+        _localLocks.shutdown();
+        if ( _memcachedNodesManager != null ) {
+            _memcachedNodesManager.shutdown();
+        }
         if ( _memcached != null ) {
             _memcached.shutdown();
         }
@@ -361,20 +512,57 @@ public class MemcachedSessionService implements SessionBackupService {
         _memcachedNodesManager = createMemcachedNodesManager( _memcachedNodes, _failoverNodes);
 
         _memcached = memcachedClient != null ? memcachedClient : createMemcachedClient( _memcachedNodesManager, _statistics );
+        /* a provided (test) memcached client is not pinged in the background, neither
+         * if msm is disabled: node availability is then loaded on demand
+         */
+        if ( memcachedClient == null && _memcached != null ) {
+            _memcachedNodesManager.startHealthChecks( _nodeHealthCheckInterval );
+        }
 
         /* create the missing sessions cache
          */
-        _missingSessionsCache = new LRUCache<String, Boolean>( 200, 500 );
+        _missingSessionsCache = new ConcurrentLRUCache<String, Boolean>( 200, 500 );
+
+        _nearCache = _nearCacheMaxSize > 0 ? new SessionNearCache( _nearCacheMaxSize ) : null;
+
+        _inFlightLoads = new InFlightSessionLoads( _statistics );
 
         _sessionTrackerValve = _manager.createSessionTrackerValve( _requestUriIgnorePattern,  _statistics, _enabled );
         _manager.getContainer().getPipeline().addValve( _sessionTrackerValve );
 
+        _localLocks.shutdown();
+        _localLocks = new LocalLockTable( _lockLeaseTime, LockingStrategy.LOCK_MAX_HOLD_TIME,
+                LockingStrategy.LOCK_OPERATION_TIMEOUT );
+
         initNonStickyLockingMode( _memcachedNodesManager );
 
         _transcoderService = createTranscoderService( _statistics );
 
-        _backupSessionService = new BackupSessionService( _transcoderService, _sessionBackupAsync, _sessionBackupTimeout,
-                _backupThreadCount, _memcached, _memcachedNodesManager, _statistics );
+        if ( _storeAttributesSeparately && !_sticky ) {
+            _log.warn( "storeAttributesSeparately is only supported for sticky sessions, it's ignored in non-sticky mode." );
+        }
+        if ( !_extendedSessionFormat && ( _compression != CompressionCodec.NONE || _cacheSerializedAttributes ) ) {
+            _log.info( "extendedSessionFormat is disabled, sessions are neither compressed nor stored with separately serialized attributes." );
+        }
+
+        _backupSessionService = createBackupSessionService( _transcoderService, _memcached, _memcachedNodesManager );
+
+        if ( _expirationUpdater != null ) {
+            _expirationUpdater.shutdown();
+        }
+        _expirationUpdater = new ExpirationUpdater( EXPIRATION_UPDATE_CONCURRENT_BATCHES, EXPIRATION_UPDATE_BATCH_SIZE, _statistics );
+
+        /* a former session id is needed until the session would have expired without the request
+         * that gets the new session id
+         */
+        _drainedSessionIds = new LRUCache<String, String>( DRAINED_SESSION_IDS_SIZE, _manager.getMaxInactiveInterval() > 0
+            ? TimeUnit.SECONDS.toMillis( _manager.getMaxInactiveInterval() )
+            : -1 );
+        if ( _sessionDrainer != null ) {
+            _sessionDrainer.shutdown();
+        }
+        _sessionDrainer = new SessionDrainer( _drainRate, createSessionDrainerCallback() );
+        startDraining();
 
         _log.info( getClass().getSimpleName() + " finished initialization, sticky "+ _sticky +", with node ids " +
         		_memcachedNodesManager.getPrimaryNodeIds() + " and failover node ids " + _memcachedNodesManager.getFailoverNodeIds() );
@@ -391,11 +579,142 @@ public class MemcachedSessionService implements SessionBackupService {
 	}
 
     protected MemcachedNodesManager createMemcachedNodesManager(final String memcachedNodes, final String failoverNodes) {
-		return MemcachedNodesManager.createFor( memcachedNodes, failoverNodes, _memcachedClientCallback );
+		final MemcachedNodesManager result = MemcachedNodesManager.createFor( memcachedNodes, failoverNodes, _memcachedClientCallback );
+		result.setLatencyAwareNodeSelection( _latencyAwareNodeSelection );
+		result.setDrainingNodeIds( parseNodeIds( _drainingNodes ) );
+		return result;
 	}
 
+    @Nonnull
+    private static List<String> parseNodeIds( @Nullable final String nodeIds ) {
+        final List<String> result = new ArrayList<String>();
+        if ( nodeIds != null ) {
+            for ( final String nodeId : nodeIds.split( " |," ) ) {
+                if ( nodeId.trim().length() > 0 ) {
+                    result.add( nodeId.trim() );
+                }
+            }
+        }
+        return result;
+    }
+
+    private SessionDrainer.Callback createSessionDrainerCallback() {
+        return new SessionDrainer.Callback() {
+            @Override
+            public Collection<MemcachedBackupSession> getSessionsToDrain() {
+                final List<MemcachedBackupSession> result = new ArrayList<MemcachedBackupSession>();
+                if ( !_enabled.get() ) {
+                    return result;
+                }
+                for ( final Session s : _manager.findSessions() ) {
+                    final MemcachedBackupSession session = (MemcachedBackupSession) s;
+                    if ( session.isValidInternal() && _memcachedNodesManager.isSessionOnDrainingNode( session.getIdInternal() ) ) {
+                        result.add( session );
+                    }
+                }
+                return result;
+            }
+
+            @Override
+            public boolean relocate( final MemcachedBackupSession session ) {
+                return relocateFromDrainingNode( session );
+            }
+
+            @Override
+            public boolean completeRelocations() {
+                return deleteRelocatedSessions();
+            }
+        };
+    }
+
+    /**
+     * Starts relocating the sessions stored in draining memcached nodes in the background,
+     * this is only done for sticky sessions as non-sticky sessions are not kept locally.
+     */
+    private void startDraining() {
+        if ( _sticky && _sessionDrainer != null && !parseNodeIds( _drainingNodes ).isEmpty() ) {
+            _sessionDrainer.start();
+        }
+    }
+
+    /**
+     * Relocates the given session from its draining memcached node to another node: the session
+     * gets a new id and is stored in memcached with the new id. The next request with the former
+     * session id gets the new id (see {@link #changeSessionIdOnMemcachedFailover(String)}).
+     * Sessions that were accessed recently or whose backup is running are skipped, they're
+     * relocated by their next request or by a later run of the {@link SessionDrainer}.
+     * The session is checked and gets its new id with the session monitor held, so that a concurrent
+     * request or backup (see {@link MemcachedBackupSession#setBackupRunning(boolean)}) sees either the
+     * former or the new id. The backup with the new id is not awaited, when it succeeded the session
+     * is deleted from the draining node by {@link #deleteRelocatedSessions()}, so that the outdated session
+     * can't be loaded with the former id.
+     *
+     * @return <code>true</code> if the session was relocated.
+     */
+    boolean relocateFromDrainingNode( @Nonnull final MemcachedBackupSession session ) {
+        final String sessionId;
+        final String newSessionId;
+        final AttributeManifest manifest;
+        synchronized ( session ) {
+            if ( !session.isValidInternal() || session.isBackupRunning()
+                    || System.currentTimeMillis() - session.getThisAccessedTimeInternal() < DRAIN_MIN_IDLE_TIME
+                    /* the former id must be mapped until it expires, otherwise a request
+                     * with the former id would not find the session
+                     */
+                    || _drainedSessionIds.size() >= DRAINED_SESSION_IDS_SIZE ) {
+                return false;
+            }
+            sessionId = session.getIdInternal();
+            newSessionId = _memcachedNodesManager.getNewSessionIdIfNodeFromSessionIdUnavailable( sessionId );
+            if ( newSessionId == null ) {
+                return false;
+            }
+            _log.debug( "Relocating session " + sessionId + " from draining node, setting new id " + newSessionId + " on session..." );
+            _drainedSessionIds.put( sessionId, newSessionId );
+            // the manifest still references the attributes stored with the former id
+            manifest = session.getAttributeManifest();
+            session.setIdForRelocate( newSessionId );
+        }
+        final Future<BackupResult> result = backupSession( newSessionId, true, null );
+        _relocatedSessions.add( new RelocatedSession( sessionId, newSessionId, manifest, result ) );
+        _statistics.sessionDrained();
+        return true;
+    }
+
+    /**
+     * Deletes the relocated sessions whose backup with the new id finished from the draining node
+     * (including their separately stored attributes).
+     *
+     * @return <code>true</code> if there are relocated sessions whose backup is still running.
+     */
+    boolean deleteRelocatedSessions() {
+        for ( final Iterator<RelocatedSession> iter = _relocatedSessions.iterator(); iter.hasNext(); ) {
+            final RelocatedSession relocated = iter.next();
+            if ( !relocated._backupResult.isDone() ) {
+                continue;
+            }
+            iter.remove();
+            try {
+                if ( relocated._backupResult.get().getStatus() == BackupResultStatus.SUCCESS ) {
+                    deleteFromMemcached( relocated._sessionId, relocated._manifest );
+                }
+                else {
+                    _log.info( "Could not store drained session " + relocated._newSessionId + ", not deleting it from the draining node with id " + relocated._sessionId );
+                }
+            } catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            } catch ( final Exception e ) {
+                _log.info( "Could not store drained session " + relocated._newSessionId + ", not deleting it from the draining node with id " + relocated._sessionId, e );
+            }
+        }
+        return !_relocatedSessions.isEmpty();
+    }
+
     private TranscoderService createTranscoderService( final Statistics statistics ) {
-        return new TranscoderService( getTranscoderFactory().createTranscoder( _manager ) );
+        final TranscoderService result = new TranscoderService( getTranscoderFactory().createTranscoder( _manager ), statistics );
+        result.setCompression( _compression, _compressionMinSize );
+        result.setExtendedSessionFormat( _extendedSessionFormat );
+        return result;
     }
 
     protected TranscoderFactory getTranscoderFactory() {
@@ -494,22 +813,48 @@ public class MemcachedSessionService implements SessionBackupService {
                 return null;
             }
 
+            // When the sessionId will be changed later in changeSessionIdOnTomcatFailover/handleSessionTakeOver
+            // (due to a tomcat failover) we don't want to notify listeners via session.activate for the
+            // old sessionId but do that later (in handleSessionTakeOver)
+            // See also http://code.google.com/p/memcached-session-manager/issues/detail?id=92
+            String jvmRoute;
+            final boolean sessionIdWillBeChanged = _sticky && ( jvmRoute = _manager.getJvmRoute() ) != null
+                && !jvmRoute.equals( getSessionIdFormat().extractJvmRoute( id ) );
+
             // else load the session from memcached
-            result = loadFromMemcached( id );
-            // checking valid() would expire() the session if it's not valid!
-            if ( result != null && result.isValid() ) {
-
-                // When the sessionId will be changed later in changeSessionIdOnTomcatFailover/handleSessionTakeOver
-                // (due to a tomcat failover) we don't want to notify listeners via session.activate for the
-                // old sessionId but do that later (in handleSessionTakeOver)
-                // See also http://code.google.com/p/memcached-session-manager/issues/detail?id=92
-                String jvmRoute;
-                final boolean sessionIdWillBeChanged = _sticky && ( jvmRoute = _manager.getJvmRoute() ) != null
-                    && !jvmRoute.equals( getSessionIdFormat().extractJvmRoute( id ) );
-
-                final boolean activate = !sessionIdWillBeChanged;
-                addValidLoadedSession( result, activate );
+            result = loadAndAddValidSession( id, !sessionIdWillBeChanged );
+        }
+        return result;
+    }
+
+    /**
+     * Loads the session from memcached and adds it to the manager if it's valid. In sticky mode, if the
+     * session is already loaded by a concurrent request, this load is awaited and its result is returned
+     * (see {@link InFlightSessionLoads}), so that the session is loaded and added only once.
+     * <p>
+     * In non-sticky mode each request loads the session on its own, as each request acquires the lock
+     * it needs and gets its own session instance.
+     * </p>
+     */
+    @CheckForNull
+    private MemcachedBackupSession loadAndAddValidSession( @Nonnull final String sessionId, final boolean activate ) {
+        if ( !_sticky ) {
+            return loadAndAddValidSessionInternal( sessionId, activate );
+        }
+        return _inFlightLoads.load( sessionId, new Callable<MemcachedBackupSession>() {
+            @Override
+            public MemcachedBackupSession call() {
+                return loadAndAddValidSessionInternal( sessionId, activate );
             }
+        } );
+    }
+
+    @CheckForNull
+    private MemcachedBackupSession loadAndAddValidSessionInternal( @Nonnull final String sessionId, final boolean activate ) {
+        final MemcachedBackupSession result = loadFromMemcachedWithCheck( sessionId );
+        // checking valid() would expire() the session if it's not valid!
+        if ( result != null && result.isValid() ) {
+            addValidLoadedSession( result, activate );
         }
         return result;
     }
@@ -551,11 +896,7 @@ public class MemcachedSessionService implements SessionBackupService {
         MemcachedBackupSession session = null;
 
         if ( sessionId != null ) {
-            session = loadFromMemcachedWithCheck( sessionId );
-            // checking valid() would expire() the session if it's not valid!
-            if ( session != null && session.isValid() ) {
-                addValidLoadedSession( session, true );
-            }
+            session = loadAndAddValidSession( sessionId, true );
         }
 
         if ( session == null ) {
@@ -658,13 +999,32 @@ public class MemcachedSessionService implements SessionBackupService {
     }
 
     protected void deleteFromMemcached(final String sessionId) {
+        if ( _enabled.get() && _memcachedNodesManager.isValidForMemcached( sessionId ) ) {
+            final MemcachedBackupSession session = _manager.getSessionInternal( sessionId );
+            deleteFromMemcached( sessionId, session != null ? session.getAttributeManifest() : null );
+        }
+    }
+
+    /**
+     * Deletes the session with the given id and the attributes referenced by the given manifest
+     * from memcached. Without a manifest separately stored attributes just expire in memcached.
+     */
+    private void deleteFromMemcached( @Nonnull final String sessionId, @Nullable final AttributeManifest manifest ) {
         if ( _enabled.get() && _memcachedNodesManager.isValidForMemcached( sessionId ) ) {
             if ( _log.isDebugEnabled() ) {
                 _log.debug( "Deleting session from memcached: " + sessionId );
             }
             try {
                 final long start = System.currentTimeMillis();
+                if ( _nearCache != null ) {
+                    _nearCache.remove( sessionId );
+                }
                 _memcached.delete( sessionId );
+                if ( manifest != null ) {
+                    for ( final String key : manifest.getKeys() ) {
+                        _memcached.delete( key );
+                    }
+                }
                 _statistics.registerSince( DELETE_FROM_MEMCACHED, start );
                 if ( !_sticky ) {
                     _lockingStrategy.onAfterDeleteFromMemcached( sessionId );
@@ -693,13 +1053,32 @@ public class MemcachedSessionService implements SessionBackupService {
                  */
                 final MemcachedBackupSession session = _manager.getSessionInternal( requestedSessionId );
 
-                if ( session != null && session.isValid() ) {
-                	final String newSessionId = _memcachedNodesManager.getNewSessionIdIfNodeFromSessionIdUnavailable( session.getId() );
-                    if ( newSessionId != null ) {
-                        _log.debug( "Session needs to be relocated, setting new id on session..." );
-                        session.setIdForRelocate( newSessionId );
+                if ( session == null ) {
+                    // not removed, parallel requests with the former id need the new id as well
+                    final String drainedSessionId = _drainedSessionIds.get( requestedSessionId );
+                    final MemcachedBackupSession drainedSession = drainedSessionId != null
+                        ? _manager.getSessionInternal( drainedSessionId )
+                        : null;
+                    if ( drainedSession != null && drainedSession.isValid() ) {
+                        _log.debug( "Session " + requestedSessionId + " was relocated from a draining node to " + drainedSessionId );
                         _statistics.requestWithMemcachedFailover();
-                        return newSessionId;
+                        return drainedSessionId;
+                    }
+                }
+                else if ( session.isValid() ) {
+                    // synchronized like the relocation by the SessionDrainer (relocateFromDrainingNode)
+                    synchronized ( session ) {
+                        if ( !requestedSessionId.equals( session.getIdInternal() ) ) {
+                            _log.debug( "Session " + requestedSessionId + " was relocated meanwhile to " + session.getIdInternal() );
+                            return session.getIdInternal();
+                        }
+                        final String newSessionId = _memcachedNodesManager.getNewSessionIdIfNodeFromSessionIdUnavailable( session.getId() );
+                        if ( newSessionId != null ) {
+                            _log.debug( "Session needs to be relocated, setting new id on session..." );
+                            session.setIdForRelocate( newSessionId );
+                            _statistics.requestWithMemcachedFailover();
+                            return newSessionId;
+                        }
                     }
                 }
             } else {
@@ -707,11 +1086,12 @@ public class MemcachedSessionService implements SessionBackupService {
                 /* for non-sticky sessions we check the validity info
                  */
                 final String nodeId = getSessionIdFormat().extractMemcachedId( requestedSessionId );
-                if ( nodeId == null || _memcachedNodesManager.isNodeAvailable( nodeId ) ) {
+                if ( nodeId == null
+                        || _memcachedNodesManager.isNodeAvailable( nodeId ) && !_memcachedNodesManager.isNodeDraining( nodeId ) ) {
                     return null;
                 }
 
-                _log.info( "Session needs to be relocated as node "+ nodeId +" is not available, loading backup session for " + requestedSessionId );
+                _log.info( "Session needs to be relocated as node "+ nodeId +" is not available or draining, loading backup session for " + requestedSessionId );
                 final MemcachedBackupSession backupSession = loadBackupSession( requestedSessionId );
                 if ( backupSession != null ) {
                     _log.debug( "Loaded backup session for " + requestedSessionId + ", adding locally with "+ backupSession.getIdInternal() +"." );
@@ -836,19 +1216,33 @@ public class MemcachedSessionService implements SessionBackupService {
         }
 
         final boolean force = sessionIdChanged || msmSession.isSessionIdChanged() || !_sticky && (msmSession.getSecondsSinceLastBackup() >= msmSession.getMaxInactiveInterval());
-        final Future<BackupResult> result = _backupSessionService.backupSession( msmSession, force );
+        /* for synchronous backup of non-sticky sessions the session and its validity info are
+         * written at once and awaited together, at most for sessionBackupTimeout
+         */
+        final WriteFanOut writes = !_sticky && !_sessionBackupAsync ? new WriteFanOut( _sessionBackupTimeout ) : null;
+        if ( !_sticky ) {
+            _lockingStrategy.onBeforeBackupSession( msmSession, writes );
+        }
+
+        final Future<BackupResult> result = _backupSessionService.backupSession( msmSession, force, writes );
 
         if ( !_sticky ) {
             _manager.removeInternal( msmSession, false );
-            _lockingStrategy.onAfterBackupSession( msmSession, force, result, requestId, _backupSessionService );
+            _lockingStrategy.onAfterBackupSession( msmSession, force, result, requestId, _backupSessionService, writes );
+            if ( _nearCache != null ) {
+                _nearCache.put( msmSession, LockingStrategy.encodeValidityInfo( msmSession ), result );
+            }
         }
 
         return result;
     }
 
+    /**
+     * Serializes the given session as it's stored in memcached (compressed, if configured).
+     */
     @Nonnull
     byte[] serialize( @Nonnull final MemcachedBackupSession session ) {
-        return _transcoderService.serialize( session );
+        return _transcoderService.compress( _transcoderService.serialize( session ) );
     }
 
     protected MemcachedBackupSession loadFromMemcachedWithCheck( final String sessionId ) {
@@ -889,8 +1283,35 @@ public class MemcachedSessionService implements SessionBackupService {
              * they get deserialized by BaseSerializingTranscoder.deserialize or the appropriate
              * specializations.
              */
-            final Object object = _memcached.get( sessionId );
-            _memcachedNodesManager.onLoadFromMemcachedSuccess( sessionId );
+            final Object object;
+            final Object validityData;
+            if ( _sticky ) {
+                object = _memcached.get( sessionId );
+                validityData = null;
+            }
+            else if ( _nearCache != null && _nearCache.contains( sessionId ) ) {
+                /* only the (small) validity info is loaded to check the cached session,
+                 * the session data is only loaded if the session was changed by another tomcat
+                 */
+                validityData = _memcached.get( createValidityInfoKeyName( sessionId ) );
+                final MemcachedBackupSession cached = takeFromNearCache( sessionId, lockStatus, validityData );
+                if ( cached != null ) {
+                    _memcachedNodesManager.onLoadFromMemcachedSuccess( sessionId, System.currentTimeMillis() - start );
+                    _statistics.registerSince( LOAD_FROM_NEAR_CACHE, start );
+                    return cached;
+                }
+                object = _memcached.get( sessionId );
+            }
+            else {
+                /* the session and its validity info are stored on the same memcached node
+                 * and are loaded in a single round trip
+                 */
+                final String validityKey = createValidityInfoKeyName( sessionId );
+                final Map<String, Object> items = _memcached.getBulk( sessionId, validityKey );
+                object = items.get( sessionId );
+                validityData = items.get( validityKey );
+            }
+            _memcachedNodesManager.onLoadFromMemcachedSuccess( sessionId, System.currentTimeMillis() - start );
 
             if ( object != null ) {
                 if ( !(object instanceof byte[]) ) {
@@ -898,12 +1319,17 @@ public class MemcachedSessionService implements SessionBackupService {
                 }
                 final long startDeserialization = System.currentTimeMillis();
                 final MemcachedBackupSession result = _transcoderService.deserialize( (byte[]) object, _manager );
+                if ( result != null && result.getAttributeManifest() != null
+                        && !loadSeparatelyStoredAttributes( result ) ) {
+                    releaseLock( sessionId, lockStatus );
+                    return null;
+                }
                 _statistics.registerSince( SESSION_DESERIALIZATION, startDeserialization );
                 _statistics.registerSince( LOAD_FROM_MEMCACHED, start );
 
                 result.setSticky( _sticky );
                 if ( !_sticky ) {
-                    _lockingStrategy.onAfterLoadFromMemcached( result, lockStatus );
+                    _lockingStrategy.onAfterLoadFromMemcached( result, lockStatus, validityData );
                 }
 
                 if ( _log.isDebugEnabled() ) {
@@ -912,9 +1338,7 @@ public class MemcachedSessionService implements SessionBackupService {
                 return result;
             }
             else {
-                if ( lockStatus == LockStatus.LOCKED ) {
-                    _lockingStrategy.releaseLock( sessionId );
-                }
+                releaseLock( sessionId, lockStatus );
                 _missingSessionsCache.put( sessionId, Boolean.TRUE );
                 if ( _log.isDebugEnabled() ) {
                     _log.debug( "Session " + sessionId + " not found in memcached." );
@@ -927,19 +1351,75 @@ public class MemcachedSessionService implements SessionBackupService {
             _memcachedNodesManager.onLoadFromMemcachedFailure( sessionId );
         } catch ( final Exception e ) {
             _log.warn( "Could not load session with id " + sessionId + " from memcached.", e );
-            if ( lockStatus == LockStatus.LOCKED ) {
-                _lockingStrategy.releaseLock( sessionId );
-            }
+            releaseLock( sessionId, lockStatus );
         }
         return null;
     }
 
+    private void releaseLock( @Nonnull final String sessionId, @Nullable final LockStatus lockStatus ) {
+        if ( lockStatus == LockStatus.LOCKED ) {
+            _lockingStrategy.releaseLock( sessionId );
+        }
+        else if ( lockStatus == LockStatus.LOCKED_SHARED ) {
+            _lockingStrategy.releaseSharedLock( sessionId );
+        }
+    }
+
+    /**
+     * Returns the session from the near cache, if the given validity info loaded from memcached is unchanged
+     * (i.e. the session was not used by another tomcat since it was cached). Hits and misses are counted
+     * in the {@link Statistics}.
+     */
+    @CheckForNull
+    private MemcachedBackupSession takeFromNearCache( @Nonnull final String sessionId, @Nullable final LockStatus lockStatus,
+            @CheckForNull final Object validityData ) {
+        final MemcachedBackupSession result = _nearCache.take( sessionId,
+                validityData instanceof byte[] ? (byte[]) validityData : null );
+        if ( result == null ) {
+            _statistics.nearCacheMiss();
+            return null;
+        }
+        _statistics.nearCacheHit();
+        _lockingStrategy.onAfterLoadFromMemcached( result, lockStatus, validityData );
+        if ( _log.isDebugEnabled() ) {
+            _log.debug( "Found session with id " + sessionId + " in near cache" );
+        }
+        return result;
+    }
+
+    /**
+     * Loads the separately stored attributes of the given session (see {@link #setStoreAttributesSeparately(boolean)})
+     * with a single multi-get.
+     *
+     * @return <code>true</code> if all attributes were found, otherwise <code>false</code> (the session is
+     *  incomplete and must not be used then).
+     */
+    private boolean loadSeparatelyStoredAttributes( @Nonnull final MemcachedBackupSession session ) {
+        final AttributeManifest manifest = session.getAttributeManifest();
+        final Map<String, Object> items = _memcached.getBulk( manifest.getKeys() );
+        final Map<String, Object> attributes = session.getAttributesInternal();
+        for ( final Map.Entry<String, AttributeManifest.Entry> entry : manifest.getEntries().entrySet() ) {
+            final Object data = items.get( manifest.getKey( entry.getValue() ) );
+            if ( !( data instanceof byte[] ) ) {
+                _log.warn( "Could not load attribute " + entry.getKey() + " of session " + session.getIdInternal() +
+                        " from memcached, the session is incomplete and therefore ignored." );
+                return false;
+            }
+            attributes.putAll( _transcoderService.deserializeAttributes( (byte[]) data ) );
+        }
+        return true;
+    }
+
     /**
      * Set the memcached nodes space or comma separated.
      * <p>
      * E.g. <code>n1.localhost:11211 n2.localhost:11212</code>
      * </p>
      * <p>
+     * A node can have a weight appended, e.g. <code>n1:localhost:11211:2 n2:localhost:11212:1</code>,
+     * new sessions are assigned to the nodes in proportion to their weights.
+     * </p>
+     * <p>
      * When the memcached nodes are set when this manager is already initialized,
      * the new configuration will be loaded.
      * </p>
@@ -970,14 +1450,21 @@ public class MemcachedSessionService implements SessionBackupService {
         return _memcachedNodes;
     }
 
+    private BackupSessionService createBackupSessionService( final TranscoderService transcoderService,
+            final MemcachedClient memcachedClient, final MemcachedNodesManager memcachedNodesManager ) {
+        return new BackupSessionService( transcoderService, _sessionBackupAsync, _sessionBackupTimeout,
+                _backupThreadCount, _backupQueueCapacity, _backupQueueOverflowPolicy,
+                _sticky && _storeAttributesSeparately, _cacheSerializedAttributes, memcachedClient, memcachedNodesManager, _statistics,
+                _localLocks );
+    }
+
     private MemcachedNodesManager reloadMemcachedConfig( final String memcachedNodes, final String failoverNodes ) {
 
         /* first create all dependent services
          */
         final MemcachedNodesManager memcachedNodesManager = createMemcachedNodesManager( memcachedNodes, failoverNodes );
         final MemcachedClient memcachedClient = createMemcachedClient( memcachedNodesManager, _statistics );
-        final BackupSessionService backupSessionService = new BackupSessionService( _transcoderService, _sessionBackupAsync,
-                _sessionBackupTimeout, _backupThreadCount, memcachedClient, memcachedNodesManager, _statistics );
+        final BackupSessionService backupSessionService = createBackupSessionService( _transcoderService, memcachedClient, memcachedNodesManager );
 
         /* then assign new services
          */
@@ -985,10 +1472,17 @@ public class MemcachedSessionService implements SessionBackupService {
             _memcached.shutdown();
         }
         _memcached = memcachedClient;
+        if ( _memcachedNodesManager != null ) {
+            _memcachedNodesManager.shutdown();
+        }
         _memcachedNodesManager = memcachedNodesManager;
+        if ( memcachedClient != null ) {
+            _memcachedNodesManager.startHealthChecks( _nodeHealthCheckInterval );
+        }
         _backupSessionService = backupSessionService;
 
         initNonStickyLockingMode( memcachedNodesManager );
+        startDraining();
 
         return memcachedNodesManager;
     }
@@ -1209,6 +1703,257 @@ public class MemcachedSessionService implements SessionBackupService {
         return _backupThreadCount;
     }
 
+    /**
+     * Specifies the maximum number of session backups that may wait for execution if
+     * {@link #setSessionBackupAsync(boolean)} is set to <code>true</code>. If the backup queue
+     * is full the policy set via {@link #setBackupQueueOverflowPolicy(String)} is applied.
+     * Default is <code>1000</code>.
+     *
+     * @param backupQueueCapacity the capacity of the backup queue, must be positive.
+     */
+    public void setBackupQueueCapacity( final int backupQueueCapacity ) {
+        if ( backupQueueCapacity < 1 ) {
+            _log.warn( "Illegal backupQueueCapacity " + backupQueueCapacity + ", must be positive." +
+                    " Keeping " + _backupQueueCapacity + "." );
+            return;
+        }
+        final int oldBackupQueueCapacity = _backupQueueCapacity;
+        _backupQueueCapacity = backupQueueCapacity;
+        if ( _manager.isInitialized() ) {
+            _log.info( "Changed backupQueueCapacity from " + oldBackupQueueCapacity + " to " + _backupQueueCapacity + "." +
+                    " Reloading configuration..." );
+            reloadMemcachedConfig( _memcachedNodes, _failoverNodes );
+            _log.info( "Finished reloading configuration." );
+        }
+    }
+
+    /**
+     * The maximum number of session backups waiting for execution.
+     */
+    public int getBackupQueueCapacity() {
+        return _backupQueueCapacity;
+    }
+
+    /**
+     * Specifies what happens with a session backup if the backup queue (see {@link #setBackupQueueCapacity(int)})
+     * is full:
+     * <ul>
+     * <li><code>callerRuns</code> (default): the backup is performed in the request thread</li>
+     * <li><code>discardOldest</code>: the oldest queued backup is discarded</li>
+     * <li><code>skip</code>: the new backup is skipped</li>
+     * </ul>
+     * Backups of new sessions, of sessions with a changed authentication and forced backups are never discarded
+     * or skipped, but performed in the request thread.
+     *
+     * @param backupQueueOverflowPolicy one of "callerRuns", "discardOldest" or "skip".
+     */
+    public void setBackupQueueOverflowPolicy( final String backupQueueOverflowPolicy ) {
+        final OverflowPolicy policy = backupQueueOverflowPolicy != null
+            ? OverflowPolicy.fromConfigValue( backupQueueOverflowPolicy )
+            : null;
+        if ( policy == null ) {
+            _log.warn( "Illegal backupQueueOverflowPolicy " + backupQueueOverflowPolicy + ", supported are" +
+                    " callerRuns, discardOldest and skip. Keeping " + getBackupQueueOverflowPolicy() + "." );
+            return;
+        }
+        final OverflowPolicy oldPolicy = _backupQueueOverflowPolicy;
+        _backupQueueOverflowPolicy = policy;
+        if ( _manager.isInitialized() && oldPolicy != policy ) {
+            _log.info( "Changed backupQueueOverflowPolicy from " + oldPolicy + " to " + policy + "." +
+                    " Reloading configuration..." );
+            reloadMemcachedConfig( _memcachedNodes, _failoverNodes );
+            _log.info( "Finished reloading configuration." );
+        }
+    }
+
+    /**
+     * The policy applied if the backup queue is full.
+     */
+    public String getBackupQueueOverflowPolicy() {
+        return _backupQueueOverflowPolicy.toConfigValue();
+    }
+
+    /**
+     * Specifies if each session attribute shall be stored in its own memcached item (default <code>false</code>).
+     * The session fields are then stored together with a manifest that references the attribute items,
+     * and only attributes whose serialized form changed are written to memcached. A session is loaded
+     * with a get of the manifest followed by a single multi-get of all attributes.
+     * <p>
+     * This can reduce the amount of data written to memcached a lot, e.g. if a session contains a large
+     * attribute that doesn't change and a small attribute that changes with every request.
+     * </p>
+     * <p>
+     * This is only supported for sticky sessions, in non-sticky mode this setting is ignored. Sessions
+     * stored with a different setting can still be loaded.
+     * </p>
+     *
+     * @param storeAttributesSeparately <code>true</code> if each attribute shall be stored separately.
+     */
+    public void setStoreAttributesSeparately( final boolean storeAttributesSeparately ) {
+        final boolean oldStoreAttributesSeparately = _storeAttributesSeparately;
+        _storeAttributesSeparately = storeAttributesSeparately;
+        if ( oldStoreAttributesSeparately != storeAttributesSeparately && _manager.isInitialized() ) {
+            _log.info( "Changed storeAttributesSeparately from " + oldStoreAttributesSeparately + " to " + storeAttributesSeparately + "." +
+                    " Reloading configuration..." );
+            reloadMemcachedConfig( _memcachedNodes, _failoverNodes );
+            _log.info( "Finished reloading configuration." );
+        }
+    }
+
+    /**
+     * Specifies if each session attribute is stored in its own memcached item.
+     */
+    public boolean isStoreAttributesSeparately() {
+        return _storeAttributesSeparately;
+    }
+
+    /**
+     * Specifies if the serialized form of each session attribute shall be cached by the session
+     * (default <code>false</code>). Session attributes are then serialized separately, and attributes
+     * that were not accessed via <code>getAttribute</code>/<code>setAttribute</code> since they were
+     * serialized are not serialized again for the next backup: the session data is assembled from the
+     * cached and the freshly serialized attributes. This can save a lot of cpu if a session contains
+     * a large attribute that's accessed rarely and a small attribute that's accessed with every request.
+     * <p>
+     * Note that the serialized attributes need additional memory, and that objects referenced by
+     * several session attributes are deserialized as separate objects. Like the detection of
+     * unmodified sessions this relies on attributes only being modified after they were accessed
+     * via <code>getAttribute</code>. Sessions stored with a different setting can still be loaded.
+     * </p>
+     * <p>
+     * Unless attributes are stored separately, the session data is assembled from the cached attributes
+     * only if the extended session format is enabled (see {@link #setExtendedSessionFormat(boolean)}).
+     * </p>
+     *
+     * @param cacheSerializedAttributes <code>true</code> if serialized attributes shall be cached.
+     */
+    public void setCacheSerializedAttributes( final boolean cacheSerializedAttributes ) {
+        final boolean oldCacheSerializedAttributes = _cacheSerializedAttributes;
+        _cacheSerializedAttributes = cacheSerializedAttributes;
+        if ( oldCacheSerializedAttributes != cacheSerializedAttributes && _manager.isInitialized() ) {
+            _log.info( "Changed cacheSerializedAttributes from " + oldCacheSerializedAttributes + " to " + cacheSerializedAttributes + "." +
+                    " Reloading configuration..." );
+            reloadMemcachedConfig( _memcachedNodes, _failoverNodes );
+            _log.info( "Finished reloading configuration." );
+        }
+    }
+
+    /**
+     * Specifies if the serialized form of each session attribute is cached by the session.
+     */
+    public boolean isCacheSerializedAttributes() {
+        return _cacheSerializedAttributes;
+    }
+
+    /**
+     * Specifies the codec used to compress session data before it's stored in memcached:
+     * <ul>
+     * <li><code>none</code> (default): session data is not compressed</li>
+     * <li><code>lz4</code>: very fast, moderate compression ratio</li>
+     * <li><code>deflate</code>: better compression ratio, but slower</li>
+     * </ul>
+     * Session data smaller than the size set via {@link #setCompressionMinSize(int)} is not compressed.
+     * Compressed sessions can only be read by versions of memcached-session-manager that support compression,
+     * therefore session data is only compressed if the extended session format is enabled (see
+     * {@link #setExtendedSessionFormat(boolean)}). Compressed sessions are loaded regardless of this setting.
+     *
+     * @param compression one of "none", "lz4" or "deflate".
+     */
+    public void setCompression( final String compression ) {
+        final CompressionCodec codec = compression != null ? CompressionCodec.fromConfigValue( compression ) : null;
+        if ( codec == null ) {
+            _log.warn( "Illegal compression " + compression + ", supported are none, lz4 and deflate." +
+                    " Keeping " + getCompression() + "." );
+            return;
+        }
+        _compression = codec;
+        if ( _transcoderService != null ) {
+            _transcoderService.setCompression( _compression, _compressionMinSize );
+        }
+    }
+
+    /**
+     * The codec used to compress session data.
+     */
+    public String getCompression() {
+        return _compression.toConfigValue();
+    }
+
+    /**
+     * Specifies the minimum size in bytes of session data that's compressed (see {@link #setCompression(String)}),
+     * default is <code>1024</code>. Smaller sessions are stored uncompressed, as compression would save only
+     * a few bytes.
+     *
+     * @param compressionMinSize the minimum size in bytes.
+     */
+    public void setCompressionMinSize( final int compressionMinSize ) {
+        _compressionMinSize = compressionMinSize;
+        if ( _transcoderService != null ) {
+            _transcoderService.setCompression( _compression, _compressionMinSize );
+        }
+    }
+
+    /**
+     * The minimum size in bytes of session data that's compressed.
+     */
+    public int getCompressionMinSize() {
+        return _compressionMinSize;
+    }
+
+    /**
+     * Specifies if session data may be written in the formats that older versions of memcached-session-manager
+     * cannot read (default <code>false</code>): compressed session data (see {@link #setCompression(String)})
+     * and session attributes that are serialized separately (see {@link #setCacheSerializedAttributes(boolean)}).
+     * As long as this is disabled, sessions are stored in the previous format (uncompressed, with all attributes
+     * serialized at once), regardless of these settings. When upgrading a cluster, this should be enabled
+     * only after all tomcats are running a version that can read the extended format. Sessions stored in the
+     * extended format are loaded regardless of this setting.
+     *
+     * @param extendedSessionFormat <code>true</code> if the extended session format shall be written.
+     */
+    public void setExtendedSessionFormat( final boolean extendedSessionFormat ) {
+        _extendedSessionFormat = extendedSessionFormat;
+        if ( _transcoderService != null ) {
+            _transcoderService.setExtendedSessionFormat( extendedSessionFormat );
+        }
+    }
+
+    /**
+     * Specifies if session data may be written in the formats that older versions cannot read.
+     */
+    public boolean isExtendedSessionFormat() {
+        return _extendedSessionFormat;
+    }
+
+    /**
+     * Specifies the maximum number of sessions in the near cache of non-sticky sessions. Sessions released
+     * at the end of a request are kept in the near cache, and reused by the next request for the session if
+     * the session was not used by another tomcat in the meantime (checked via its validity info, that's loaded
+     * together with the session), so that it does not have to be deserialized again. Default is <code>0</code>,
+     * which disables the near cache.
+     * <p>
+     * The cached sessions are kept deserialized, so the heap used by the near cache is this number times
+     * the (deserialized) size of your sessions. The cache is bounded by the number of sessions and not by
+     * a heap budget, because the size of a deserialized session can't be determined cheaply (only the
+     * size of its serialized form is known), so a heap budget could only be enforced approximately.
+     * </p>
+     * <p>
+     * This is only used in non-sticky mode and takes effect when the manager is started.
+     * </p>
+     *
+     * @param nearCacheMaxSize the maximum number of cached sessions.
+     */
+    public void setNearCacheMaxSize( final int nearCacheMaxSize ) {
+        _nearCacheMaxSize = nearCacheMaxSize;
+    }
+
+    /**
+     * The maximum number of sessions in the near cache of non-sticky sessions.
+     */
+    public int getNearCacheMaxSize() {
+        return _nearCacheMaxSize;
+    }
+
     /**
      * Specifies the memcached protocol to use, either "text" (default) or "binary".
      *
@@ -1280,8 +2025,14 @@ public class MemcachedSessionService implements SessionBackupService {
      * <li><code>none</code> - does not lock the session at all (default for non-sticky sessions).</li>
      * <li><code>all</code> - the session is locked for each request accessing the session.</li>
      * <li><code>auto</code> - locks the session for each request except for those the were detected to access the session only readonly.</li>
+     * <li><code>app</code> - locks the session only for requests for which the application asked for the lock by setting the request
+     * attribute <code>de.javakaffee.web.msm.lockSession</code> to <code>true</code> (before the session is accessed), see {@link LockingStrategyApp}.</li>
      * <li><code>uriPattern:&lt;regexp&gt;</code> - locks the session for each request with a request uri (with appended querystring) matching
      * the provided regular expression.</li>
+     * <li><code>readWrite</code> - takes a shared lock for requests that were detected to access the session only readonly
+     * (like <code>auto</code>) and an exclusive lock for all other requests.</li>
+     * <li><code>readOnlyUriPattern:&lt;regexp&gt;</code> - takes a shared lock for (readonly) requests with a request uri
+     * (with appended querystring) matching the provided regular expression and an exclusive lock for all other requests.</li>
      * </ul>
      */
     public void setLockingMode( @Nullable final String lockingMode ) {
@@ -1313,6 +2064,13 @@ public class MemcachedSessionService implements SessionBackupService {
                 lockingMode = LockingMode.URI_PATTERN;
                 uriPattern = Pattern.compile( _lockingMode.substring( "uriPattern:".length() ) );
             }
+            else if ( _lockingMode.startsWith( "readOnlyUriPattern:" ) ) {
+                lockingMode = LockingMode.READ_WRITE;
+                uriPattern = Pattern.compile( _lockingMode.substring( "readOnlyUriPattern:".length() ) );
+            }
+            else if ( _lockingMode.equals( "readWrite" ) ) {
+                lockingMode = LockingMode.READ_WRITE;
+            }
             else {
                 lockingMode = LockingMode.valueOf( _lockingMode.toUpperCase() );
             }
@@ -1332,10 +2090,186 @@ public class MemcachedSessionService implements SessionBackupService {
         }
     }
 
+    /**
+     * Specifies if for the lockingMode <code>auto</code> path segments of requests that are numbers or UUIDs
+     * (e.g. <code>/order/12345</code>) are replaced by a placeholder, so that such requests are detected
+     * as readonly for all ids. Default is <code>false</code>.
+     * <p>
+     * This takes effect when the locking mode is set.
+     * </p>
+     */
+    public void setAutoLockingNormalizeIds( final boolean autoLockingNormalizeIds ) {
+        _autoLockingNormalizeIds = autoLockingNormalizeIds;
+    }
+
+    public boolean isAutoLockingNormalizeIds() {
+        return _autoLockingNormalizeIds;
+    }
+
+    /**
+     * Specifies a comma separated list of query parameters that are ignored by the lockingMode <code>auto</code>
+     * to identify requests (e.g. volatile cache busting parameters), <code>*</code> ignores the whole query string.
+     * Default is <code>null</code>.
+     * <p>
+     * This takes effect when the locking mode is set.
+     * </p>
+     */
+    public void setAutoLockingIgnoredParameters( @Nullable final String autoLockingIgnoredParameters ) {
+        _autoLockingIgnoredParameters = autoLockingIgnoredParameters;
+    }
+
+    @CheckForNull
+    public String getAutoLockingIgnoredParameters() {
+        return _autoLockingIgnoredParameters;
+    }
+
+    /**
+     * Specifies for the lockingMode <code>auto</code> how often a request must be detected as readonly
+     * (since it was last detected as modifying) before the session is no longer locked for this request.
+     * Default is <code>1</code>.
+     * <p>
+     * This takes effect when the locking mode is set.
+     * </p>
+     */
+    public void setAutoLockingMinReadOnlyObservations( final int autoLockingMinReadOnlyObservations ) {
+        _autoLockingMinReadOnlyObservations = autoLockingMinReadOnlyObservations;
+    }
+
+    public int getAutoLockingMinReadOnlyObservations() {
+        return _autoLockingMinReadOnlyObservations;
+    }
+
+    /**
+     * Specifies for the lockingMode <code>auto</code> the percentage of all observations of a request
+     * that must be readonly, so that the session is no longer locked for this request. Default is <code>100</code>,
+     * so that a request that was detected as modifying is locked until it's forgotten (after 6 hours)
+     * or its observation decayed (see {@link #setAutoLockingDecayHalfLife(int)}).
+     * <p>
+     * This takes effect when the locking mode is set.
+     * </p>
+     */
+    public void setAutoLockingReadOnlyConfidence( final int autoLockingReadOnlyConfidence ) {
+        _autoLockingReadOnlyConfidence = autoLockingReadOnlyConfidence;
+    }
+
+    public int getAutoLockingReadOnlyConfidence() {
+        return _autoLockingReadOnlyConfidence;
+    }
+
+    /**
+     * Specifies for the lockingMode <code>auto</code> the half life in seconds of request observations, so
+     * that older observations count less than recent ones. Default is <code>-1</code>, so that observations
+     * don't decay.
+     * <p>
+     * This takes effect when the locking mode is set.
+     * </p>
+     */
+    public void setAutoLockingDecayHalfLife( final int autoLockingDecayHalfLife ) {
+        _autoLockingDecayHalfLife = autoLockingDecayHalfLife;
+    }
+
+    public int getAutoLockingDecayHalfLife() {
+        return _autoLockingDecayHalfLife;
+    }
+
+    /**
+     * Specifies the lease time in seconds of session locks in memcached (non-sticky sessions). A lock
+     * expires in memcached after this time, unless it's renewed: locks are renewed in the background while the
+     * request holding the lock is running. Default is <code>5</code>.
+     * <p>
+     * This takes effect when the manager is started.
+     * </p>
+     */
+    public void setLockLeaseTime( final int lockLeaseTime ) {
+        _lockLeaseTime = lockLeaseTime;
+    }
+
+    public int getLockLeaseTime() {
+        return _lockLeaseTime;
+    }
+
+    /**
+     * Specifies the interval in millis of the background health checks of the memcached nodes: each node
+     * is probed with this interval, requests only read the last known availability of a node.
+     * Default is <code>1000</code>.
+     * <p>
+     * This takes effect when the manager is started.
+     * </p>
+     */
+    public void setNodeHealthCheckInterval( final long nodeHealthCheckInterval ) {
+        _nodeHealthCheckInterval = nodeHealthCheckInterval;
+    }
+
+    public long getNodeHealthCheckInterval() {
+        return _nodeHealthCheckInterval;
+    }
+
+    /**
+     * Specifies if the memcached node for a new session shall be selected based on the latency of the
+     * memcached nodes: of two nodes that are randomly chosen according to their weights (see
+     * {@link #setMemcachedNodes(String)}) the node with the lower latency is selected. Default is <code>false</code>.
+     * <p>
+     * This takes effect when the memcached nodes configuration is loaded.
+     * </p>
+     */
+    public void setLatencyAwareNodeSelection( final boolean latencyAwareNodeSelection ) {
+        _latencyAwareNodeSelection = latencyAwareNodeSelection;
+    }
+
+    public boolean isLatencyAwareNodeSelection() {
+        return _latencyAwareNodeSelection;
+    }
+
+    /**
+     * The node ids of memcached nodes that are drained, so that they can be removed: new sessions are not
+     * stored in these nodes, and sessions stored in these nodes are relocated to other nodes. For sticky sessions
+     * the local sessions are relocated in the background (see {@link #setDrainRate(int)}), sessions that are
+     * accessed by a request are relocated by this request (as on a memcached failover). Non-sticky sessions are
+     * relocated by their next request, they're loaded from their backup node. Node ids are separated by
+     * whitespace or comma, unknown node ids are ignored.
+     * <p>
+     * E.g. <code>n1 n2</code>
+     * </p>
+     * <p>
+     * When the draining nodes are set when this manager is already initialized, they're drained immediately.
+     * </p>
+     *
+     * @param drainingNodes
+     *            the draining nodes to set, whitespace or comma separated
+     */
+    public void setDrainingNodes( final String drainingNodes ) {
+        _drainingNodes = drainingNodes;
+        if ( _manager.isInitialized() ) {
+            _memcachedNodesManager.setDrainingNodeIds( parseNodeIds( drainingNodes ) );
+            _log.info( "Set draining memcached nodes " + drainingNodes + "." );
+            startDraining();
+        }
+    }
+
+    public String getDrainingNodes() {
+        return _drainingNodes;
+    }
+
+    /**
+     * Specifies the maximum number of sessions that are relocated per second from draining memcached
+     * nodes in the background (see {@link #setDrainingNodes(String)}). Default is {@value #DEFAULT_DRAIN_RATE}.
+     * <p>
+     * This takes effect when the manager is started.
+     * </p>
+     */
+    public void setDrainRate( final int drainRate ) {
+        _drainRate = drainRate;
+    }
+
+    public int getDrainRate() {
+        return _drainRate;
+    }
+
     protected void updateExpirationInMemcached() {
         if ( _enabled.get() && _sticky ) {
             final Session[] sessions = _manager.findSessions();
             final int delay = _manager.getContainer().getBackgroundProcessorDelay();
+            final List<MemcachedBackupSession> dueSessions = new ArrayList<MemcachedBackupSession>();
             for ( final Session s : sessions ) {
                 final MemcachedBackupSession session = (MemcachedBackupSession) s;
                 if ( _log.isDebugEnabled() ) {
@@ -1354,13 +2288,15 @@ public class MemcachedSessionService implements SessionBackupService {
                         && session.wasAccessedSinceLastBackup()
                         && session.getMaxInactiveInterval() > 0 // for <= 0 the session was stored in memcached with expiration 0
                         && session.getMemcachedExpirationTime() <= 2 * delay ) {
-                    try {
-                        _backupSessionService.updateExpiration( session );
-                    } catch ( final Throwable e ) {
-                        _log.info( "Could not update expiration in memcached for session " + session.getId(), e );
-                    }
+                    dueSessions.add( session );
                 }
             }
+            if ( !dueSessions.isEmpty() ) {
+                /* spread the updates over half of the background processor delay, so that they're
+                 * finished before the next run
+                 */
+                _expirationUpdater.sweep( dueSessions, _backupSessionService, delay * 1000L / 2, _sessionBackupAsync );
+            }
         }
     }
 
@@ -1383,8 +2319,7 @@ public class MemcachedSessionService implements SessionBackupService {
         _sessionBackupAsync = sessionBackupAsync;
         if ( ( oldSessionBackupAsync != sessionBackupAsync ) && _manager.isInitialized() ) {
             _log.info( "SessionBackupAsync was changed to " + sessionBackupAsync + ", creating new BackupSessionService with new configuration." );
-            _backupSessionService = new BackupSessionService( _transcoderService, _sessionBackupAsync, _sessionBackupTimeout,
-                    _backupThreadCount, _memcached, _memcachedNodesManager, _statistics );
+            _backupSessionService = createBackupSessionService( _transcoderService, _memcached, _memcachedNodesManager );
         }
     }
 
@@ -1436,8 +2371,15 @@ public class MemcachedSessionService implements SessionBackupService {
      */
     void setTranscoderService( final TranscoderService transcoderService ) {
         _transcoderService = transcoderService;
-        _backupSessionService = new BackupSessionService( transcoderService, _sessionBackupAsync, _sessionBackupTimeout,
-                _backupThreadCount, _memcached, _memcachedNodesManager, _statistics );
+        _backupSessionService = createBackupSessionService( transcoderService, _memcached, _memcachedNodesManager );
+    }
+
+    /**
+     * The table of local session locks, that's shared by the locking strategy and the session backup.
+     */
+    @Nonnull
+    LocalLockTable getLocalLockTable() {
+        return _localLocks;
     }
 
     /**
@@ -1478,4 +2420,25 @@ public class MemcachedSessionService implements SessionBackupService {
         return _lockingStrategy;
     }
 
+    /**
+     * A session relocated from a draining node, that's deleted with its former id when the backup
+     * with the new id finished.
+     */
+    private static final class RelocatedSession {
+
+        private final String _sessionId;
+        private final String _newSessionId;
+        private final AttributeManifest _manifest;
+        private final Future<BackupResult> _backupResult;
+
+        RelocatedSession( @Nonnull final String sessionId, @Nonnull final String newSessionId,
+                @Nullable final AttributeManifest manifest, @Nonnull final Future<BackupResult> backupResult ) {
+            _sessionId = sessionId;
+            _newSessionId = newSessionId;
+            _manifest = manifest;
+            _backupResult = backupResult;
+        }
+
+    }
+
 }
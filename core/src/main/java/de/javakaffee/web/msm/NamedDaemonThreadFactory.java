@@ -0,0 +1,52 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Creates daemon threads named with the given prefix, for the background tasks of the
+ * session manager so that they don't prevent the jvm from shutting down.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+class NamedDaemonThreadFactory implements ThreadFactory {
+
+    private final String _namePrefix;
+    private final AtomicInteger _threadNumber = new AtomicInteger();
+
+    /**
+     * @param namePrefix the prefix of the thread names, followed by the number of the thread.
+     */
+    NamedDaemonThreadFactory( @Nonnull final String namePrefix ) {
+        _namePrefix = namePrefix;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Thread newThread( final Runnable r ) {
+        final Thread result = new Thread( r, _namePrefix + "-" + _threadNumber.incrementAndGet() );
+        result.setDaemon( true );
+        return result;
+    }
+
+}
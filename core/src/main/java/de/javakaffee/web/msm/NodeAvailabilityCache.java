@@ -17,11 +17,15 @@
 package de.javakaffee.web.msm;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nonnull;
 
@@ -34,6 +38,11 @@ import edu.umd.cs.findbugs.annotations.SuppressWarnings;
 /**
  * An LRUCache that supports a maximum number of cache entries and a time to
  * live for them. The TTL is measured from insertion time to access time.
+ * <p>
+ * For nodes that are health checked in the background (see {@link #startHealthChecks(Collection, long)})
+ * the availability is refreshed ahead by the health checks, so that {@link #isNodeAvailable(Object)}
+ * only reads the last known state and never invokes the cache loader on the calling (request) thread.
+ * </p>
  *
  * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
  * @version $Id$
@@ -44,9 +53,17 @@ public class NodeAvailabilityCache<K> {
 
     private static final Log LOG = LogFactory.getLog( NodeAvailabilityCache.class );
 
+    /**
+     * The maximum number of threads probing the nodes, the nodes share these threads.
+     */
+    private static final int MAX_HEALTH_CHECK_THREADS = 2;
+
     private final long _ttl;
     private final ConcurrentHashMap<K, ManagedItem<Boolean>> _map;
     private final CacheLoader<K> _cacheLoader;
+    private final Set<K> _healthCheckedKeys = Collections.newSetFromMap( new ConcurrentHashMap<K, Boolean>() );
+    private final ConcurrentHashMap<K, Long> _probeLatencies = new ConcurrentHashMap<K, Long>();
+    private ScheduledThreadPoolExecutor _healthCheckExecutor;
 
     /**
      * Create a new LRUCache with a maximum number of cache entries and a
@@ -106,7 +123,8 @@ public class NodeAvailabilityCache<K> {
 
     /**
      * Determines, if the node is available. If it's not cached, it's loaded
-     * from the cache loader.
+     * from the cache loader. For a node that's health checked in the background
+     * the last known state is returned.
      *
      * @param key
      *            the key to check
@@ -114,9 +132,12 @@ public class NodeAvailabilityCache<K> {
      */
     public boolean isNodeAvailable( @Nonnull final K key ) {
         final ManagedItem<Boolean> item = _map.get( key );
+        if ( _healthCheckedKeys.contains( key ) ) {
+            return item == null || item._value;
+        }
         if ( item == null ) {
             return updateIsNodeAvailable( key );
-        } else if ( isExpired( item ) ) {
+        } else if ( isExpired( key, item ) ) {
             _map.remove( key );
             return updateIsNodeAvailable( key );
         } else {
@@ -124,12 +145,72 @@ public class NodeAvailabilityCache<K> {
         }
     }
 
-    private boolean isExpired( final ManagedItem<Boolean> item ) {
-        return _ttl > -1 && System.currentTimeMillis() - item._insertionTime > _ttl;
+    /**
+     * Starts the background health checks of the given nodes: each node is probed via the cache loader
+     * with the given interval, the probes are run by a small pool of threads shared by all nodes and
+     * are spread over the interval. The ttl does not apply to health checked nodes, their availability
+     * is the result of the last probe. The first probe is run after the given interval (so that a new
+     * memcached client can connect), until then a node is regarded as available. Health checks that
+     * were started before are stopped.
+     *
+     * @param keys the nodes to check.
+     * @param intervalInMillis the delay between two probes of a node in millis.
+     */
+    public synchronized void startHealthChecks( @Nonnull final Collection<K> keys, final long intervalInMillis ) {
+        shutdown();
+        if ( keys.isEmpty() ) {
+            return;
+        }
+        _healthCheckExecutor = new ScheduledThreadPoolExecutor( Math.min( keys.size(), MAX_HEALTH_CHECK_THREADS ),
+                new NamedDaemonThreadFactory( "msm-node-health-check" ) );
+        final long offset = intervalInMillis / keys.size();
+        long initialDelay = intervalInMillis;
+        for ( final K key : keys ) {
+            _healthCheckedKeys.add( key );
+            _healthCheckExecutor.scheduleWithFixedDelay( new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        updateIsNodeAvailable( key );
+                    } catch ( final RuntimeException e ) {
+                        LOG.warn( "Could not check availability of node " + key, e );
+                    }
+                }
+            }, initialDelay, intervalInMillis, TimeUnit.MILLISECONDS );
+            initialDelay += offset;
+        }
+    }
+
+    /**
+     * Stops the background health checks, the availability of the nodes is then loaded
+     * on demand again.
+     */
+    public synchronized void shutdown() {
+        if ( _healthCheckExecutor != null ) {
+            _healthCheckExecutor.shutdownNow();
+            _healthCheckExecutor = null;
+        }
+        _healthCheckedKeys.clear();
+    }
+
+    /**
+     * The time in millis of the last probe of the given node (by the cache loader), or <code>-1</code>
+     * if the node was not yet probed.
+     */
+    public long getProbeLatency( @Nonnull final K key ) {
+        final Long result = _probeLatencies.get( key );
+        return result != null ? result.longValue() : -1;
+    }
+
+    private boolean isExpired( final K key, final ManagedItem<Boolean> item ) {
+        return _ttl > -1 && System.currentTimeMillis() - item._insertionTime > _ttl
+                && !_healthCheckedKeys.contains( key );
     }
 
     private boolean updateIsNodeAvailable( final K key ) {
+        final long start = System.currentTimeMillis();
         final Boolean result = Boolean.valueOf( _cacheLoader.isNodeAvailable( key ) );
+        _probeLatencies.put( key, System.currentTimeMillis() - start );
 
         if ( LOG.isDebugEnabled() ) {
             LOG.debug( "CacheLoader returned node availability '" + result + "' for node '" + key + "'." );
@@ -156,7 +237,7 @@ public class NodeAvailabilityCache<K> {
     public Set<K> getUnavailableNodes() {
         final Set<K> result = new HashSet<K>();
         for ( final Map.Entry<K, ManagedItem<Boolean>> entry : _map.entrySet() ) {
-            if ( !entry.getValue()._value.booleanValue() && !isExpired( entry.getValue() ) ) {
+            if ( !entry.getValue()._value.booleanValue() && !isExpired( entry.getKey(), entry.getValue() ) ) {
                 result.add( entry.getKey() );
             }
         }
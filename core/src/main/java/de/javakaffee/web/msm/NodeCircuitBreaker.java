@@ -0,0 +1,261 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A circuit breaker for a memcached node, that decides if requests may use the node based on the
+ * outcomes of recent operations, so that a single failure or success does not mark the node as
+ * unavailable or available:
+ * <ul>
+ * <li>{@link State#CLOSED}: the node is used, the outcomes of the last {@value #WINDOW_SIZE} operations
+ * are recorded. If at least {@value #MIN_CALLS} operations were recorded and the failure rate exceeds
+ * {@value #FAILURE_RATE_THRESHOLD}% or the rate of slow operations exceeds {@value #SLOW_CALL_RATE_THRESHOLD}%,
+ * the breaker opens.</li>
+ * <li>{@link State#OPEN}: the node is not used until the open time elapsed, then the breaker is half open.
+ * The open time starts with {@value #MIN_OPEN_TIME} millis and is doubled each time the breaker opens again
+ * from half open, up to {@value #MAX_OPEN_TIME} millis.</li>
+ * <li>{@link State#HALF_OPEN}: sessions stored in the node keep using it (they are not relocated), and
+ * at most {@value #HALF_OPEN_TRIAL_PERMITS} new sessions are assigned to the node (see {@link #tryAcquireTrialPermit()}).
+ * After {@value #HALF_OPEN_SUCCESSES} successful operations the breaker closes, a failed or slow
+ * operation opens it again.</li>
+ * </ul>
+ * The decisions don't depend on chance, so that the checks of a request give consistent answers.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class NodeCircuitBreaker {
+
+    /**
+     * The state of a {@link NodeCircuitBreaker}.
+     */
+    public static enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /**
+     * The default duration of a slow operation, this is the default session backup timeout.
+     */
+    static final long DEFAULT_SLOW_CALL_DURATION = 100;
+
+    static final int WINDOW_SIZE = 20;
+    static final int MIN_CALLS = 5;
+    static final int FAILURE_RATE_THRESHOLD = 50;
+    static final int SLOW_CALL_RATE_THRESHOLD = 80;
+    static final long MIN_OPEN_TIME = 1000;
+    static final long MAX_OPEN_TIME = 30000;
+    static final int HALF_OPEN_TRIAL_PERMITS = 5;
+    static final int HALF_OPEN_SUCCESSES = 3;
+
+    private static final byte SUCCESS = 0;
+    private static final byte FAILURE = 1;
+    private static final byte SLOW = 2;
+
+    private final long _slowCallDurationInMillis;
+
+    /*
+     * The outcomes of the last operations (ring buffer), guarded by this.
+     */
+    private final byte[] _outcomes = new byte[WINDOW_SIZE];
+    private int _index;
+    private int _calls;
+    private int _failures;
+    private int _slowCalls;
+
+    private volatile State _state = State.CLOSED;
+    private long _openedAt;
+    private long _openTime = MIN_OPEN_TIME;
+    private int _halfOpenSuccesses;
+    private int _trialPermits;
+
+    /**
+     * @param slowCallDurationInMillis the duration of an operation in millis from which on it's regarded as slow.
+     */
+    public NodeCircuitBreaker( final long slowCallDurationInMillis ) {
+        _slowCallDurationInMillis = slowCallDurationInMillis;
+    }
+
+    /**
+     * Determines if the node may be used, i.e. if the breaker is not open. If the breaker is open and the
+     * open time elapsed, the breaker changes to half open. In half open state calls are permitted, so that
+     * sessions stored in the node are not relocated, new sessions are limited by {@link #tryAcquireTrialPermit()}.
+     */
+    public boolean isCallPermitted() {
+        if ( _state == State.CLOSED ) {
+            return true;
+        }
+        synchronized ( this ) {
+            return updateState() != State.OPEN;
+        }
+    }
+
+    /**
+     * Determines if a new session may be assigned to the node: this is always permitted if the breaker is closed,
+     * never if it's open, and in half open state only for the first {@value #HALF_OPEN_TRIAL_PERMITS} new sessions.
+     */
+    public boolean tryAcquireTrialPermit() {
+        if ( _state == State.CLOSED ) {
+            return true;
+        }
+        synchronized ( this ) {
+            switch ( updateState() ) {
+                case CLOSED:
+                    return true;
+                case HALF_OPEN:
+                    if ( _trialPermits > 0 ) {
+                        _trialPermits--;
+                        return true;
+                    }
+                    return false;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * Changes the state from open to half open if the open time elapsed, must be invoked with this monitor held.
+     */
+    private State updateState() {
+        if ( _state == State.OPEN && System.currentTimeMillis() - _openedAt >= _openTime ) {
+            _state = State.HALF_OPEN;
+            _halfOpenSuccesses = 0;
+            _trialPermits = HALF_OPEN_TRIAL_PERMITS;
+        }
+        return _state;
+    }
+
+    /**
+     * Records a successful operation with the given duration.
+     */
+    public synchronized void recordSuccess( final long durationInMillis ) {
+        final boolean slow = durationInMillis >= _slowCallDurationInMillis;
+        switch ( _state ) {
+            case CLOSED:
+                record( slow ? SLOW : SUCCESS );
+                break;
+            case HALF_OPEN:
+                if ( slow ) {
+                    open( true );
+                }
+                else if ( ++_halfOpenSuccesses >= HALF_OPEN_SUCCESSES ) {
+                    close();
+                }
+                break;
+            default:
+                // an operation that was started before the breaker opened
+        }
+    }
+
+    /**
+     * Records a failed operation.
+     */
+    public synchronized void recordFailure() {
+        switch ( _state ) {
+            case CLOSED:
+                record( FAILURE );
+                break;
+            case HALF_OPEN:
+                open( true );
+                break;
+            default:
+                // an operation that was started before the breaker opened
+        }
+    }
+
+    @Nonnull
+    public State getState() {
+        return _state;
+    }
+
+    /**
+     * The failure rate in percent of the recorded operations, <code>0</code> if
+     * the breaker is not closed.
+     */
+    public synchronized int getFailureRate() {
+        return _calls == 0 ? 0 : _failures * 100 / _calls;
+    }
+
+    /**
+     * The rate of slow operations in percent of the recorded operations, <code>0</code> if
+     * the breaker is not closed.
+     */
+    public synchronized int getSlowCallRate() {
+        return _calls == 0 ? 0 : _slowCalls * 100 / _calls;
+    }
+
+    private void record( final byte outcome ) {
+        if ( _calls == WINDOW_SIZE ) {
+            remove( _outcomes[_index] );
+        }
+        else {
+            _calls++;
+        }
+        _outcomes[_index] = outcome;
+        _index = ( _index + 1 ) % WINDOW_SIZE;
+        if ( outcome == FAILURE ) {
+            _failures++;
+        }
+        else if ( outcome == SLOW ) {
+            _slowCalls++;
+        }
+        if ( _calls >= MIN_CALLS
+                && ( _failures * 100 > _calls * FAILURE_RATE_THRESHOLD || _slowCalls * 100 > _calls * SLOW_CALL_RATE_THRESHOLD ) ) {
+            open( false );
+        }
+    }
+
+    private void remove( final byte outcome ) {
+        if ( outcome == FAILURE ) {
+            _failures--;
+        }
+        else if ( outcome == SLOW ) {
+            _slowCalls--;
+        }
+    }
+
+    private void open( final boolean again ) {
+        _state = State.OPEN;
+        _openedAt = System.currentTimeMillis();
+        if ( again ) {
+            _openTime = Math.min( _openTime * 2, MAX_OPEN_TIME );
+        }
+        resetWindow();
+    }
+
+    private void close() {
+        _state = State.CLOSED;
+        _openTime = MIN_OPEN_TIME;
+        resetWindow();
+    }
+
+    private void resetWindow() {
+        _index = 0;
+        _calls = 0;
+        _failures = 0;
+        _slowCalls = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return _state + " (failure rate " + getFailureRate() + "%, slow call rate " + getSlowCallRate() + "%)";
+    }
+
+}
@@ -17,13 +17,21 @@
 package de.javakaffee.web.msm;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
@@ -58,6 +66,22 @@ public class NodeIdService {
     private final NodeAvailabilityCache<String> _nodeAvailabilityCache;
     private final NodeIdList _nodeIds;
     private final List<String> _failoverNodeIds;
+    private final Map<String, NodeCircuitBreaker> _circuitBreakers = new ConcurrentHashMap<String, NodeCircuitBreaker>();
+
+    /*
+     * The node ids with their cumulative weights for the selection of the node of a new session,
+     * both are not modified after construction.
+     */
+    private final String[] _weightedNodeIds;
+    private final int[] _cumulativeWeights;
+    private final Map<String, Integer> _nodeIndexes;
+    /*
+     * 8 times the moving average of the durations of operations (in millis) per node of _weightedNodeIds,
+     * -1 if unknown.
+     */
+    private final AtomicLongArray _latencies;
+    private volatile boolean _latencyAware;
+    private volatile Set<String> _drainingNodeIds = Collections.emptySet();
 
     /**
      * Constructs a new {@link NodeIdService}.
@@ -67,13 +91,47 @@ public class NodeIdService {
      * @param failoverNodeIds
      */
     public NodeIdService( final NodeAvailabilityCache<String> nodeAvailabilityCache, final NodeIdList nodeIds, final List<String> failoverNodeIds ) {
+        this( nodeAvailabilityCache, nodeIds, failoverNodeIds, null );
+    }
+
+    /**
+     * Constructs a new {@link NodeIdService}.
+     *
+     * @param nodeAvailabilityCache
+     * @param nodeIds
+     * @param failoverNodeIds
+     * @param nodeWeights the weights of the node ids for the selection of the node of a new session,
+     *  nodes without weight have a weight of 1.
+     */
+    public NodeIdService( final NodeAvailabilityCache<String> nodeAvailabilityCache, final NodeIdList nodeIds,
+            final List<String> failoverNodeIds, @Nullable final Map<String, Integer> nodeWeights ) {
         _nodeAvailabilityCache = nodeAvailabilityCache;
         _nodeIds = nodeIds;
         _failoverNodeIds = failoverNodeIds;
+        _weightedNodeIds = nodeIds.toArray( new String[nodeIds.size()] );
+        _cumulativeWeights = new int[_weightedNodeIds.length];
+        _nodeIndexes = new HashMap<String, Integer>();
+        _latencies = new AtomicLongArray( _weightedNodeIds.length );
+        int totalWeight = 0;
+        for ( int i = 0; i < _weightedNodeIds.length; i++ ) {
+            final Integer weight = nodeWeights != null ? nodeWeights.get( _weightedNodeIds[i] ) : null;
+            totalWeight += weight != null ? weight.intValue() : 1;
+            _cumulativeWeights[i] = totalWeight;
+            _nodeIndexes.put( _weightedNodeIds[i], i );
+            _latencies.set( i, -1 );
+        }
+        for ( final String nodeId : nodeIds ) {
+            _circuitBreakers.put( nodeId, new NodeCircuitBreaker( NodeCircuitBreaker.DEFAULT_SLOW_CALL_DURATION ) );
+        }
+        if ( failoverNodeIds != null ) {
+            for ( final String nodeId : failoverNodeIds ) {
+                _circuitBreakers.put( nodeId, new NodeCircuitBreaker( NodeCircuitBreaker.DEFAULT_SLOW_CALL_DURATION ) );
+            }
+        }
     }
 
     /**
-     * A special constructor used for testing of {@link #getRandomNextNodeId(String, Set)}.
+     * A special constructor used for testing of {@link #getRandomNextNodeId(String, List)}.
      *
      * @param nodeIds
      * @param failoverNodeIds
@@ -84,12 +142,114 @@ public class NodeIdService {
     }
 
     /**
-     * Determines, if the given nodeId is available.
+     * Determines, if the given nodeId is available: the node must be marked as available and
+     * its circuit breaker must not be open (see {@link NodeCircuitBreaker#isCallPermitted()}).
      * @param nodeId the node to check, not <code>null</code>.
-     * @return <code>true</code>, if the node is marked as available
+     * @return <code>true</code>, if the node is available
      */
     public boolean isNodeAvailable( @Nonnull final String nodeId ) {
-        return _nodeAvailabilityCache.isNodeAvailable( nodeId );
+        final NodeCircuitBreaker circuitBreaker = _circuitBreakers.get( nodeId );
+        return ( circuitBreaker == null || circuitBreaker.isCallPermitted() )
+            && _nodeAvailabilityCache.isNodeAvailable( nodeId );
+    }
+
+    /**
+     * Records a successful operation on the given node for its circuit breaker.
+     * @param nodeId the node the operation was performed on
+     * @param durationInMillis the duration of the operation
+     */
+    public void recordSuccess( @Nonnull final String nodeId, final long durationInMillis ) {
+        final NodeCircuitBreaker circuitBreaker = _circuitBreakers.get( nodeId );
+        if ( circuitBreaker != null ) {
+            circuitBreaker.recordSuccess( durationInMillis );
+        }
+        final Integer idx = _nodeIndexes.get( nodeId );
+        if ( idx != null ) {
+            /* an exponentially weighted moving average (with a weight of 1/8 for the
+             * new duration), not synchronized as it's just an estimation
+             */
+            final long previous = _latencies.get( idx );
+            _latencies.set( idx, previous < 0 ? durationInMillis * 8 : previous - ( previous >> 3 ) + durationInMillis );
+        }
+    }
+
+    /**
+     * Sets the nodes that are drained: they are not selected for new sessions or as target of a relocation,
+     * and sessions stored in these nodes shall be relocated (see {@link #getNewNodeIdIfUnavailable(String)}).
+     * Draining nodes are still available, so that sessions can be loaded from them.
+     */
+    public void setDrainingNodeIds( @Nonnull final Collection<String> drainingNodeIds ) {
+        _drainingNodeIds = Collections.unmodifiableSet( new HashSet<String>( drainingNodeIds ) );
+    }
+
+    /**
+     * Determines if the given node is drained.
+     */
+    public boolean isNodeDraining( @Nonnull final String nodeId ) {
+        return _drainingNodeIds.contains( nodeId );
+    }
+
+    /**
+     * Specifies if the selection of the node for a new session shall take the latency of the nodes into account:
+     * of two (weighted) randomly chosen nodes the one with the lower latency is selected ("power of two choices").
+     * The latency of a node is the moving average of the durations of operations on the node, or if there were no
+     * operations yet the duration of the last availability check.
+     */
+    public void setLatencyAware( final boolean latencyAware ) {
+        _latencyAware = latencyAware;
+    }
+
+    /**
+     * The latency of the given node in millis, or <code>-1</code> if it's not known.
+     */
+    public double getLatency( @Nonnull final String nodeId ) {
+        final Integer idx = _nodeIndexes.get( nodeId );
+        final long result = idx != null ? getLatency( idx.intValue() ) : -1;
+        return result < 0 ? -1 : result / 8d;
+    }
+
+    private long getLatency( final int idx ) {
+        final long result = _latencies.get( idx );
+        if ( result >= 0 || _nodeAvailabilityCache == null ) {
+            return result;
+        }
+        final long probeLatency = _nodeAvailabilityCache.getProbeLatency( _weightedNodeIds[idx] );
+        return probeLatency < 0 ? -1 : probeLatency * 8;
+    }
+
+    /**
+     * Records a failed operation on the given node for its circuit breaker.
+     * @param nodeId the node the operation was performed on
+     */
+    public void recordFailure( @Nonnull final String nodeId ) {
+        final NodeCircuitBreaker circuitBreaker = _circuitBreakers.get( nodeId );
+        if ( circuitBreaker != null ) {
+            circuitBreaker.recordFailure();
+        }
+    }
+
+    /**
+     * The circuit breaker of the given node, or <code>null</code> for an unknown node.
+     */
+    @CheckForNull
+    public NodeCircuitBreaker getCircuitBreaker( @Nonnull final String nodeId ) {
+        return _circuitBreakers.get( nodeId );
+    }
+
+    /**
+     * The state of the circuit breakers of all nodes, one entry per node.
+     */
+    @Nonnull
+    public String[] getCircuitBreakerInfo() {
+        final List<String> nodeIds = new ArrayList<String>( _nodeIds );
+        if ( _failoverNodeIds != null ) {
+            nodeIds.addAll( _failoverNodeIds );
+        }
+        final String[] result = new String[nodeIds.size()];
+        for ( int i = 0; i < result.length; i++ ) {
+            result[i] = nodeIds.get( i ) + ": " + _circuitBreakers.get( nodeIds.get( i ) );
+        }
+        return result;
     }
 
     /**
@@ -149,7 +309,8 @@ public class NodeIdService {
     /**
      * Determines (randomly) an available node id from the provided node ids. The
      * returned node id will be different from the provided nodeId and will
-     * be available according to the local {@link NodeAvailabilityCache}.
+     * be available according to the local {@link NodeAvailabilityCache}, draining
+     * nodes are skipped. The node ids are checked in their order, starting at a random position.
      *
      * @param nodeId
      *            the original id
@@ -157,32 +318,57 @@ public class NodeIdService {
      *            the node ids to choose from
      * @return an available node or null
      */
-    protected String getRandomNextNodeId( final String nodeId, final Collection<String> nodeIds ) {
-
-        /* create a list of nodeIds to check randomly
-         */
-        final List<String> otherNodeIds = new ArrayList<String>( nodeIds );
-        otherNodeIds.remove( nodeId );
-
-        while ( !otherNodeIds.isEmpty() ) {
-            final String nodeIdToCheck = otherNodeIds.get( _random.nextInt( otherNodeIds.size() ) );
-            if ( isNodeAvailable( nodeIdToCheck ) ) {
+    protected String getRandomNextNodeId( final String nodeId, final List<String> nodeIds ) {
+        final int size = nodeIds.size();
+        if ( size == 0 ) {
+            return null;
+        }
+        final int start = _random.nextInt( size );
+        for ( int i = 0; i < size; i++ ) {
+            final String nodeIdToCheck = nodeIds.get( ( start + i ) % size );
+            if ( !nodeIdToCheck.equals( nodeId ) && isNodeSelectable( nodeIdToCheck ) ) {
                 return nodeIdToCheck;
             }
-            otherNodeIds.remove( nodeIdToCheck );
         }
-
         return null;
     }
 
     /**
-     * Get the next random, available node id. If no node is available, <code>null</code>
+     * Get the next random, available node id. The node is selected with a probability
+     * according to its weight, and if the selection is latency aware (see {@link #setLatencyAware(boolean)})
+     * the faster of two selected nodes is chosen. If no node is available, <code>null</code>
      * is returned.
      * @return a nodeId or <code>null</code>.
      */
     public String getMemcachedNodeId() {
-        final String nodeId = _nodeIds.get( _random.nextInt( _nodeIds.size() ) );
-        return isNodeAvailable( nodeId ) ? nodeId : getAvailableNodeId( nodeId );
+        int idx = selectWeightedIndex();
+        if ( _latencyAware ) {
+            final int other = selectWeightedIndex();
+            if ( other != idx && getLatency( other ) < getLatency( idx ) ) {
+                idx = other;
+            }
+        }
+        final String nodeId = _weightedNodeIds[idx];
+        return isNodeSelectable( nodeId ) ? nodeId : getAvailableNodeId( nodeId );
+    }
+
+    /**
+     * Determines if the given node may be selected for a new or relocated session: it must not be draining,
+     * must be available and its circuit breaker must grant a trial permit if it's half open
+     * (see {@link NodeCircuitBreaker#tryAcquireTrialPermit()}).
+     */
+    private boolean isNodeSelectable( @Nonnull final String nodeId ) {
+        if ( isNodeDraining( nodeId ) || !isNodeAvailable( nodeId ) ) {
+            return false;
+        }
+        final NodeCircuitBreaker circuitBreaker = _circuitBreakers.get( nodeId );
+        return circuitBreaker == null || circuitBreaker.tryAcquireTrialPermit();
+    }
+
+    private int selectWeightedIndex() {
+        final int value = _random.nextInt( _cumulativeWeights[_cumulativeWeights.length - 1] );
+        final int idx = Arrays.binarySearch( _cumulativeWeights, value );
+        return idx >= 0 ? idx + 1 : -idx - 1;
     }
 
     /* Just for testing
@@ -197,9 +383,9 @@ public class NodeIdService {
     }
 
     /**
-     * Returns a new node id if the given one is <code>null</code> or not available.
+     * Returns a new node id if the given one is <code>null</code>, not available or draining.
      * @param nodeId the node id that is checked for availability (if not <code>null</code>).
-     * @return a new node id if the given one is <code>null</code> or not available, otherwise <code>null</code>.
+     * @return a new node id if the given one is <code>null</code>, not available or draining, otherwise <code>null</code>.
      */
     public String getNewNodeIdIfUnavailable( final String nodeId ) {
         final String newNodeId;
@@ -207,10 +393,10 @@ public class NodeIdService {
             newNodeId = getMemcachedNodeId();
         }
         else {
-            if ( !isNodeAvailable( nodeId ) ) {
+            if ( isNodeDraining( nodeId ) || !isNodeAvailable( nodeId ) ) {
                 newNodeId = getAvailableNodeId( nodeId );
                 if ( newNodeId == null ) {
-                    LOG.warn( "The node " + nodeId + " is not available and there's no node for relocation left." );
+                    LOG.warn( "The node " + nodeId + " is not available or draining and there's no node for relocation left." );
                 }
             }
             else {
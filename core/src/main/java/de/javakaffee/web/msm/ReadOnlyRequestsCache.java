@@ -16,76 +16,118 @@
  */
 package de.javakaffee.web.msm;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
 /**
  * Stores readonly requests and a blacklist (requests that modified the session).
+ * <p>
+ * Requests are tracked by the 64 bit hash of the request id in {@link HashedRequestCounters}, so that
+ * checking a request doesn't allocate objects and the (large) blacklist doesn't hold any request id strings.
+ * Only the request ids of the readonly requests are kept for {@link #getReadOnlyRequests()}
+ * and {@link #getReadOnlyRequestsByFrequency()}.
+ * </p>
+ * <p>
+ * A request is regarded as readonly if it was registered as readonly at least <em>minReadOnlyObservations</em>
+ * times since it was last registered as modifying, and if the readonly registrations make up at least
+ * <em>readOnlyConfidence</em> percent of all registrations of the request. If a <em>decayHalfLife</em> is
+ * set, registrations count less the older they are, so that a request that modified the session once
+ * is regarded as readonly again after it was registered as readonly often enough. With the default
+ * settings (1 observation, 100% confidence, no decay) a request is readonly after the first readonly
+ * registration, until it's registered as modifying.
+ * </p>
  *
  * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
  */
 public class ReadOnlyRequestsCache {
 
-    private static final Comparator<AtomicLong> ATOMLONG_COMP = new Comparator<AtomicLong>() {
-
-        @Override
-        public int compare( final AtomicLong o1, final AtomicLong o2 ) {
-            final long val1 = o1.longValue();
-            final long val2 = o2.longValue();
-            return val1 < val2 ? -1 : ( val1 == val2 ? 0 : 1);
-        }
-
-    };
+    private static final int MAX_READONLY_REQUESTS = 1000;
+    private static final int MAX_BLACKLISTED_REQUESTS = 50000;
 
     private final Log _log = LogFactory.getLog( getClass() );
 
-    private final LRUCache<String, AtomicLong> _readOnlyRequests;
-    private final LRUCache<String, AtomicLong> _blacklist;
+    private final int _minReadOnlyObservations;
+    private final float _readOnlyConfidence;
+
+    private final HashedRequestCounters _readOnlyRequests;
+    private final HashedRequestCounters _blacklist;
+    /**
+     * The request ids of the readonly requests by their hash, entries of requests that were
+     * removed from {@link #_readOnlyRequests} are skipped when listing the requests.
+     */
+    private final ConcurrentLRUCache<Long, String> _readOnlyRequestIds;
 
     public ReadOnlyRequestsCache() {
+        this( 1, 100, -1 );
+    }
+
+    /**
+     * @param minReadOnlyObservations the number of readonly registrations since the last modifying
+     *  registration before a request is regarded as readonly.
+     * @param readOnlyConfidence the minimum percentage of readonly registrations of all registrations
+     *  of a request, so that it's regarded as readonly.
+     * @param decayHalfLifeInMillis the half life of registrations, specify -1 so that registrations don't decay.
+     */
+    public ReadOnlyRequestsCache( final int minReadOnlyObservations, final int readOnlyConfidence, final long decayHalfLifeInMillis ) {
+        if ( readOnlyConfidence < 0 || readOnlyConfidence > 100 ) {
+            throw new IllegalArgumentException( "The readOnlyConfidence must be a percentage between 0 and 100, but is " + readOnlyConfidence );
+        }
+        _minReadOnlyObservations = Math.max( 1, minReadOnlyObservations );
+        _readOnlyConfidence = readOnlyConfidence / 100f;
         final long sixHours = TimeUnit.HOURS.toMillis( 6 );
-        _readOnlyRequests = new LRUCache<String, AtomicLong>( 1000, sixHours );
-        _blacklist = new LRUCache<String, AtomicLong>( 50000, sixHours );
+        _readOnlyRequests = new HashedRequestCounters( MAX_READONLY_REQUESTS, sixHours, decayHalfLifeInMillis );
+        _blacklist = new HashedRequestCounters( MAX_BLACKLISTED_REQUESTS, sixHours, decayHalfLifeInMillis );
+        _readOnlyRequestIds = new ConcurrentLRUCache<Long, String>( MAX_READONLY_REQUESTS, sixHours );
     }
 
     /**
-     * Registers the given requestURI as a readonly request, as long as it has not been tracked
-     * before as a modifying request (via {@link #modifyingRequest(String)}).
+     * Registers the given requestURI as a readonly request. If 100% confidence is required, requests
+     * that have been tracked before as a modifying request (via {@link #modifyingRequest(String)}) are not
+     * registered.
      * <p>
      * There's a limit on the number and the time readonly requests are beeing stored (simply a LRU cache),
      * so that the most frequently accessed readonly requests are stored.
      * </p>
      * @param requestId the request uri to track.
-     * @return <code>true</code> if the requestURI was stored as readonly, <code>false</code> if it was on the blacklist.
+     * @return <code>true</code> if the requestURI is regarded as readonly now, otherwise <code>false</code>.
      * @see #modifyingRequest(String)
      */
     public boolean readOnlyRequest( final String requestId ) {
-        if ( !_blacklist.containsKey( requestId ) ) {
-            if ( _log.isDebugEnabled() ) {
-                _log.debug( "Registering readonly request: " + requestId );
-            }
-            incrementOrPut( _readOnlyRequests, requestId );
-            return true;
+        final long hash = HashedRequestCounters.hash( requestId );
+        if ( _readOnlyConfidence >= 1 && _blacklist.contains( hash ) ) {
+            return false;
         }
-        return false;
+        if ( _log.isDebugEnabled() ) {
+            _log.debug( "Registering readonly request: " + requestId );
+        }
+        _readOnlyRequests.increment( hash );
+        if ( !_readOnlyRequestIds.containsKey( hash ) ) {
+            _readOnlyRequestIds.put( hash, requestId );
+        }
+        return isReadOnlyRequest( hash );
     }
 
     /**
      * Registers the given requestURI as a modifying request, which can be seen as a blacklist for
-     * readonly requests. There's a limit on number and time for modifying requests beeing stored.
+     * readonly requests, the readonly registrations of the request are reset.
+     * There's a limit on number and time for modifying requests beeing stored.
      * @param requestId the request uri to track.
      */
     public void modifyingRequest( final String requestId ) {
         if ( _log.isDebugEnabled() ) {
             _log.debug( "Registering modifying request: " + requestId );
         }
-        incrementOrPut( _blacklist, requestId );
-        _readOnlyRequests.remove( requestId );
+        final long hash = HashedRequestCounters.hash( requestId );
+        _blacklist.increment( hash );
+        if ( _readOnlyRequests.remove( hash ) ) {
+            _readOnlyRequestIds.remove( hash );
+        }
     }
 
     /**
@@ -94,11 +136,26 @@ public class ReadOnlyRequestsCache {
      * @return <code>true</code> if the given request uri can be regarded as read only.
      */
     public boolean isReadOnlyRequest( final String requestId ) {
+        final boolean result = isReadOnlyRequest( HashedRequestCounters.hash( requestId ) );
         if ( _log.isDebugEnabled() ) {
-            _log.debug( "Asked for readonly request: " + requestId + " ("+ _readOnlyRequests.containsKey( requestId ) +")" );
+            _log.debug( "Asked for readonly request: " + requestId + " ("+ result +")" );
         }
-        // TODO: add some threshold
-        return _readOnlyRequests.containsKey( requestId );
+        return result;
+    }
+
+    /**
+     * Determines, if the request with the given hash (see {@link RequestIdNormalizer#hash(String, String)}) is a
+     * readOnly request and not blacklisted as a modifying request.
+     * @param requestIdHash the hash of the request uri to check
+     * @return <code>true</code> if the given request can be regarded as read only.
+     */
+    public boolean isReadOnlyRequest( final long requestIdHash ) {
+        final float readOnly = _readOnlyRequests.getCount( requestIdHash );
+        if ( readOnly == 0 || readOnly < _minReadOnlyObservations - 0.0001f ) {
+            return false;
+        }
+        final float modifying = _blacklist.getCount( requestIdHash );
+        return modifying == 0 || readOnly >= _readOnlyConfidence * ( readOnly + modifying );
     }
 
     /**
@@ -106,7 +163,14 @@ public class ReadOnlyRequestsCache {
      * @return a list of readonly requests.
      */
     public List<String> getReadOnlyRequests() {
-        return _readOnlyRequests.getKeys();
+        final List<Entry> entries = getEntries();
+        Collections.sort( entries, new Comparator<Entry>() {
+            @Override
+            public int compare( final Entry o1, final Entry o2 ) {
+                return o1._lastAccess < o2._lastAccess ? -1 : ( o1._lastAccess == o2._lastAccess ? 0 : 1 );
+            }
+        } );
+        return toRequestIds( entries );
     }
 
     /**
@@ -114,16 +178,48 @@ public class ReadOnlyRequestsCache {
      * @return a list of readonly requests.
      */
     public List<String> getReadOnlyRequestsByFrequency() {
-        return _readOnlyRequests.getKeysSortedByValue( ATOMLONG_COMP );
+        final List<Entry> entries = getEntries();
+        Collections.sort( entries, new Comparator<Entry>() {
+            @Override
+            public int compare( final Entry o1, final Entry o2 ) {
+                return o1._count < o2._count ? -1 : ( o1._count == o2._count ? 0 : 1 );
+            }
+        } );
+        return toRequestIds( entries );
     }
 
-    private void incrementOrPut( final LRUCache<String, AtomicLong> cache, final String requestURI ) {
-        final AtomicLong count = cache.get( requestURI );
-        if ( count != null ) {
-            count.incrementAndGet();
+    private List<Entry> getEntries() {
+        final List<Long> hashes = _readOnlyRequestIds.getKeys();
+        final List<Entry> result = new ArrayList<Entry>( hashes.size() );
+        for ( final Long hash : hashes ) {
+            final String requestId = _readOnlyRequestIds.get( hash );
+            if ( requestId != null && isReadOnlyRequest( hash ) ) {
+                result.add( new Entry( requestId, _readOnlyRequests.getCount( hash ), _readOnlyRequests.getLastAccessTime( hash ) ) );
+            }
         }
-        else {
-            cache.put( requestURI, new AtomicLong( 1 ) );
+        return result;
+    }
+
+    private static List<String> toRequestIds( final List<Entry> entries ) {
+        final List<String> result = new ArrayList<String>( entries.size() );
+        for ( final Entry entry : entries ) {
+            result.add( entry._requestId );
+        }
+        return result;
+    }
+
+    /**
+     * A snapshot of a readonly request.
+     */
+    private static final class Entry {
+        private final String _requestId;
+        private final float _count;
+        private final long _lastAccess;
+
+        private Entry( final String requestId, final float count, final long lastAccess ) {
+            _requestId = requestId;
+            _count = count;
+            _lastAccess = lastAccess;
         }
     }
 
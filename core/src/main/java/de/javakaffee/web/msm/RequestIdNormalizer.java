@@ -0,0 +1,225 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Normalizes request ids (request uri with query string, see {@link SessionTrackerValve#getURIWithQueryString(org.apache.catalina.connector.Request)})
+ * for the {@link ReadOnlyRequestsCache}, so that requests for different entities of the same resource are
+ * treated as the same request: path segments that are numeric or UUIDs are replaced by <code>{id}</code>,
+ * and volatile query parameters (e.g. cache busters) are removed.
+ * <p>
+ * E.g. <code>/order/12345/items?page=2&amp;_=1311256400</code> is normalized to <code>/order/{id}/items?page=2</code>
+ * if ids are normalized and the parameter <code>_</code> is ignored.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+class RequestIdNormalizer {
+
+    static final String ID_PLACEHOLDER = "{id}";
+
+    /**
+     * The ignored parameters value that specifies that the whole query string is ignored.
+     */
+    static final String ALL_PARAMETERS = "*";
+
+    /**
+     * A normalizer that returns the request ids unchanged.
+     */
+    static final RequestIdNormalizer NONE = new RequestIdNormalizer( false, null );
+
+    private static final int UUID_LENGTH = 36;
+
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder( 256 );
+        }
+    };
+
+    private final boolean _normalizeIds;
+    private final String[] _ignoredParameters;
+    private final boolean _ignoreQueryString;
+
+    /**
+     * @param normalizeIds specifies if numeric and UUID path segments shall be replaced by {@value #ID_PLACEHOLDER}.
+     * @param ignoredParameters a comma separated list of query parameter names that shall be removed,
+     *  or {@value #ALL_PARAMETERS} to remove the query string.
+     */
+    RequestIdNormalizer( final boolean normalizeIds, @Nullable final String ignoredParameters ) {
+        _normalizeIds = normalizeIds;
+        final Set<String> parameters = new HashSet<String>();
+        if ( ignoredParameters != null ) {
+            for ( final String parameter : ignoredParameters.split( "," ) ) {
+                if ( parameter.trim().length() > 0 ) {
+                    parameters.add( parameter.trim() );
+                }
+            }
+        }
+        _ignoreQueryString = parameters.remove( ALL_PARAMETERS );
+        _ignoredParameters = parameters.toArray( new String[parameters.size()] );
+    }
+
+    /**
+     * Determines if this normalizer returns request ids unchanged.
+     */
+    boolean isIdentity() {
+        return !_normalizeIds && !_ignoreQueryString && _ignoredParameters.length == 0;
+    }
+
+    /**
+     * Normalizes the given request id (request uri with optional query string appended with <code>?</code>).
+     */
+    @Nonnull
+    String normalize( @Nonnull final String requestId ) {
+        if ( isIdentity() ) {
+            return requestId;
+        }
+        final int idx = requestId.indexOf( '?' );
+        return idx < 0
+            ? normalize( requestId, null )
+            : normalize( requestId.substring( 0, idx ), requestId.substring( idx + 1 ) );
+    }
+
+    /**
+     * Normalizes the request id consisting of the given request uri and query string.
+     */
+    @Nonnull
+    String normalize( @Nonnull final String requestURI, @CheckForNull final String queryString ) {
+        final StringBuilder sb = new StringBuilder( requestURI.length() + ( queryString != null ? queryString.length() + 1 : 0 ) );
+        append( sb, requestURI, queryString );
+        return sb.toString();
+    }
+
+    /**
+     * Computes the hash of the normalized request id consisting of the given request uri and query string
+     * (see {@link HashedRequestCounters#hash(String, String)}), the normalized request id is built in a buffer
+     * that's reused by the current thread.
+     */
+    long hash( @Nonnull final String requestURI, @CheckForNull final String queryString ) {
+        if ( isIdentity() ) {
+            return HashedRequestCounters.hash( requestURI, queryString );
+        }
+        final StringBuilder sb = BUFFER.get();
+        sb.setLength( 0 );
+        append( sb, requestURI, queryString );
+        return HashedRequestCounters.hash( sb );
+    }
+
+    private void append( final StringBuilder sb, final String requestURI, final String queryString ) {
+        appendPath( sb, requestURI );
+        if ( queryString != null && !_ignoreQueryString ) {
+            appendQueryString( sb, queryString );
+        }
+    }
+
+    private void appendPath( final StringBuilder sb, final String requestURI ) {
+        if ( !_normalizeIds ) {
+            sb.append( requestURI );
+            return;
+        }
+        int start = 0;
+        while ( start <= requestURI.length() ) {
+            int end = requestURI.indexOf( '/', start );
+            if ( end < 0 ) {
+                end = requestURI.length();
+            }
+            if ( start > 0 ) {
+                sb.append( '/' );
+            }
+            if ( isId( requestURI, start, end ) ) {
+                sb.append( ID_PLACEHOLDER );
+            }
+            else {
+                sb.append( requestURI, start, end );
+            }
+            start = end + 1;
+        }
+    }
+
+    private void appendQueryString( final StringBuilder sb, final String queryString ) {
+        final int queryStart = sb.length();
+        int start = 0;
+        while ( start <= queryString.length() ) {
+            int end = queryString.indexOf( '&', start );
+            if ( end < 0 ) {
+                end = queryString.length();
+            }
+            if ( end > start && !isIgnored( queryString, start, end ) ) {
+                sb.append( sb.length() == queryStart ? '?' : '&' ).append( queryString, start, end );
+            }
+            start = end + 1;
+        }
+    }
+
+    private boolean isIgnored( final String queryString, final int start, final int end ) {
+        final int idx = queryString.indexOf( '=', start );
+        final int nameLength = ( idx < 0 || idx > end ? end : idx ) - start;
+        for ( final String parameter : _ignoredParameters ) {
+            if ( parameter.length() == nameLength && queryString.regionMatches( start, parameter, 0, nameLength ) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Determines if the given path segment is a number or a UUID.
+     */
+    static boolean isId( final CharSequence s, final int start, final int end ) {
+        if ( start == end ) {
+            return false;
+        }
+        if ( isNumeric( s, start, end ) ) {
+            return true;
+        }
+        return end - start == UUID_LENGTH && isUUID( s, start );
+    }
+
+    private static boolean isNumeric( final CharSequence s, final int start, final int end ) {
+        for ( int i = start; i < end; i++ ) {
+            final char c = s.charAt( i );
+            if ( c < '0' || c > '9' ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isUUID( final CharSequence s, final int start ) {
+        for ( int i = 0; i < UUID_LENGTH; i++ ) {
+            final char c = s.charAt( start + i );
+            if ( i == 8 || i == 13 || i == 18 || i == 23 ) {
+                if ( c != '-' ) {
+                    return false;
+                }
+            }
+            else if ( Character.digit( c, 16 ) < 0 ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+/**
+ * The serialized form of a single session attribute value, as cached by the
+ * {@link MemcachedBackupSession} (see {@link TranscoderService#serializeAttribute(MemcachedBackupSession, String, Object)}).
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+final class SerializedAttribute {
+
+    private final Object _value;
+    private final byte[] _data;
+    private final long _hash;
+
+    /**
+     * @param value the attribute value that was serialized.
+     * @param data the serialized attribute, <code>null</code> if the serialization is still running.
+     * @param hash the hash of the serialized attribute.
+     */
+    SerializedAttribute( @Nonnull final Object value, @CheckForNull final byte[] data, final long hash ) {
+        _value = value;
+        _data = data;
+        _hash = hash;
+    }
+
+    /**
+     * Determines, if this is the serialized form of the given attribute value.
+     */
+    boolean isSerializedFormOf( final Object value ) {
+        return _data != null && _value == value;
+    }
+
+    @CheckForNull
+    byte[] getData() {
+        return _data;
+    }
+
+    long getHash() {
+        return _hash;
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.Collection;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Relocates sessions stored in draining memcached nodes (see {@link MemcachedNodesManager#setDrainingNodeIds(Collection)})
+ * to other memcached nodes in the background, so that a node can be removed without losing sessions.
+ * Once per second at most <code>sessionsPerSecond</code> sessions are relocated, so that the memcached nodes
+ * don't get all session backups at once. When there are no sessions left to relocate the drainer stops
+ * until it's started again.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+class SessionDrainer {
+
+    private static final Log _log = LogFactory.getLog( SessionDrainer.class );
+
+    /**
+     * Provides the sessions to drain and relocates them.
+     */
+    static interface Callback {
+
+        /**
+         * The local sessions that are stored in draining memcached nodes.
+         */
+        @Nonnull
+        Collection<MemcachedBackupSession> getSessionsToDrain();
+
+        /**
+         * Relocates the given session to another memcached node.
+         *
+         * @return <code>false</code> if the session cannot be relocated now (e.g. as it's accessed by a request).
+         */
+        boolean relocate( @Nonnull MemcachedBackupSession session );
+
+        /**
+         * Completes the relocation of sessions whose backup with the new id finished meanwhile
+         * (deletes them from the draining node).
+         *
+         * @return <code>true</code> if there are relocations that are not yet completed.
+         */
+        boolean completeRelocations();
+
+    }
+
+    private final int _sessionsPerSecond;
+    private final Callback _callback;
+    private final ScheduledThreadPoolExecutor _executor;
+    /*
+     * Guarded by this.
+     */
+    private ScheduledFuture<?> _task;
+
+    /**
+     * @param sessionsPerSecond the maximum number of sessions relocated per second.
+     * @param callback provides and relocates the sessions.
+     */
+    SessionDrainer( final int sessionsPerSecond, @Nonnull final Callback callback ) {
+        _sessionsPerSecond = sessionsPerSecond;
+        _callback = callback;
+        _executor = new ScheduledThreadPoolExecutor( 1, new NamedDaemonThreadFactory( "msm-session-drainer" ) );
+        // don't keep the thread if no node is drained
+        _executor.setKeepAliveTime( 60, TimeUnit.SECONDS );
+        _executor.allowCoreThreadTimeOut( true );
+    }
+
+    /**
+     * Starts draining in the background, if it's not already running.
+     */
+    synchronized void start() {
+        if ( _task != null ) {
+            return;
+        }
+        try {
+            _task = _executor.scheduleWithFixedDelay( new Runnable() {
+                @Override
+                public void run() {
+                    /* synchronized so that a start while the last sessions are relocated
+                     * is not lost by stopping afterwards
+                     */
+                    synchronized ( SessionDrainer.this ) {
+                        try {
+                            if ( drain() < 0 ) {
+                                stop();
+                            }
+                        } catch ( final Throwable e ) {
+                            _log.warn( "Could not relocate sessions of draining memcached nodes.", e );
+                        }
+                    }
+                }
+            }, 0, 1, TimeUnit.SECONDS );
+        } catch ( final RejectedExecutionException e ) {
+            // we're shut down
+        }
+    }
+
+    /**
+     * Stops draining, it's started again with {@link #start()}.
+     */
+    synchronized void stop() {
+        if ( _task != null ) {
+            _task.cancel( false );
+            _task = null;
+        }
+    }
+
+    synchronized boolean isRunning() {
+        return _task != null;
+    }
+
+    void shutdown() {
+        stop();
+        _executor.shutdownNow();
+    }
+
+    /**
+     * Relocates at most <code>sessionsPerSecond</code> sessions. Relocations are not awaited, they're
+     * completed by the following runs.
+     *
+     * @return the number of relocated sessions, or <code>-1</code> if there are no sessions left to relocate
+     *  and all relocations are completed.
+     */
+    int drain() {
+        final boolean relocationsPending = _callback.completeRelocations();
+        final Collection<MemcachedBackupSession> sessions = _callback.getSessionsToDrain();
+        if ( sessions.isEmpty() ) {
+            if ( relocationsPending ) {
+                return 0;
+            }
+            _log.info( "Finished draining, there are no more sessions stored in draining memcached nodes." );
+            return -1;
+        }
+        int result = 0;
+        for ( final MemcachedBackupSession session : sessions ) {
+            if ( result >= _sessionsPerSecond ) {
+                break;
+            }
+            if ( _callback.relocate( session ) ) {
+                result++;
+            }
+        }
+        if ( _log.isDebugEnabled() ) {
+            _log.debug( "Relocated " + result + " of " + sessions.size() + " sessions stored in draining memcached nodes." );
+        }
+        return result;
+    }
+
+}
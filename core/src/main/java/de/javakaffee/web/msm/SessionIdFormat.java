@@ -202,6 +202,20 @@ public class SessionIdFormat {
         return "lock:" + sessionId;
     }
 
+    /**
+     * Creates the name/key that is used for the number of readers holding a shared lock
+     * of the session in memcached.
+     * @param sessionId the session id for that a readers key shall be created.
+     * @return a String.
+     */
+    @Nonnull
+    public String createReadersKeyName( @Nonnull final String sessionId ) {
+        if ( sessionId == null ) {
+            throw new IllegalArgumentException( "The sessionId must not be null." );
+        }
+        return "readers:" + sessionId;
+    }
+
     /**
      * Creates the name/key that is used for the data (session or validity info)
      * that is additionally stored in a secondary memcached node for non-sticky sessions.
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import de.javakaffee.web.msm.BackupSessionTask.BackupResult;
+import de.javakaffee.web.msm.SessionTrackerValve.SessionBackupService.BackupResultStatus;
+
+/**
+ * A bounded cache of non-sticky sessions that were released by this tomcat at the end of a request,
+ * so that the next request for the session served by this tomcat can reuse the session instead of
+ * deserializing it again.
+ * <p>
+ * Each entry is tagged with the validity info that was written for the session (see
+ * {@link SessionValidityInfo}). Every request that uses the session on any tomcat writes a new
+ * validity info, so if the validity info in memcached still equals the tag, the session was not
+ * touched by another tomcat and the cached session is up to date. For cached sessions only the
+ * validity info is loaded first, the session data is only loaded on a miss.
+ * </p>
+ * <p>
+ * The cache is bounded by the number of cached sessions, least recently used entries are evicted first.
+ * The heap used by the cache therefore depends on the size of the (deserialized) sessions. It's not
+ * bounded by a heap budget, as the size of a deserialized session is not known (only the size of
+ * its serialized form).
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+class SessionNearCache {
+
+    private final int _maxEntries;
+    private final LinkedHashMap<String, Entry> _entries = new LinkedHashMap<String, Entry>( 16, 0.75f, true );
+
+    /**
+     * @param maxEntries the maximum number of cached sessions.
+     */
+    SessionNearCache( final int maxEntries ) {
+        _maxEntries = maxEntries;
+    }
+
+    /**
+     * Caches the given session that was released at the end of a request.
+     *
+     * @param session the session, it must no longer be used by the request.
+     * @param validityData the validity info that was stored for the session with this backup.
+     * @param backupResult the result of the session backup, the entry is only used if the backup did not fail.
+     */
+    synchronized void put( @Nonnull final MemcachedBackupSession session, @Nonnull final byte[] validityData,
+            @Nonnull final Future<BackupResult> backupResult ) {
+        _entries.put( session.getIdInternal(), new Entry( session, validityData, backupResult ) );
+        final Iterator<Entry> iter = _entries.values().iterator();
+        while ( _entries.size() > _maxEntries && iter.hasNext() ) {
+            iter.next();
+            iter.remove();
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if there's an entry for the given session id, so that it's worth to
+     * check its validity info first.
+     */
+    synchronized boolean contains( @Nonnull final String sessionId ) {
+        return _entries.get( sessionId ) != null;
+    }
+
+    /**
+     * Removes and returns the cached session with the given id, if the validity info stored in memcached
+     * is the same as the one stored with the session and the backup of the session did not fail.
+     *
+     * @param sessionId the id of the session.
+     * @param validityData the validity info currently stored in memcached, can be <code>null</code>.
+     * @return the cached session or <code>null</code>.
+     */
+    @CheckForNull
+    MemcachedBackupSession take( @Nonnull final String sessionId, @CheckForNull final byte[] validityData ) {
+        final Entry entry;
+        synchronized ( this ) {
+            entry = _entries.remove( sessionId );
+            if ( entry == null ) {
+                return null;
+            }
+        }
+        if ( validityData == null || !Arrays.equals( validityData, entry._validityData ) || !entry.isBackupSuccessful() ) {
+            return null;
+        }
+        return entry._session;
+    }
+
+    /**
+     * Removes the session with the given id, e.g. because it was removed from memcached.
+     */
+    synchronized void remove( @Nonnull final String sessionId ) {
+        _entries.remove( sessionId );
+    }
+
+    /**
+     * The number of cached sessions.
+     */
+    synchronized int size() {
+        return _entries.size();
+    }
+
+    private static final class Entry {
+
+        private final MemcachedBackupSession _session;
+        private final byte[] _validityData;
+        private final Future<BackupResult> _backupResult;
+
+        Entry( final MemcachedBackupSession session, final byte[] validityData,
+                final Future<BackupResult> backupResult ) {
+            _session = session;
+            _validityData = validityData;
+            _backupResult = backupResult;
+        }
+
+        /**
+         * A session whose backup is still running must not be used, as it's still serialized
+         * by the backup.
+         */
+        boolean isBackupSuccessful() {
+            if ( !_backupResult.isDone() || _session.isBackupRunning() ) {
+                return false;
+            }
+            try {
+                return _backupResult.get().getStatus() != BackupResultStatus.FAILURE;
+            } catch ( final InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch ( final ExecutionException e ) {
+                return false;
+            }
+        }
+
+    }
+
+}
@@ -160,6 +160,16 @@ abstract class SessionTrackerValve extends ValveBase {
         return qs != null ? uri + "?" + qs : uri;
     }
 
+    /**
+     * The hash of the request id returned by {@link #getURIWithQueryString(Request)} normalized with the
+     * given normalizer (see {@link RequestIdNormalizer#hash(String, String)}), computed without building
+     * the request id string.
+     */
+    static long getURIWithQueryStringHash( @Nonnull final Request request, @Nonnull final RequestIdNormalizer normalizer ) {
+        final String qs = "post".equalsIgnoreCase( request.getMethod() ) ? null : request.getQueryString();
+        return normalizer.hash( request.getRequestURI(), qs );
+    }
+
     private void resetRequestThreadLocal() {
         if ( _lockingStrategy != null ) {
             _lockingStrategy.onRequestFinished();
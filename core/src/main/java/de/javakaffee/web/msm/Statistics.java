@@ -38,6 +38,15 @@ public class Statistics {
     private final AtomicLong _numRequestsWithoutSessionModification = new AtomicLong();
     private final AtomicLong _numNonStickySessionsPingFailed = new AtomicLong();
     private final AtomicLong _numNonStickySessionsReadOnlyRequest = new AtomicLong();
+    private final AtomicLong _numRequestsWithCoalescedBackup = new AtomicLong();
+    private final AtomicLong _numBackupsDiscarded = new AtomicLong();
+    private final AtomicLong _numBackupsInCallerThread = new AtomicLong();
+    private final AtomicLong _numNearCacheHits = new AtomicLong();
+    private final AtomicLong _numNearCacheMisses = new AtomicLong();
+    private final AtomicLong _numRequestsWithJoinedSessionLoad = new AtomicLong();
+    private final AtomicLong _numLocksHandedOver = new AtomicLong();
+    private final AtomicLong _numSharedLocksAcquired = new AtomicLong();
+    private final AtomicLong _numSessionsDrained = new AtomicLong();
 
     private final Map<StatsType, MinMaxAvgProbe> _probes;
 
@@ -155,6 +164,100 @@ public class Statistics {
         return _numNonStickySessionsReadOnlyRequest.get();
     }
 
+    /**
+     * Counts requests whose session backup was merged into an already pending
+     * backup of the same session.
+     */
+    public void requestWithCoalescedBackup() {
+        _numRequestsWithCoalescedBackup.incrementAndGet();
+    }
+    public long getRequestsWithCoalescedBackup() {
+        return _numRequestsWithCoalescedBackup.get();
+    }
+
+    /**
+     * Counts session backups that were discarded because the backup queue was full.
+     */
+    public void backupDiscarded() {
+        _numBackupsDiscarded.incrementAndGet();
+    }
+    public long getBackupsDiscarded() {
+        return _numBackupsDiscarded.get();
+    }
+
+    /**
+     * Counts session backups that were run in the request thread because the backup queue was full.
+     */
+    public void backupInCallerThread() {
+        _numBackupsInCallerThread.incrementAndGet();
+    }
+    public long getBackupsInCallerThread() {
+        return _numBackupsInCallerThread.get();
+    }
+
+    /**
+     * Counts non-sticky sessions that were taken from the near cache instead of loading them from memcached.
+     */
+    public void nearCacheHit() {
+        _numNearCacheHits.incrementAndGet();
+    }
+    public long getNearCacheHits() {
+        return _numNearCacheHits.get();
+    }
+
+    /**
+     * Counts non-sticky sessions that were found in the near cache but had to be loaded from memcached,
+     * because they were modified by another tomcat (or their backup was not finished or failed).
+     */
+    public void nearCacheMiss() {
+        _numNearCacheMisses.incrementAndGet();
+    }
+    public long getNearCacheMisses() {
+        return _numNearCacheMisses.get();
+    }
+
+    /**
+     * Counts requests that waited for the session being loaded from memcached by a concurrent
+     * request instead of loading the session on their own.
+     */
+    public void requestWithJoinedSessionLoad() {
+        _numRequestsWithJoinedSessionLoad.incrementAndGet();
+    }
+    public long getRequestsWithJoinedSessionLoad() {
+        return _numRequestsWithJoinedSessionLoad.get();
+    }
+
+    /**
+     * Counts session locks that were handed over from a request of this tomcat to another one
+     * without acquiring the lock in memcached.
+     */
+    public void lockHandedOver() {
+        _numLocksHandedOver.incrementAndGet();
+    }
+    public long getLocksHandedOver() {
+        return _numLocksHandedOver.get();
+    }
+
+    /**
+     * Counts shared session locks acquired for readonly requests (lockingMode <code>readWrite</code>).
+     */
+    public void sharedLockAcquired() {
+        _numSharedLocksAcquired.incrementAndGet();
+    }
+    public long getSharedLocksAcquired() {
+        return _numSharedLocksAcquired.get();
+    }
+
+    /**
+     * Counts sessions that were relocated in the background from a draining memcached node.
+     */
+    public void sessionDrained() {
+        _numSessionsDrained.incrementAndGet();
+    }
+    public long getSessionsDrained() {
+        return _numSessionsDrained.get();
+    }
+
     public static enum StatsType {
 
         /**
@@ -177,6 +280,12 @@ public class Statistics {
         SESSION_DESERIALIZATION,
         MEMCACHED_UPDATE,
         LOAD_FROM_MEMCACHED,
+
+        /**
+         * Provides info regarding the time that was required to take non-sticky sessions from the near cache,
+         * including the load of the validity info from memcached.
+         */
+        LOAD_FROM_NEAR_CACHE,
         DELETE_FROM_MEMCACHED,
         CACHED_DATA_SIZE,
 
@@ -208,14 +317,51 @@ public class Statistics {
         NON_STICKY_AFTER_BACKUP,
 
         /**
-         * Tasks executed for non-sticky sessions after a session was loaded from memcached (load validity info / meta data).
+         * Tasks executed for non-sticky sessions after a session was loaded from memcached (apply the validity info loaded with the session).
          */
         NON_STICKY_AFTER_LOAD_FROM_MEMCACHED,
 
         /**
          * Tasks executed for non-sticky sessions after a session was deleted from memcached (delete validity info and backup data).
          */
-        NON_STICKY_AFTER_DELETE_FROM_MEMCACHED
+        NON_STICKY_AFTER_DELETE_FROM_MEMCACHED,
+
+        /**
+         * The number of backups waiting in the backup queue when a new backup is submitted.
+         */
+        BACKUP_QUEUE_SIZE,
+
+        /**
+         * The time a backup waited in the backup queue until it was executed.
+         */
+        BACKUP_QUEUE_WAIT,
+
+        /**
+         * The time (in microseconds) needed to compress session data.
+         */
+        COMPRESSION,
+
+        /**
+         * The time (in microseconds) needed to decompress session data.
+         */
+        DECOMPRESSION,
+
+        /**
+         * The size of compressed session data in percent of the uncompressed size (<code>100</code> if
+         * the data was not compressible), only registered for session data that exceeded the minimum size.
+         */
+        COMPRESSION_RATIO,
+
+        /**
+         * The time needed to update the expiration of all sessions due in a run of the background process
+         * (see {@link MemcachedSessionService#updateExpirationInMemcached()}).
+         */
+        EXPIRATION_UPDATE,
+
+        /**
+         * The number of sessions whose expiration was updated in a run of the background process.
+         */
+        EXPIRATION_UPDATE_SESSIONS
 
     }
 
@@ -368,6 +514,34 @@ public class Statistics {
         public void requestWithoutAttributesAccess() {
         }
 
+        @Override
+        public void requestWithCoalescedBackup() {
+        }
+
+        @Override
+        public void backupDiscarded() {
+        }
+
+        @Override
+        public void backupInCallerThread() {
+        }
+
+        @Override
+        public void requestWithJoinedSessionLoad() {
+        }
+
+        @Override
+        public void lockHandedOver() {
+        }
+
+        @Override
+        public void sharedLockAcquired() {
+        }
+
+        @Override
+        public void sessionDrained() {
+        }
+
     };
 
 }
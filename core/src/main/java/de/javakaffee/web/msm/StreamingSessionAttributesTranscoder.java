@@ -0,0 +1,55 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * A {@link SessionAttributesTranscoder} that can write the serialized session attributes
+ * to an {@link OutputStream}. This allows to compute the hash of the serialized attributes
+ * (see {@link HashingOutputStream}) while they're serialized, which is used to determine
+ * if the session was modified.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public interface StreamingSessionAttributesTranscoder extends SessionAttributesTranscoder {
+
+    /**
+     * Serialize the given attributes to the given {@link OutputStream}. The written bytes
+     * must be the same as the ones returned by {@link #serializeAttributes(MemcachedBackupSession, Map)},
+     * so that they can be deserialized using {@link #deserializeAttributes(byte[])}.
+     * The output stream must not be closed.
+     *
+     * @param session the session that owns the given attributes.
+     * @param attributes the attributes to serialize.
+     * @param out the stream to write the serialized attributes to.
+     */
+    void serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes, final OutputStream out );
+
+    /**
+     * Deserialize the session attributes stored in the given range of the byte array, like
+     * {@link #deserializeAttributes(byte[])} but without the need to copy the range to a new array.
+     *
+     * @param data the byte array containing the serialized attributes
+     * @param offset the index of the first byte of the serialized attributes
+     * @param length the number of bytes of the serialized attributes
+     * @return the deserialized attributes
+     */
+    Map<String, Object> deserializeAttributes( final byte[] data, final int offset, final int length );
+
+}
@@ -25,8 +25,18 @@ import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.Principal;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
 
 import org.apache.catalina.Manager;
 import org.apache.catalina.Realm;
@@ -38,6 +48,7 @@ import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
 import de.javakaffee.web.msm.MemcachedSessionService.SessionManager;
+import de.javakaffee.web.msm.Statistics.StatsType;
 
 /**
  * This service is responsible for serializing/deserializing session data
@@ -51,6 +62,29 @@ public class TranscoderService {
 
     private static final short CURRENT_VERSION = 1;
 
+    /**
+     * The version used for sessions whose attributes are stored separately, the session
+     * fields are followed by an {@link AttributeManifest} instead of the serialized attributes.
+     */
+    private static final short ATTRIBUTE_MANIFEST_VERSION = 2;
+
+    /**
+     * The version used for compressed session data (see {@link #compress(byte[])}), the version is followed
+     * by the id of the {@link CompressionCodec}, the length of the uncompressed data and the compressed data.
+     */
+    private static final short COMPRESSED_VERSION = 4;
+
+    /**
+     * The version used for sessions whose attributes are serialized as named fragments (see
+     * {@link #serializeAttributeFragments(MemcachedBackupSession, Map, HashingOutputStream)}), each attribute
+     * is preceded by its name and length so that it can be deserialized lazily (see {@link LazyAttributeMap}).
+     */
+    private static final short NAMED_ATTRIBUTE_FRAGMENTS_VERSION = 5;
+
+    private static final int COMPRESSED_HEADER_LENGTH = 2 // short value for the version
+            + 1 // the codec id
+            + 4; // the length of the uncompressed data
+
     static final int NUM_BYTES = 8 // creationTime: long
             + 8 // lastAccessedTime: long
             + 4 // maxInactiveInterval: int
@@ -60,6 +94,11 @@ public class TranscoderService {
             + 8; // lastBackupTime
 
     private final SessionAttributesTranscoder _attributesTranscoder;
+    private final Statistics _statistics;
+
+    private volatile CompressionCodec _compressionCodec = CompressionCodec.NONE;
+    private volatile int _compressionMinSize;
+    private volatile boolean _extendedSessionFormat;
 
     /**
      * Creates a new {@link TranscoderService}.
@@ -67,7 +106,85 @@ public class TranscoderService {
      * @param attributesTranscoder the {@link SessionAttributesTranscoder} strategy to use.
      */
     public TranscoderService( final SessionAttributesTranscoder attributesTranscoder ) {
+        this( attributesTranscoder, Statistics.create( false ) );
+    }
+
+    /**
+     * Creates a new {@link TranscoderService}.
+     *
+     * @param attributesTranscoder the {@link SessionAttributesTranscoder} strategy to use.
+     * @param statistics used to record compression time and ratio.
+     */
+    public TranscoderService( final SessionAttributesTranscoder attributesTranscoder, @Nonnull final Statistics statistics ) {
         _attributesTranscoder = attributesTranscoder;
+        _statistics = statistics;
+    }
+
+    /**
+     * Sets the codec used by {@link #compress(byte[])}, session data smaller than <code>minSize</code>
+     * is not compressed. Compressed session data is decompressed by {@link #deserialize(byte[], SessionManager)}
+     * regardless of this setting.
+     *
+     * @param codec the compression codec, {@link CompressionCodec#NONE} disables compression.
+     * @param minSize the minimum size in bytes of session data to compress.
+     */
+    public void setCompression( @Nonnull final CompressionCodec codec, final int minSize ) {
+        _compressionCodec = codec;
+        _compressionMinSize = minSize;
+    }
+
+    /**
+     * Specifies if session data may be written in the formats that cannot be read by older versions of
+     * memcached-session-manager: compressed session data (see {@link #compress(byte[])}) and attributes
+     * serialized as named fragments (see {@link #serializeWithAttributeFragments(MemcachedBackupSession, HashingOutputStream)}).
+     * This is disabled by default, so that sessions can still be read by nodes that were not yet upgraded.
+     * Session data in any of these formats is read regardless of this setting.
+     *
+     * @param extendedSessionFormat <code>true</code> if the extended formats shall be written.
+     */
+    public void setExtendedSessionFormat( final boolean extendedSessionFormat ) {
+        _extendedSessionFormat = extendedSessionFormat;
+    }
+
+    /**
+     * Specifies if session data may be written in the formats that cannot be read by older versions
+     * (see {@link #setExtendedSessionFormat(boolean)}).
+     */
+    public boolean isExtendedSessionFormat() {
+        return _extendedSessionFormat;
+    }
+
+    /**
+     * Compresses the given serialized session data (e.g. from {@link #serialize(MemcachedBackupSession)})
+     * with the codec set via {@link #setCompression(CompressionCodec, int)}. If compression is disabled,
+     * the extended session format is disabled (see {@link #setExtendedSessionFormat(boolean)}), the data is
+     * smaller than the configured minimum size or the compressed data would not be smaller,
+     * the given data is returned.
+     *
+     * @param data the serialized session data.
+     * @return the compressed session data or the given data.
+     */
+    @Nonnull
+    public byte[] compress( @Nonnull final byte[] data ) {
+        final CompressionCodec codec = _compressionCodec;
+        if ( !_extendedSessionFormat || codec == CompressionCodec.NONE || data.length < _compressionMinSize ) {
+            return data;
+        }
+        final long start = System.nanoTime();
+        final byte[] buffer = new byte[COMPRESSED_HEADER_LENGTH + codec.maxCompressedLength( data.length )];
+        final int length = codec.compress( data, 0, data.length, buffer, COMPRESSED_HEADER_LENGTH );
+        _statistics.register( StatsType.COMPRESSION, ( System.nanoTime() - start ) / 1000 );
+
+        if ( length < 0 || COMPRESSED_HEADER_LENGTH + length >= data.length ) {
+            _statistics.register( StatsType.COMPRESSION_RATIO, 100 );
+            return data;
+        }
+        int idx = encodeNum( COMPRESSED_VERSION, buffer, 0, 2 );
+        idx = encodeNum( codec.getId(), buffer, idx, 1 );
+        encodeNum( data.length, buffer, idx, 4 );
+        final byte[] result = Arrays.copyOf( buffer, COMPRESSED_HEADER_LENGTH + length );
+        _statistics.register( StatsType.COMPRESSION_RATIO, result.length * 100L / data.length );
+        return result;
     }
 
     /**
@@ -96,7 +213,20 @@ public class TranscoderService {
      * <p>
      * Note: the returned session already has the manager set and
      * {@link MemcachedBackupSession#doAfterDeserialization()} is invoked. Additionally
-     * the attributes hash is set (via {@link MemcachedBackupSession#setDataHashCode(int)}).
+     * the attributes hash is set (via {@link MemcachedBackupSession#setDataHash(long)}).
+     * </p>
+     * <p>
+     * If the session was serialized via {@link #serialize(MemcachedBackupSession, AttributeManifest)}
+     * the returned session has no attributes but the {@link AttributeManifest} set, the attributes
+     * must be loaded separately then.
+     * </p>
+     * <p>
+     * If the session was serialized via {@link #serializeWithAttributeFragments(MemcachedBackupSession, HashingOutputStream)}
+     * the attributes of the returned session are deserialized lazily on first access (see {@link LazyAttributeMap}).
+     * </p>
+     * <p>
+     * Session data compressed via {@link #compress(byte[])} is decompressed first, with the codec
+     * the data was compressed with.
      * </p>
      *
      * @param data the byte array of the serialized session and its session attributes. Can be <code>null</code>.
@@ -111,12 +241,27 @@ public class TranscoderService {
             return null;
         }
         try {
-            final DeserializationResult deserializationResult = deserializeSessionFields( data, manager );
-            final byte[] attributesData = deserializationResult.getAttributesData();
-            final Map<String, Object> attributes = deserializeAttributes( attributesData );
+            final byte[] sessionData = decompress( data );
+            if ( sessionData == null ) {
+                return null;
+            }
+            final DeserializationResult deserializationResult = deserializeSessionFields( sessionData, manager );
+            final int offset = deserializationResult.getAttributesOffset();
+            final int length = deserializationResult.getAttributesLength();
             final MemcachedBackupSession session = deserializationResult.getSession();
-            session.setAttributesInternal( attributes );
-            session.setDataHashCode( Arrays.hashCode( attributesData ) );
+            if ( deserializationResult.isAttributeManifest() ) {
+                session.setAttributeManifest( AttributeManifest.decode( sessionData, offset ) );
+                session.setAttributesInternal( new ConcurrentHashMap<String, Object>() );
+            }
+            else if ( deserializationResult.isNamedAttributeFragments() ) {
+                session.setAttributesInternal( readNamedAttributeFragments( sessionData, offset ) );
+                session.setDataHash( XXHash64.hash( sessionData, offset, length ) );
+            }
+            else {
+                final Map<String, Object> attributes = deserializeAttributes( sessionData, offset, length );
+                session.setAttributesInternal( attributes );
+                session.setDataHash( XXHash64.hash( sessionData, offset, length ) );
+            }
             session.setManager( manager );
             session.doAfterDeserialization();
             return session;
@@ -143,6 +288,29 @@ public class TranscoderService {
         return _attributesTranscoder.serializeAttributes( session, attributes );
     }
 
+    /**
+     * Serialize the given session attributes to the given {@link HashingOutputStream}, so that the
+     * hash of the serialized attributes is computed while they're serialized. If the
+     * {@link SessionAttributesTranscoder} is a {@link StreamingSessionAttributesTranscoder} the
+     * attributes are written directly to the provided stream, otherwise the serialized byte[] is
+     * written to the stream.
+     *
+     * @param session the session that owns the given attributes.
+     * @param attributes the attributes to serialize.
+     * @param out the stream the serialized attributes are written to.
+     *
+     * @see StreamingSessionAttributesTranscoder#serializeAttributes(MemcachedBackupSession, Map, java.io.OutputStream)
+     */
+    public void serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes,
+            final HashingOutputStream out ) {
+        if ( _attributesTranscoder instanceof StreamingSessionAttributesTranscoder ) {
+            ( (StreamingSessionAttributesTranscoder) _attributesTranscoder ).serializeAttributes( session, attributes, out );
+        }
+        else {
+            final byte[] data = _attributesTranscoder.serializeAttributes( session, attributes );
+            out.write( data, 0, data.length );
+        }
+    }
 
 
     /**
@@ -159,6 +327,25 @@ public class TranscoderService {
         return _attributesTranscoder.deserializeAttributes( data );
     }
 
+    /**
+     * Deserialize the session attributes stored in the given range of the byte array. If the
+     * {@link SessionAttributesTranscoder} is a {@link StreamingSessionAttributesTranscoder} the
+     * attributes are read directly from the given array, otherwise the range is copied.
+     *
+     * @param data the byte array containing the serialized attributes
+     * @param offset the index of the first byte of the serialized attributes
+     * @param length the number of bytes of the serialized attributes
+     * @return the deserialized attributes
+     */
+    public Map<String, Object> deserializeAttributes( final byte[] data, final int offset, final int length ) {
+        if ( _attributesTranscoder instanceof StreamingSessionAttributesTranscoder ) {
+            return ( (StreamingSessionAttributesTranscoder) _attributesTranscoder ).deserializeAttributes( data, offset, length );
+        }
+        final byte[] attributesData = new byte[length];
+        System.arraycopy( data, offset, attributesData, 0, length );
+        return _attributesTranscoder.deserializeAttributes( attributesData );
+    }
+
     /**
      * Serialize session fields to a byte[] and create a byte[] containing both the
      * serialized byte[] of the session fields and the provided byte[] of the serialized
@@ -169,17 +356,204 @@ public class TranscoderService {
      * @return a byte[] containing both the serialized session fields and the provided serialized session attributes
      */
     public byte[] serialize( final MemcachedBackupSession session, final byte[] attributesData ) {
-        final byte[] sessionData = serializeSessionFields( session );
-        final byte[] result = new byte[ sessionData.length + attributesData.length ];
-        System.arraycopy( sessionData, 0, result, 0, sessionData.length );
-        System.arraycopy( attributesData, 0, result, sessionData.length, attributesData.length );
+        final byte[] result = serializeSessionFields( session, CURRENT_VERSION, attributesData.length );
+        System.arraycopy( attributesData, 0, result, result.length - attributesData.length, attributesData.length );
+        return result;
+    }
+
+    /**
+     * Serialize session fields and the session attributes written to the given stream (e.g. by
+     * {@link #serializeAttributes(MemcachedBackupSession, Map, HashingOutputStream)}) to a single byte[],
+     * without creating an intermediate byte[] of the serialized attributes.
+     *
+     * @param session its fields will be serialized to a byte[]
+     * @param attributesOut the stream holding the serialized session attributes.
+     * @return a byte[] containing both the serialized session fields and the serialized session attributes.
+     */
+    public byte[] serialize( final MemcachedBackupSession session, final HashingOutputStream attributesOut ) {
+        return serialize( session, CURRENT_VERSION, attributesOut );
+    }
+
+    /**
+     * Serialize session fields to a byte[] followed by the given {@link AttributeManifest},
+     * that references the separately stored session attributes.
+     *
+     * @param session its fields will be serialized to a byte[]
+     * @param manifest the manifest of the separately stored session attributes.
+     * @return a byte[] containing both the serialized session fields and the encoded manifest.
+     */
+    public byte[] serialize( final MemcachedBackupSession session, final AttributeManifest manifest ) {
+        final byte[] manifestData = manifest.encode();
+        final byte[] result = serializeSessionFields( session, ATTRIBUTE_MANIFEST_VERSION, manifestData.length );
+        System.arraycopy( manifestData, 0, result, result.length - manifestData.length, manifestData.length );
+        return result;
+    }
+
+    /**
+     * Serialize session fields to a byte[] followed by the attribute fragments written to the given stream by
+     * {@link #serializeAttributeFragments(MemcachedBackupSession, Map, HashingOutputStream)}.
+     * This format should only be written if {@link #isExtendedSessionFormat()} is <code>true</code>.
+     *
+     * @param session its fields will be serialized to a byte[]
+     * @param attributeFragmentsOut the stream holding the separately serialized session attributes.
+     * @return a byte[] containing both the serialized session fields and the attribute fragments.
+     */
+    public byte[] serializeWithAttributeFragments( final MemcachedBackupSession session, final HashingOutputStream attributeFragmentsOut ) {
+        return serialize( session, NAMED_ATTRIBUTE_FRAGMENTS_VERSION, attributeFragmentsOut );
+    }
+
+    /**
+     * Serialize each of the given attributes separately (as fragment) to the given stream. The serialized
+     * form of attributes is cached by the session, and attributes that were not accessed since they were
+     * serialized last time (and whose value was not replaced) are not serialized again (see
+     * {@link #serializeAttribute(MemcachedBackupSession, String, Object)}). Attributes of a {@link LazyAttributeMap}
+     * that were not deserialized yet are written as they were loaded.
+     * <p>
+     * Each attribute is written with its name and length, so that attributes can be deserialized
+     * separately when the session is loaded.
+     * </p>
+     * <p>
+     * Attributes are written ordered by name, so that the same attributes always result in the
+     * same bytes and hash. As each attribute is serialized on its own, objects that are referenced
+     * by several attributes are deserialized as separate objects.
+     * </p>
+     *
+     * @param session the session that owns the given attributes.
+     * @param attributes the attributes to serialize.
+     * @param out the stream the attribute fragments are written to.
+     */
+    public void serializeAttributeFragments( final MemcachedBackupSession session, final Map<String, Object> attributes,
+            final HashingOutputStream out ) {
+        final LazyAttributeMap lazyAttributes = attributes instanceof LazyAttributeMap ? (LazyAttributeMap) attributes : null;
+        final List<String> fragmentNames = new ArrayList<String>( attributes.size() );
+        final List<byte[]> fragments = new ArrayList<byte[]>( attributes.size() );
+        final Set<String> names = new TreeSet<String>( attributes.keySet() );
+        for ( final String name : names ) {
+            final byte[] serialized = lazyAttributes != null ? lazyAttributes.getSerialized( name ) : null;
+            if ( serialized != null ) {
+                fragmentNames.add( name );
+                fragments.add( serialized );
+                continue;
+            }
+            final Object value = attributes.get( name );
+            if ( value != null ) {
+                fragmentNames.add( name );
+                fragments.add( serializeAttribute( session, name, value ).getData() );
+            }
+        }
+        // attributes that don't exist any more must not stay in the cache
+        session.getSerializedAttributes().keySet().retainAll( names );
+
+        final byte[] header = new byte[4];
+        encodeNum( fragments.size(), header, 0, 4 );
+        out.write( header, 0, header.length );
+        for ( int i = 0; i < fragments.size(); i++ ) {
+            final byte[] nameData = serializeId( fragmentNames.get( i ) );
+            encodeNum( nameData.length, header, 0, 2 );
+            out.write( header, 0, 2 );
+            out.write( nameData, 0, nameData.length );
+            final byte[] data = fragments.get( i );
+            encodeNum( data.length, header, 0, 4 );
+            out.write( header, 0, header.length );
+            out.write( data, 0, data.length );
+        }
+    }
+
+    /**
+     * Returns the serialized form of the given session attribute. If the session has the serialized
+     * form of the attribute value cached, this is returned, otherwise the attribute is serialized
+     * (as a single entry map, using the {@link SessionAttributesTranscoder}) and cached by the session.
+     *
+     * @param session the session that owns the given attribute.
+     * @param name the attribute name.
+     * @param value the attribute value.
+     * @return the serialized attribute with its hash.
+     */
+    @Nonnull
+    SerializedAttribute serializeAttribute( final MemcachedBackupSession session, final String name, final Object value ) {
+        final ConcurrentMap<String, SerializedAttribute> cache = session.getSerializedAttributes();
+        final SerializedAttribute cached = cache.get( name );
+        if ( cached != null && cached.isSerializedFormOf( value ) ) {
+            return cached;
+        }
+        /* The placeholder is put before the attribute is serialized, so that an access of the
+         * attribute during serialization (which removes the placeholder) is not lost.
+         */
+        final SerializedAttribute placeholder = new SerializedAttribute( value, null, 0 );
+        cache.put( name, placeholder );
+        final byte[] data = _attributesTranscoder.serializeAttributes( session, Collections.singletonMap( name, value ) );
+        final SerializedAttribute result = new SerializedAttribute( value, data, XXHash64.hash( data ) );
+        cache.replace( name, placeholder, result );
         return result;
     }
 
     // ---------------------  private/protected helper methods  -------------------
 
+    /**
+     * Decompresses the given session data if it was compressed via {@link #compress(byte[])},
+     * otherwise the given data is returned.
+     *
+     * @return the uncompressed session data, or <code>null</code> if the data was compressed with an unknown codec.
+     */
+    @CheckForNull
+    private byte[] decompress( @Nonnull final byte[] data ) {
+        if ( data.length < COMPRESSED_HEADER_LENGTH || decodeNum( data, 0, 2 ) != COMPRESSED_VERSION ) {
+            return data;
+        }
+        final int codecId = (int) decodeNum( data, 2, 1 );
+        final CompressionCodec codec = CompressionCodec.valueOfId( codecId );
+        if ( codec == null ) {
+            LOG.info( "Got session data from memcached compressed with an unsupported codec: " + codecId );
+            return null;
+        }
+        final long start = System.nanoTime();
+        final byte[] result = new byte[(int) decodeNum( data, 3, 4 )];
+        codec.decompress( data, COMPRESSED_HEADER_LENGTH, data.length - COMPRESSED_HEADER_LENGTH, result, 0, result.length );
+        _statistics.register( StatsType.DECOMPRESSION, ( System.nanoTime() - start ) / 1000 );
+        return result;
+    }
+
+    /**
+     * Reads the named attribute fragments written by
+     * {@link #serializeAttributeFragments(MemcachedBackupSession, Map, HashingOutputStream)} without
+     * deserializing them, the attributes are deserialized by the returned map on first access.
+     */
+    private LazyAttributeMap readNamedAttributeFragments( final byte[] data, final int offset ) {
+        final LazyAttributeMap result = new LazyAttributeMap( this );
+        final int count = (int) decodeNum( data, offset, 4 );
+        int idx = offset + 4;
+        for ( int i = 0; i < count; i++ ) {
+            final int nameLength = (int) decodeNum( data, idx, 2 );
+            idx += 2;
+            final String name = decodeString( data, idx, nameLength );
+            idx += nameLength;
+            final int length = (int) decodeNum( data, idx, 4 );
+            idx += 4;
+            final byte[] fragment = new byte[length];
+            System.arraycopy( data, idx, fragment, 0, length );
+            idx += length;
+            result.putSerialized( name, fragment );
+        }
+        return result;
+    }
+
+    private static byte[] serialize( final MemcachedBackupSession session, final short version, final HashingOutputStream attributesOut ) {
+        final byte[] result = serializeSessionFields( session, version, attributesOut.size() );
+        attributesOut.copyTo( result, result.length - attributesOut.size() );
+        return result;
+    }
 
     static byte[] serializeSessionFields( final MemcachedBackupSession session ) {
+        return serializeSessionFields( session, CURRENT_VERSION, 0 );
+    }
+
+    /**
+     * Serializes the session fields to a byte[] that has room for the given number of bytes
+     * (of serialized attributes) after the session fields, so that no additional byte[] is needed
+     * to combine session fields and attributes.
+     */
+    private static byte[] serializeSessionFields( final MemcachedBackupSession session, final short version,
+            final int attributesDataLength ) {
 
         final byte[] idData = serializeId( session.getIdInternal() );
 
@@ -195,10 +569,10 @@ public class TranscoderService {
                 + 2 // short value for the authType
                 + 2 // short value that stores the principalData length
                 + principalDataLength; // the number of bytes for the principal
-        final byte[] data = new byte[sessionFieldsDataLength];
+        final byte[] data = new byte[sessionFieldsDataLength + attributesDataLength];
 
         int idx = 0;
-        idx = encodeNum( CURRENT_VERSION, data, idx, 2 );
+        idx = encodeNum( version, data, idx, 2 );
         idx = encodeNum( sessionFieldsDataLength, data, idx, 2 );
         idx = encodeNum( session.getCreationTimeInternal(), data, idx, 8 );
         idx = encodeNum( session.getLastAccessedTimeInternal(), data, idx, 8 );
@@ -221,7 +595,7 @@ public class TranscoderService {
 
         final short version = (short) decodeNum( data, 0, 2 );
 
-        if ( version != CURRENT_VERSION ) {
+        if ( version != CURRENT_VERSION && version != ATTRIBUTE_MANIFEST_VERSION && version != NAMED_ATTRIBUTE_FRAGMENTS_VERSION ) {
             throw new InvalidVersionException( "The version " + version + " does not match the current version " + CURRENT_VERSION, version );
         }
 
@@ -244,23 +618,22 @@ public class TranscoderService {
         final int currentIdx = 44 + idLength + 2;
         final short principalDataLength = (short) decodeNum( data, currentIdx, 2 );
         if ( principalDataLength > 0 ) {
-            final byte[] principalData = new byte[principalDataLength];
-            System.arraycopy( data, currentIdx + 2, principalData, 0, principalDataLength );
-            result.setPrincipalInternal( deserializePrincipal( principalData, manager ) );
+            result.setPrincipalInternal( deserializePrincipal( data, currentIdx + 2, principalDataLength, manager ) );
         }
 
-        final byte[] attributesData = new byte[ data.length - sessionFieldsDataLength ];
-        System.arraycopy( data, sessionFieldsDataLength, attributesData, 0, data.length - sessionFieldsDataLength );
-
-        return new DeserializationResult( result, attributesData );
+        return new DeserializationResult( result, data, sessionFieldsDataLength, version );
     }
 
     static class DeserializationResult {
         private final MemcachedBackupSession _session;
-        private final byte[] _attributesData;
-        DeserializationResult( final MemcachedBackupSession session, final byte[] attributesData ) {
+        private final byte[] _data;
+        private final int _attributesOffset;
+        private final short _version;
+        DeserializationResult( final MemcachedBackupSession session, final byte[] data, final int attributesOffset, final short version ) {
             _session = session;
-            _attributesData = attributesData;
+            _data = data;
+            _attributesOffset = attributesOffset;
+            _version = version;
         }
         /**
          * @return the session with fields initialized apart from the attributes.
@@ -269,11 +642,34 @@ public class TranscoderService {
             return _session;
         }
         /**
-         * The serialized session attributes.
-         * @return the byte array representing the serialized session attributes.
+         * The serialized session, the serialized session attributes start at {@link #getAttributesOffset()}.
+         */
+        byte[] getData() {
+            return _data;
+        }
+        /**
+         * The index of the serialized session attributes in {@link #getData()}.
+         */
+        int getAttributesOffset() {
+            return _attributesOffset;
+        }
+        /**
+         * The number of bytes of the serialized session attributes.
+         */
+        int getAttributesLength() {
+            return _data.length - _attributesOffset;
+        }
+        /**
+         * Specifies if the attributes data is an encoded {@link AttributeManifest}.
+         */
+        boolean isAttributeManifest() {
+            return _version == ATTRIBUTE_MANIFEST_VERSION;
+        }
+        /**
+         * Specifies if the attributes data consists of separately serialized attributes with their names.
          */
-        byte[] getAttributesData() {
-            return _attributesData;
+        boolean isNamedAttributeFragments() {
+            return _version == NAMED_ATTRIBUTE_FRAGMENTS_VERSION;
         }
     }
 
@@ -302,11 +698,12 @@ public class TranscoderService {
         }
     }
 
-    private static Principal deserializePrincipal( final byte[] data, final SessionManager manager ) {
+    private static Principal deserializePrincipal( final byte[] data, final int offset, final int length,
+            final SessionManager manager ) {
         ByteArrayInputStream bis = null;
         ObjectInputStream ois = null;
         try {
-            bis = new ByteArrayInputStream( data );
+            bis = new ByteArrayInputStream( data, offset, length );
             ois = new ObjectInputStream( bis );
             return manager.readPrincipal( ois );
         } catch ( final IOException e ) {
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Nonnull;
+
+import net.spy.memcached.MemcachedClient;
+
+/**
+ * Collects the memcached writes of a request, so that all writes can be issued before any of them
+ * is awaited, and awaits them under a single deadline: for synchronous session backup the request
+ * is delayed by at most the timeout given at construction time, regardless of the number of keys
+ * written. The outcome of each write is kept per key, so that a failure can be attributed to the
+ * memcached node of the key.
+ * <p>
+ * Instances are meant to be used by a single (request) thread and are not thread safe.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+class WriteFanOut {
+
+    /**
+     * The outcome of a single write.
+     */
+    static enum Outcome {
+        /**
+         * Memcached confirmed the write.
+         */
+        SUCCESS,
+        /**
+         * Memcached answered that the item was not stored.
+         */
+        NOT_STORED,
+        /**
+         * The write was not answered before the deadline.
+         */
+        TIMEOUT,
+        /**
+         * The write could not be issued or failed with an exception.
+         */
+        FAILURE;
+
+        /**
+         * Specifies if the write failed due to the memcached node, i.e. it timed out or failed.
+         */
+        boolean isNodeFailure() {
+            return this == TIMEOUT || this == FAILURE;
+        }
+    }
+
+    private final long _deadline;
+    private final Map<String, Future<Boolean>> _pending = new LinkedHashMap<String, Future<Boolean>>();
+    private final Map<String, Outcome> _outcomes = new LinkedHashMap<String, Outcome>();
+
+    /**
+     * @param timeoutInMillis the time in millis from now that all writes are awaited at most.
+     */
+    WriteFanOut( final long timeoutInMillis ) {
+        _deadline = System.currentTimeMillis() + timeoutInMillis;
+    }
+
+    /**
+     * Issues a memcached set for the given key, the result is not awaited.
+     */
+    void set( @Nonnull final MemcachedClient memcached, @Nonnull final String key, final int expiration, @Nonnull final Object value ) {
+        try {
+            add( key, memcached.set( key, expiration, value ) );
+        } catch ( final RuntimeException e ) {
+            // e.g. if the operation queue is full
+            _pending.remove( key );
+            _outcomes.put( key, Outcome.FAILURE );
+        }
+    }
+
+    /**
+     * Adds the result of a write that was already issued. If there's already a write for this key, it's replaced.
+     */
+    void add( @Nonnull final String key, @Nonnull final Future<Boolean> result ) {
+        _outcomes.remove( key );
+        _pending.put( key, result );
+    }
+
+    /**
+     * Awaits the write for the given key until the deadline at most.
+     *
+     * @return the outcome of the write, {@link Outcome#FAILURE} if there's no write for this key.
+     */
+    @Nonnull
+    Outcome await( @Nonnull final String key ) {
+        final Future<Boolean> result = _pending.remove( key );
+        if ( result != null ) {
+            _outcomes.put( key, awaitResult( result ) );
+        }
+        final Outcome outcome = _outcomes.get( key );
+        return outcome != null ? outcome : Outcome.FAILURE;
+    }
+
+    /**
+     * Awaits all writes that are still pending until the deadline at most.
+     *
+     * @return the outcomes of all writes by key, in the order the writes were issued.
+     */
+    @Nonnull
+    Map<String, Outcome> awaitAll() {
+        for ( final Map.Entry<String, Future<Boolean>> entry : _pending.entrySet() ) {
+            _outcomes.put( entry.getKey(), awaitResult( entry.getValue() ) );
+        }
+        _pending.clear();
+        return _outcomes;
+    }
+
+    /**
+     * The time in millis that's left until the deadline, <code>0</code> if it's passed.
+     */
+    long getRemainingMillis() {
+        return Math.max( 0, _deadline - System.currentTimeMillis() );
+    }
+
+    private Outcome awaitResult( final Future<Boolean> result ) {
+        try {
+            return Boolean.TRUE.equals( result.get( getRemainingMillis(), TimeUnit.MILLISECONDS ) )
+                ? Outcome.SUCCESS
+                : Outcome.NOT_STORED;
+        } catch ( final TimeoutException e ) {
+            return Outcome.TIMEOUT;
+        } catch ( final InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            return Outcome.FAILURE;
+        } catch ( final ExecutionException e ) {
+            return Outcome.FAILURE;
+        } catch ( final RuntimeException e ) {
+            return Outcome.FAILURE;
+        }
+    }
+
+}
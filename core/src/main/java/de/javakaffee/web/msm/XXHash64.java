@@ -0,0 +1,188 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A streaming implementation of the 64 bit xxHash (seed <code>0</code>), which is used
+ * to determine if the serialized session attributes changed. Data can be provided in chunks
+ * of any size, the resulting hash is the same as if the data had been hashed at once.
+ * <p>
+ * This class is not thread-safe.
+ * </p>
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+class XXHash64 {
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private final byte[] _buffer = new byte[32];
+    private int _bufferSize;
+    private long _totalLength;
+    private long _v1;
+    private long _v2;
+    private long _v3;
+    private long _v4;
+
+    XXHash64() {
+        reset();
+    }
+
+    /**
+     * Computes the hash of the given byte array.
+     */
+    static long hash( @Nonnull final byte[] data ) {
+        return hash( data, 0, data.length );
+    }
+
+    /**
+     * Computes the hash of the given range of the byte array.
+     */
+    static long hash( @Nonnull final byte[] data, final int offset, final int length ) {
+        final XXHash64 hash = new XXHash64();
+        hash.update( data, offset, length );
+        return hash.getValue();
+    }
+
+    /**
+     * Resets this hash to its initial state.
+     */
+    void reset() {
+        _v1 = PRIME1 + PRIME2;
+        _v2 = PRIME2;
+        _v3 = 0;
+        _v4 = -PRIME1;
+        _bufferSize = 0;
+        _totalLength = 0;
+    }
+
+    void update( final int b ) {
+        _buffer[_bufferSize++] = (byte) b;
+        _totalLength++;
+        if ( _bufferSize == 32 ) {
+            processStripe( _buffer, 0 );
+            _bufferSize = 0;
+        }
+    }
+
+    void update( @Nonnull final byte[] data, int off, int len ) {
+        _totalLength += len;
+        if ( _bufferSize + len < 32 ) {
+            System.arraycopy( data, off, _buffer, _bufferSize, len );
+            _bufferSize += len;
+            return;
+        }
+        if ( _bufferSize > 0 ) {
+            final int fill = 32 - _bufferSize;
+            System.arraycopy( data, off, _buffer, _bufferSize, fill );
+            processStripe( _buffer, 0 );
+            off += fill;
+            len -= fill;
+            _bufferSize = 0;
+        }
+        while ( len >= 32 ) {
+            processStripe( data, off );
+            off += 32;
+            len -= 32;
+        }
+        System.arraycopy( data, off, _buffer, 0, len );
+        _bufferSize = len;
+    }
+
+    /**
+     * Returns the hash of the data provided so far, this does not change the state of this hash.
+     */
+    long getValue() {
+        long h;
+        if ( _totalLength >= 32 ) {
+            h = Long.rotateLeft( _v1, 1 ) + Long.rotateLeft( _v2, 7 ) + Long.rotateLeft( _v3, 12 ) + Long.rotateLeft( _v4, 18 );
+            h = mergeRound( h, _v1 );
+            h = mergeRound( h, _v2 );
+            h = mergeRound( h, _v3 );
+            h = mergeRound( h, _v4 );
+        }
+        else {
+            h = PRIME5;
+        }
+        h += _totalLength;
+
+        int i = 0;
+        for ( ; i + 8 <= _bufferSize; i += 8 ) {
+            h ^= round( 0, readLong( _buffer, i ) );
+            h = Long.rotateLeft( h, 27 ) * PRIME1 + PRIME4;
+        }
+        if ( i + 4 <= _bufferSize ) {
+            h ^= ( readInt( _buffer, i ) & 0xFFFFFFFFL ) * PRIME1;
+            h = Long.rotateLeft( h, 23 ) * PRIME2 + PRIME3;
+            i += 4;
+        }
+        for ( ; i < _bufferSize; i++ ) {
+            h ^= ( _buffer[i] & 0xFF ) * PRIME5;
+            h = Long.rotateLeft( h, 11 ) * PRIME1;
+        }
+
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private void processStripe( final byte[] data, final int off ) {
+        _v1 = round( _v1, readLong( data, off ) );
+        _v2 = round( _v2, readLong( data, off + 8 ) );
+        _v3 = round( _v3, readLong( data, off + 16 ) );
+        _v4 = round( _v4, readLong( data, off + 24 ) );
+    }
+
+    private static long round( long acc, final long input ) {
+        acc += input * PRIME2;
+        acc = Long.rotateLeft( acc, 31 );
+        return acc * PRIME1;
+    }
+
+    private static long mergeRound( long acc, final long val ) {
+        acc ^= round( 0, val );
+        return acc * PRIME1 + PRIME4;
+    }
+
+    private static long readLong( final byte[] data, final int off ) {
+        return ( data[off] & 0xFFL )
+                | ( data[off + 1] & 0xFFL ) << 8
+                | ( data[off + 2] & 0xFFL ) << 16
+                | ( data[off + 3] & 0xFFL ) << 24
+                | ( data[off + 4] & 0xFFL ) << 32
+                | ( data[off + 5] & 0xFFL ) << 40
+                | ( data[off + 6] & 0xFFL ) << 48
+                | ( data[off + 7] & 0xFFL ) << 56;
+    }
+
+    private static int readInt( final byte[] data, final int off ) {
+        return ( data[off] & 0xFF )
+                | ( data[off + 1] & 0xFF ) << 8
+                | ( data[off + 2] & 0xFF ) << 16
+                | ( data[off + 3] & 0xFF ) << 24;
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.AttributeManifest.Entry;
+
+/**
+ * Test the {@link AttributeManifest}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class AttributeManifestTest {
+
+    @Test
+    public void testDecodeEncodedData() {
+        final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+        entries.put( "foo", new Entry( 1, 23, 0 ) );
+        entries.put( "bär", new Entry( 42, 0x8000000000000001L, 4711 ) );
+        final AttributeManifest decoded = AttributeManifest.decode( new AttributeManifest( "12345-n1", 43, entries ).encode() );
+
+        assertEquals( decoded.getSessionId(), "12345-n1" );
+        assertEquals( decoded.getNextKeyId(), 43 );
+        assertEquals( decoded.getEntries().keySet(), entries.keySet() );
+        assertEquals( decoded.getEntry( "bär" ).getKeyId(), 42 );
+        assertEquals( decoded.getEntry( "bär" ).getHash(), 0x8000000000000001L );
+        assertEquals( decoded.getEntry( "bär" ).getExpiresAt(), 4711 );
+        assertEquals( decoded.getKeys(), Arrays.asList( "attr:1:12345-n1", "attr:42:12345-n1" ) );
+    }
+
+    @Test
+    public void testAttributeKeyContainsMemcachedId() {
+        final String key = AttributeManifest.createAttributeKey( "12345-n1.jvm1", 3 );
+        assertEquals( new SessionIdFormat().extractMemcachedId( key ), "n1" );
+    }
+
+    @Test
+    public void testExpiresBefore() {
+        assertFalse( new Entry( 1, 1, 0 ).expiresBefore( 100 ), "An entry without expiration never expires." );
+        assertTrue( new Entry( 1, 1, 100 ).expiresBefore( 0 ) );
+        assertTrue( new Entry( 1, 1, 100 ).expiresBefore( 101 ) );
+        assertFalse( new Entry( 1, 1, 100 ).expiresBefore( 100 ) );
+    }
+
+    @Test
+    public void testAttributeExpiration() {
+        assertEquals( BackupSessionTask.getAttributeExpiration( 0, 1800 ), 0 );
+        assertEquals( BackupSessionTask.getAttributeExpiration( 1700, 1800 ), 3500 );
+        final int maxRelative = 60 * 60 * 24 * 30;
+        assertEquals( BackupSessionTask.getAttributeExpiration( maxRelative - 10, 1800 ), maxRelative - 10 );
+    }
+
+}
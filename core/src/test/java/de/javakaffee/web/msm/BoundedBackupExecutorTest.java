@@ -0,0 +1,218 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.Statistics.StatsType.BACKUP_QUEUE_WAIT;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.BoundedBackupExecutor.BackupCommand;
+import de.javakaffee.web.msm.BoundedBackupExecutor.OverflowPolicy;
+
+/**
+ * Test the {@link BoundedBackupExecutor}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class BoundedBackupExecutorTest {
+
+    private Statistics _statistics;
+    private CountDownLatch _blocker;
+    private List<String> _executed;
+    private List<String> _discarded;
+    private BoundedBackupExecutor _cut;
+
+    @BeforeMethod
+    public void setUp() {
+        _statistics = Statistics.create();
+        _blocker = new CountDownLatch( 1 );
+        _executed = new CopyOnWriteArrayList<String>();
+        _discarded = new CopyOnWriteArrayList<String>();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        _blocker.countDown();
+        if ( _cut != null ) {
+            _cut.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPrioritizedBackupsAreExecutedFirst() throws InterruptedException {
+        _cut = new BoundedBackupExecutor( 1, 10, OverflowPolicy.CALLER_RUNS, _statistics );
+        blockWorker();
+
+        _cut.execute( new TestCommand( "routine1", false ) );
+        _cut.execute( new TestCommand( "routine2", false ) );
+        _cut.execute( new TestCommand( "priority", true ) );
+
+        _blocker.countDown();
+        awaitTermination();
+
+        assertEquals( _executed, Arrays.asList( "priority", "routine1", "routine2" ) );
+        // the blocking command is measured as well
+        assertEquals( _statistics.getProbe( BACKUP_QUEUE_WAIT ).getCount(), 4 );
+    }
+
+    @Test
+    public void testCallerRunsOnOverflow() throws InterruptedException {
+        _cut = new BoundedBackupExecutor( 1, 1, OverflowPolicy.CALLER_RUNS, _statistics );
+        blockWorker();
+
+        _cut.execute( new TestCommand( "queued", false ) );
+        _cut.execute( new TestCommand( "overflow", false ) );
+
+        assertEquals( _executed, Collections.singletonList( "overflow" ) );
+        assertEquals( _statistics.getBackupsInCallerThread(), 1 );
+        assertEquals( _statistics.getBackupsDiscarded(), 0 );
+
+        _blocker.countDown();
+        awaitTermination();
+        assertEquals( _executed, Arrays.asList( "overflow", "queued" ) );
+    }
+
+    @Test
+    public void testSkipOnOverflow() throws InterruptedException {
+        _cut = new BoundedBackupExecutor( 1, 1, OverflowPolicy.SKIP, _statistics );
+        blockWorker();
+
+        _cut.execute( new TestCommand( "queued", false ) );
+        _cut.execute( new TestCommand( "overflow", false ) );
+
+        assertEquals( _discarded, Collections.singletonList( "overflow" ) );
+        assertEquals( _statistics.getBackupsDiscarded(), 1 );
+
+        _blocker.countDown();
+        awaitTermination();
+        assertEquals( _executed, Collections.singletonList( "queued" ) );
+    }
+
+    @Test
+    public void testDiscardOldestOnOverflow() throws InterruptedException {
+        _cut = new BoundedBackupExecutor( 1, 1, OverflowPolicy.DISCARD_OLDEST, _statistics );
+        blockWorker();
+
+        _cut.execute( new TestCommand( "oldest", false ) );
+        _cut.execute( new TestCommand( "newest", false ) );
+
+        assertEquals( _discarded, Collections.singletonList( "oldest" ) );
+        assertEquals( _statistics.getBackupsDiscarded(), 1 );
+
+        _blocker.countDown();
+        awaitTermination();
+        assertEquals( _executed, Collections.singletonList( "newest" ) );
+    }
+
+    @Test
+    public void testPrioritizedBackupIsNeverDiscarded() throws InterruptedException {
+        _cut = new BoundedBackupExecutor( 1, 1, OverflowPolicy.DISCARD_OLDEST, _statistics );
+        blockWorker();
+
+        _cut.execute( new TestCommand( "queuedPriority", true ) );
+        _cut.execute( new TestCommand( "routine", false ) );
+        _cut.execute( new TestCommand( "priority", true ) );
+
+        assertEquals( _discarded, Collections.singletonList( "routine" ),
+                "The new routine backup should be skipped, as there's no routine backup queued." );
+        assertEquals( _executed, Collections.singletonList( "priority" ) );
+        assertEquals( _statistics.getBackupsInCallerThread(), 1 );
+
+        _blocker.countDown();
+        awaitTermination();
+        assertEquals( _executed, Arrays.asList( "priority", "queuedPriority" ) );
+    }
+
+    @Test
+    public void testOverflowPolicyConfigValues() {
+        for ( final OverflowPolicy policy : OverflowPolicy.values() ) {
+            assertSame( OverflowPolicy.fromConfigValue( policy.toConfigValue() ), policy );
+        }
+        assertSame( OverflowPolicy.fromConfigValue( "discardOldest" ), OverflowPolicy.DISCARD_OLDEST );
+        assertSame( OverflowPolicy.fromConfigValue( "callerRuns" ), OverflowPolicy.CALLER_RUNS );
+        assertSame( OverflowPolicy.fromConfigValue( "SKIP" ), OverflowPolicy.SKIP );
+        assertNull( OverflowPolicy.fromConfigValue( "foo" ) );
+    }
+
+    /**
+     * Occupies the single worker thread until the blocker is released, the
+     * first command is handed over to the new worker directly and is not queued.
+     */
+    private void blockWorker() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch( 1 );
+        _cut.execute( new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    _blocker.await();
+                } catch ( final InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        } );
+        assertTrue( started.await( 1, TimeUnit.SECONDS ) );
+    }
+
+    private void awaitTermination() throws InterruptedException {
+        _cut.shutdown();
+        assertTrue( _cut.awaitTermination( 1, TimeUnit.SECONDS ) );
+        assertFalse( _cut.isTerminating() );
+    }
+
+    private class TestCommand implements BackupCommand {
+
+        private final String _name;
+        private final boolean _priority;
+
+        TestCommand( final String name, final boolean priority ) {
+            _name = name;
+            _priority = priority;
+        }
+
+        @Override
+        public void run() {
+            _executed.add( _name );
+        }
+
+        @Override
+        public boolean isPriority() {
+            return _priority;
+        }
+
+        @Override
+        public void discard() {
+            _discarded.add( _name );
+        }
+
+    }
+
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.BackupSessionTask.BackupResult;
+import de.javakaffee.web.msm.CoalescingBackupQueue.BackupTaskFactory;
+import de.javakaffee.web.msm.SessionTrackerValve.SessionBackupService.BackupResultStatus;
+
+/**
+ * Test the {@link CoalescingBackupQueue}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class CoalescingBackupQueueTest {
+
+    private static final BackupResult SUCCESS = new BackupResult( BackupResultStatus.SUCCESS );
+
+    private ManualExecutor _executor;
+    private RecordingTaskFactory _taskFactory;
+    private Statistics _statistics;
+    private CoalescingBackupQueue _cut;
+
+    @BeforeMethod
+    public void setUp() {
+        _executor = new ManualExecutor();
+        _taskFactory = new RecordingTaskFactory();
+        _statistics = Statistics.create();
+        _cut = new CoalescingBackupQueue( _executor, _taskFactory, _statistics );
+    }
+
+    @Test
+    public void testPendingBackupIsShared() throws Exception {
+        final MemcachedBackupSession session = newSession( "foo" );
+
+        final Future<BackupResult> first = _cut.submit( session, false );
+        final Future<BackupResult> second = _cut.submit( session, true );
+
+        assertSame( second, first );
+        assertEquals( _executor.size(), 1 );
+        assertEquals( _statistics.getRequestsWithCoalescedBackup(), 1 );
+
+        _executor.runNext();
+
+        assertTrue( first.isDone() );
+        assertSame( first.get(), BackupResult.SKIPPED );
+        assertEquals( _taskFactory.sessions.size(), 1 );
+        assertTrue( _taskFactory.forces.get( 0 ) );
+        assertEquals( _cut.getSize(), 0 );
+    }
+
+    @Test
+    public void testDifferentSessionsAreNotCoalesced() {
+        _cut.submit( newSession( "foo" ), false );
+        _cut.submit( newSession( "bar" ), false );
+        assertEquals( _executor.size(), 2 );
+        assertEquals( _statistics.getRequestsWithCoalescedBackup(), 0 );
+    }
+
+    @Test
+    public void testBackupRequestedWhileRunningIsScheduledAfterwards() {
+        final MemcachedBackupSession session = newSession( "foo" );
+        _taskFactory.onCall = new Runnable() {
+            @Override
+            public void run() {
+                // submitted while the first backup is running
+                _taskFactory.onCall = null;
+                _cut.submit( session, false );
+                _cut.submit( session, false );
+            }
+        };
+
+        _cut.submit( session, false );
+        _executor.runNext();
+
+        assertEquals( _taskFactory.sessions.size(), 1 );
+        assertEquals( _statistics.getRequestsWithCoalescedBackup(), 1 );
+        assertEquals( _executor.size(), 1, "The pending backup should be scheduled after the running one finished." );
+
+        _executor.runNext();
+        assertEquals( _taskFactory.sessions.size(), 2 );
+        assertEquals( _executor.size(), 0 );
+        assertEquals( _cut.getSize(), 0 );
+    }
+
+    /**
+     * In non-sticky mode a newer session instance replaces the pending one, only the newer instance
+     * is stored if its backup is successful.
+     */
+    @Test
+    public void testNewerSessionReplacesPending() {
+        final MemcachedBackupSession older = newSession( "foo" );
+        final MemcachedBackupSession newer = newSession( "foo" );
+        _taskFactory.results.put( newer, SUCCESS );
+
+        final Future<BackupResult> first = _cut.submit( older, false );
+        assertSame( _cut.submit( newer, false ), first );
+        assertEquals( _statistics.getRequestsWithCoalescedBackup(), 1 );
+        _executor.runNext();
+
+        assertEquals( _taskFactory.sessions.size(), 1 );
+        assertSame( _taskFactory.sessions.get( 0 ), newer );
+        assertEquals( _executor.size(), 0 );
+        assertEquals( _cut.getSize(), 0 );
+    }
+
+    /**
+     * A newer session instance that was not modified might miss changes of the replaced
+     * instance (it might have been loaded before they were written), so the replaced
+     * instance is stored then.
+     */
+    @Test
+    public void testReplacedSessionIsStoredIfNewerIsNotStored() throws Exception {
+        final MemcachedBackupSession oldest = newSession( "foo" );
+        final MemcachedBackupSession older = newSession( "foo" );
+        final MemcachedBackupSession newer = newSession( "foo" );
+        _taskFactory.results.put( older, SUCCESS );
+
+        final Future<BackupResult> first = _cut.submit( oldest, false );
+        _cut.submit( older, false );
+        _cut.submit( newer, false );
+        _executor.runNext();
+
+        assertEquals( _taskFactory.sessions, Arrays.asList( newer, older ) );
+        assertSame( first.get(), SUCCESS );
+        assertEquals( _taskFactory.discarded, Arrays.asList( oldest ) );
+    }
+
+    /**
+     * The locks of replaced sessions are released not before the backup is done, so that
+     * the session is not loaded by another tomcat in the meantime.
+     */
+    @Test
+    public void testLockOfReplacedSessionIsReleasedAfterBackup() {
+        final MemcachedBackupSession older = newSession( "foo" );
+        when( older.isLocked() ).thenReturn( true );
+        final MemcachedBackupSession newer = newSession( "foo" );
+        _taskFactory.results.put( newer, SUCCESS );
+
+        _cut.submit( older, false );
+        _cut.submit( newer, false );
+        assertTrue( _taskFactory.discarded.isEmpty() );
+
+        _executor.runNext();
+        assertEquals( _taskFactory.discarded, Arrays.asList( older ) );
+    }
+
+    @Test
+    public void testDiscardReleasesLocksOfReplacedSessions() {
+        final MemcachedBackupSession older = newSession( "foo" );
+        final MemcachedBackupSession newer = newSession( "foo" );
+
+        _cut.submit( older, false );
+        _cut.submit( newer, false );
+        ( (BoundedBackupExecutor.BackupCommand) _executor._commands.removeFirst() ).discard();
+
+        assertTrue( _taskFactory.sessions.isEmpty() );
+        assertEquals( _taskFactory.discarded, Arrays.asList( newer, older ) );
+    }
+
+    @Test
+    public void testDiscardedBackupCompletesFuture() throws Exception {
+        final MemcachedBackupSession session = newSession( "foo" );
+
+        final Future<BackupResult> future = _cut.submit( session, false );
+        ( (BoundedBackupExecutor.BackupCommand) _executor._commands.removeFirst() ).discard();
+
+        assertTrue( future.isDone() );
+        assertSame( future.get(), BackupResult.FAILURE );
+        assertEquals( _taskFactory.discarded.size(), 1 );
+        assertTrue( _taskFactory.sessions.isEmpty() );
+        assertEquals( _cut.getSize(), 0 );
+
+        // the next backup of this session must be scheduled again
+        _cut.submit( session, false );
+        assertEquals( _executor.size(), 1 );
+    }
+
+    @Test
+    public void testPriority() {
+        final MemcachedBackupSession session = newSession( "foo" );
+        _cut.submit( session, false );
+        final BoundedBackupExecutor.BackupCommand command = (BoundedBackupExecutor.BackupCommand) _executor._commands.getFirst();
+        assertFalse( command.isPriority() );
+
+        when( session.isNewInternal() ).thenReturn( true );
+        assertTrue( command.isPriority() );
+
+        when( session.isNewInternal() ).thenReturn( false );
+        _cut.submit( session, true );
+        assertTrue( command.isPriority(), "A forced backup should be prioritized." );
+    }
+
+    private static MemcachedBackupSession newSession( final String id ) {
+        final MemcachedBackupSession session = mock( MemcachedBackupSession.class );
+        when( session.getIdInternal() ).thenReturn( id );
+        return session;
+    }
+
+    private static class RecordingTaskFactory implements BackupTaskFactory {
+
+        final List<MemcachedBackupSession> sessions = new ArrayList<MemcachedBackupSession>();
+        final List<Boolean> forces = new ArrayList<Boolean>();
+        final List<MemcachedBackupSession> discarded = new ArrayList<MemcachedBackupSession>();
+        final Map<MemcachedBackupSession, BackupResult> results = new HashMap<MemcachedBackupSession, BackupResult>();
+        volatile Runnable onCall;
+
+        @Override
+        public Callable<BackupResult> createBackupTask( final MemcachedBackupSession session, final boolean force ) {
+            return new Callable<BackupResult>() {
+                @Override
+                public BackupResult call() throws Exception {
+                    sessions.add( session );
+                    forces.add( force );
+                    if ( onCall != null ) {
+                        onCall.run();
+                    }
+                    final BackupResult result = results.get( session );
+                    return result != null ? result : BackupResult.SKIPPED;
+                }
+            };
+        }
+
+        @Override
+        public BackupResult backupDiscarded( final MemcachedBackupSession session ) {
+            discarded.add( session );
+            return BackupResult.FAILURE;
+        }
+
+    }
+
+    /**
+     * An executor that just collects submitted commands until they're run explicitely.
+     */
+    private static class ManualExecutor extends AbstractExecutorService {
+
+        private final LinkedList<Runnable> _commands = new LinkedList<Runnable>();
+
+        int size() {
+            return _commands.size();
+        }
+
+        void runNext() {
+            _commands.removeFirst().run();
+        }
+
+        @Override
+        public void execute( final Runnable command ) {
+            _commands.add( command );
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return _commands;
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination( final long timeout, final TimeUnit unit ) throws InterruptedException {
+            return true;
+        }
+
+    }
+
+}
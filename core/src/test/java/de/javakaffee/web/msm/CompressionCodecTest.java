@@ -0,0 +1,124 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+/**
+ * Test the {@link CompressionCodec}s.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class CompressionCodecTest {
+
+    @DataProvider
+    public Object[][] codecs() {
+        return new Object[][] {
+                { CompressionCodec.NONE },
+                { CompressionCodec.DEFLATE },
+                { CompressionCodec.LZ4 }
+        };
+    }
+
+    @Test( dataProvider = "codecs" )
+    public void testRoundtrip( final CompressionCodec codec ) {
+        final Random random = new Random( 42 );
+        for ( final int length : new int[] { 0, 1, 12, 13, 100, 1000, 70000 } ) {
+            assertRoundtrip( codec, createText( random, length ) );
+            assertRoundtrip( codec, createRandom( random, length ) );
+            final byte[] run = new byte[length];
+            Arrays.fill( run, (byte) 'x' );
+            assertRoundtrip( codec, run );
+        }
+    }
+
+    @Test
+    public void testCompressible() {
+        final byte[] data = createText( new Random( 42 ), 10000 );
+        for ( final CompressionCodec codec : new CompressionCodec[] { CompressionCodec.DEFLATE, CompressionCodec.LZ4 } ) {
+            final byte[] buffer = new byte[codec.maxCompressedLength( data.length )];
+            final int length = codec.compress( data, 0, data.length, buffer, 0 );
+            assertTrue( length > 0 && length < data.length / 2, codec + " compressed to " + length );
+        }
+    }
+
+    @Test( dataProvider = "codecs" )
+    public void testCompressRange( final CompressionCodec codec ) {
+        final byte[] text = createText( new Random( 42 ), 1000 );
+        final byte[] data = new byte[text.length + 20];
+        System.arraycopy( text, 0, data, 10, text.length );
+
+        final byte[] buffer = new byte[5 + codec.maxCompressedLength( text.length )];
+        final int length = codec.compress( data, 10, text.length, buffer, 5 );
+        final byte[] result = new byte[text.length + 3];
+        codec.decompress( buffer, 5, length, result, 3, text.length );
+        assertEquals( Arrays.copyOfRange( result, 3, result.length ), text );
+    }
+
+    @Test( expectedExceptions = IllegalArgumentException.class )
+    public void testLZ4MalformedData() {
+        final byte[] data = createText( new Random( 42 ), 1000 );
+        final byte[] buffer = new byte[CompressionCodec.LZ4.maxCompressedLength( data.length )];
+        final int length = CompressionCodec.LZ4.compress( data, 0, data.length, buffer, 0 );
+        CompressionCodec.LZ4.decompress( buffer, 0, length - 10, new byte[data.length], 0, data.length );
+    }
+
+    @Test
+    public void testFromConfigValue() {
+        for ( final CompressionCodec codec : CompressionCodec.values() ) {
+            assertEquals( CompressionCodec.fromConfigValue( codec.toConfigValue() ), codec );
+            assertEquals( CompressionCodec.valueOfId( codec.getId() ), codec );
+        }
+        assertEquals( CompressionCodec.fromConfigValue( "LZ4" ), CompressionCodec.LZ4 );
+        assertEquals( CompressionCodec.fromConfigValue( "gzip" ), null );
+    }
+
+    private static void assertRoundtrip( final CompressionCodec codec, final byte[] data ) {
+        final byte[] buffer = new byte[codec.maxCompressedLength( data.length )];
+        final int length = codec.compress( data, 0, data.length, buffer, 0 );
+        if ( length < 0 ) {
+            // not compressible into maxCompressedLength
+            return;
+        }
+        final byte[] result = new byte[data.length];
+        codec.decompress( buffer, 0, length, result, 0, result.length );
+        assertEquals( result, data, codec + " roundtrip failed for " + data.length + " bytes" );
+    }
+
+    private static byte[] createText( final Random random, final int length ) {
+        final String[] words = { "session", "attribute", "memcached", "tomcat", "backup", "node", "the", "a" };
+        final StringBuilder sb = new StringBuilder( length );
+        while ( sb.length() < length ) {
+            sb.append( words[random.nextInt( words.length )] ).append( ' ' );
+        }
+        return sb.substring( 0, length ).getBytes();
+    }
+
+    private static byte[] createRandom( final Random random, final int length ) {
+        final byte[] result = new byte[length];
+        random.nextBytes( result );
+        return result;
+    }
+
+}
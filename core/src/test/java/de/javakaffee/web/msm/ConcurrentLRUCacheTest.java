@@ -0,0 +1,160 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test the {@link ConcurrentLRUCache}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class ConcurrentLRUCacheTest {
+
+    @Test
+    public void testLRU() throws InterruptedException {
+        final ConcurrentLRUCache<String,String> cut = new ConcurrentLRUCache<String, String>( 3 );
+        cut.put( "foo", "bar" );
+        Thread.sleep( 2 );
+        cut.put( "bar", "baz" );
+        assertEquals( cut.getKeys(), Arrays.asList( "foo", "bar" ),
+                "invalid order of items, initially it should be insertion ordered" );
+
+        Thread.sleep( 2 );
+        cut.get( "foo" );
+        assertEquals( cut.getKeys(), Arrays.asList( "bar", "foo" ),
+                "invalid order of items, accessing foo should move it to the end" );
+
+        // bar is the least recently used now and must be evicted
+        cut.put( "baz", "foo" );
+        cut.put( "qux", "foo" );
+        assertFalse( cut.containsKey( "bar" ) );
+        assertTrue( cut.containsKey( "foo" ) );
+    }
+
+    @Test
+    public void testRemove() {
+        final ConcurrentLRUCache<String,String> cut = new ConcurrentLRUCache<String, String>( 3 );
+        cut.put( "foo", "bar" );
+        assertTrue( cut.containsKey( "foo" ) );
+        assertEquals( cut.remove( "foo" ), "bar" );
+        assertFalse( cut.containsKey( "foo" ) );
+        assertNull( cut.remove( "foo" ) );
+    }
+
+    @Test
+    public void testPutIfDifferent() {
+        final ConcurrentLRUCache<String,String> cut = new ConcurrentLRUCache<String, String>( 3 );
+        assertNull( cut.putIfDifferent( "foo", "bar" ) );
+        assertEquals( cut.putIfDifferent( "foo", "bar" ), "bar" );
+        assertEquals( cut.putIfDifferent( "foo", "baz" ), "bar" );
+        assertEquals( cut.get( "foo" ), "baz" );
+    }
+
+    @Test
+    public void testCacheTTL() throws InterruptedException {
+        final ConcurrentLRUCache<String,String> cut = new ConcurrentLRUCache<String, String>( 1, 100 );
+        cut.put( "foo", "bar" );
+        assertEquals( cut.get( "foo" ), "bar" );
+        Thread.sleep( 120 );
+        assertNull( cut.get( "foo" ), "expired key still existing" );
+        assertFalse( cut.containsKey( "foo" ) );
+    }
+
+    @Test
+    public void testGetKeysSortedByValue() {
+        final ConcurrentLRUCache<String,Integer> cut = new ConcurrentLRUCache<String, Integer>( 1000 );
+        cut.put( "foo", 3 );
+        cut.put( "bar", 1 );
+        cut.put( "baz", 2 );
+
+        final Comparator<Integer> c = new Comparator<Integer>() {
+            @Override
+            public int compare( final Integer o1, final Integer o2 ) {
+                return o1.compareTo( o2 );
+            }
+        };
+        assertEquals( cut.getKeysSortedByValue( c ), Arrays.asList( "bar", "baz", "foo" ) );
+    }
+
+    @Test
+    public void testSegmentsAndSizeLimit() {
+        assertEquals( new ConcurrentLRUCache<String, Integer>( 3 ).getNumSegments(), 1 );
+        assertEquals( new ConcurrentLRUCache<String, Integer>( 200 ).getNumSegments(), 8 );
+        assertEquals( new ConcurrentLRUCache<String, Integer>( 50000 ).getNumSegments(), ConcurrentLRUCache.DEFAULT_CONCURRENCY_LEVEL );
+
+        final ConcurrentLRUCache<String, Integer> cut = new ConcurrentLRUCache<String, Integer>( 1000 );
+        for ( int i = 0; i < 5000; i++ ) {
+            cut.put( "key" + i, i );
+        }
+        final int size = cut.getKeys().size();
+        assertTrue( size <= 1000 && size > 900, "Unexpected size " + size );
+        assertTrue( cut.containsKey( "key4999" ) );
+        assertFalse( cut.containsKey( "key0" ) );
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        final ConcurrentLRUCache<Integer, Integer> cut = new ConcurrentLRUCache<Integer, Integer>( 500 );
+        final ExecutorService executor = Executors.newFixedThreadPool( 8 );
+        try {
+            final Callable<Void> task = new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for ( int i = 0; i < 20000; i++ ) {
+                        final Integer key = i % 1000;
+                        final Integer value = cut.get( key );
+                        if ( value != null ) {
+                            assertEquals( value, key );
+                        }
+                        else {
+                            cut.put( key, key );
+                        }
+                        if ( i % 100 == 0 ) {
+                            cut.remove( key );
+                        }
+                    }
+                    return null;
+                }
+            };
+            final Future<?>[] futures = new Future<?>[8];
+            for ( int i = 0; i < futures.length; i++ ) {
+                futures[i] = executor.submit( task );
+            }
+            for ( final Future<?> future : futures ) {
+                future.get( 10, TimeUnit.SECONDS );
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue( cut.getKeys().size() <= 500 );
+    }
+
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.Statistics.StatsType.EXPIRATION_UPDATE_SESSIONS;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test the {@link ExpirationUpdater}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class ExpirationUpdaterTest {
+
+    private Statistics _statistics;
+    private ExpirationUpdater _cut;
+
+    @BeforeMethod
+    public void setUp() {
+        _statistics = Statistics.create();
+        _cut = new ExpirationUpdater( 2, 2, _statistics );
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        _cut.shutdown();
+    }
+
+    @Test
+    public void testCreateBatchesGroupsAndInterleavesByNode() {
+        final MemcachedBackupSession a1 = createSession( "a1-n1" );
+        final MemcachedBackupSession a2 = createSession( "a2-n1" );
+        final MemcachedBackupSession a3 = createSession( "a3-n1" );
+        final MemcachedBackupSession b1 = createSession( "b1-n2" );
+        final MemcachedBackupSession b2 = createSession( "b2-n2" );
+
+        final List<List<MemcachedBackupSession>> batches = _cut.createBatches( Arrays.asList( a1, b1, a2, a3, b2 ) );
+
+        assertEquals( batches.size(), 3 );
+        assertEquals( batches.get( 0 ), Arrays.asList( a1, a2 ) );
+        assertEquals( batches.get( 1 ), Arrays.asList( b1, b2 ) );
+        assertEquals( batches.get( 2 ), Arrays.asList( a3 ) );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    @Test
+    public void testSyncSweepUpdatesAllBatches() {
+        final BackupSessionService service = mock( BackupSessionService.class );
+        final List<MemcachedBackupSession> sessions = Arrays.asList( createSession( "a1-n1" ), createSession( "a2-n1" ),
+                createSession( "a3-n1" ) );
+
+        assertTrue( _cut.sweep( sessions, service, 1000, false ) );
+
+        verify( service, times( 2 ) ).updateExpiration( anyListOf( MemcachedBackupSession.class ) );
+        assertEquals( _statistics.getProbe( EXPIRATION_UPDATE_SESSIONS ).getMax(), 3 );
+    }
+
+    @SuppressWarnings( "unchecked" )
+    @Test
+    public void testAsyncSweepSkippedWhilePreviousSweepIsRunning() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch( 1 );
+        final CountDownLatch finished = new CountDownLatch( 2 );
+        final List<List<MemcachedBackupSession>> updated = new ArrayList<List<MemcachedBackupSession>>();
+        final BackupSessionService service = mock( BackupSessionService.class );
+        doAnswer( new Answer<Void>() {
+            @Override
+            public Void answer( final InvocationOnMock invocation ) throws Throwable {
+                release.await( 5, TimeUnit.SECONDS );
+                synchronized ( updated ) {
+                    updated.add( (List<MemcachedBackupSession>) invocation.getArguments()[0] );
+                }
+                finished.countDown();
+                return null;
+            }
+        } ).when( service ).updateExpiration( anyListOf( MemcachedBackupSession.class ) );
+
+        final MemcachedBackupSession session = createSession( "a1-n1" );
+        assertTrue( _cut.sweep( Arrays.asList( session, createSession( "b1-n2" ) ), service, 0, true ) );
+        assertTrue( session.isExpirationUpdateRunning() );
+        assertFalse( _cut.sweep( Arrays.asList( createSession( "c1-n1" ) ), service, 0, true ) );
+
+        release.countDown();
+        assertTrue( finished.await( 5, TimeUnit.SECONDS ) );
+        assertEquals( updated.size(), 2 );
+
+        // the sweep is finished after the stats are registered
+        final long timeout = System.currentTimeMillis() + 5000;
+        while( _statistics.getProbe( EXPIRATION_UPDATE_SESSIONS ).getCount() == 0 && System.currentTimeMillis() < timeout ) {
+            Thread.sleep( 10 );
+        }
+        assertTrue( _cut.sweep( Arrays.asList( createSession( "c1-n1" ) ), service, 0, false ) );
+    }
+
+    private static MemcachedBackupSession createSession( final String id ) {
+        final MemcachedBackupSession result = new MemcachedBackupSession();
+        result.setIdInternal( id );
+        return result;
+    }
+
+}
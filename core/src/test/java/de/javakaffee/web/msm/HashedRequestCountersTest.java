@@ -0,0 +1,111 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.HashedRequestCounters.hash;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test the {@link HashedRequestCounters}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class HashedRequestCountersTest {
+
+    @Test
+    public void testHashOfUriAndQueryString() {
+        assertEquals( hash( "/foo", "bar=baz" ), hash( "/foo?bar=baz" ) );
+        assertEquals( hash( "/foo", null ), hash( "/foo" ) );
+        assertFalse( hash( "/foo" ) == hash( "/fop" ) );
+        assertFalse( hash( "" ) == 0 );
+    }
+
+    @Test
+    public void testIncrementAndRemove() {
+        final HashedRequestCounters cut = new HashedRequestCounters( 10, -1 );
+        assertFalse( cut.contains( hash( "/foo" ) ) );
+        assertEquals( cut.getCount( hash( "/foo" ) ), 0f );
+        assertEquals( cut.getLastAccessTime( hash( "/foo" ) ), -1 );
+
+        assertEquals( cut.increment( hash( "/foo" ) ), 1f );
+        assertEquals( cut.increment( hash( "/foo" ) ), 2f );
+        assertEquals( cut.increment( hash( "/bar" ) ), 1f );
+        assertTrue( cut.contains( hash( "/foo" ) ) );
+        assertEquals( cut.getCount( hash( "/foo" ) ), 2f );
+        assertTrue( cut.getLastAccessTime( hash( "/foo" ) ) > 0 );
+        assertEquals( cut.size(), 2 );
+
+        assertTrue( cut.remove( hash( "/foo" ) ) );
+        assertFalse( cut.remove( hash( "/foo" ) ) );
+        assertFalse( cut.contains( hash( "/foo" ) ) );
+        assertTrue( cut.contains( hash( "/bar" ) ) );
+        assertEquals( cut.size(), 1 );
+    }
+
+    @Test
+    public void testTTL() throws InterruptedException {
+        final HashedRequestCounters cut = new HashedRequestCounters( 10, 500 );
+        cut.increment( hash( "/foo" ) );
+        assertTrue( cut.contains( hash( "/foo" ) ) );
+        // the time has a resolution of seconds
+        Thread.sleep( 2100 );
+        assertFalse( cut.contains( hash( "/foo" ) ), "expired key still existing" );
+        assertEquals( cut.increment( hash( "/foo" ) ), 1f );
+    }
+
+    @Test
+    public void testDecay() throws InterruptedException {
+        final HashedRequestCounters cut = new HashedRequestCounters( 10, -1, 1000 );
+        cut.increment( hash( "/foo" ) );
+        cut.increment( hash( "/foo" ) );
+        assertEquals( cut.getCount( hash( "/foo" ) ), 2f );
+        // the time has a resolution of seconds, so the count is decayed by 2 or 3 half lives
+        Thread.sleep( 2100 );
+        final float count = cut.getCount( hash( "/foo" ) );
+        assertTrue( count >= 0.25f && count <= 0.5f, "Unexpected count " + count );
+        final float incremented = cut.increment( hash( "/foo" ) );
+        assertTrue( incremented >= 1.25f && incremented <= 1.5f, "Unexpected count " + incremented );
+    }
+
+    @Test
+    public void testSizeLimitAndRemovalKeepsEntriesReachable() {
+        final HashedRequestCounters cut = new HashedRequestCounters( 1000, -1 );
+        for ( int i = 0; i < 5000; i++ ) {
+            cut.increment( hash( "/key" + i ) );
+        }
+        assertTrue( cut.size() <= 1000, "Unexpected size " + cut.size() );
+        assertTrue( cut.contains( hash( "/key4999" ) ) );
+
+        // remove every other entry, the remaining ones must still be found
+        final HashedRequestCounters small = new HashedRequestCounters( 100, -1 );
+        for ( int i = 0; i < 100; i++ ) {
+            small.increment( hash( "/key" + i ) );
+        }
+        assertEquals( small.size(), 100 );
+        for ( int i = 0; i < 100; i += 2 ) {
+            assertTrue( small.remove( hash( "/key" + i ) ) );
+        }
+        for ( int i = 0; i < 100; i++ ) {
+            assertEquals( small.contains( hash( "/key" + i ) ), i % 2 == 1, "Unexpected result for /key" + i );
+        }
+    }
+
+}
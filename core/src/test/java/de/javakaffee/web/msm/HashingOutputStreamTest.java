@@ -0,0 +1,77 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test the {@link HashingOutputStream} and {@link XXHash64}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class HashingOutputStreamTest {
+
+    @Test
+    public void testKnownHashes() throws Exception {
+        assertEquals( XXHash64.hash( new byte[0] ), 0xEF46DB3751D8E999L );
+        assertEquals( XXHash64.hash( "abc".getBytes( "UTF-8" ) ), 0x44BC2CF5AD770999L );
+        assertEquals( XXHash64.hash( "Nobody inspects the spammish repetition".getBytes( "UTF-8" ) ), 0xFBCEA83C8A378BF1L );
+    }
+
+    @Test
+    public void testChunkedWritesResultInSameHash() {
+        final Random random = new Random( 42 );
+        for ( final int length : new int[] { 0, 1, 7, 31, 32, 33, 100, 1000 } ) {
+            final byte[] data = new byte[length];
+            random.nextBytes( data );
+
+            final HashingOutputStream out = new HashingOutputStream();
+            int off = 0;
+            while ( off < length ) {
+                final int len = Math.min( random.nextInt( 40 ), length - off );
+                if ( len == 0 ) {
+                    out.write( data[off++] );
+                }
+                else {
+                    out.write( data, off, len );
+                    off += len;
+                }
+            }
+
+            assertEquals( out.toByteArray(), data );
+            assertEquals( out.getHash(), XXHash64.hash( data ), "Wrong hash for length " + length );
+        }
+    }
+
+    @Test
+    public void testReset() {
+        final HashingOutputStream out = new HashingOutputStream();
+        out.write( new byte[] { 1, 2, 3 }, 0, 3 );
+        final long hash = out.getHash();
+        assertEquals( out.getHash(), hash, "getHash must not change the state." );
+        out.reset();
+        assertEquals( out.getHash(), XXHash64.hash( new byte[0] ) );
+        out.write( new byte[] { 1, 2, 4 }, 0, 3 );
+        assertFalse( out.getHash() == hash );
+    }
+
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import net.spy.memcached.CASResponse;
+import net.spy.memcached.CASValue;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.transcoders.Transcoder;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.LocalLockTable.Holder;
+
+/**
+ * Test the {@link LocalLockTable}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class LocalLockTableTest {
+
+    private ExecutorService _executor;
+
+    @BeforeMethod
+    public void setUp() {
+        _executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        _executor.shutdownNow();
+    }
+
+    @Test
+    public void testFirstRequesterMustAcquireRemoteLock() throws Exception {
+        final LocalLockTable cut = new LocalLockTable( 5, 5000, 1000 );
+        final Holder foo = cut.acquire( "foo", System.currentTimeMillis() + 100 );
+        assertFalse( foo.isRemoteLockHandedOver() );
+        assertTrue( cut.isLocked( "foo" ) );
+        assertFalse( cut.acquire( "bar", System.currentTimeMillis() + 100 ).isRemoteLockHandedOver() );
+
+        // no waiters, so the lock is not handed over
+        assertFalse( cut.release( foo, true ) );
+        assertFalse( cut.isLocked( "foo" ) );
+        assertFalse( cut.acquire( "foo", System.currentTimeMillis() + 100 ).isRemoteLockHandedOver() );
+    }
+
+    @Test
+    public void testRemoteLockIsHandedOverToWaitingRequest() throws Exception {
+        final LocalLockTable cut = new LocalLockTable( 5, 5000, 1000 );
+        final MemcachedClient memcached = mock( MemcachedClient.class );
+        final Holder first = cut.acquire( "foo", System.currentTimeMillis() + 100 );
+
+        final Future<Holder> waiting = _executor.submit( acquire( cut, "foo", 2000 ) );
+        Thread.sleep( 50 );
+        assertFalse( waiting.isDone() );
+
+        cut.releaseWithRemoteLock( first, "lock:foo", memcached );
+        final Holder second = waiting.get( 1, TimeUnit.SECONDS );
+        assertTrue( second.isRemoteLockHandedOver(), "The remote lock should be handed over." );
+        verify( memcached, never() ).delete( "lock:foo" );
+        assertTrue( cut.isLocked( "foo" ) );
+
+        // a second release of the first holder must not release the lock of the second one
+        cut.releaseWithRemoteLock( first, "lock:foo", memcached );
+        verify( memcached, never() ).delete( "lock:foo" );
+        assertTrue( cut.isLocked( "foo" ) );
+
+        // now there's no waiting request, so the remote lock must be deleted
+        cut.releaseWithRemoteLock( second, "lock:foo", memcached );
+        verify( memcached ).delete( "lock:foo" );
+        assertFalse( cut.isLocked( "foo" ) );
+    }
+
+    @Test
+    public void testRemoteLockIsNotAcquiredOnTimeout() throws Exception {
+        final LocalLockTable cut = new LocalLockTable( 5, 5000, 10 );
+        try {
+            final MemcachedClient memcached = mock( MemcachedClient.class );
+            @SuppressWarnings( "unchecked" )
+            final Future<Boolean> added = mock( Future.class );
+            when( added.get( 10, TimeUnit.MILLISECONDS ) ).thenThrow( new TimeoutException( "timeout" ) );
+            when( memcached.add( eq( "lock:foo" ), eq( 5 ), any() ) ).thenReturn( added );
+
+            final Holder holder = cut.acquire( "foo", System.currentTimeMillis() + 100 );
+            assertFalse( cut.tryAcquireRemote( holder, "lock:foo", memcached ) );
+            verify( added ).cancel( false );
+            verify( added, never() ).get();
+        } finally {
+            cut.shutdown();
+        }
+    }
+
+    @Test
+    public void testRemoteLockIsAcquiredWithOwnerToken() throws Exception {
+        final LocalLockTable cut = new LocalLockTable( 7, 5000, 1000 );
+        try {
+            final MemcachedClient memcached = mock( MemcachedClient.class );
+            final String[] token = new String[1];
+            when( memcached.add( eq( "lock:foo" ), eq( 7 ), any() ) ).thenAnswer( new Answer<Future<Boolean>>() {
+                @Override
+                public Future<Boolean> answer( final InvocationOnMock invocation ) throws Throwable {
+                    token[0] = (String) invocation.getArguments()[2];
+                    return new BackupSessionService.SimpleFuture<Boolean>( true );
+                }
+            } );
+
+            final Holder holder = cut.acquire( "foo", System.currentTimeMillis() + 100 );
+            assertTrue( cut.tryAcquireRemote( holder, "lock:foo", memcached ) );
+            assertNotNull( token[0] );
+
+            // the lock is still owned, so it's deleted
+            when( memcached.gets( "lock:foo" ) ).thenReturn( new CASValue<Object>( 42, token[0] ) );
+            cut.releaseWithRemoteLock( holder, "lock:foo", memcached );
+            verify( memcached ).delete( "lock:foo" );
+        } finally {
+            cut.shutdown();
+        }
+    }
+
+    @Test
+    public void testRemoteLockIsNotDeletedIfNotOwned() throws Exception {
+        final LocalLockTable cut = new LocalLockTable( 5, 5000, 1000 );
+        try {
+            final MemcachedClient memcached = mock( MemcachedClient.class );
+            when( memcached.add( eq( "lock:foo" ), anyInt(), any() ) ).thenReturn( new BackupSessionService.SimpleFuture<Boolean>( true ) );
+            final Holder holder = cut.acquire( "foo", System.currentTimeMillis() + 100 );
+            assertTrue( cut.tryAcquireRemote( holder, "lock:foo", memcached ) );
+
+            // the lease expired and the lock was acquired by somebody else
+            when( memcached.gets( "lock:foo" ) ).thenReturn( new CASValue<Object>( 42, "other:1" ) );
+            cut.releaseWithRemoteLock( holder, "lock:foo", memcached );
+            verify( memcached, never() ).delete( "lock:foo" );
+            assertFalse( cut.isLocked( "foo" ) );
+        } finally {
+            cut.shutdown();
+        }
+    }
+
+    @SuppressWarnings( "unchecked" )
+    @Test
+    public void testLeaseIsRenewedWhileHeld() throws Exception {
+        final LocalLockTable cut = new LocalLockTable( 5, 5000, 1000 );
+        try {
+            final MemcachedClient memcached = mock( MemcachedClient.class );
+            final String[] token = new String[1];
+            when( memcached.add( eq( "lock:foo" ), eq( 5 ), any() ) ).thenAnswer( new Answer<Future<Boolean>>() {
+                @Override
+                public Future<Boolean> answer( final InvocationOnMock invocation ) throws Throwable {
+                    token[0] = (String) invocation.getArguments()[2];
+                    return new BackupSessionService.SimpleFuture<Boolean>( true );
+                }
+            } );
+            final Holder holder = cut.acquire( "foo", System.currentTimeMillis() + 100 );
+            assertTrue( cut.tryAcquireRemote( holder, "lock:foo", memcached ) );
+
+            when( memcached.gets( "lock:foo" ) ).thenReturn( new CASValue<Object>( 42, token[0] ) );
+            when( memcached.cas( eq( "lock:foo" ), eq( 42L ), eq( 5 ), eq( token[0] ), any( Transcoder.class ) ) ).thenReturn( CASResponse.OK );
+            cut.renewLeases();
+            verify( memcached ).cas( eq( "lock:foo" ), eq( 42L ), eq( 5 ), eq( token[0] ), any( Transcoder.class ) );
+
+            // when the lease is no longer owned it's not renewed and not handed over
+            when( memcached.gets( "lock:foo" ) ).thenReturn( new CASValue<Object>( 43, "other:1" ) );
+            cut.renewLeases();
+            cut.renewLeases();
+            verify( memcached ).cas( anyString(), anyLong(), anyInt(), any(), any( Transcoder.class ) );
+
+            final Future<Holder> waiting = _executor.submit( acquire( cut, "foo", 2000 ) );
+            Thread.sleep( 50 );
+            cut.releaseWithRemoteLock( holder, "lock:foo", memcached );
+            assertFalse( waiting.get( 1, TimeUnit.SECONDS ).isRemoteLockHandedOver(), "A lost lock must not be handed over." );
+            verify( memcached, never() ).delete( "lock:foo" );
+        } finally {
+            cut.shutdown();
+        }
+    }
+
+    @SuppressWarnings( "unchecked" )
+    @Test
+    public void testReaderCountIsRenewedWhileReadersHoldSharedLock() throws Exception {
+        final LocalLockTable cut = new LocalLockTable( 5, 5000, 1000 );
+        try {
+            final MemcachedClient memcached = mock( MemcachedClient.class );
+            when( memcached.gets( "readers:foo" ) ).thenReturn( new CASValue<Object>( 42, "2" ) );
+            when( memcached.cas( eq( "readers:foo" ), eq( 42L ), eq( 5 ), eq( "2" ), any( Transcoder.class ) ) ).thenReturn( CASResponse.OK );
+
+            // the reader count existed already, so it's renewed immediately
+            cut.addReader( "readers:foo", memcached, true );
+            verify( memcached ).cas( eq( "readers:foo" ), eq( 42L ), eq( 5 ), eq( "2" ), any( Transcoder.class ) );
+
+            cut.addReader( "readers:foo", memcached, false );
+            cut.renewLeases();
+            verify( memcached, times( 2 ) ).cas( eq( "readers:foo" ), eq( 42L ), eq( 5 ), eq( "2" ), any( Transcoder.class ) );
+
+            // renewed until the last local reader released the shared lock
+            cut.removeReader( "readers:foo" );
+            cut.renewLeases();
+            verify( memcached, times( 3 ) ).cas( eq( "readers:foo" ), eq( 42L ), eq( 5 ), eq( "2" ), any( Transcoder.class ) );
+            cut.removeReader( "readers:foo" );
+            cut.renewLeases();
+            verify( memcached, times( 3 ) ).cas( anyString(), anyLong(), anyInt(), any(), any( Transcoder.class ) );
+        } finally {
+            cut.shutdown();
+        }
+    }
+
+    @Test
+    public void testWaitingRequestMustAcquireRemoteLockIfNotHeld() throws Exception {
+        final LocalLockTable cut = new LocalLockTable( 5, 5000, 1000 );
+        final Holder holder = cut.acquire( "foo", System.currentTimeMillis() + 100 );
+
+        final Future<Holder> waiting = _executor.submit( acquire( cut, "foo", 2000 ) );
+        Thread.sleep( 50 );
+        // the first request could not get the lock from memcached
+        assertFalse( cut.release( holder, false ) );
+        assertFalse( waiting.get( 1, TimeUnit.SECONDS ).isRemoteLockHandedOver(),
+                "The remote lock was not held and must be acquired by the waiting request." );
+        assertTrue( cut.isLocked( "foo" ) );
+    }
+
+    @Test
+    public void testTimeoutWhileWaiting() throws Exception {
+        final LocalLockTable cut = new LocalLockTable( 5, 5000, 1000 );
+        final Holder holder = cut.acquire( "foo", System.currentTimeMillis() + 100 );
+        try {
+            cut.acquire( "foo", System.currentTimeMillis() + 50 );
+            fail( "Expected TimeoutException" );
+        } catch ( final TimeoutException e ) {
+            // expected
+        }
+        // the waiter gave up, so the lock is not handed over
+        assertFalse( cut.release( holder, true ) );
+    }
+
+    @Test
+    public void testStaleLockIsTakenOver() throws Exception {
+        final LocalLockTable cut = new LocalLockTable( 5, 100, 1000 );
+        cut.acquire( "foo", System.currentTimeMillis() + 100 );
+        final long start = System.currentTimeMillis();
+        assertFalse( cut.acquire( "foo", start + 1000 ).isRemoteLockHandedOver(), "A stale lock must be acquired from memcached again." );
+        final long duration = System.currentTimeMillis() - start;
+        assertTrue( duration >= 90 && duration < 1000, "Unexpected duration " + duration );
+    }
+
+    @Test
+    public void testReleaseOfStaleHolderDoesNotReleaseLockOfNewHolder() throws Exception {
+        final LocalLockTable cut = new LocalLockTable( 5, 100, 1000 );
+        try {
+            final MemcachedClient memcached = mock( MemcachedClient.class );
+            final String[] token = new String[1];
+            when( memcached.add( eq( "lock:foo" ), eq( 5 ), any() ) ).thenAnswer( new Answer<Future<Boolean>>() {
+                @Override
+                public Future<Boolean> answer( final InvocationOnMock invocation ) throws Throwable {
+                    token[0] = (String) invocation.getArguments()[2];
+                    return new BackupSessionService.SimpleFuture<Boolean>( true );
+                }
+            } );
+            final Holder stale = cut.acquire( "foo", System.currentTimeMillis() + 100 );
+            assertTrue( cut.tryAcquireRemote( stale, "lock:foo", memcached ) );
+
+            final Holder current = cut.acquire( "foo", System.currentTimeMillis() + 1000 );
+            assertTrue( cut.tryAcquireRemote( current, "lock:foo", memcached ) );
+            when( memcached.gets( "lock:foo" ) ).thenReturn( new CASValue<Object>( 42, token[0] ) );
+
+            // the stale holder must neither release the local lock nor delete the lock of the new holder
+            assertTrue( cut.release( stale, true ) );
+            cut.releaseWithRemoteLock( stale, "lock:foo", memcached );
+            verify( memcached, never() ).delete( "lock:foo" );
+            assertTrue( cut.isLocked( "foo" ) );
+
+            cut.releaseWithRemoteLock( current, "lock:foo", memcached );
+            verify( memcached ).delete( "lock:foo" );
+            assertFalse( cut.isLocked( "foo" ) );
+        } finally {
+            cut.shutdown();
+        }
+    }
+
+    @Test
+    public void testHandoverToMultipleWaitingRequests() throws Exception {
+        final LocalLockTable cut = new LocalLockTable( 5, 5000, 1000 );
+        final Holder holder = cut.acquire( "foo", System.currentTimeMillis() + 100 );
+
+        final Future<Holder> waiting1 = _executor.submit( acquire( cut, "foo", 2000 ) );
+        final Future<Holder> waiting2 = _executor.submit( acquire( cut, "foo", 2000 ) );
+        Thread.sleep( 50 );
+
+        assertTrue( cut.release( holder, true ) );
+        Thread.sleep( 50 );
+        assertEquals( (waiting1.isDone() ? 1 : 0) + (waiting2.isDone() ? 1 : 0), 1, "Only one request should get the lock." );
+        final Future<Holder> first = waiting1.isDone() ? waiting1 : waiting2;
+        final Future<Holder> second = waiting1.isDone() ? waiting2 : waiting1;
+        assertTrue( first.get().isRemoteLockHandedOver() );
+        assertTrue( cut.release( first.get(), true ) );
+        assertTrue( second.get( 1, TimeUnit.SECONDS ).isRemoteLockHandedOver() );
+        assertFalse( cut.release( second.get(), true ) );
+    }
+
+    private static Callable<Holder> acquire( final LocalLockTable cut, final String sessionId, final long timeout ) {
+        return new Callable<Holder>() {
+            @Override
+            public Holder call() throws Exception {
+                return cut.acquire( sessionId, System.currentTimeMillis() + timeout );
+            }
+        };
+    }
+
+}
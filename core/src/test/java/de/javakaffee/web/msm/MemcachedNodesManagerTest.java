@@ -69,6 +69,11 @@ public class MemcachedNodesManagerTest {
 	public void testSingleNodeAndFailoverNodeShouldThrowException() {
 		createFor("n1:localhost:11211", "n1", _mcc);
 	}
+
+	@Test( expectedExceptions = IllegalArgumentException.class )
+	public void testZeroWeightIsInvalid() {
+		createFor("n1:localhost:11211:0,n2:localhost:11212", null, _mcc);
+	}
 	
 	@DataProvider
 	public static Object[][] nodesAndExpectedCountDataProvider() {
@@ -76,7 +81,8 @@ public class MemcachedNodesManagerTest {
 				{ "localhost:11211", 1 },
 				{ "n1:localhost:11211", 1 },
 				{ "n1:localhost:11211,n2:localhost:11212", 2 },
-				{ "n1:localhost:11211 n2:localhost:11212", 2 }
+				{ "n1:localhost:11211 n2:localhost:11212", 2 },
+				{ "n1:localhost:11211:2 n2:localhost:11212:1", 2 }
 		};
 	}
 	
@@ -94,7 +100,8 @@ public class MemcachedNodesManagerTest {
 				{ "n1:localhost:11211", null, new NodeIdList("n1") },
 				{ "n1:localhost:11211,n2:localhost:11212", "n1", new NodeIdList("n2") },
 				{ "n1:localhost:11211,n2:localhost:11212,n3:localhost:11213", "n1", new NodeIdList("n2", "n3") },
-				{ "n1:localhost:11211,n2:localhost:11212,n3:localhost:11213", "n1,n2", new NodeIdList("n3") }
+				{ "n1:localhost:11211,n2:localhost:11212,n3:localhost:11213", "n1,n2", new NodeIdList("n3") },
+				{ "n1:localhost:11211:3,n2:localhost:11212:1,n3:localhost:11213", "n1", new NodeIdList("n2", "n3") }
 		};
 	}
 
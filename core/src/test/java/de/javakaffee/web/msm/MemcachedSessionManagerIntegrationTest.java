@@ -390,6 +390,8 @@ public abstract class MemcachedSessionManagerIntegrationTest {
     @Test( enabled = true )
     public void testNotAssociatedSessionGetsAssociatedIssue49() throws InterruptedException, IOException, ExecutionException, TimeoutException {
         _daemon.stop();
+        // wait until the node is detected as unavailable by the background health checks
+        Thread.sleep( 200 );
 
         final SessionManager manager = getManager( _tomcat1 );
         manager.setMaxInactiveInterval( 5 );
@@ -28,11 +28,21 @@ import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
 import static org.testng.Assert.assertTrue;
 
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -42,14 +52,21 @@ import javax.annotation.Nonnull;
 import net.spy.memcached.MemcachedClient;
 
 import org.apache.catalina.LifecycleException;
+import org.apache.catalina.Session;
+import org.apache.catalina.connector.Request;
 import org.apache.catalina.core.StandardContext;
 import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import de.javakaffee.web.msm.BackupSessionTask.BackupResult;
 import de.javakaffee.web.msm.LockingStrategy.LockingMode;
+import de.javakaffee.web.msm.MemcachedSessionService.LockStatus;
 import de.javakaffee.web.msm.MemcachedSessionService.SessionManager;
+import de.javakaffee.web.msm.SessionTrackerValve.SessionBackupService.BackupResultStatus;
 import de.javakaffee.web.msm.integration.TestUtils;
 import de.javakaffee.web.msm.integration.TestUtils.SessionAffinityMode;
 
@@ -189,6 +206,349 @@ public abstract class MemcachedSessionServiceTest {
 
     }
 
+    /**
+     * Test that only modified attributes are sent if attributes are stored separately.
+     */
+    @Test
+    public void testStoreAttributesSeparatelyOnlySendsModifiedAttributes() throws Exception {
+        _service.setStoreAttributesSeparately( true );
+        _service.startInternal( _memcachedMock );
+
+        final MemcachedBackupSession session = createSession( _service );
+
+        session.access();
+        session.endAccess();
+        session.setAttribute( "foo", "bar" );
+        session.setAttribute( "bar", "baz" );
+        _service.backupSession( session.getIdInternal(), false, null ).get();
+        verify( _memcachedMock, times( 1 ) ).set( eq( session.getId() ), anyInt(), any() );
+        verify( _memcachedMock, times( 2 ) ).set( startsWith( "attr:" ), anyInt(), any() );
+
+        final AttributeManifest first = session.getAttributeManifest();
+        assertEquals( first.getEntries().keySet(), new HashSet<String>( Arrays.asList( "foo", "bar" ) ) );
+
+        // we need some millis between last backup and next access (due to check in BackupSessionService)
+        Thread.sleep(5L);
+
+        session.access();
+        session.endAccess();
+        session.setAttribute( "bar", "qux" );
+        _service.backupSession( session.getIdInternal(), false, null ).get();
+        verify( _memcachedMock, times( 2 ) ).set( eq( session.getId() ), anyInt(), any() );
+        verify( _memcachedMock, times( 3 ) ).set( startsWith( "attr:" ), anyInt(), any() );
+        verify( _memcachedMock ).delete( first.getKey( first.getEntry( "bar" ) ) );
+
+        final AttributeManifest second = session.getAttributeManifest();
+        assertEquals( second.getEntry( "foo" ).getKeyId(), first.getEntry( "foo" ).getKeyId() );
+        assertFalse( second.getEntry( "bar" ).getKeyId() == first.getEntry( "bar" ).getKeyId() );
+    }
+
+    /**
+     * Test that a session with separately stored attributes is loaded completely.
+     */
+    @SuppressWarnings( "unchecked" )
+    @Test
+    public void testLoadSessionWithSeparatelyStoredAttributes() throws Exception {
+        _service.setStoreAttributesSeparately( true );
+        _service.startInternal( _memcachedMock );
+
+        final MemcachedBackupSession session = createSession( _service );
+        session.access();
+        session.endAccess();
+        session.setAttribute( "foo", "bar" );
+        session.setAttribute( "bar", "baz" );
+        _service.backupSession( session.getIdInternal(), false, null ).get();
+
+        final ArgumentCaptor<String> keys = ArgumentCaptor.forClass( String.class );
+        final ArgumentCaptor<Object> values = ArgumentCaptor.forClass( Object.class );
+        verify( _memcachedMock, times( 3 ) ).set( keys.capture(), anyInt(), values.capture() );
+        final Map<String, Object> items = new HashMap<String, Object>();
+        for ( int i = 0; i < keys.getAllValues().size(); i++ ) {
+            items.put( keys.getAllValues().get( i ), values.getAllValues().get( i ) );
+        }
+
+        when( _memcachedMock.get( eq( session.getId() ) ) ).thenReturn( items.get( session.getId() ) );
+        when( _memcachedMock.getBulk( any( Collection.class ) ) ).thenReturn( items );
+
+        final MemcachedBackupSession loaded = _service.loadFromMemcachedWithCheck( session.getId() );
+        assertEquals( loaded.getAttribute( "foo" ), "bar" );
+        assertEquals( loaded.getAttribute( "bar" ), "baz" );
+
+        // an incomplete session must not be returned
+        items.remove( session.getAttributeManifest().getKey( session.getAttributeManifest().getEntry( "bar" ) ) );
+        assertNull( _service.loadFromMemcachedWithCheck( session.getId() ) );
+    }
+
+    /**
+     * Test that a non-sticky session is loaded together with its validity info in a single round trip.
+     */
+    @Test
+    public void testLoadNonStickySessionWithValidityInfo() throws Exception {
+        _service.setStickyInternal( false );
+        _service.setLockingMode( LockingMode.NONE, null, false );
+        _service.startInternal( _memcachedMock );
+
+        final TranscoderService transcoderService = new TranscoderService( new JavaSerializationTranscoder( _service.getManager() ) );
+        _service.setTranscoderService( transcoderService );
+
+        final MemcachedBackupSession session = createSession( _service );
+        session.setAttribute( "foo", "bar" );
+
+        final String validityKey = createValidityInfoKeyName( session.getId() );
+        final Map<String, Object> items = new HashMap<String, Object>();
+        items.put( session.getId(), transcoderService.serialize( session ) );
+        items.put( validityKey, encode( 1800, 1000, 2000 ) );
+        when( _memcachedMock.getBulk( session.getId(), validityKey ) ).thenReturn( items );
+
+        final MemcachedBackupSession loaded = _service.loadFromMemcachedWithCheck( session.getId() );
+        assertEquals( loaded.getAttribute( "foo" ), "bar" );
+        assertEquals( loaded.getLastAccessedTimeInternal(), 1000 );
+        assertEquals( loaded.getThisAccessedTimeInternal(), 2000 );
+        assertEquals( _service.getStatistics().getProbe( Statistics.StatsType.NON_STICKY_AFTER_LOAD_FROM_MEMCACHED ).getCount(), 1 );
+
+        verify( _memcachedMock, never() ).get( session.getId() );
+        verify( _memcachedMock, never() ).get( validityKey );
+    }
+
+    /**
+     * Test that concurrent requests for a session that's not available locally load the session only once.
+     */
+    @Test
+    public void testConcurrentFindSessionLoadsSessionOnce() throws Exception {
+        final TranscoderService transcoderService = new TranscoderService( new JavaSerializationTranscoder( _service.getManager() ) );
+        _service.setTranscoderService( transcoderService );
+
+        final MemcachedBackupSession session = createSession( _service );
+        session.setAttribute( "foo", "bar" );
+        final String sessionId = session.getId();
+        final byte[] data = transcoderService.serialize( session );
+        _service.getManager().removeInternal( session, false );
+
+        final CountDownLatch loading = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        when( _memcachedMock.get( sessionId ) ).thenAnswer( new Answer<Object>() {
+            @Override
+            public Object answer( final InvocationOnMock invocation ) throws Throwable {
+                loading.countDown();
+                release.await( 5, TimeUnit.SECONDS );
+                return data;
+            }
+        } );
+
+        final ExecutorService executor = Executors.newFixedThreadPool( 2 );
+        try {
+            final Callable<Session> findSession = new Callable<Session>() {
+                @Override
+                public Session call() throws Exception {
+                    return _service.findSession( sessionId );
+                }
+            };
+            final Future<Session> first = executor.submit( findSession );
+            assertTrue( loading.await( 5, TimeUnit.SECONDS ) );
+            final Future<Session> second = executor.submit( findSession );
+
+            // the second request must wait for the load of the first one
+            final long timeout = System.currentTimeMillis() + 5000;
+            while( _service.getStatistics().getRequestsWithJoinedSessionLoad() == 0 && System.currentTimeMillis() < timeout ) {
+                Thread.sleep( 10 );
+            }
+            release.countDown();
+
+            final MemcachedBackupSession loaded = (MemcachedBackupSession) first.get( 5, TimeUnit.SECONDS );
+            assertEquals( loaded.getAttribute( "foo" ), "bar" );
+            assertTrue( second.get( 5, TimeUnit.SECONDS ) == loaded );
+            assertTrue( _service.getManager().getSessionInternal( sessionId ) == loaded );
+            assertEquals( _service.getStatistics().getRequestsWithJoinedSessionLoad(), 1 );
+            verify( _memcachedMock, times( 1 ) ).get( sessionId );
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Test that concurrent non-sticky requests don't join a load of the session, so that each
+     * request gets its own session instance (and lock).
+     */
+    @Test
+    public void testConcurrentNonStickyFindSessionLoadsSessionPerRequest() throws Exception {
+        _service.setStickyInternal( false );
+        _service.setLockingMode( LockingMode.NONE, null, false );
+        _service.startInternal( _memcachedMock );
+        final TranscoderService transcoderService = new TranscoderService( new JavaSerializationTranscoder( _service.getManager() ) );
+        _service.setTranscoderService( transcoderService );
+
+        final MemcachedBackupSession session = createSession( _service );
+        session.setAttribute( "foo", "bar" );
+        final String sessionId = session.getId();
+        final byte[] data = transcoderService.serialize( session );
+        _service.getManager().removeInternal( session, false );
+
+        // both requests must load the session, the first one is blocked until the second one loads
+        final CountDownLatch loading = new CountDownLatch( 2 );
+        final String validityKey = createValidityInfoKeyName( sessionId );
+        when( _memcachedMock.getBulk( sessionId, validityKey ) ).thenAnswer( new Answer<Object>() {
+            @Override
+            public Object answer( final InvocationOnMock invocation ) throws Throwable {
+                loading.countDown();
+                loading.await( 5, TimeUnit.SECONDS );
+                return Collections.<String, Object>singletonMap( sessionId, data );
+            }
+        } );
+
+        // the requests must not be container session lookups
+        final Request request = mock( Request.class );
+        final ExecutorService executor = Executors.newFixedThreadPool( 2 );
+        try {
+            final Callable<Session> findSession = new Callable<Session>() {
+                @Override
+                public Session call() throws Exception {
+                    _service.getLockingStrategy().onRequestStart( request );
+                    try {
+                        return _service.findSession( sessionId );
+                    } finally {
+                        _service.getLockingStrategy().onRequestFinished();
+                    }
+                }
+            };
+            final Future<Session> first = executor.submit( findSession );
+            final Future<Session> second = executor.submit( findSession );
+
+            final Session firstSession = first.get( 10, TimeUnit.SECONDS );
+            final Session secondSession = second.get( 10, TimeUnit.SECONDS );
+            assertNotNull( firstSession );
+            assertNotNull( secondSession );
+            assertTrue( firstSession != secondSession );
+            assertEquals( loading.getCount(), 0 );
+            assertEquals( _service.getStatistics().getRequestsWithJoinedSessionLoad(), 0 );
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Test that a non-sticky session released by this tomcat is taken from the near cache
+     * as long as its validity info in memcached is unchanged.
+     */
+    @Test
+    public void testLoadNonStickySessionFromNearCache() throws Exception {
+        _service.setStickyInternal( false );
+        _service.setLockingMode( LockingMode.NONE, null, false );
+        _service.setNearCacheMaxSize( 10 );
+        _service.startInternal( _memcachedMock );
+
+        when( _memcachedMock.set( any( String.class ), anyInt(), any() ) ).thenReturn( new BackupSessionService.SimpleFuture<Boolean>( true ) );
+
+        final MemcachedBackupSession session = createSession( _service );
+        session.access();
+        session.endAccess();
+        session.setAttribute( "foo", "bar" );
+        final String sessionId = session.getId();
+        _service.backupSession( sessionId, false, null ).get();
+
+        final String validityKey = createValidityInfoKeyName( sessionId );
+        when( _memcachedMock.get( validityKey ) ).thenReturn( encode( session.getMaxInactiveInterval(),
+                session.getLastAccessedTimeInternal(), session.getThisAccessedTimeInternal() ) );
+
+        // only the validity info is loaded, the session data is neither loaded nor deserialized
+        assertTrue( _service.loadFromMemcachedWithCheck( sessionId ) == session );
+        assertEquals( _service.getStatistics().getNearCacheHits(), 1 );
+        assertEquals( _service.getStatistics().getProbe( Statistics.StatsType.LOAD_FROM_NEAR_CACHE ).getCount(), 1 );
+        verify( _memcachedMock, times( 1 ) ).get( validityKey );
+        verify( _memcachedMock, never() ).get( sessionId );
+        verify( _memcachedMock, never() ).getBulk( sessionId, validityKey );
+
+        // the next request releases the session again, afterwards it's used by another tomcat
+        _service.getManager().add( session );
+        session.access();
+        session.endAccess();
+        _service.backupSession( sessionId, false, null ).get();
+        final ArgumentCaptor<Object> data = ArgumentCaptor.forClass( Object.class );
+        verify( _memcachedMock, atLeastOnce() ).set( eq( sessionId ), anyInt(), data.capture() );
+        // doReturn doesn't invoke the mock, so it's not mixed up with invocations by the backup threads
+        doReturn( data.getValue() ).when( _memcachedMock ).get( sessionId );
+        doReturn( encode( session.getMaxInactiveInterval(), session.getLastAccessedTimeInternal(),
+                session.getThisAccessedTimeInternal() + 1 ) ).when( _memcachedMock ).get( validityKey );
+        final MemcachedBackupSession loaded = _service.loadFromMemcachedWithCheck( sessionId );
+        assertTrue( loaded != session );
+        assertEquals( loaded.getAttribute( "foo" ), "bar" );
+        assertEquals( _service.getStatistics().getNearCacheMisses(), 1 );
+        verify( _memcachedMock, times( 2 ) ).get( validityKey );
+        verify( _memcachedMock, times( 1 ) ).get( sessionId );
+        verify( _memcachedMock, never() ).getBulk( sessionId, validityKey );
+    }
+
+    /**
+     * Test that the backups of non-sticky session instances of requests that finish while a backup
+     * of the session is running are coalesced into a single memcached write.
+     */
+    @Test
+    public void testNonStickyBackupsAreCoalesced() throws Exception {
+        _service.setStickyInternal( false );
+        _service.setLockingMode( LockingMode.NONE, null, false );
+        _service.setSessionBackupAsync( true );
+
+        final String sessionId = "foo-n1";
+        final CountDownLatch writing = new CountDownLatch( 1 );
+        final CountDownLatch release = new CountDownLatch( 1 );
+        doAnswer( new Answer<Future<Boolean>>() {
+            @Override
+            public Future<Boolean> answer( final InvocationOnMock invocation ) throws Throwable {
+                writing.countDown();
+                release.await( 5, TimeUnit.SECONDS );
+                return new BackupSessionService.SimpleFuture<Boolean>( true );
+            }
+        } ).when( _memcachedMock ).set( eq( sessionId ), anyInt(), any() );
+        _service.startInternal( _memcachedMock );
+        final TranscoderService transcoderService = new TranscoderService( new JavaSerializationTranscoder( _service.getManager() ) );
+        _service.setTranscoderService( transcoderService );
+
+        final Future<BackupResult> first = backupNewSessionInstance( "first" );
+        assertTrue( writing.await( 5, TimeUnit.SECONDS ) );
+
+        // the following requests finish while the first backup is still running
+        final Future<BackupResult> second = backupNewSessionInstance( "second" );
+        final Future<BackupResult> third = backupNewSessionInstance( "third" );
+        assertTrue( third == second );
+        release.countDown();
+
+        assertEquals( first.get( 5, TimeUnit.SECONDS ).getStatus(), BackupResultStatus.SUCCESS );
+        assertEquals( third.get( 5, TimeUnit.SECONDS ).getStatus(), BackupResultStatus.SUCCESS );
+        final ArgumentCaptor<Object> data = ArgumentCaptor.forClass( Object.class );
+        verify( _memcachedMock, times( 2 ) ).set( eq( sessionId ), anyInt(), data.capture() );
+        final MemcachedBackupSession stored = transcoderService.deserialize( (byte[]) data.getAllValues().get( 1 ),
+                _service.getManager() );
+        assertEquals( stored.getAttribute( "foo" ), "third" );
+        assertEquals( _service.getStatistics().getRequestsWithCoalescedBackup(), 1 );
+    }
+
+    /**
+     * Test that for readWrite locking the exclusive lock is not acquired (and released again in memcached)
+     * if there are still readers of the session when the lock timeout is reached.
+     */
+    @Test
+    public void testLockFailsIfReadersAreNotFinished() throws Exception {
+        _service.setStickyInternal( false );
+        _service.startInternal( _memcachedMock );
+        _service.setLockingMode( LockingMode.READ_WRITE, null, false );
+
+        final String sessionId = "foo-n1";
+        final String lockName = new SessionIdFormat().createLockName( sessionId );
+        when( _memcachedMock.add( eq( lockName ), anyInt(), any() ) ).thenReturn( new BackupSessionService.SimpleFuture<Boolean>( true ) );
+        when( _memcachedMock.incr( new SessionIdFormat().createReadersKeyName( sessionId ), 0 ) ).thenReturn( 1L );
+
+        assertEquals( _service.getLockingStrategy().lock( sessionId, 50, TimeUnit.MILLISECONDS ), LockStatus.COULD_NOT_AQUIRE_LOCK );
+        verify( _memcachedMock ).delete( lockName );
+        assertFalse( _service.getLocalLockTable().isLocked( sessionId ) );
+    }
+
+    private Future<BackupResult> backupNewSessionInstance( final String value ) {
+        final MemcachedBackupSession session = createSession( _service );
+        session.access();
+        session.setAttribute( "foo", value );
+        session.endAccess();
+        return _service.backupSession( session.getIdInternal(), false, null );
+    }
+
     /**
      * Test that session attribute serialization and hash calculation is only
      * performed if session attributes were accessed since the last backup.
@@ -200,9 +560,6 @@ public abstract class MemcachedSessionServiceTest {
     public void testOnlyHashAttributesOfAccessedAttributes() throws InterruptedException, ExecutionException {
 
         final TranscoderService transcoderServiceMock = mock( TranscoderService.class );
-        @SuppressWarnings( "unchecked" )
-        final Map<String, Object> anyMap = any( Map.class );
-        when( transcoderServiceMock.serializeAttributes( any( MemcachedBackupSession.class ), anyMap ) ).thenReturn( new byte[0] );
         _service.setTranscoderService( transcoderServiceMock );
 
         final MemcachedBackupSession session = createSession( _service );
@@ -211,12 +568,12 @@ public abstract class MemcachedSessionServiceTest {
         session.endAccess();
         session.setAttribute( "foo", "bar" );
         _service.backupSession( session.getIdInternal(), false, null ).get();
-        verify( transcoderServiceMock, times( 1 ) ).serializeAttributes( eq( session ), eq( session.getAttributesInternal() ) );
+        verify( transcoderServiceMock, times( 1 ) ).serializeAttributes( eq( session ), eq( session.getAttributesInternal() ), any( HashingOutputStream.class ) );
 
         session.access();
         session.endAccess();
         _service.backupSession( session.getIdInternal(), false, null ).get();
-        verify( transcoderServiceMock, times( 1 ) ).serializeAttributes( eq( session ), eq( session.getAttributesInternal() ) );
+        verify( transcoderServiceMock, times( 1 ) ).serializeAttributes( eq( session ), eq( session.getAttributesInternal() ), any( HashingOutputStream.class ) );
 
     }
 
@@ -231,16 +588,13 @@ public abstract class MemcachedSessionServiceTest {
     public void testOnlyHashAttributesOfAccessedSessionsAndAttributes() throws InterruptedException, ExecutionException {
 
         final TranscoderService transcoderServiceMock = mock( TranscoderService.class );
-        @SuppressWarnings( "unchecked" )
-        final Map<String, Object> anyMap = any( Map.class );
-        when( transcoderServiceMock.serializeAttributes( any( MemcachedBackupSession.class ), anyMap ) ).thenReturn( new byte[0] );
         _service.setTranscoderService( transcoderServiceMock );
 
         final MemcachedBackupSession session = createSession( _service );
 
         session.setAttribute( "foo", "bar" );
         _service.backupSession( session.getIdInternal(), false, null ).get();
-        verify( transcoderServiceMock, times( 1 ) ).serializeAttributes( eq( session ), eq( session.getAttributesInternal() ) );
+        verify( transcoderServiceMock, times( 1 ) ).serializeAttributes( eq( session ), eq( session.getAttributesInternal() ), any( HashingOutputStream.class ) );
 
         // we need some millis between last backup and next access (due to check in BackupSessionService)
         Thread.sleep(5L);
@@ -248,13 +602,13 @@ public abstract class MemcachedSessionServiceTest {
         session.access();
         session.getAttribute( "foo" );
         _service.backupSession( session.getIdInternal(), false, null ).get();
-        verify( transcoderServiceMock, times( 2 ) ).serializeAttributes( eq( session ), eq( session.getAttributesInternal() ) );
+        verify( transcoderServiceMock, times( 2 ) ).serializeAttributes( eq( session ), eq( session.getAttributesInternal() ), any( HashingOutputStream.class ) );
 
         // we need some millis between last backup and next access (due to check in BackupSessionService)
         Thread.sleep(5L);
 
         _service.backupSession( session.getIdInternal(), false, null ).get();
-        verify( transcoderServiceMock, times( 2 ) ).serializeAttributes( eq( session ), eq( session.getAttributesInternal() ) );
+        verify( transcoderServiceMock, times( 2 ) ).serializeAttributes( eq( session ), eq( session.getAttributesInternal() ), any( HashingOutputStream.class ) );
 
     }
 
@@ -425,7 +779,7 @@ public abstract class MemcachedSessionServiceTest {
 
         _service.backupSession( session.getIdInternal(), false, null ).get();
 
-        verify( transcoderServiceMock, never() ).serializeAttributes( (MemcachedBackupSession)any(), anyMap() );
+        verify( transcoderServiceMock, never() ).serializeAttributes( (MemcachedBackupSession)any(), anyMap(), (HashingOutputStream)any() );
 
     }
 
@@ -437,8 +791,6 @@ public abstract class MemcachedSessionServiceTest {
     public void testOnlyFilteredAttributesAreIncludedInSessionBackup() throws InterruptedException, ExecutionException {
 
         final TranscoderService transcoderServiceMock = mock( TranscoderService.class );
-        final Map<String, Object> anyMap = any( Map.class );
-        when( transcoderServiceMock.serializeAttributes( any( MemcachedBackupSession.class ), anyMap ) ).thenReturn( new byte[0] );
         _service.setTranscoderService( transcoderServiceMock );
 
         final MemcachedBackupSession session = createSession( _service );
@@ -452,7 +804,7 @@ public abstract class MemcachedSessionServiceTest {
 
         // capture the supplied argument, alternatively we could have used some Matcher (but there seems to be no MapMatcher).
         final ArgumentCaptor<Map> model = ArgumentCaptor.forClass( Map.class );
-        verify( transcoderServiceMock, times( 1 ) ).serializeAttributes( eq( session ), model.capture() );
+        verify( transcoderServiceMock, times( 1 ) ).serializeAttributes( eq( session ), model.capture(), any( HashingOutputStream.class ) );
 
         // the serialized attributes must only contain allowed ones
         assertTrue( model.getValue().containsKey( "foo" ) );
@@ -496,4 +848,137 @@ public abstract class MemcachedSessionServiceTest {
 
     }
 
+    /**
+     * Tests that a session of a draining memcached node is relocated to another node, and that a request
+     * with the former session id gets the new session id.
+     */
+    @Test
+    public void testSessionOfDrainingNodeIsRelocated() throws LifecycleException, InterruptedException {
+        _service.setMemcachedNodes( "n1:127.0.0.1:11211 n2:127.0.0.1:11212" );
+        // the session is relocated by the test and not in the background
+        _service.setDrainRate( 0 );
+        _service.setDrainingNodes( "n1" );
+        _service.startInternal( _memcachedMock );
+
+        final MemcachedBackupSession session = createSession( _service );
+        session.access();
+        session.endAccess();
+
+        // a session that was accessed recently is relocated by its next request
+        assertFalse( _service.relocateFromDrainingNode( session ) );
+        assertEquals( session.getId(), "foo-n1" );
+
+        final AttributeManifest manifest = new AttributeManifest( "foo-n1", 1,
+                Collections.singletonMap( "foo", new AttributeManifest.Entry( 0, 42, 0 ) ) );
+        session.setAttributeManifest( manifest );
+        session.setThisAccessedTimeInternal( System.currentTimeMillis() - 10000 );
+        assertTrue( _service.relocateFromDrainingNode( session ) );
+        assertEquals( session.getId(), "foo-n2" );
+
+        // the backup is not awaited, the session is deleted when the backup finished
+        final long timeout = System.currentTimeMillis() + 5000;
+        while ( _service.deleteRelocatedSessions() && System.currentTimeMillis() < timeout ) {
+            Thread.sleep( 10 );
+        }
+        verify( _memcachedMock, times( 1 ) ).set( eq( "foo-n2" ), anyInt(), any() );
+        // the outdated session and its attributes must not be loaded with the former id
+        verify( _memcachedMock ).delete( "foo-n1" );
+        verify( _memcachedMock ).delete( manifest.getKeys().get( 0 ) );
+
+        // parallel requests with the former id get the new id as well
+        assertEquals( _service.changeSessionIdOnMemcachedFailover( "foo-n1" ), "foo-n2" );
+        assertEquals( _service.changeSessionIdOnMemcachedFailover( "foo-n1" ), "foo-n2" );
+        assertNull( _service.changeSessionIdOnMemcachedFailover( "foo-n2" ) );
+    }
+
+    /**
+     * Tests that updateExpirationInMemcached stores the session again.
+     */
+    @Test
+    public void testUpdateExpirationStoresMissingSession() throws InterruptedException, ExecutionException {
+
+        final MemcachedBackupSession session = createSession( _service );
+        session.setAttribute( "foo", "bar" );
+
+        session.access();
+        session.endAccess();
+
+        _service.updateExpirationInMemcached();
+
+        verify( _memcachedMock, times( 1 ) ).set( eq( session.getId() ), anyInt(), any() );
+
+    }
+
+    /**
+     * Tests that the expiration update stores the data of the last backup again, if the
+     * serialized attributes are cached and the attributes were not accessed since then.
+     */
+    @Test
+    public void testUpdateExpirationStoresDataOfLastBackupAgain() throws Exception {
+        _service.setCacheSerializedAttributes( true );
+        _service.startInternal( _memcachedMock );
+
+        final MemcachedBackupSession session = createSession( _service );
+        session.setAttribute( "foo", "bar" );
+        session.access();
+        session.endAccess();
+        _service.backupSession( session.getIdInternal(), false, null ).get();
+        final ArgumentCaptor<Object> data = ArgumentCaptor.forClass( Object.class );
+        verify( _memcachedMock ).set( eq( session.getId() ), anyInt(), data.capture() );
+
+        // accessed without touching attributes, and the expiration in memcached is due
+        Thread.sleep( 10 );
+        session.access();
+        session.endAccess();
+        session.setLastMemcachedExpirationTime( 1 );
+        _service.updateExpirationInMemcached();
+        verify( _memcachedMock, times( 2 ) ).set( eq( session.getId() ), anyInt(), same( data.getValue() ) );
+
+        // after an attribute was accessed the session is serialized again
+        Thread.sleep( 10 );
+        session.access();
+        session.getAttribute( "foo" );
+        session.endAccess();
+        session.setLastMemcachedExpirationTime( 1 );
+        _service.updateExpirationInMemcached();
+        verify( _memcachedMock, times( 3 ) ).set( eq( session.getId() ), anyInt(), any() );
+        verify( _memcachedMock, times( 2 ) ).set( eq( session.getId() ), anyInt(), same( data.getValue() ) );
+    }
+
+    /**
+     * Tests that sessions are stored in the format that older versions can read (neither compressed
+     * nor with attribute fragments), unless the extended session format is enabled.
+     */
+    @Test
+    public void testExtendedSessionFormatIsOnlyWrittenIfEnabled() throws Exception {
+        _service.setCacheSerializedAttributes( true );
+        _service.setCompression( "deflate" );
+        _service.setCompressionMinSize( 0 );
+        _service.startInternal( _memcachedMock );
+
+        final MemcachedBackupSession session = createSession( _service );
+        final StringBuilder value = new StringBuilder();
+        while ( value.length() < 5000 ) {
+            value.append( "some session attribute value " );
+        }
+        session.setAttribute( "foo", value.toString() );
+        session.access();
+        session.endAccess();
+        _service.backupSession( session.getIdInternal(), false, null ).get();
+        final ArgumentCaptor<byte[]> data = ArgumentCaptor.forClass( byte[].class );
+        verify( _memcachedMock ).set( eq( session.getId() ), anyInt(), data.capture() );
+        assertEquals( TranscoderService.decodeNum( data.getValue(), 0, 2 ), 1 );
+
+        _service.setExtendedSessionFormat( true );
+        session.access();
+        session.setAttribute( "foo", value.append( "changed" ).toString() );
+        session.endAccess();
+        _service.backupSession( session.getIdInternal(), false, null ).get();
+        verify( _memcachedMock, times( 2 ) ).set( eq( session.getId() ), anyInt(), data.capture() );
+        assertEquals( TranscoderService.decodeNum( data.getValue(), 0, 2 ), 4, "The session must be compressed." );
+        final TranscoderService transcoderService = new TranscoderService( new JavaSerializationTranscoder( _service.getManager() ) );
+        final MemcachedBackupSession stored = transcoderService.deserialize( data.getValue(), _service.getManager() );
+        assertTrue( stored.getAttributesInternal() instanceof LazyAttributeMap, "Attributes must be stored as fragments." );
+    }
+
 }
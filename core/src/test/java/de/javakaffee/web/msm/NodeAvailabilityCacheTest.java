@@ -0,0 +1,165 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.NodeAvailabilityCache.CacheLoader;
+
+/**
+ * Tests the {@link NodeAvailabilityCache}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class NodeAvailabilityCacheTest {
+
+    private NodeAvailabilityCache<String> _cut;
+
+    @AfterMethod
+    public void tearDown() {
+        if ( _cut != null ) {
+            _cut.shutdown();
+        }
+    }
+
+    @Test
+    public void testNodeAvailabilityIsLoadedOnDemandWithoutHealthChecks() {
+        final AtomicInteger loads = new AtomicInteger();
+        _cut = new NodeAvailabilityCache<String>( 10, 100, new CacheLoader<String>() {
+            @Override
+            public boolean isNodeAvailable( final String key ) {
+                loads.incrementAndGet();
+                return true;
+            }
+        } );
+        assertTrue( _cut.isNodeAvailable( "n1" ) );
+        assertTrue( _cut.isNodeAvailable( "n1" ) );
+        assertEquals( loads.get(), 1 );
+        assertTrue( _cut.getProbeLatency( "n1" ) >= 0 );
+        assertEquals( _cut.getProbeLatency( "n2" ), -1 );
+    }
+
+    @Test
+    public void testHealthChecksRefreshNodeAvailability() throws InterruptedException {
+        final AtomicBoolean available = new AtomicBoolean( true );
+        final AtomicInteger loads = new AtomicInteger();
+        _cut = new NodeAvailabilityCache<String>( 10, 50, new CacheLoader<String>() {
+            @Override
+            public boolean isNodeAvailable( final String key ) {
+                loads.incrementAndGet();
+                return available.get();
+            }
+        } );
+        _cut.startHealthChecks( Arrays.asList( "n1" ), 10 );
+        waitForLoads( loads, 2 );
+        assertTrue( _cut.isNodeAvailable( "n1" ) );
+
+        available.set( false );
+        final int current = loads.get();
+        waitForLoads( loads, current + 2 );
+        assertFalse( _cut.isNodeAvailable( "n1" ) );
+        assertTrue( _cut.getUnavailableNodes().contains( "n1" ) );
+
+        /* without health checks the availability is loaded on demand again
+         */
+        _cut.shutdown();
+        available.set( true );
+        Thread.sleep( 100 );
+        assertTrue( _cut.isNodeAvailable( "n1" ) );
+    }
+
+    @Test
+    public void testHealthCheckedNodeIsNotLoadedByCaller() throws InterruptedException {
+        final CountDownLatch probeStarted = new CountDownLatch( 1 );
+        final CountDownLatch probeFinish = new CountDownLatch( 1 );
+        // further probes hang until shutdown, so that they don't overwrite the latency of the first probe
+        final CountDownLatch shutdown = new CountDownLatch( 1 );
+        final AtomicInteger probes = new AtomicInteger();
+        _cut = new NodeAvailabilityCache<String>( 10, 50, new CacheLoader<String>() {
+            @Override
+            public boolean isNodeAvailable( final String key ) {
+                probeStarted.countDown();
+                try {
+                    ( probes.incrementAndGet() == 1 ? probeFinish : shutdown ).await();
+                } catch ( final InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                }
+                return false;
+            }
+        } );
+        _cut.startHealthChecks( Arrays.asList( "n1" ), 10 );
+        assertTrue( probeStarted.await( 1, TimeUnit.SECONDS ) );
+
+        /* the node is regarded as available until the first (hanging) probe is finished
+         */
+        final long start = System.currentTimeMillis();
+        assertTrue( _cut.isNodeAvailable( "n1" ) );
+        assertTrue( System.currentTimeMillis() - start < 50 );
+
+        Thread.sleep( 100 );
+        assertTrue( _cut.isNodeAvailable( "n1" ) );
+
+        probeFinish.countDown();
+        for ( int i = 0; i < 100 && _cut.getProbeLatency( "n1" ) < 0; i++ ) {
+            Thread.sleep( 10 );
+        }
+        assertFalse( _cut.isNodeAvailable( "n1" ) );
+        assertTrue( _cut.getProbeLatency( "n1" ) >= 100, "Unexpected probe latency " + _cut.getProbeLatency( "n1" ) );
+    }
+
+    @Test
+    public void testHealthChecksOfAllNodesShareFewThreads() throws InterruptedException {
+        final Set<String> probedNodes = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+        final Set<String> threads = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+        final AtomicInteger loads = new AtomicInteger();
+        _cut = new NodeAvailabilityCache<String>( 10, 50, new CacheLoader<String>() {
+            @Override
+            public boolean isNodeAvailable( final String key ) {
+                probedNodes.add( key );
+                threads.add( Thread.currentThread().getName() );
+                loads.incrementAndGet();
+                return true;
+            }
+        } );
+        _cut.startHealthChecks( Arrays.asList( "n1", "n2", "n3", "n4", "n5" ), 20 );
+        waitForLoads( loads, 10 );
+        assertEquals( probedNodes.size(), 5 );
+        assertTrue( threads.size() <= 2, "Expected at most 2 health check threads, got " + threads );
+    }
+
+    private static void waitForLoads( final AtomicInteger loads, final int expected ) throws InterruptedException {
+        for ( int i = 0; i < 100 && loads.get() < expected; i++ ) {
+            Thread.sleep( 10 );
+        }
+        assertTrue( loads.get() >= expected, "Expected at least " + expected + " loads, got " + loads.get() );
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.NodeCircuitBreaker.HALF_OPEN_SUCCESSES;
+import static de.javakaffee.web.msm.NodeCircuitBreaker.HALF_OPEN_TRIAL_PERMITS;
+import static de.javakaffee.web.msm.NodeCircuitBreaker.MIN_CALLS;
+import static de.javakaffee.web.msm.NodeCircuitBreaker.MIN_OPEN_TIME;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.NodeAvailabilityCache.CacheLoader;
+import de.javakaffee.web.msm.NodeCircuitBreaker.State;
+
+/**
+ * Tests the {@link NodeCircuitBreaker}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class NodeCircuitBreakerTest {
+
+    @Test
+    public void testSingleFailureDoesNotOpen() {
+        final NodeCircuitBreaker cut = new NodeCircuitBreaker( 100 );
+        cut.recordFailure();
+        assertEquals( cut.getState(), State.CLOSED );
+        assertTrue( cut.isCallPermitted() );
+        cut.recordSuccess( 1 );
+        for ( int i = 0; i < 20; i++ ) {
+            cut.recordSuccess( 1 );
+            cut.recordFailure();
+        }
+        assertEquals( cut.getState(), State.CLOSED );
+        assertEquals( cut.getFailureRate(), 50 );
+    }
+
+    @Test
+    public void testOpensOnFailureRate() {
+        final NodeCircuitBreaker cut = new NodeCircuitBreaker( 100 );
+        for ( int i = 0; i < MIN_CALLS; i++ ) {
+            cut.recordFailure();
+        }
+        assertEquals( cut.getState(), State.OPEN );
+        assertFalse( cut.isCallPermitted() );
+    }
+
+    @Test
+    public void testOpensOnSlowCallRate() {
+        final NodeCircuitBreaker cut = new NodeCircuitBreaker( 100 );
+        for ( int i = 0; i < MIN_CALLS; i++ ) {
+            cut.recordSuccess( 200 );
+        }
+        assertEquals( cut.getState(), State.OPEN );
+    }
+
+    @Test
+    public void testHalfOpenClosesAfterSuccessesAndReopensOnFailure() throws InterruptedException {
+        final NodeCircuitBreaker cut = new NodeCircuitBreaker( 100 );
+        for ( int i = 0; i < MIN_CALLS; i++ ) {
+            cut.recordFailure();
+        }
+        Thread.sleep( MIN_OPEN_TIME + 50 );
+
+        /* in half open state calls are permitted consistently, but only a
+         * fixed number of new sessions
+         */
+        for ( int i = 0; i < 100; i++ ) {
+            assertTrue( cut.isCallPermitted() );
+        }
+        assertEquals( cut.getState(), State.HALF_OPEN );
+        for ( int i = 0; i < HALF_OPEN_TRIAL_PERMITS; i++ ) {
+            assertTrue( cut.tryAcquireTrialPermit() );
+        }
+        assertFalse( cut.tryAcquireTrialPermit() );
+        assertTrue( cut.isCallPermitted() );
+
+        cut.recordFailure();
+        assertEquals( cut.getState(), State.OPEN );
+
+        /* the open time is doubled now
+         */
+        Thread.sleep( MIN_OPEN_TIME + 50 );
+        assertFalse( cut.isCallPermitted() );
+        Thread.sleep( MIN_OPEN_TIME );
+        cut.isCallPermitted();
+        assertEquals( cut.getState(), State.HALF_OPEN );
+
+        for ( int i = 0; i < HALF_OPEN_SUCCESSES; i++ ) {
+            cut.recordSuccess( 1 );
+        }
+        assertEquals( cut.getState(), State.CLOSED );
+        assertTrue( cut.isCallPermitted() );
+        assertTrue( cut.tryAcquireTrialPermit() );
+    }
+
+    @Test
+    public void testSessionsOfHalfOpenNodeAreNotRelocated() throws InterruptedException {
+        final NodeIdService cut = new NodeIdService( new NodeAvailabilityCache<String>( 10, 100, new CacheLoader<String>() {
+            @Override
+            public boolean isNodeAvailable( final String key ) {
+                return true;
+            }
+        } ), new NodeIdList( Arrays.asList( "n1", "n2" ) ), Collections.<String> emptyList() );
+
+        for ( int i = 0; i < MIN_CALLS; i++ ) {
+            cut.recordFailure( "n1" );
+        }
+        Thread.sleep( MIN_OPEN_TIME + 50 );
+
+        for ( int i = 0; i < 100; i++ ) {
+            assertTrue( cut.isNodeAvailable( "n1" ) );
+            assertNull( cut.getNewNodeIdIfUnavailable( "n1" ) );
+        }
+        assertEquals( cut.getCircuitBreaker( "n1" ).getState(), State.HALF_OPEN );
+
+        /* new sessions are assigned to the half open node only for the trial permits
+         */
+        int newSessions = 0;
+        for ( int i = 0; i < 100; i++ ) {
+            if ( "n1".equals( cut.getMemcachedNodeId() ) ) {
+                newSessions++;
+            }
+        }
+        assertEquals( newSessions, HALF_OPEN_TRIAL_PERMITS );
+    }
+
+    @Test
+    public void testNodeIdServiceConsultsCircuitBreaker() {
+        final NodeIdService cut = new NodeIdService( new NodeAvailabilityCache<String>( 10, 100, new CacheLoader<String>() {
+            @Override
+            public boolean isNodeAvailable( final String key ) {
+                return true;
+            }
+        } ), new NodeIdList( Arrays.asList( "n1", "n2" ) ), Collections.<String> emptyList() );
+
+        for ( int i = 0; i < MIN_CALLS; i++ ) {
+            cut.recordFailure( "n1" );
+        }
+        assertFalse( cut.isNodeAvailable( "n1" ) );
+        assertTrue( cut.isNodeAvailable( "n2" ) );
+        assertEquals( cut.getNewNodeIdIfUnavailable( "n1" ), "n2" );
+        assertTrue( cut.getCircuitBreakerInfo()[0].startsWith( "n1: OPEN" ) );
+    }
+
+}
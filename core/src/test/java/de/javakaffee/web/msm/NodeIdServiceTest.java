@@ -18,11 +18,15 @@ package de.javakaffee.web.msm;
 
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
 
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -185,6 +189,65 @@ public class NodeIdServiceTest {
         assertEquals( nodeId3, actual, "The second failover node is not chosen" );
     }
 
+    /**
+     * Tests that new sessions are assigned to the nodes in proportion to their weights.
+     */
+    @Test
+    public final void testGetMemcachedNodeIdIsWeighted() {
+        final Map<String, Integer> weights = new HashMap<String, Integer>();
+        weights.put( "n1", 3 );
+        final NodeIdService cut = new NodeIdService( createNodeAvailabilityCache(),
+                NodeIdList.create( "n1", "n2" ), Collections.<String> emptyList(), weights );
+        int n1 = 0;
+        for ( int i = 0; i < 4000; i++ ) {
+            if ( "n1".equals( cut.getMemcachedNodeId() ) ) {
+                n1++;
+            }
+        }
+        assertTrue( n1 > 2700 && n1 < 3300, "Unexpected number of sessions for n1: " + n1 );
+    }
+
+    /**
+     * Tests that with latency aware selection the node with the lower latency is preferred.
+     */
+    @Test
+    public final void testGetMemcachedNodeIdIsLatencyAware() {
+        final NodeIdService cut = new NodeIdService( createNodeAvailabilityCache(),
+                NodeIdList.create( "n1", "n2" ), Collections.<String> emptyList() );
+        cut.setLatencyAware( true );
+        for ( int i = 0; i < 20; i++ ) {
+            cut.recordSuccess( "n1", 1 );
+            cut.recordSuccess( "n2", 20 );
+        }
+        assertEquals( cut.getLatency( "n1" ), 1d, 0.5 );
+        int n1 = 0;
+        for ( int i = 0; i < 4000; i++ ) {
+            if ( "n1".equals( cut.getMemcachedNodeId() ) ) {
+                n1++;
+            }
+        }
+        // n2 is only selected if it's chosen twice
+        assertTrue( n1 > 2700 && n1 < 3300, "Unexpected number of sessions for n1: " + n1 );
+    }
+
+    @Test
+    public final void testDrainingNodeIsNotSelected() {
+        final NodeIdService cut = new NodeIdService( createNodeAvailabilityCache(),
+                NodeIdList.create( "n1", "n2", "n3" ), Collections.<String> emptyList() );
+        cut.setDrainingNodeIds( Arrays.asList( "n1" ) );
+        assertTrue( cut.isNodeAvailable( "n1" ) );
+        for ( int i = 0; i < 100; i++ ) {
+            assertFalse( "n1".equals( cut.getMemcachedNodeId() ) );
+            final String newNodeId = cut.getNewNodeIdIfUnavailable( "n1" );
+            assertTrue( "n2".equals( newNodeId ) || "n3".equals( newNodeId ), "Unexpected new node id " + newNodeId );
+            assertNull( cut.getNewNodeIdIfUnavailable( "n2" ) );
+            assertEquals( cut.getAvailableNodeId( "n2" ), "n3" );
+        }
+
+        cut.setDrainingNodeIds( Collections.<String> emptyList() );
+        assertNull( cut.getNewNodeIdIfUnavailable( "n1" ) );
+    }
+
     private NodeAvailabilityCache<String> createNodeAvailabilityCache( final String ... unavailableNodes ) {
         final List<String> unavailable = unavailableNodes != null ? Arrays.asList( unavailableNodes ) : null;
         return new NodeAvailabilityCache<String>( 10, 100, new DummyCacheLoader( unavailable ) );
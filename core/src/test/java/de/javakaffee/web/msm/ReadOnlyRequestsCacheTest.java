@@ -17,6 +17,7 @@
 package de.javakaffee.web.msm;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
 import static org.testng.Assert.assertTrue;
 
 import java.util.Arrays;
@@ -66,6 +67,51 @@ public class ReadOnlyRequestsCacheTest {
 
     }
 
+    @Test
+    public void testMinReadOnlyObservations() {
+        final ReadOnlyRequestsCache cut = new ReadOnlyRequestsCache( 3, 100, -1 );
+
+        assertFalse( cut.readOnlyRequest( "foo" ) );
+        assertFalse( cut.readOnlyRequest( "foo" ) );
+        readOnlyRequestsShouldContain( cut, "foo", false );
+        assertTrue( cut.readOnlyRequest( "foo" ) );
+        readOnlyRequestsShouldContain( cut, "foo", true );
+
+        // a modifying request resets the observations and blacklists the request
+        cut.modifyingRequest( "foo" );
+        readOnlyRequestsShouldContain( cut, "foo", false );
+        for ( int i = 0; i < 5; i++ ) {
+            assertFalse( cut.readOnlyRequest( "foo" ) );
+        }
+    }
+
+    @Test
+    public void testReadOnlyConfidence() {
+        final ReadOnlyRequestsCache cut = new ReadOnlyRequestsCache( 1, 75, -1 );
+
+        cut.modifyingRequest( "foo" );
+        // 1 of 2 and 2 of 3 observations are readonly
+        assertFalse( cut.readOnlyRequest( "foo" ) );
+        assertFalse( cut.readOnlyRequest( "foo" ) );
+        // 3 of 4 observations are readonly
+        assertTrue( cut.readOnlyRequest( "foo" ) );
+        readOnlyRequestsShouldContain( cut, "foo", true );
+    }
+
+    @Test
+    public void testModifyingRequestsDecay() throws InterruptedException {
+        final ReadOnlyRequestsCache cut = new ReadOnlyRequestsCache( 1, 80, 1000 );
+
+        cut.modifyingRequest( "foo" );
+        assertFalse( cut.readOnlyRequest( "foo" ) );
+        cut.modifyingRequest( "foo" );
+
+        // after 3 half lives the modifying observations count ~ 1/8
+        Thread.sleep( 3100 );
+        assertTrue( cut.readOnlyRequest( "foo" ) );
+        readOnlyRequestsShouldContain( cut, "foo", true );
+    }
+
     private void readOnlyRequestsShouldContain( final ReadOnlyRequestsCache cut, final String key, final boolean shouldBeContained ) {
         assertEquals( cut.isReadOnlyRequest( key ), shouldBeContained );
         assertEquals( cut.getReadOnlyRequests().contains( key ), shouldBeContained );
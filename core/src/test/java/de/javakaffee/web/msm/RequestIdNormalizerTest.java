@@ -0,0 +1,72 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+/**
+ * Test the {@link RequestIdNormalizer}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class RequestIdNormalizerTest {
+
+    @Test
+    public void testNoNormalization() {
+        final RequestIdNormalizer cut = RequestIdNormalizer.NONE;
+        assertTrue( cut.isIdentity() );
+        assertEquals( cut.normalize( "/order/123?foo=bar" ), "/order/123?foo=bar" );
+        assertEquals( cut.hash( "/order/123", "foo=bar" ), HashedRequestCounters.hash( "/order/123?foo=bar" ) );
+    }
+
+    @Test
+    public void testNormalizeIds() {
+        final RequestIdNormalizer cut = new RequestIdNormalizer( true, null );
+        assertFalse( cut.isIdentity() );
+        assertEquals( cut.normalize( "/order/12345" ), "/order/{id}" );
+        assertEquals( cut.normalize( "/order/12345/items/" ), "/order/{id}/items/" );
+        assertEquals( cut.normalize( "/user/550e8400-e29b-11d4-a716-446655440000/profile?x=1" ), "/user/{id}/profile?x=1" );
+        assertEquals( cut.normalize( "/" ), "/" );
+        assertEquals( cut.normalize( "/v2/page" ), "/v2/page" );
+        assertEquals( cut.normalize( "/550e8400-e29b-11d4-a716-44665544000x" ), "/550e8400-e29b-11d4-a716-44665544000x" );
+    }
+
+    @Test
+    public void testIgnoredParameters() {
+        final RequestIdNormalizer cut = new RequestIdNormalizer( false, "_, ts" );
+        assertEquals( cut.normalize( "/foo?_=12345" ), "/foo" );
+        assertEquals( cut.normalize( "/foo?a=1&_=12345&b&ts=3" ), "/foo?a=1&b" );
+        assertEquals( cut.normalize( "/foo?_a=1&tsx=2" ), "/foo?_a=1&tsx=2" );
+        assertEquals( cut.normalize( "/foo?ts&a=1" ), "/foo?a=1" );
+
+        final RequestIdNormalizer all = new RequestIdNormalizer( false, "*" );
+        assertEquals( all.normalize( "/foo?a=1&b=2" ), "/foo" );
+    }
+
+    @Test
+    public void testHashEqualsHashOfNormalizedRequestId() {
+        final RequestIdNormalizer cut = new RequestIdNormalizer( true, "_" );
+        assertEquals( cut.hash( "/order/12345", "a=1&_=42" ), HashedRequestCounters.hash( "/order/{id}?a=1" ) );
+        assertEquals( cut.hash( "/order/12345", "a=1&_=42" ), cut.hash( "/order/678", "_=43&a=1" ) );
+        assertEquals( cut.hash( "/order/12345", null ), HashedRequestCounters.hash( cut.normalize( "/order/1" ) ) );
+    }
+
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Test the {@link SessionDrainer}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class SessionDrainerTest {
+
+    private SessionDrainer _cut;
+
+    @AfterMethod
+    public void tearDown() {
+        if ( _cut != null ) {
+            _cut.shutdown();
+        }
+    }
+
+    @Test
+    public void testDrainIsRateLimited() {
+        final DrainingSessions sessions = new DrainingSessions( 5, null );
+        _cut = new SessionDrainer( 2, sessions );
+
+        assertEquals( _cut.drain(), 2 );
+        assertEquals( sessions.getSessionsToDrain().size(), 3 );
+        assertEquals( _cut.drain(), 2 );
+        assertEquals( _cut.drain(), 1 );
+        assertEquals( _cut.drain(), -1 );
+    }
+
+    @Test
+    public void testSessionsThatCannotBeRelocatedAreSkipped() {
+        final DrainingSessions sessions = new DrainingSessions( 3, null );
+        final MemcachedBackupSession skipped = sessions.getSessionsToDrain().iterator().next();
+        sessions._notRelocatable.add( skipped );
+        _cut = new SessionDrainer( 10, sessions );
+
+        assertEquals( _cut.drain(), 2 );
+        assertEquals( sessions.getSessionsToDrain(), Collections.singletonList( skipped ) );
+        assertEquals( _cut.drain(), 0 );
+    }
+
+    @Test
+    public void testDrainFinishesWhenRelocationsAreCompleted() {
+        final DrainingSessions sessions = new DrainingSessions( 1, null );
+        sessions._pendingRelocations = 2;
+        _cut = new SessionDrainer( 10, sessions );
+
+        assertEquals( _cut.drain(), 1 );
+        assertEquals( _cut.drain(), 0 );
+        assertEquals( _cut.drain(), -1 );
+    }
+
+    @Test
+    public void testDrainerStopsWhenFinished() throws InterruptedException {
+        final CountDownLatch finished = new CountDownLatch( 1 );
+        final DrainingSessions sessions = new DrainingSessions( 3, finished );
+        _cut = new SessionDrainer( 10, sessions );
+
+        _cut.start();
+        assertTrue( _cut.isRunning() );
+        assertTrue( finished.await( 5, TimeUnit.SECONDS ) );
+
+        final long timeout = System.currentTimeMillis() + 5000;
+        while ( _cut.isRunning() && System.currentTimeMillis() < timeout ) {
+            Thread.sleep( 10 );
+        }
+        assertFalse( _cut.isRunning() );
+    }
+
+    private static class DrainingSessions implements SessionDrainer.Callback {
+
+        private final List<MemcachedBackupSession> _sessions = Collections.synchronizedList( new ArrayList<MemcachedBackupSession>() );
+        private final Set<MemcachedBackupSession> _notRelocatable = new HashSet<MemcachedBackupSession>();
+        private final CountDownLatch _finished;
+        private int _pendingRelocations;
+
+        private DrainingSessions( final int numSessions, final CountDownLatch finished ) {
+            for ( int i = 0; i < numSessions; i++ ) {
+                _sessions.add( new MemcachedBackupSession() );
+            }
+            _finished = finished;
+        }
+
+        @Override
+        public Collection<MemcachedBackupSession> getSessionsToDrain() {
+            synchronized ( _sessions ) {
+                if ( _sessions.isEmpty() && _finished != null ) {
+                    _finished.countDown();
+                }
+                return new ArrayList<MemcachedBackupSession>( _sessions );
+            }
+        }
+
+        @Override
+        public boolean relocate( final MemcachedBackupSession session ) {
+            if ( _notRelocatable.contains( session ) ) {
+                return false;
+            }
+            return _sessions.remove( session );
+        }
+
+        @Override
+        public boolean completeRelocations() {
+            return _pendingRelocations-- > 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static de.javakaffee.web.msm.SessionValidityInfo.encode;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.BackupSessionService.SimpleFuture;
+import de.javakaffee.web.msm.BackupSessionTask.BackupResult;
+
+/**
+ * Test the {@link SessionNearCache}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class SessionNearCacheTest {
+
+    private static final byte[] VALIDITY = encode( 1800, 1000, 2000 );
+
+    @Test
+    public void testTakeWithUnchangedValidityInfo() {
+        final SessionNearCache cut = new SessionNearCache( 10 );
+        final MemcachedBackupSession session = createSession( "foo-n1" );
+        cut.put( session, VALIDITY, new SimpleFuture<BackupResult>( BackupResult.SKIPPED ) );
+
+        assertTrue( cut.contains( "foo-n1" ) );
+        assertSame( cut.take( "foo-n1", encode( 1800, 1000, 2000 ) ), session );
+        // the session is handed out only once
+        assertFalse( cut.contains( "foo-n1" ) );
+        assertNull( cut.take( "foo-n1", VALIDITY ) );
+        assertEquals( cut.size(), 0 );
+    }
+
+    @Test
+    public void testChangedOrMissingValidityInfo() {
+        final SessionNearCache cut = new SessionNearCache( 10 );
+        cut.put( createSession( "foo-n1" ), VALIDITY, new SimpleFuture<BackupResult>( BackupResult.SKIPPED ) );
+        assertNull( cut.take( "foo-n1", encode( 1800, 2000, 3000 ) ) );
+        assertFalse( cut.contains( "foo-n1" ) );
+
+        cut.put( createSession( "foo-n1" ), VALIDITY, new SimpleFuture<BackupResult>( BackupResult.SKIPPED ) );
+        assertNull( cut.take( "foo-n1", null ) );
+    }
+
+    @Test
+    public void testUnfinishedOrFailedBackup() {
+        final SessionNearCache cut = new SessionNearCache( 10 );
+        cut.put( createSession( "foo-n1" ), VALIDITY, new FutureTask<BackupResult>( new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, BackupResult.SKIPPED ) );
+        assertNull( cut.take( "foo-n1", VALIDITY ) );
+
+        cut.put( createSession( "foo-n1" ), VALIDITY, new SimpleFuture<BackupResult>( BackupResult.FAILURE ) );
+        assertNull( cut.take( "foo-n1", VALIDITY ) );
+
+        cut.put( createSession( "foo-n1" ), VALIDITY,
+                new SimpleFuture<BackupResult>( new ExecutionException( new RuntimeException( "foo" ) ) ) );
+        assertNull( cut.take( "foo-n1", VALIDITY ) );
+    }
+
+    @Test
+    public void testEvictionByNumberOfEntries() {
+        final SessionNearCache cut = new SessionNearCache( 2 );
+        cut.put( createSession( "a-n1" ), VALIDITY, new SimpleFuture<BackupResult>( BackupResult.SKIPPED ) );
+        cut.put( createSession( "b-n1" ), VALIDITY, new SimpleFuture<BackupResult>( BackupResult.SKIPPED ) );
+        // access a, so that b is the least recently used
+        assertTrue( cut.contains( "a-n1" ) );
+        cut.put( createSession( "c-n1" ), VALIDITY, new SimpleFuture<BackupResult>( BackupResult.SKIPPED ) );
+
+        assertEquals( cut.size(), 2 );
+        assertTrue( cut.contains( "a-n1" ) );
+        assertFalse( cut.contains( "b-n1" ) );
+        assertTrue( cut.contains( "c-n1" ) );
+
+        // replacing a cached session doesn't evict another one
+        cut.put( createSession( "c-n1" ), VALIDITY, new SimpleFuture<BackupResult>( BackupResult.SKIPPED ) );
+        assertEquals( cut.size(), 2 );
+        assertTrue( cut.contains( "a-n1" ) );
+    }
+
+    private static MemcachedBackupSession createSession( final String id ) {
+        final MemcachedBackupSession result = new MemcachedBackupSession();
+        result.setIdInternal( id );
+        return result;
+    }
+
+}
@@ -53,7 +53,10 @@ public class StatisticsTest {
                 { "getRequestsWithoutSessionModification", "requestWithoutSessionModification" },
                 { "getRequestsWithSession", "requestWithSession" },
                 { "getNonStickySessionsPingFailed", "nonStickySessionsPingFailed" },
-                { "getNonStickySessionsReadOnlyRequest", "nonStickySessionsReadOnlyRequest" }
+                { "getNonStickySessionsReadOnlyRequest", "nonStickySessionsReadOnlyRequest" },
+                { "getRequestsWithCoalescedBackup", "requestWithCoalescedBackup" },
+                { "getBackupsDiscarded", "backupDiscarded" },
+                { "getBackupsInCallerThread", "backupInCallerThread" }
         };
     }
 
@@ -25,9 +25,16 @@ import static org.mockito.Mockito.when;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import javax.servlet.http.HttpSessionActivationListener;
+import javax.servlet.http.HttpSessionEvent;
 
 import org.apache.catalina.LifecycleException;
 import org.apache.catalina.authenticator.Constants;
@@ -129,6 +136,307 @@ public abstract class TranscoderServiceTest {
         Assert.assertEquals( value, deserialized.getAttribute( "foo" ) );
     }
 
+    @Test
+    public void testSerializeAttributesWithHash() {
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final TranscoderService transcoderService = new TranscoderService( new JavaSerializationTranscoder( _manager ) );
+
+        session.setAttribute( "foo", "bar" );
+
+        final HashingOutputStream out = new HashingOutputStream();
+        transcoderService.serializeAttributes( session, session.getAttributesInternal(), out );
+        final byte[] attributesData = transcoderService.serializeAttributes( session, session.getAttributesInternal() );
+        Assert.assertEquals( out.toByteArray(), attributesData );
+
+        final MemcachedBackupSession deserialized = transcoderService.deserialize( transcoderService.serialize( session, attributesData ), _manager );
+        Assert.assertEquals( deserialized.getDataHash(), out.getHash() );
+    }
+
+    @Test
+    public void testCompressedSession() {
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final TranscoderService transcoderService = new TranscoderService( new JavaSerializationTranscoder( _manager ) );
+
+        final StringBuilder value = new StringBuilder();
+        while ( value.length() < 5000 ) {
+            value.append( "some session attribute value " );
+        }
+        session.setAttribute( "foo", value.toString() );
+        session.setLastBackupTime( System.currentTimeMillis() );
+        final byte[] data = transcoderService.serialize( session );
+
+        Assert.assertSame( transcoderService.compress( data ), data, "Compression is disabled by default." );
+
+        transcoderService.setCompression( CompressionCodec.DEFLATE, 1024 );
+        Assert.assertSame( transcoderService.compress( data ), data, "Compression needs the extended session format." );
+        transcoderService.setExtendedSessionFormat( true );
+
+        for ( final CompressionCodec codec : new CompressionCodec[] { CompressionCodec.DEFLATE, CompressionCodec.LZ4 } ) {
+            transcoderService.setCompression( codec, data.length + 1 );
+            Assert.assertSame( transcoderService.compress( data ), data, "Data below the min size must not be compressed." );
+
+            transcoderService.setCompression( codec, 1024 );
+            final byte[] compressed = transcoderService.compress( data );
+            Assert.assertTrue( compressed.length < data.length / 2, codec + " compressed to " + compressed.length );
+
+            // decompression must not depend on the configured codec
+            transcoderService.setCompression( CompressionCodec.NONE, 0 );
+            final MemcachedBackupSession deserialized = transcoderService.deserialize( compressed, _manager );
+            assertSessionFields( session, deserialized );
+            Assert.assertEquals( deserialized.getAttribute( "foo" ), value.toString() );
+        }
+    }
+
+    @Test
+    public void testSerializeSessionFromAttributesStream() {
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final TranscoderService transcoderService = new TranscoderService( new JavaSerializationTranscoder( _manager ) );
+
+        session.setAttribute( "foo", "bar" );
+        session.setLastBackupTime( System.currentTimeMillis() );
+
+        final HashingOutputStream out = new HashingOutputStream();
+        transcoderService.serializeAttributes( session, session.getAttributesInternal(), out );
+        final byte[] data = transcoderService.serialize( session, out );
+        Assert.assertEquals( data, transcoderService.serialize( session, out.toByteArray() ) );
+
+        final MemcachedBackupSession deserialized = transcoderService.deserialize( data, _manager );
+        assertSessionFields( session, deserialized );
+        Assert.assertEquals( deserialized.getAttribute( "foo" ), "bar" );
+        Assert.assertEquals( deserialized.getDataHash(), out.getHash() );
+    }
+
+    @Test
+    public void testDeserializeAttributesFromRange() {
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final TranscoderService transcoderService = new TranscoderService( new JavaSerializationTranscoder( _manager ) );
+
+        session.setAttribute( "foo", "bar" );
+        final byte[] attributesData = transcoderService.serializeAttributes( session, session.getAttributesInternal() );
+        final byte[] data = new byte[attributesData.length + 10];
+        System.arraycopy( attributesData, 0, data, 3, attributesData.length );
+
+        final Map<String, Object> attributes = transcoderService.deserializeAttributes( data, 3, attributesData.length );
+        Assert.assertEquals( attributes, session.getAttributesInternal() );
+    }
+
+    @Test
+    public void testSerializeSessionWithAttributeFragments() {
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final TranscoderService transcoderService = new TranscoderService( new JavaSerializationTranscoder( _manager ) );
+
+        session.setAttribute( "foo", "bar" );
+        session.setAttribute( "baz", 42 );
+        session.setLastBackupTime( System.currentTimeMillis() );
+
+        final HashingOutputStream out = new HashingOutputStream();
+        transcoderService.serializeAttributeFragments( session, session.getAttributesInternal(), out );
+        final byte[] data = transcoderService.serializeWithAttributeFragments( session, out );
+        final MemcachedBackupSession deserialized = transcoderService.deserialize( data, _manager );
+
+        assertSessionFields( session, deserialized );
+        Assert.assertEquals( deserialized.getAttribute( "foo" ), "bar" );
+        Assert.assertEquals( deserialized.getAttribute( "baz" ), 42 );
+        Assert.assertEquals( deserialized.getDataHash(), out.getHash() );
+        Assert.assertEquals( deserialized.getSerializedAttributes().keySet().size(), 0,
+                "Accessed attributes must be removed from the cache." );
+    }
+
+    @Test
+    public void testUnaccessedAttributesAreNotSerializedAgain() {
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final CountingTranscoder transcoder = new CountingTranscoder( new JavaSerializationTranscoder( _manager ) );
+        final TranscoderService transcoderService = new TranscoderService( transcoder );
+
+        session.setAttribute( "large", "immutable" );
+        session.setAttribute( "small", "mutable" );
+
+        final HashingOutputStream first = new HashingOutputStream();
+        transcoderService.serializeAttributeFragments( session, session.getAttributesInternal(), first );
+        Assert.assertEquals( transcoder._count, 2 );
+
+        session.setAttribute( "small", "changed" );
+        final HashingOutputStream second = new HashingOutputStream();
+        transcoderService.serializeAttributeFragments( session, session.getAttributesInternal(), second );
+        Assert.assertEquals( transcoder._count, 3, "Only the accessed attribute must be serialized." );
+        Assert.assertFalse( first.getHash() == second.getHash() );
+
+        session.removeAttribute( "small" );
+        final HashingOutputStream third = new HashingOutputStream();
+        transcoderService.serializeAttributeFragments( session, session.getAttributesInternal(), third );
+        Assert.assertEquals( transcoder._count, 3 );
+        Assert.assertEquals( session.getSerializedAttributes().keySet(), Collections.singleton( "large" ) );
+    }
+
+    @Test
+    public void testAttributesAreDeserializedLazily() {
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final CountingTranscoder transcoder = new CountingTranscoder( new JavaSerializationTranscoder( _manager ) );
+        final TranscoderService transcoderService = new TranscoderService( transcoder );
+
+        session.setAttribute( "user", "joe" );
+        session.setAttribute( "cart", "large" );
+
+        final HashingOutputStream out = new HashingOutputStream();
+        transcoderService.serializeAttributeFragments( session, session.getAttributesInternal(), out );
+        final byte[] data = transcoderService.serializeWithAttributeFragments( session, out );
+        final MemcachedBackupSession deserialized = transcoderService.deserialize( data, _manager );
+
+        Assert.assertEquals( transcoder._deserializeCount, 0 );
+        Assert.assertEquals( deserialized.getAttributesInternal().keySet(), session.getAttributesInternal().keySet() );
+        Assert.assertEquals( deserialized.getAttribute( "user" ), "joe" );
+        Assert.assertEquals( transcoder._deserializeCount, 1, "Only the accessed attribute must be deserialized." );
+
+        // the accessed attribute is serialized again, the other one is written as it was loaded
+        final HashingOutputStream second = new HashingOutputStream();
+        transcoderService.serializeAttributeFragments( deserialized, deserialized.getAttributesInternal(), second );
+        Assert.assertEquals( transcoder._count, 3 );
+        Assert.assertEquals( transcoder._deserializeCount, 1 );
+        Assert.assertEquals( second.getHash(), out.getHash() );
+
+        Assert.assertEquals( deserialized.getAttribute( "cart" ), "large" );
+        Assert.assertEquals( transcoder._deserializeCount, 2 );
+    }
+
+    @Test
+    public void testActivateDoesNotDeserializeAttributes() {
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final CountingTranscoder transcoder = new CountingTranscoder( new JavaSerializationTranscoder( _manager ) );
+        final TranscoderService transcoderService = new TranscoderService( transcoder );
+
+        session.setAttribute( "listener", new ActivationListener() );
+        session.setAttribute( "cart", "large" );
+
+        final HashingOutputStream out = new HashingOutputStream();
+        transcoderService.serializeAttributeFragments( session, session.getAttributesInternal(), out );
+        final MemcachedBackupSession deserialized = transcoderService.deserialize(
+                transcoderService.serializeWithAttributeFragments( session, out ), _manager );
+
+        ActivationListener.ACTIVATIONS.set( 0 );
+        deserialized.activate();
+        Assert.assertEquals( transcoder._deserializeCount, 0 );
+        Assert.assertEquals( ActivationListener.ACTIVATIONS.get(), 0 );
+
+        // the listener is notified when it's deserialized
+        Assert.assertNotNull( deserialized.getAttribute( "listener" ) );
+        Assert.assertEquals( ActivationListener.ACTIVATIONS.get(), 1 );
+        Assert.assertEquals( transcoder._deserializeCount, 1 );
+    }
+
+    @Test
+    public void testAttributeThatCannotBeDeserializedIsWrittenBackUnchanged() {
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final CountingTranscoder transcoder = new CountingTranscoder( new JavaSerializationTranscoder( _manager ) );
+        final TranscoderService transcoderService = new TranscoderService( transcoder );
+
+        session.setAttribute( "foo", "bar" );
+
+        final HashingOutputStream out = new HashingOutputStream();
+        transcoderService.serializeAttributeFragments( session, session.getAttributesInternal(), out );
+        final MemcachedBackupSession deserialized = transcoderService.deserialize(
+                transcoderService.serializeWithAttributeFragments( session, out ), _manager );
+
+        transcoder._failDeserialization = true;
+        Assert.assertNull( deserialized.getAttribute( "foo" ) );
+        Assert.assertTrue( deserialized.getAttributesInternal().containsKey( "foo" ) );
+        Assert.assertEquals( deserialized.getAttributesInternal().size(), 1 );
+        Assert.assertEquals( deserialized.getAttributesInternal().entrySet().size(), 1 );
+        Assert.assertEquals( deserialized.getAttributesInternal().values().size(), 1 );
+        Assert.assertNull( deserialized.getAttributesInternal().values().iterator().next() );
+
+        final HashingOutputStream second = new HashingOutputStream();
+        transcoderService.serializeAttributeFragments( deserialized, deserialized.getAttributesInternal(), second );
+        Assert.assertEquals( second.getHash(), out.getHash() );
+
+        transcoder._failDeserialization = false;
+        Assert.assertEquals( deserialized.getAttribute( "foo" ), "bar" );
+    }
+
+    @Test
+    public void testReplacingAndRemovingAttributesDoesNotDeserializeThem() {
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final CountingTranscoder transcoder = new CountingTranscoder( new JavaSerializationTranscoder( _manager ) );
+        final TranscoderService transcoderService = new TranscoderService( transcoder );
+
+        session.setAttribute( "foo", "bar" );
+        session.setAttribute( "baz", "qux" );
+
+        final HashingOutputStream out = new HashingOutputStream();
+        transcoderService.serializeAttributeFragments( session, session.getAttributesInternal(), out );
+        final MemcachedBackupSession deserialized = transcoderService.deserialize(
+                transcoderService.serializeWithAttributeFragments( session, out ), _manager );
+
+        final Map<String, Object> attributes = deserialized.getAttributesInternal();
+        Assert.assertNull( attributes.put( "foo", "new" ) );
+        Assert.assertNull( attributes.remove( "baz" ) );
+        Assert.assertEquals( transcoder._deserializeCount, 0 );
+        Assert.assertEquals( attributes.get( "foo" ), "new" );
+        Assert.assertFalse( attributes.containsKey( "baz" ) );
+    }
+
+    private static class ActivationListener implements HttpSessionActivationListener, Serializable {
+
+        private static final long serialVersionUID = 1L;
+        private static final AtomicInteger ACTIVATIONS = new AtomicInteger();
+
+        @Override
+        public void sessionDidActivate( final HttpSessionEvent se ) {
+            ACTIVATIONS.incrementAndGet();
+        }
+
+        @Override
+        public void sessionWillPassivate( final HttpSessionEvent se ) {
+        }
+
+    }
+
+    private static class CountingTranscoder implements SessionAttributesTranscoder {
+
+        private final SessionAttributesTranscoder _delegate;
+        private int _count;
+        private int _deserializeCount;
+        private boolean _failDeserialization;
+
+        CountingTranscoder( final SessionAttributesTranscoder delegate ) {
+            _delegate = delegate;
+        }
+
+        @Override
+        public byte[] serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes ) {
+            _count++;
+            return _delegate.serializeAttributes( session, attributes );
+        }
+
+        @Override
+        public Map<String, Object> deserializeAttributes( final byte[] data ) {
+            _deserializeCount++;
+            if ( _failDeserialization ) {
+                throw new RuntimeException( "Deserialization failed" );
+            }
+            return _delegate.deserializeAttributes( data );
+        }
+
+    }
+
+    @Test
+    public void testSerializeSessionWithAttributeManifest() {
+        final MemcachedBackupSession session = (MemcachedBackupSession) _manager.createSession( null );
+        final TranscoderService transcoderService = new TranscoderService( new JavaSerializationTranscoder( _manager ) );
+
+        session.setAttribute( "foo", "bar" );
+        session.setLastBackupTime( System.currentTimeMillis() );
+
+        final Map<String, AttributeManifest.Entry> entries = new HashMap<String, AttributeManifest.Entry>();
+        entries.put( "foo", new AttributeManifest.Entry( 0, 42, 0 ) );
+        final byte[] data = transcoderService.serialize( session, new AttributeManifest( session.getIdInternal(), 1, entries ) );
+        final MemcachedBackupSession deserialized = transcoderService.deserialize( data, _manager );
+
+        assertSessionFields( session, deserialized );
+        Assert.assertTrue( deserialized.getAttributesInternal().isEmpty(), "Attributes must be loaded separately." );
+        Assert.assertEquals( deserialized.getAttributeManifest().getSessionId(), session.getIdInternal() );
+        Assert.assertEquals( deserialized.getAttributeManifest().getEntry( "foo" ).getHash(), 42 );
+    }
+
     private void assertSessionFields( final MemcachedBackupSession session, final MemcachedBackupSession deserialized ) {
         Assert.assertEquals( session.getCreationTimeInternal(), deserialized.getCreationTimeInternal() );
         Assert.assertEquals( session.getLastAccessedTimeInternal(), deserialized.getLastAccessedTimeInternal() );
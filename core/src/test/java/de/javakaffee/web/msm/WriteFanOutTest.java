@@ -0,0 +1,107 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyObject;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import net.spy.memcached.MemcachedClient;
+
+import org.testng.annotations.Test;
+
+import de.javakaffee.web.msm.BackupSessionService.SimpleFuture;
+import de.javakaffee.web.msm.WriteFanOut.Outcome;
+
+/**
+ * Test the {@link WriteFanOut}.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class WriteFanOutTest {
+
+    @Test
+    public void testOutcomesPerKey() {
+        final WriteFanOut cut = new WriteFanOut( 100 );
+        cut.add( "stored", new SimpleFuture<Boolean>( true ) );
+        cut.add( "notStored", new SimpleFuture<Boolean>( false ) );
+        cut.add( "failed", new SimpleFuture<Boolean>( new ExecutionException( new RuntimeException( "foo" ) ) ) );
+        cut.add( "timeout", neverCompleting() );
+
+        assertEquals( cut.await( "stored" ), Outcome.SUCCESS );
+
+        final Map<String, Outcome> outcomes = cut.awaitAll();
+        assertEquals( outcomes.keySet(), new LinkedHashSet<String>( Arrays.asList( "stored", "notStored", "failed", "timeout" ) ) );
+        assertEquals( outcomes.get( "stored" ), Outcome.SUCCESS );
+        assertEquals( outcomes.get( "notStored" ), Outcome.NOT_STORED );
+        assertEquals( outcomes.get( "failed" ), Outcome.FAILURE );
+        assertEquals( outcomes.get( "timeout" ), Outcome.TIMEOUT );
+        assertTrue( outcomes.get( "timeout" ).isNodeFailure() );
+    }
+
+    @Test
+    public void testWritesShareDeadline() {
+        final WriteFanOut cut = new WriteFanOut( 200 );
+        cut.add( "a", neverCompleting() );
+        cut.add( "b", neverCompleting() );
+        cut.add( "c", neverCompleting() );
+
+        final long start = System.currentTimeMillis();
+        assertEquals( cut.await( "a" ), Outcome.TIMEOUT );
+        final Map<String, Outcome> outcomes = cut.awaitAll();
+        final long duration = System.currentTimeMillis() - start;
+
+        assertEquals( outcomes.get( "b" ), Outcome.TIMEOUT );
+        assertEquals( outcomes.get( "c" ), Outcome.TIMEOUT );
+        assertTrue( duration < 400, "All writes should be awaited within a single timeout, took " + duration );
+        assertEquals( cut.getRemainingMillis(), 0 );
+    }
+
+    @Test
+    public void testSetFailureIsRecorded() {
+        final MemcachedClient memcached = mock( MemcachedClient.class );
+        when( memcached.set( anyString(), anyInt(), anyObject() ) ).thenThrow( new IllegalStateException( "Queue full" ) );
+
+        final WriteFanOut cut = new WriteFanOut( 100 );
+        cut.set( memcached, "foo", 0, "bar" );
+
+        assertEquals( cut.await( "foo" ), Outcome.FAILURE );
+        assertEquals( cut.awaitAll().get( "foo" ), Outcome.FAILURE );
+    }
+
+    private static Future<Boolean> neverCompleting() {
+        return new FutureTask<Boolean>( new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return true;
+            }
+        } );
+    }
+
+}
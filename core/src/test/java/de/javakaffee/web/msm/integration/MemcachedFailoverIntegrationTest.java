@@ -400,6 +400,8 @@ public abstract class MemcachedFailoverIntegrationTest {
         _daemon1.stop();
         _daemon2.stop();
         _daemon3.stop();
+        // wait until the nodes are detected as unavailable by the background health checks
+        Thread.sleep( 200 );
 
         final Response response1 = get( _httpClient, _portTomcat1, null );
         final String sessionId = response1.getSessionId();
@@ -425,9 +427,11 @@ public abstract class MemcachedFailoverIntegrationTest {
         restartTomcat( memcachedNodes, _nodeId1 );
         getManager( _tomcat1 ).setSticky( sessionAffinity.isSticky() );
 
-        /* shutdown regular memcached node
+        /* shutdown regular memcached node and wait until it's detected as unavailable
+         * by the background health checks
          */
         _daemon2.stop();
+        Thread.sleep( 200 );
 
         final Response response1 = get( _httpClient, _portTomcat1, null );
         final String sessionId = response1.getSessionId();
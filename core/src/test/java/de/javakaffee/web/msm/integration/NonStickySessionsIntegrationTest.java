@@ -164,6 +164,8 @@ public abstract class NonStickySessionsIntegrationTest {
                 { LockingMode.ALL, null },
                 { LockingMode.AUTO, null },
                 { LockingMode.URI_PATTERN, Pattern.compile( ".*" ) },
+                { LockingMode.READ_WRITE, null },
+                { LockingMode.APP, null },
                 { LockingMode.NONE, null }
         };
     }
@@ -173,7 +175,8 @@ public abstract class NonStickySessionsIntegrationTest {
         return new Object[][] {
                 { LockingMode.ALL, null },
                 { LockingMode.AUTO, null },
-                { LockingMode.URI_PATTERN, Pattern.compile( ".*" ) }
+                { LockingMode.URI_PATTERN, Pattern.compile( ".*" ) },
+                { LockingMode.READ_WRITE, null }
         };
     }
 
@@ -378,6 +381,95 @@ public abstract class NonStickySessionsIntegrationTest {
 
     }
 
+    /**
+     * Tests that for app locking mode only requests for which the application asked for the lock
+     * lock the session.
+     */
+    @Test
+    public void testOnlyRequestedLocksAreAcquiredForAppLocking() throws IOException, InterruptedException, HttpException, ExecutionException {
+
+        setLockingMode( LockingMode.APP, null );
+
+        final String sessionId = post( _httpClient, TC_PORT_1, null, "k1", "v1" ).getSessionId();
+        assertNotNull( sessionId );
+
+        // a locking request, a second locking request must wait, a not locking request must not wait
+        final Future<Response> response1 = _executor.submit( new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+                return post( _httpClient, TC_PORT_1, PATH_WAIT, sessionId, asMap( PARAM_LOCK_SESSION, "true",
+                        PARAM_MILLIS, "500", "k2", "v2" ) );
+            }
+        });
+        Thread.sleep( 100 );
+
+        final Response response2 = get( _httpClient, TC_PORT_2, sessionId );
+        assertEquals( response2.getSessionId(), sessionId );
+        assertFalse( response1.isDone(), "The not locking request should return before the long, session locking one" );
+
+        final Response response3 = post( _httpClient, TC_PORT_2, null, sessionId, asMap( PARAM_LOCK_SESSION, "true", "k3", "v3" ) );
+        assertEquals( response3.getSessionId(), sessionId );
+        assertTrue( response1.isDone(), "The locking request should return after the other locking one" );
+        assertEquals( response1.get().getSessionId(), sessionId );
+
+        final Response response4 = get( _httpClient, TC_PORT_1, sessionId );
+        assertEquals( response4.get( "k1" ), "v1" );
+        assertEquals( response4.get( "k2" ), "v2" );
+        assertEquals( response4.get( "k3" ), "v3" );
+
+    }
+
+    /**
+     * Tests that for readWrite locking mode readonly requests don't block each other, but
+     * a modifying request waits until the readonly requests are finished.
+     */
+    @Test
+    public void testReadOnlyRequestsShareLockForReadWriteLocking() throws IOException, InterruptedException, HttpException, ExecutionException {
+
+        final String readOnlyPath = "/readonly";
+        setLockingMode( LockingMode.READ_WRITE, Pattern.compile( readOnlyPath + ".*" ) );
+
+        final String sessionId = get( _httpClient, TC_PORT_1, null ).getSessionId();
+        assertNotNull( sessionId );
+
+        // two readonly requests in parallel should not block each other
+        final long timeToWaitInMillis = 500;
+        final Map<String, String> paramsWait = asMap( PARAM_WAIT, "true", PARAM_MILLIS, String.valueOf( timeToWaitInMillis ) );
+        final long start = System.currentTimeMillis();
+        final Future<Response> response1 = _executor.submit( new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+                return get( _httpClient, TC_PORT_1, readOnlyPath, sessionId, paramsWait );
+            }
+        });
+        final Future<Response> response2 = _executor.submit( new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+                return get( _httpClient, TC_PORT_2, readOnlyPath, sessionId, paramsWait );
+            }
+        });
+        assertEquals( response1.get().getSessionId(), sessionId );
+        assertEquals( response2.get().getSessionId(), sessionId );
+        assertTrue ( ( System.currentTimeMillis() - start ) < ( 2 * timeToWaitInMillis ),
+                "The time for both requests should be less than 2 * the wait time if they don't block each other." );
+
+        // a modifying request must wait until the readonly request is finished
+        final Future<Response> response3 = _executor.submit( new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+                return get( _httpClient, TC_PORT_1, readOnlyPath, sessionId, paramsWait );
+            }
+        });
+        Thread.sleep( 100 );
+        final Response response4 = post( _httpClient, TC_PORT_2, sessionId, "k1", "v1" );
+        assertEquals( response4.getSessionId(), sessionId );
+        assertTrue( response3.isDone(), "The modifying request should return after the readonly one" );
+        assertEquals( response3.get().getSessionId(), sessionId );
+
+        assertEquals( get( _httpClient, TC_PORT_1, sessionId ).get( "k1" ), "v1" );
+
+    }
+
     /**
      * Tests that non-sticky sessions are not invalidated too early when sessions are accessed readonly.
      * Each (even session readonly request) must update the lastAccessedTime for the session in memcached.
@@ -30,6 +30,8 @@ import javax.servlet.http.HttpSession;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
+import de.javakaffee.web.msm.LockingStrategyApp;
+
 /**
  * The servlet used for integration testing.
  *
@@ -46,6 +48,7 @@ public class TestServlet extends HttpServlet {
     public static final String PARAM_WAIT = "sleep";
     public static final String PARAM_MILLIS = "millies";
     public static final String PARAM_REMOVE = "remove";
+    public static final String PARAM_LOCK_SESSION = "lockSession";
     public static final String PATH_GET_REQUESTED_SESSION_INFO = "/requestedSessionInfo";
     public static final String KEY_REQUESTED_SESSION_ID = "requestedSessionId";
     public static final String KEY_IS_REQUESTED_SESSION_ID_VALID = "isRequestedSessionIdValid";
@@ -78,6 +81,7 @@ public class TestServlet extends HttpServlet {
         }
         else {
 
+            lockSessionIfRequested( request );
             final HttpSession session = request.getSession();
 
             waitIfRequested( request );
@@ -117,6 +121,7 @@ public class TestServlet extends HttpServlet {
 
         LOG.info( "invoked" );
 
+        lockSessionIfRequested( request );
         final HttpSession session = request.getSession();
 
         waitIfRequested( request );
@@ -135,6 +140,12 @@ public class TestServlet extends HttpServlet {
 
     }
 
+    private void lockSessionIfRequested( final HttpServletRequest request ) {
+        if ( request.getParameter( PARAM_LOCK_SESSION ) != null ) {
+            LockingStrategyApp.lockSession( request );
+        }
+    }
+
     private void waitIfRequested( final HttpServletRequest request ) throws ServletException {
         final String pathInfo = request.getPathInfo();
         if ( PATH_WAIT.equals( pathInfo ) || request.getParameter( PARAM_WAIT ) != null ) {
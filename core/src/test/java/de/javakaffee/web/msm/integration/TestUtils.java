@@ -492,6 +492,8 @@ public abstract class TestUtils {
         sessionManager.setMaxInactiveInterval( sessionTimeout ); // 1 second
         sessionManager.getMemcachedSessionService().setSessionBackupAsync( false );
         sessionManager.getMemcachedSessionService().setSessionBackupTimeout( 100 );
+        // detect unavailable memcached nodes quickly
+        sessionManager.getMemcachedSessionService().setNodeHealthCheckInterval( 25 );
         sessionManager.setProcessExpiresFrequency( 1 ); // 1 second (factor for context.setBackgroundProcessorDelay)
         sessionManager.getMemcachedSessionService().setTranscoderFactoryClass( transcoderFactoryClassName );
 
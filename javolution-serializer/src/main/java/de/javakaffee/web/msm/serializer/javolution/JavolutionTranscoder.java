@@ -20,6 +20,9 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Map;
 
 import javolution.xml.XMLObjectReader;
@@ -33,7 +36,7 @@ import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
 import de.javakaffee.web.msm.MemcachedBackupSession;
-import de.javakaffee.web.msm.SessionAttributesTranscoder;
+import de.javakaffee.web.msm.StreamingSessionAttributesTranscoder;
 
 /**
  * A {@link net.spy.memcached.transcoders.Transcoder} that serializes catalina
@@ -51,7 +54,7 @@ import de.javakaffee.web.msm.SessionAttributesTranscoder;
  *
  * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
  */
-public class JavolutionTranscoder implements SessionAttributesTranscoder {
+public class JavolutionTranscoder implements StreamingSessionAttributesTranscoder {
 
     static final String REFERENCE_ATTRIBUTE_ID = "__id";
     static final String REFERENCE_ATTRIBUTE_REF_ID = "__ref";
@@ -109,18 +112,42 @@ public class JavolutionTranscoder implements SessionAttributesTranscoder {
      */
     @Override
     public byte[] serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes ) {
-        return doSerialize( attributes, "attributes" );
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        doSerialize( attributes, "attributes", bos );
+        try {
+            if ( LOG.isDebugEnabled() ) {
+                LOG.debug( "Returning serialized data:\n" + new String( bos.toByteArray() ) );
+                final File tmpFile = File.createTempFile( "session-" + System.identityHashCode( attributes ) + "-", ".tmp", new File( "/tmp" ) );
+                final FileOutputStream out = new FileOutputStream( tmpFile );
+                out.write( bos.toByteArray() );
+                out.close();
+                LOG.debug( "Wrote content to file " + tmpFile.getAbsolutePath() );
+            }
+        } catch ( final IOException e ) {
+            LOG.debug( "Could not write serialized data to file", e );
+        }
+        return bos.toByteArray();
     }
 
-    private byte[] doSerialize( final Object object, final String name ) {
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes,
+            final OutputStream out ) {
+        doSerialize( attributes, "attributes", out );
+    }
+
+    private void doSerialize( final Object object, final String name, final OutputStream out ) {
         if ( object == null ) {
             throw new NullPointerException( "Can't serialize null" );
         }
 
         XMLObjectWriter writer = null;
         try {
-            final ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            writer = XMLObjectWriter.newInstance( bos );
+            /* closing the writer closes its output, which must be left open for the caller
+             */
+            writer = XMLObjectWriter.newInstance( new NonClosingOutputStream( out ) );
             final XMLReferenceResolver xmlReferenceResolver = new XMLReferenceResolver();
             xmlReferenceResolver.setIdentifierAttribute( REFERENCE_ATTRIBUTE_ID );
             xmlReferenceResolver.setReferenceAttribute( REFERENCE_ATTRIBUTE_REF_ID );
@@ -128,18 +155,6 @@ public class JavolutionTranscoder implements SessionAttributesTranscoder {
             writer.setBinding( _xmlBinding );
             writer.write( object, name );
             writer.flush();
-
-            if ( LOG.isDebugEnabled() ) {
-                LOG.debug( "Returning serialized data:\n" + new String( bos.toByteArray() ) );
-                final File tmpFile = File.createTempFile( "session-" + System.identityHashCode( object ) + "-", ".tmp", new File( "/tmp" ) );
-                final FileOutputStream out = new FileOutputStream( tmpFile );
-                out.write( bos.toByteArray() );
-                out.close();
-                LOG.debug( "Wrote content to file " + tmpFile.getAbsolutePath() );
-            }
-            // getLogger().info( "Returning deserialized:\n" + new String( bos.toByteArray() ) );
-
-            return bos.toByteArray();
         } catch ( final Exception e ) {
             LOG.error( "caught exception", e );
             throw new IllegalArgumentException( "Could not serialize object", e );
@@ -157,19 +172,27 @@ public class JavolutionTranscoder implements SessionAttributesTranscoder {
      */
     @Override
     public Map<String, Object> deserializeAttributes( final byte[] in ) {
+        return deserializeAttributes( in, 0, in.length );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Object> deserializeAttributes( final byte[] in, final int offset, final int length ) {
 
         if ( LOG.isDebugEnabled() ) {
-            LOG.debug( "Reading serialized data:\n" + new String( in ) );
+            LOG.debug( "Reading serialized data:\n" + new String( in, offset, length ) );
         }
 
-        return doDeserialize( in, "attributes" );
+        return doDeserialize( in, offset, length, "attributes" );
     }
 
-    private <T> T doDeserialize( final byte[] in, final String name ) {
+    private <T> T doDeserialize( final byte[] in, final int offset, final int length, final String name ) {
         // getLogger().info( "Loading serialized:\n" + new String( in ) );
         XMLObjectReader reader = null;
         try {
-            final ByteArrayInputStream bis = new ByteArrayInputStream( in );
+            final ByteArrayInputStream bis = new ByteArrayInputStream( in, offset, length );
             reader = XMLObjectReader.newInstance( bis );
             final XMLReferenceResolver xmlReferenceResolver = new XMLReferenceResolver();
             xmlReferenceResolver.setIdentifierAttribute( REFERENCE_ATTRIBUTE_ID );
@@ -181,10 +204,10 @@ public class JavolutionTranscoder implements SessionAttributesTranscoder {
             }
             return reader.<T> read( name );
         } catch ( final RuntimeException e ) {
-            LOG.warn( "Caught Exception decoding "+ in.length +" bytes of data", e );
+            LOG.warn( "Caught Exception decoding "+ length +" bytes of data", e );
             throw e;
         } catch ( final XMLStreamException e ) {
-            LOG.warn( "Caught Exception decoding "+ in.length +" bytes of data", e );
+            LOG.warn( "Caught Exception decoding "+ length +" bytes of data", e );
             throw new RuntimeException( e );
         } finally {
             closeSilently( reader );
@@ -211,4 +234,25 @@ public class JavolutionTranscoder implements SessionAttributesTranscoder {
         }
     }
 
+    /**
+     * An {@link OutputStream} that only flushes the underlying stream when it's closed.
+     */
+    private static final class NonClosingOutputStream extends FilterOutputStream {
+
+        NonClosingOutputStream( final OutputStream out ) {
+            super( out );
+        }
+
+        @Override
+        public void write( final byte[] b, final int off, final int len ) throws IOException {
+            out.write( b, off, len );
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+    }
+
 }
@@ -16,11 +16,13 @@
  */
 package de.javakaffee.web.msm.serializer.kryo;
 
+import java.io.OutputStream;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -68,13 +70,14 @@ import de.javakaffee.kryoserializers.SynchronizedCollectionsSerializer;
 import de.javakaffee.kryoserializers.UnmodifiableCollectionsSerializer;
 import de.javakaffee.web.msm.MemcachedBackupSession;
 import de.javakaffee.web.msm.SessionAttributesTranscoder;
+import de.javakaffee.web.msm.StreamingSessionAttributesTranscoder;
 
 /**
  * A {@link SessionAttributesTranscoder} that uses {@link Kryo} for serialization.
  * 
  * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
  */
-public class KryoTranscoder implements SessionAttributesTranscoder {
+public class KryoTranscoder implements StreamingSessionAttributesTranscoder {
 
     private static final Log LOG = LogFactory.getLog( KryoTranscoder.class );
     
@@ -256,6 +259,15 @@ public class KryoTranscoder implements SessionAttributesTranscoder {
         return new ObjectBuffer( _kryo ).readObject( data, ConcurrentHashMap.class );
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @SuppressWarnings( "unchecked" )
+    @Override
+    public Map<String, Object> deserializeAttributes( final byte[] data, final int offset, final int length ) {
+        return _kryo.readObject( ByteBuffer.wrap( data, offset, length ), ConcurrentHashMap.class );
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -267,6 +279,18 @@ public class KryoTranscoder implements SessionAttributesTranscoder {
         return new ObjectBuffer( _kryo, _initialBufferSize, _maxBufferSize  ).writeObject( attributes );
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The attributes are written from the buffer of kryo to the given stream, without copying them to a new byte array.
+     * </p>
+     */
+    @Override
+    public void serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes,
+            final OutputStream out ) {
+        new ObjectBuffer( _kryo, _initialBufferSize, _maxBufferSize  ).writeObject( out, attributes );
+    }
+
     private Triple<KryoCustomization[], SerializerFactory[], UnregisteredClassHandler[]> loadCustomConverter( final String[] customConverterClassNames, final ClassLoader classLoader,
             final Kryo kryo ) {
         if ( customConverterClassNames == null || customConverterClassNames.length == 0 ) {
@@ -108,7 +108,7 @@ serialized size is 70122 bytes.
         return stats.min +","+ stats.avg +","+ stats.max;
     }
 
-    private static void recover() throws InterruptedException {
+    static void recover() throws InterruptedException {
         Thread.sleep( 200 );
         System.gc();
         Thread.sleep( 200 );
@@ -172,7 +172,7 @@ serialized size is 70122 bytes.
 
     }
 
-    private static MemcachedBackupSession createSession( final MemcachedBackupSessionManager manager, final String id,
+    static MemcachedBackupSession createSession( final MemcachedBackupSessionManager manager, final String id,
             final int countPersons, final int countNodesPerEdge ) {
         final MemcachedBackupSession session = manager.createEmptySession();
         session.setId( id );
@@ -225,7 +225,7 @@ serialized size is 70122 bytes.
         return persons;
     }
     
-    private static MemcachedBackupSessionManager createManager() {
+    static MemcachedBackupSessionManager createManager() {
         final MemcachedBackupSessionManager manager = new MemcachedBackupSessionManager();
 
         final StandardContext container = new StandardContext();
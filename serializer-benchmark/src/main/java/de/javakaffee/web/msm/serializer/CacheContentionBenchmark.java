@@ -0,0 +1,143 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.javakaffee.web.msm.ConcurrentLRUCache;
+import de.javakaffee.web.msm.LRUCache;
+import de.javakaffee.web.msm.serializer.Benchmark.Stats;
+
+/**
+ * Compares the throughput of the synchronized {@link LRUCache} and the {@link ConcurrentLRUCache}
+ * with many request threads, using the access pattern of the missing sessions cache and the
+ * readonly requests cache: mostly lookups of keys, some of them are missing and are put then.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class CacheContentionBenchmark {
+
+    private static final int OPERATIONS_PER_THREAD = 200000;
+    private static final int NUM_KEYS = 2000;
+
+    public static void main( final String[] args ) throws InterruptedException {
+
+        final String[] keys = new String[NUM_KEYS];
+        for ( int i = 0; i < keys.length; i++ ) {
+            keys[i] = "/some/request/uri/" + i;
+        }
+
+        // some warmup
+        benchmark( new LRUCacheAdapter( new LRUCache<String, Boolean>( 1000, 500 ) ), keys, 8, 3 );
+        benchmark( new ConcurrentLRUCacheAdapter( new ConcurrentLRUCache<String, Boolean>( 1000, 500 ) ), keys, 8, 3 );
+        Benchmark.recover();
+
+        System.out.println( "Threads,LRUCache-Min,LRUCache-Avg,LRUCache-Max,ConcurrentLRUCache-Min,ConcurrentLRUCache-Avg,ConcurrentLRUCache-Max" );
+        for ( final int threads : new int[] { 1, 4, 16, 64, 128 } ) {
+            final Stats lruCacheStats = benchmark( new LRUCacheAdapter( new LRUCache<String, Boolean>( 1000, 500 ) ), keys, threads, 5 );
+            Benchmark.recover();
+            final Stats concurrentStats = benchmark( new ConcurrentLRUCacheAdapter( new ConcurrentLRUCache<String, Boolean>( 1000, 500 ) ), keys, threads, 5 );
+            Benchmark.recover();
+            System.out.println( threads
+                    + "," + lruCacheStats.min + "," + lruCacheStats.avg + "," + lruCacheStats.max
+                    + "," + concurrentStats.min + "," + concurrentStats.avg + "," + concurrentStats.max );
+        }
+    }
+
+    /**
+     * Runs the given number of threads doing lookups and puts on the cache, the time (in millis)
+     * until all threads are finished is registered in the returned stats.
+     */
+    private static Stats benchmark( final Cache cache, final String[] keys, final int numThreads, final int rounds ) throws InterruptedException {
+        final Stats stats = new Stats();
+        final AtomicInteger blackhole = new AtomicInteger();
+        for ( int r = 0; r < rounds; r++ ) {
+            final CountDownLatch start = new CountDownLatch( 1 );
+            final CountDownLatch finished = new CountDownLatch( numThreads );
+            for ( int t = 0; t < numThreads; t++ ) {
+                final int offset = t * 31;
+                new Thread( new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch ( final InterruptedException e ) {
+                            return;
+                        }
+                        int hits = 0;
+                        for ( int i = 0; i < OPERATIONS_PER_THREAD; i++ ) {
+                            final String key = keys[( offset + i * 7 ) % keys.length];
+                            if ( cache.get( key ) != null ) {
+                                hits++;
+                            }
+                            else if ( i % 4 == 0 ) {
+                                cache.put( key, Boolean.TRUE );
+                            }
+                        }
+                        blackhole.addAndGet( hits );
+                        finished.countDown();
+                    }
+                } ).start();
+            }
+            final long startTime = System.currentTimeMillis();
+            start.countDown();
+            finished.await();
+            stats.registerSince( startTime );
+        }
+        if ( blackhole.get() == 42 ) {
+            System.out.println( "Don't optimize me away." );
+        }
+        return stats;
+    }
+
+    private static interface Cache {
+        Boolean get( String key );
+        void put( String key, Boolean value );
+    }
+
+    private static final class LRUCacheAdapter implements Cache {
+        private final LRUCache<String, Boolean> _cache;
+        LRUCacheAdapter( final LRUCache<String, Boolean> cache ) {
+            _cache = cache;
+        }
+        @Override
+        public Boolean get( final String key ) {
+            return _cache.get( key );
+        }
+        @Override
+        public void put( final String key, final Boolean value ) {
+            _cache.put( key, value );
+        }
+    }
+
+    private static final class ConcurrentLRUCacheAdapter implements Cache {
+        private final ConcurrentLRUCache<String, Boolean> _cache;
+        ConcurrentLRUCacheAdapter( final ConcurrentLRUCache<String, Boolean> cache ) {
+            _cache = cache;
+        }
+        @Override
+        public Boolean get( final String key ) {
+            return _cache.get( key );
+        }
+        @Override
+        public void put( final String key, final Boolean value ) {
+            _cache.put( key, value );
+        }
+    }
+
+}
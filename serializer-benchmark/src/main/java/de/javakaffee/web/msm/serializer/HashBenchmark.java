@@ -0,0 +1,101 @@
+/*
+ * Copyright 2011 Martin Grotzke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an &quot;AS IS&quot; BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package de.javakaffee.web.msm.serializer;
+
+import java.util.Arrays;
+
+import de.javakaffee.web.msm.HashingOutputStream;
+import de.javakaffee.web.msm.JavaSerializationTranscoder;
+import de.javakaffee.web.msm.MemcachedBackupSession;
+import de.javakaffee.web.msm.MemcachedBackupSessionManager;
+import de.javakaffee.web.msm.SessionAttributesTranscoder;
+import de.javakaffee.web.msm.TranscoderService;
+import de.javakaffee.web.msm.serializer.Benchmark.Stats;
+import de.javakaffee.web.msm.serializer.javolution.JavolutionTranscoder;
+import de.javakaffee.web.msm.serializer.kryo.KryoTranscoder;
+
+/**
+ * Compares the change detection of session backups: serializing the session attributes
+ * to a byte[] followed by {@link Arrays#hashCode(byte[])} (the former approach) against
+ * serializing them to a {@link HashingOutputStream} that computes the xxHash64 while the
+ * attributes are written.
+ *
+ * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
+ */
+public class HashBenchmark {
+
+    private static final int LOOPS = 500;
+
+    public static void main( final String[] args ) throws InterruptedException {
+
+        final MemcachedBackupSessionManager manager = Benchmark.createManager();
+
+        final SessionAttributesTranscoder[] transcoders = new SessionAttributesTranscoder[] {
+                new JavaSerializationTranscoder(),
+                new JavolutionTranscoder( Thread.currentThread().getContextClassLoader(), false ),
+                new KryoTranscoder() };
+
+        // some warmup
+        for ( final SessionAttributesTranscoder transcoder : transcoders ) {
+            benchmark( manager, transcoder, 20, 100, 3 );
+        }
+        Benchmark.recover();
+
+        System.out.println( "Serialization,Size,ArraysHashCode-Min,ArraysHashCode-Avg,ArraysHashCode-Max,XXHash64-Min,XXHash64-Avg,XXHash64-Max" );
+        for ( final SessionAttributesTranscoder transcoder : transcoders ) {
+            System.out.println( benchmark( manager, transcoder, 10, 500, 4 ) );
+            Benchmark.recover();
+        }
+    }
+
+    private static String benchmark( final MemcachedBackupSessionManager manager, final SessionAttributesTranscoder transcoder,
+            final int rounds, final int countPersons, final int nodesPerEdge ) {
+
+        final TranscoderService transcoderService = new TranscoderService( transcoder );
+        final MemcachedBackupSession session = Benchmark.createSession( manager, "123456789abcdefghijk987654321", countPersons, nodesPerEdge );
+
+        final Stats arraysHashCodeStats = new Stats();
+        final Stats xxHashStats = new Stats();
+        int blackhole = 0;
+        for ( int r = 0; r < rounds; r++ ) {
+            long start = System.currentTimeMillis();
+            for ( int i = 0; i < LOOPS; i++ ) {
+                final byte[] data = transcoderService.serializeAttributes( session, session.getAttributesInternal() );
+                blackhole += Arrays.hashCode( data );
+                arraysHashCodeStats.setSize( data.length );
+            }
+            arraysHashCodeStats.registerSince( start );
+
+            start = System.currentTimeMillis();
+            for ( int i = 0; i < LOOPS; i++ ) {
+                final HashingOutputStream out = new HashingOutputStream();
+                transcoderService.serializeAttributes( session, session.getAttributesInternal(), out );
+                blackhole += (int) out.getHash();
+            }
+            xxHashStats.registerSince( start );
+        }
+
+        if ( blackhole == 42 ) {
+            System.out.println( "Don't optimize me away." );
+        }
+
+        return transcoder.getClass().getSimpleName() + "," + arraysHashCodeStats.size
+            + "," + arraysHashCodeStats.min + "," + arraysHashCodeStats.avg + "," + arraysHashCodeStats.max
+            + "," + xxHashStats.min + "," + xxHashStats.avg + "," + xxHashStats.max;
+    }
+
+}
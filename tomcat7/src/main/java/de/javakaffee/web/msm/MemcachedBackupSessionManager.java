@@ -219,6 +219,10 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
      * E.g. <code>n1.localhost:11211 n2.localhost:11212</code>
      * </p>
      * <p>
+     * A node can have a weight appended, e.g. <code>n1:localhost:11211:2 n2:localhost:11212:1</code>,
+     * new sessions are assigned to the nodes in proportion to their weights.
+     * </p>
+     * <p>
      * When the memcached nodes are set when this manager is already initialized,
      * the new configuration will be loaded.
      * </p>
@@ -431,6 +435,148 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         return _msm.getBackupThreadCount();
     }
 
+    /**
+     * Specifies the maximum number of session backups that may wait for execution if
+     * {@link #setSessionBackupAsync(boolean)} is set to <code>true</code>.
+     *
+     * @param backupQueueCapacity the capacity of the backup queue, default is 1000.
+     * @see MemcachedSessionService#setBackupQueueCapacity(int)
+     */
+    public void setBackupQueueCapacity( final int backupQueueCapacity ) {
+        _msm.setBackupQueueCapacity( backupQueueCapacity );
+    }
+
+    /**
+     * The maximum number of session backups waiting for execution.
+     */
+    public int getBackupQueueCapacity() {
+        return _msm.getBackupQueueCapacity();
+    }
+
+    /**
+     * Specifies what happens with a session backup if the backup queue is full.
+     *
+     * @param backupQueueOverflowPolicy one of "callerRuns" (default), "discardOldest" or "skip".
+     * @see MemcachedSessionService#setBackupQueueOverflowPolicy(String)
+     */
+    public void setBackupQueueOverflowPolicy( final String backupQueueOverflowPolicy ) {
+        _msm.setBackupQueueOverflowPolicy( backupQueueOverflowPolicy );
+    }
+
+    /**
+     * The policy applied if the backup queue is full.
+     */
+    public String getBackupQueueOverflowPolicy() {
+        return _msm.getBackupQueueOverflowPolicy();
+    }
+
+    /**
+     * Specifies if each session attribute shall be stored in its own memcached item, so that
+     * only modified attributes are written. Only supported for sticky sessions.
+     *
+     * @param storeAttributesSeparately <code>true</code> if each attribute shall be stored separately, default is <code>false</code>.
+     * @see MemcachedSessionService#setStoreAttributesSeparately(boolean)
+     */
+    public void setStoreAttributesSeparately( final boolean storeAttributesSeparately ) {
+        _msm.setStoreAttributesSeparately( storeAttributesSeparately );
+    }
+
+    /**
+     * Specifies if each session attribute is stored in its own memcached item.
+     */
+    public boolean isStoreAttributesSeparately() {
+        return _msm.isStoreAttributesSeparately();
+    }
+
+    /**
+     * Specifies if the serialized form of each session attribute shall be cached by the session, so that
+     * only accessed attributes need to be serialized for a backup.
+     *
+     * @param cacheSerializedAttributes <code>true</code> if serialized attributes shall be cached, default is <code>false</code>.
+     * @see MemcachedSessionService#setCacheSerializedAttributes(boolean)
+     */
+    public void setCacheSerializedAttributes( final boolean cacheSerializedAttributes ) {
+        _msm.setCacheSerializedAttributes( cacheSerializedAttributes );
+    }
+
+    /**
+     * Specifies if the serialized form of each session attribute is cached by the session.
+     */
+    public boolean isCacheSerializedAttributes() {
+        return _msm.isCacheSerializedAttributes();
+    }
+
+    /**
+     * Specifies the codec used to compress session data, one of "none" (default), "lz4" or "deflate".
+     *
+     * @param compression the compression codec.
+     * @see MemcachedSessionService#setCompression(String)
+     */
+    public void setCompression( final String compression ) {
+        _msm.setCompression( compression );
+    }
+
+    /**
+     * The codec used to compress session data.
+     */
+    public String getCompression() {
+        return _msm.getCompression();
+    }
+
+    /**
+     * Specifies the minimum size in bytes of session data that's compressed, default is <code>1024</code>.
+     *
+     * @param compressionMinSize the minimum size in bytes.
+     * @see MemcachedSessionService#setCompressionMinSize(int)
+     */
+    public void setCompressionMinSize( final int compressionMinSize ) {
+        _msm.setCompressionMinSize( compressionMinSize );
+    }
+
+    /**
+     * The minimum size in bytes of session data that's compressed.
+     */
+    public int getCompressionMinSize() {
+        return _msm.getCompressionMinSize();
+    }
+
+    /**
+     * Specifies if session data may be written in the formats that older versions of memcached-session-manager
+     * cannot read (compressed sessions and separately serialized attributes), default is <code>false</code>.
+     * This should be enabled only after all tomcats of a cluster are running a version that can read them.
+     *
+     * @param extendedSessionFormat <code>true</code> if the extended session format shall be written.
+     * @see MemcachedSessionService#setExtendedSessionFormat(boolean)
+     */
+    public void setExtendedSessionFormat( final boolean extendedSessionFormat ) {
+        _msm.setExtendedSessionFormat( extendedSessionFormat );
+    }
+
+    /**
+     * Specifies if session data may be written in the formats that older versions cannot read.
+     */
+    public boolean isExtendedSessionFormat() {
+        return _msm.isExtendedSessionFormat();
+    }
+
+    /**
+     * Specifies the maximum number of sessions in the near cache of non-sticky sessions, default is <code>0</code>
+     * (disabled).
+     *
+     * @param nearCacheMaxSize the maximum number of cached sessions.
+     * @see MemcachedSessionService#setNearCacheMaxSize(int)
+     */
+    public void setNearCacheMaxSize( final int nearCacheMaxSize ) {
+        _msm.setNearCacheMaxSize( nearCacheMaxSize );
+    }
+
+    /**
+     * The maximum number of sessions in the near cache of non-sticky sessions.
+     */
+    public int getNearCacheMaxSize() {
+        return _msm.getNearCacheMaxSize();
+    }
+
     /**
      * Specifies the memcached protocol to use, either "text" (default) or "binary".
      *
@@ -476,8 +622,14 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
      * <li><code>none</code> - does not lock the session at all (default for non-sticky sessions).</li>
      * <li><code>all</code> - the session is locked for each request accessing the session.</li>
      * <li><code>auto</code> - locks the session for each request except for those the were detected to access the session only readonly.</li>
+     * <li><code>app</code> - locks the session only for requests for which the application asked for the lock by setting the request
+     * attribute <code>de.javakaffee.web.msm.lockSession</code> to <code>true</code> (before the session is accessed), see {@link LockingStrategyApp}.</li>
      * <li><code>uriPattern:&lt;regexp&gt;</code> - locks the session for each request with a request uri (with appended querystring) matching
      * the provided regular expression.</li>
+     * <li><code>readWrite</code> - takes a shared lock for requests that were detected to access the session only readonly
+     * and an exclusive lock for all other requests.</li>
+     * <li><code>readOnlyUriPattern:&lt;regexp&gt;</code> - takes a shared lock for (readonly) requests with a request uri
+     * (with appended querystring) matching the provided regular expression and an exclusive lock for all other requests.</li>
      * </ul>
      */
     @Override
@@ -490,6 +642,117 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         _msm.setLockingMode( lockingMode, uriPattern, storeSecondaryBackup );
     }
 
+    /**
+     * Specifies if the lockingMode <code>auto</code> replaces numeric and UUID path segments of requests
+     * by a placeholder, default is <code>false</code>.
+     *
+     * @see MemcachedSessionService#setAutoLockingNormalizeIds(boolean)
+     */
+    public void setAutoLockingNormalizeIds( final boolean autoLockingNormalizeIds ) {
+        _msm.setAutoLockingNormalizeIds( autoLockingNormalizeIds );
+    }
+
+    /**
+     * Specifies the comma separated query parameters that are ignored by the lockingMode <code>auto</code>.
+     *
+     * @see MemcachedSessionService#setAutoLockingIgnoredParameters(String)
+     */
+    public void setAutoLockingIgnoredParameters( final String autoLockingIgnoredParameters ) {
+        _msm.setAutoLockingIgnoredParameters( autoLockingIgnoredParameters );
+    }
+
+    /**
+     * Specifies how often the lockingMode <code>auto</code> must detect a request as readonly before
+     * the session is no longer locked for it, default is <code>1</code>.
+     *
+     * @see MemcachedSessionService#setAutoLockingMinReadOnlyObservations(int)
+     */
+    public void setAutoLockingMinReadOnlyObservations( final int autoLockingMinReadOnlyObservations ) {
+        _msm.setAutoLockingMinReadOnlyObservations( autoLockingMinReadOnlyObservations );
+    }
+
+    /**
+     * Specifies the percentage of readonly observations of a request required by the lockingMode
+     * <code>auto</code>, default is <code>100</code>.
+     *
+     * @see MemcachedSessionService#setAutoLockingReadOnlyConfidence(int)
+     */
+    public void setAutoLockingReadOnlyConfidence( final int autoLockingReadOnlyConfidence ) {
+        _msm.setAutoLockingReadOnlyConfidence( autoLockingReadOnlyConfidence );
+    }
+
+    /**
+     * Specifies the half life in seconds of request observations of the lockingMode <code>auto</code>,
+     * default is <code>-1</code> (no decay).
+     *
+     * @see MemcachedSessionService#setAutoLockingDecayHalfLife(int)
+     */
+    public void setAutoLockingDecayHalfLife( final int autoLockingDecayHalfLife ) {
+        _msm.setAutoLockingDecayHalfLife( autoLockingDecayHalfLife );
+    }
+
+    /**
+     * Specifies the lease time in seconds of session locks in memcached, locks are renewed
+     * while they're held. Default is <code>5</code>.
+     *
+     * @see MemcachedSessionService#setLockLeaseTime(int)
+     */
+    public void setLockLeaseTime( final int lockLeaseTime ) {
+        _msm.setLockLeaseTime( lockLeaseTime );
+    }
+
+    /**
+     * Specifies the interval in millis of the background health checks of the memcached nodes.
+     * Default is <code>1000</code>.
+     *
+     * @see MemcachedSessionService#setNodeHealthCheckInterval(long)
+     */
+    public void setNodeHealthCheckInterval( final long nodeHealthCheckInterval ) {
+        _msm.setNodeHealthCheckInterval( nodeHealthCheckInterval );
+    }
+
+    /**
+     * Specifies if the memcached node for a new session shall be selected based on the latency
+     * of the memcached nodes. Default is <code>false</code>.
+     *
+     * @see MemcachedSessionService#setLatencyAwareNodeSelection(boolean)
+     */
+    public void setLatencyAwareNodeSelection( final boolean latencyAwareNodeSelection ) {
+        _msm.setLatencyAwareNodeSelection( latencyAwareNodeSelection );
+    }
+
+    /**
+     * The node ids of memcached nodes that are drained, so that they can be removed:
+     * new sessions are not stored in these nodes, and sessions stored in these nodes
+     * are relocated to other nodes. Node ids are separated by whitespace or comma.
+     * <p>
+     * E.g. <code>n1 n2</code>
+     * </p>
+     *
+     * @see MemcachedSessionService#setDrainingNodes(String)
+     */
+    public void setDrainingNodes( final String drainingNodes ) {
+        _msm.setDrainingNodes( drainingNodes );
+    }
+
+    /**
+     * The draining memcached nodes configuration, this getter is there to make this
+     * configuration accessible via jmx.
+     */
+    public String getDrainingNodes() {
+        return _msm.getDrainingNodes();
+    }
+
+    /**
+     * Specifies the maximum number of sessions that are relocated per second from draining
+     * memcached nodes in the background.
+     *
+     * @see MemcachedSessionService#setDrainRate(int)
+     */
+    public void setDrainRate( final int drainRate ) {
+        _msm.setDrainRate( drainRate );
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -662,6 +925,141 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         return _msm.getStatistics().getNonStickySessionsReadOnlyRequest();
     }
 
+    /**
+     * @return
+     * @see de.javakaffee.web.msm.Statistics#getRequestsWithCoalescedBackup()
+     */
+    public long getMsmStatNumCoalescedBackups() {
+        return _msm.getStatistics().getRequestsWithCoalescedBackup();
+    }
+
+    /**
+     * @return
+     * @see de.javakaffee.web.msm.Statistics#getBackupsDiscarded()
+     */
+    public long getMsmStatNumBackupsDiscarded() {
+        return _msm.getStatistics().getBackupsDiscarded();
+    }
+
+    /**
+     * @return
+     * @see de.javakaffee.web.msm.Statistics#getBackupsInCallerThread()
+     */
+    public long getMsmStatNumBackupsInCallerThread() {
+        return _msm.getStatistics().getBackupsInCallerThread();
+    }
+
+    /**
+     * @return
+     * @see de.javakaffee.web.msm.Statistics#getNearCacheHits()
+     */
+    public long getMsmStatNumNearCacheHits() {
+        return _msm.getStatistics().getNearCacheHits();
+    }
+
+    /**
+     * @return
+     * @see de.javakaffee.web.msm.Statistics#getNearCacheMisses()
+     */
+    public long getMsmStatNumNearCacheMisses() {
+        return _msm.getStatistics().getNearCacheMisses();
+    }
+
+    /**
+     * @return
+     * @see de.javakaffee.web.msm.Statistics#getRequestsWithJoinedSessionLoad()
+     */
+    public long getMsmStatNumJoinedSessionLoads() {
+        return _msm.getStatistics().getRequestsWithJoinedSessionLoad();
+    }
+
+    /**
+     * @return
+     * @see de.javakaffee.web.msm.Statistics#getLocksHandedOver()
+     */
+    public long getMsmStatNumLocksHandedOver() {
+        return _msm.getStatistics().getLocksHandedOver();
+    }
+
+    /**
+     * @return
+     * @see de.javakaffee.web.msm.Statistics#getSharedLocksAcquired()
+     */
+    public long getMsmStatNumSharedLocksAcquired() {
+        return _msm.getStatistics().getSharedLocksAcquired();
+    }
+
+    /**
+     * @return
+     * @see de.javakaffee.web.msm.Statistics#getSessionsDrained()
+     */
+    public long getMsmStatNumSessionsDrained() {
+        return _msm.getStatistics().getSessionsDrained();
+    }
+
+    /**
+     * Returns a string array with labels and values of count, min, avg and max
+     * of the number of backups waiting in the backup queue when a backup was submitted.
+     * @return a String array for statistics inspection via jmx.
+     */
+    public String[] getMsmStatBackupQueueSizeInfo() {
+        return _msm.getStatistics().getProbe( BACKUP_QUEUE_SIZE ).getInfo();
+    }
+
+    /**
+     * Returns a string array with labels and values of count, min, avg and max
+     * of the time session backups waited in the backup queue.
+     * @return a String array for statistics inspection via jmx.
+     */
+    public String[] getMsmStatBackupQueueWaitInfo() {
+        return _msm.getStatistics().getProbe( BACKUP_QUEUE_WAIT ).getInfo();
+    }
+
+    /**
+     * Returns a string array with labels and values of count, min, avg and max
+     * of the time (in microseconds) needed to compress session data.
+     * @return a String array for statistics inspection via jmx.
+     */
+    public String[] getMsmStatCompressionInfo() {
+        return _msm.getStatistics().getProbe( COMPRESSION ).getInfo();
+    }
+
+    /**
+     * Returns a string array with labels and values of count, min, avg and max
+     * of the time (in microseconds) needed to decompress session data.
+     * @return a String array for statistics inspection via jmx.
+     */
+    public String[] getMsmStatDecompressionInfo() {
+        return _msm.getStatistics().getProbe( DECOMPRESSION ).getInfo();
+    }
+
+    /**
+     * Returns a string array with labels and values of count, min, avg and max
+     * of the size of compressed session data in percent of the uncompressed size.
+     * @return a String array for statistics inspection via jmx.
+     */
+    public String[] getMsmStatCompressionRatioInfo() {
+        return _msm.getStatistics().getProbe( COMPRESSION_RATIO ).getInfo();
+    }
+
+    /**
+     * Returns a string array with labels and values of count, min, avg and max
+     * of the time that took the expiration update of all due sessions in a run of the background process.
+     * @return a String array for statistics inspection via jmx.
+     */
+    public String[] getMsmStatExpirationUpdateInfo() {
+        return _msm.getStatistics().getProbe( EXPIRATION_UPDATE ).getInfo();
+    }
+
+    /**
+     * Returns a string array with labels and values of count, min, avg and max
+     * of the number of sessions whose expiration was updated in a run of the background process.
+     * @return a String array for statistics inspection via jmx.
+     */
+    public String[] getMsmStatExpirationUpdateSessionsInfo() {
+        return _msm.getStatistics().getProbe( EXPIRATION_UPDATE_SESSIONS ).getInfo();
+    }
+
     /**
      * Returns a string array with labels and values of count, min, avg and max
      * of the time that took the attributes serialization.
@@ -706,6 +1104,16 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         return _msm.getStatistics().getProbe( LOAD_FROM_MEMCACHED ).getInfo();
     }
 
+    /**
+     * Returns a string array with labels and values of count, min, avg and max
+     * of the time that taking non-sticky sessions from the near cache took (including the validity check).
+     * @return a String array for statistics inspection via jmx.
+     * @see #getMsmStatNumNearCacheHits()
+     */
+    public String[] getMsmStatSessionsLoadedFromNearCacheInfo() {
+        return _msm.getStatistics().getProbe( LOAD_FROM_NEAR_CACHE ).getInfo();
+    }
+
     /**
      * Returns a string array with labels and values of count, min, avg and max
      * of the time that deleting sessions from memcached took.
@@ -782,7 +1190,7 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
     }
 
     /**
-     * Tasks executed for non-sticky sessions after a session was loaded from memcached (load validity info / meta data).
+     * Tasks executed for non-sticky sessions after a session was loaded from memcached (apply the validity info loaded with the session).
      */
     public String[] getMsmStatNonStickyAfterLoadFromMemcachedInfo() {
         return _msm.getStatistics().getProbe( NON_STICKY_AFTER_LOAD_FROM_MEMCACHED ).getInfo();
@@ -795,6 +1203,16 @@ public class MemcachedBackupSessionManager extends ManagerBase implements Lifecy
         return _msm.getStatistics().getProbe( NON_STICKY_AFTER_DELETE_FROM_MEMCACHED ).getInfo();
     }
 
+    /**
+     * Returns a string array with the state, failure rate and slow call rate of the
+     * circuit breaker of each memcached node.
+     * @return a String array for inspection via jmx.
+     * @see NodeCircuitBreaker
+     */
+    public String[] getMsmNodeCircuitBreakerInfo() {
+        return _msm.getMemcachedNodesManager().getCircuitBreakerInfo();
+    }
+
     // ---------------------------------------------------------------------------
 
     @Override
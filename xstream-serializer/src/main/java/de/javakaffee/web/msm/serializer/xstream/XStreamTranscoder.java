@@ -20,6 +20,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Map;
 
 import org.apache.catalina.Manager;
@@ -30,7 +31,7 @@ import org.apache.juli.logging.LogFactory;
 import com.thoughtworks.xstream.XStream;
 
 import de.javakaffee.web.msm.MemcachedBackupSession;
-import de.javakaffee.web.msm.SessionAttributesTranscoder;
+import de.javakaffee.web.msm.StreamingSessionAttributesTranscoder;
 
 /**
  * A {@link net.spy.memcached.transcoders.Transcoder} that serializes catalina
@@ -38,7 +39,7 @@ import de.javakaffee.web.msm.SessionAttributesTranscoder;
  * 
  * @author <a href="mailto:martin.grotzke@javakaffee.de">Martin Grotzke</a>
  */
-public class XStreamTranscoder implements SessionAttributesTranscoder {
+public class XStreamTranscoder implements StreamingSessionAttributesTranscoder {
 
     private static final Log LOG = LogFactory.getLog( XStreamTranscoder.class );
 
@@ -59,23 +60,29 @@ public class XStreamTranscoder implements SessionAttributesTranscoder {
      */
     @Override
     public byte[] serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes ) {
-        return doSerialize( attributes );
-
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            serializeAttributes( session, attributes, bos );
+            return bos.toByteArray();
+        } finally {
+            closeSilently( bos );
+        }
     }
 
-    private byte[] doSerialize( final Object object ) {
-        if ( object == null ) {
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void serializeAttributes( final MemcachedBackupSession session, final Map<String, Object> attributes,
+            final OutputStream out ) {
+        if ( attributes == null ) {
             throw new NullPointerException( "Can't serialize null" );
         }
 
-        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
         try {
-            _xstream.toXML( object, bos );
-            return bos.toByteArray();
+            _xstream.toXML( attributes, out );
         } catch ( final Exception e ) {
             throw new IllegalArgumentException( "Non-serializable object", e );
-        } finally {
-            closeSilently( bos );
         }
     }
 
@@ -88,7 +95,15 @@ public class XStreamTranscoder implements SessionAttributesTranscoder {
      */
     @Override
     public Map<String, Object> deserializeAttributes( final byte[] in ) {
-        final ByteArrayInputStream bis = new ByteArrayInputStream( in );
+        return deserializeAttributes( in, 0, in.length );
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Object> deserializeAttributes( final byte[] in, final int offset, final int length ) {
+        final ByteArrayInputStream bis = new ByteArrayInputStream( in, offset, length );
         try {
             @SuppressWarnings( "unchecked" )
             final Map<String, Object> result = (Map<String, Object>) _xstream.fromXML( bis );